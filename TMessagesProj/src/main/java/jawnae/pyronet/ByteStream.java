@@ -21,11 +21,17 @@ package jawnae.pyronet;
 import org.hermes.messenger.BuffersStorage;
 import org.hermes.messenger.ByteBufferDesc;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class ByteStream {
+    private static final int MAX_GATHER_BUFFERS = 64;
+
     private final ArrayList<ByteBufferDesc> queue;
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[8];
 
     public ByteStream() {
         this.queue = new ArrayList<>();
@@ -70,6 +76,37 @@ public class ByteStream {
         }
     }
 
+    /**
+     * Writes the queued buffers to the channel with a single gathering
+     * write, without copying them, and releases the buffers that were sent
+     * completely. Returns the number of bytes written.
+     */
+
+    public int write(GatheringByteChannel channel) throws IOException {
+        int count = Math.min(this.queue.size(), MAX_GATHER_BUFFERS);
+        if (count == 0) {
+            return 0;
+        }
+        if (this.gatherBuffers.length < count) {
+            this.gatherBuffers = new ByteBuffer[Math.max(count, this.gatherBuffers.length * 2)];
+        }
+        for (int a = 0; a < count; a++) {
+            this.gatherBuffers[a] = this.queue.get(a).buffer;
+        }
+
+        long written;
+        try {
+            written = channel.write(this.gatherBuffers, 0, count);
+        } finally {
+            Arrays.fill(this.gatherBuffers, 0, count, null);
+        }
+
+        while (!this.queue.isEmpty() && !this.queue.get(0).hasRemaining()) {
+            BuffersStorage.getInstance().reuseFreeBuffer(this.queue.remove(0));
+        }
+        return (int) written;
+    }
+
     public void discard(int count) {
         int original = count;
 
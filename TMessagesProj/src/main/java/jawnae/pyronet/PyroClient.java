@@ -40,6 +40,10 @@ public class PyroClient {
 
     private final ByteStream outbound;
 
+    private ByteBuffer readTarget;
+
+    private final ByteBuffer[] readBuffers = new ByteBuffer[2];
+
     // called by PyroSelector.connect()
     PyroClient(PyroSelector selector, InetSocketAddress bind,
             InetSocketAddress host) throws IOException {
@@ -275,6 +279,19 @@ public class PyroClient {
         return this.outbound.hasData();
     }
 
+    /**
+     * Makes the next reads fill the given buffer before anything else, so a
+     * partially received packet is completed in place. Bytes beyond the end
+     * of the target are still delivered through receivedData(). The target is
+     * dropped once it is full.
+     */
+
+    public void setReadTarget(ByteBuffer target) {
+        this.selector.checkThread();
+
+        this.readTarget = target;
+    }
+
     private boolean doShutdown = false;
 
     /**
@@ -381,9 +398,24 @@ public class PyroClient {
 
         ByteBuffer buffer = this.selector.networkBuffer;
 
-        // read from channel
+        // read from channel, scattering into the read target first
         buffer.clear();
-        int bytes = channel.read(buffer);
+        long bytes;
+        if (this.readTarget != null && this.readTarget.hasRemaining()) {
+            this.readBuffers[0] = this.readTarget;
+            this.readBuffers[1] = buffer;
+            try {
+                bytes = channel.read(this.readBuffers);
+            } finally {
+                this.readBuffers[0] = null;
+                this.readBuffers[1] = null;
+            }
+            if (!this.readTarget.hasRemaining())
+                this.readTarget = null;
+        } else {
+            this.readTarget = null;
+            bytes = channel.read(buffer);
+        }
         if (bytes == -1)
             throw new EOFException();
         buffer.flip();
@@ -396,23 +428,9 @@ public class PyroClient {
         this.selector.checkThread();
         //this.lastEventTime = now;
 
-        int sent = 0;
-
-        // copy outbound bytes into network buffer
-        ByteBuffer buffer = this.selector.networkBuffer;
-        buffer.clear();
-        this.outbound.get(buffer);
-        buffer.flip();
-
-        // write to channel
-        if (buffer.hasRemaining()) {
-            SocketChannel channel = (SocketChannel) key.channel();
-            sent = channel.write(buffer);
-        }
-
-        if (sent > 0) {
-            this.outbound.discard(sent);
-        }
+        // gathering write straight from the outbound buffers
+        SocketChannel channel = (SocketChannel) key.channel();
+        int sent = this.outbound.write(channel);
 
         for (PyroClientListener listener: this.listeners)
             listener.sentData(this, sent);
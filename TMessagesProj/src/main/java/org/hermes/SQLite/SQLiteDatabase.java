@@ -11,21 +11,80 @@ package org.hermes.SQLite;
 import org.hermes.messenger.FileLog;
 import org.hermes.messenger.ApplicationLoader;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class SQLiteDatabase {
+    public static final int STATEMENT_CACHE_SIZE = 64;
+    public static final int MAX_IN_LIST_ARGS = 64;
+
 	private final int sqliteHandle;
 
+    private final LinkedHashMap<String, SQLitePreparedStatement> statementCache = new LinkedHashMap<String, SQLitePreparedStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLitePreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                eldest.getValue().evict();
+                return true;
+            }
+            return false;
+        }
+    };
+    private int statementCacheHits;
+    private int statementCacheMisses;
+
+    private static final String[] inListPlaceholders = new String[MAX_IN_LIST_ARGS + 1];
+
 	private boolean isOpen = false;
     private boolean inTransaction = false;
+    private Runnable commitListener;
 
 	public int getSQLiteHandle() {
 		return sqliteHandle;
 	}
 
 	public SQLiteDatabase(String fileName) throws SQLiteException {
-		sqliteHandle = opendb(fileName, ApplicationLoader.applicationContext.getFilesDir().getPath());
-		isOpen = true;
+		this(fileName, false);
 	}
 
+    /**
+     * Opens the database file. The native opendb always opens it read-write and resets the global
+     * temp directory, so a readOnly connection is only kept from writing by PRAGMA query_only, and
+     * connections must not be opened while another one is in use on a different thread.
+     */
+    public SQLiteDatabase(String fileName, boolean readOnly) throws SQLiteException {
+        sqliteHandle = opendb(fileName, ApplicationLoader.applicationContext.getFilesDir().getPath());
+        isOpen = true;
+        executeFast("PRAGMA busy_timeout = 5000").stepThis().dispose();
+        if (readOnly) {
+            executeFast("PRAGMA query_only = 1").stepThis().dispose();
+        }
+    }
+
+    /**
+     * Switches the file to WAL journaling, so read only connections opened on other threads see a
+     * consistent snapshot while this one writes. Returns false when the journal mode did not
+     * change, the connections must not be used concurrently then.
+     */
+    public boolean enableWriteAheadLog() throws SQLiteException {
+        checkOpened();
+        String mode = null;
+        SQLiteCursor cursor = queryFinalized("PRAGMA journal_mode = WAL");
+        try {
+            if (cursor.next()) {
+                mode = cursor.stringValue(0);
+            }
+        } finally {
+            cursor.dispose();
+        }
+        if (!"wal".equalsIgnoreCase(mode)) {
+            return false;
+        }
+        executeFast("PRAGMA synchronous = NORMAL").stepThis().dispose();
+        return true;
+    }
+
 	public boolean tableExists(String tableName) throws SQLiteException {
 		checkOpened();
 		String s = "SELECT rowid FROM sqlite_master WHERE type='table' AND name=?;";
@@ -36,6 +95,87 @@ public class SQLiteDatabase {
         return new SQLitePreparedStatement(this, sql, true);
     }
 
+    /**
+     * Returns a statement compiled once and kept in an LRU cache keyed by the sql text. dispose()
+     * resets it instead of finalizing it. If the cached statement is still in use, a new one that is
+     * finalized on dispose is returned, so nested use of the same sql is safe.
+     */
+    public SQLitePreparedStatement executeCached(String sql) throws SQLiteException {
+        checkOpened();
+        synchronized (statementCache) {
+            SQLitePreparedStatement statement = statementCache.get(sql);
+            if (statement == null) {
+                statementCacheMisses++;
+                statement = new SQLitePreparedStatement(this, sql, false);
+                statement.setCached();
+                statementCache.put(sql, statement);
+            } else if (statement.isInUse()) {
+                statementCacheMisses++;
+                return new SQLitePreparedStatement(this, sql, true);
+            } else {
+                statementCacheHits++;
+            }
+            statement.setInUse(true);
+            return statement;
+        }
+    }
+
+    public SQLiteCursor queryCached(String sql, Object... args) throws SQLiteException {
+        return executeCached(sql).query(args);
+    }
+
+    void releaseCached(SQLitePreparedStatement statement) {
+        synchronized (statementCache) {
+            statement.setInUse(false);
+        }
+    }
+
+    public String getStatementCacheStats() {
+        synchronized (statementCache) {
+            return "statements=" + statementCache.size() + " hits=" + statementCacheHits + " misses=" + statementCacheMisses;
+        }
+    }
+
+    /**
+     * Number of placeholders used for an IN list of count values. Sizes are rounded up to a power of
+     * two so that lists of similar length share one cached statement.
+     */
+    public static int inListSize(int count) {
+        int size = 1;
+        while (size < count && size < MAX_IN_LIST_ARGS) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public static String inListPlaceholders(int size) {
+        String placeholders = inListPlaceholders[size];
+        if (placeholders == null) {
+            StringBuilder builder = new StringBuilder(size * 2);
+            for (int a = 0; a < size; a++) {
+                if (a != 0) {
+                    builder.append(',');
+                }
+                builder.append('?');
+            }
+            inListPlaceholders[size] = placeholders = builder.toString();
+        }
+        return placeholders;
+    }
+
+    /**
+     * Returns the bind arguments for the chunk of values starting at offset, at most MAX_IN_LIST_ARGS
+     * of them, padded to inListSize() by repeating the last value.
+     */
+    public static Object[] inListArgs(List<?> values, int offset) {
+        int count = Math.min(values.size() - offset, MAX_IN_LIST_ARGS);
+        Object[] args = new Object[inListSize(count)];
+        for (int a = 0; a < args.length; a++) {
+            args[a] = values.get(offset + Math.min(a, count - 1));
+        }
+        return args;
+    }
+
 	public Integer executeInt(String sql, Object... args) throws SQLiteException {
 		checkOpened();
 		SQLiteCursor cursor = queryFinalized(sql, args);
@@ -58,6 +198,12 @@ public class SQLiteDatabase {
 		if (isOpen) {
 			try {
                 commitTransaction();
+                synchronized (statementCache) {
+                    for (SQLitePreparedStatement statement : statementCache.values()) {
+                        statement.finalizeQuery();
+                    }
+                    statementCache.clear();
+                }
 				closedb(sqliteHandle);
 			} catch (SQLiteException e) {
                 FileLog.e("tmessages", e.getMessage(), e);
@@ -86,12 +232,27 @@ public class SQLiteDatabase {
         beginTransaction(sqliteHandle);
     }
 
+    public boolean isInTransaction() {
+        return inTransaction;
+    }
+
     public void commitTransaction() {
         if (!inTransaction) {
             return;
         }
         inTransaction = false;
         commitTransaction(sqliteHandle);
+        if (commitListener != null) {
+            commitListener.run();
+        }
+    }
+
+    /**
+     * Sets a listener that runs on the committing thread after every commitTransaction, once the
+     * changes are visible to the other connections.
+     */
+    public void setCommitListener(Runnable listener) {
+        commitListener = listener;
     }
 
 	native int opendb(String fileName, String tempDir) throws SQLiteException;
@@ -19,17 +19,47 @@ public class SQLitePreparedStatement {
 	private int queryArgsCount;
 	private boolean finalizeAfterQuery = false;
 
+    private SQLiteDatabase database;
+    private boolean isCached;
+    private boolean inUse;
+    private boolean isEvicted;
+
 	public int getStatementHandle() {
 		return sqliteStatementHandle;
 	}
 
 	public SQLitePreparedStatement(SQLiteDatabase db, String sql, boolean finalize) throws SQLiteException {
 		finalizeAfterQuery = finalize;
+		database = db;
 		sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
 	}
 
+    void setCached() {
+        isCached = true;
+    }
+
+    boolean isInUse() {
+        return inUse;
+    }
+
+    void setInUse(boolean value) {
+        inUse = value;
+    }
+
+    void evict() {
+        isEvicted = true;
+        if (!inUse) {
+            finalizeQuery();
+        }
+    }
+
 
     public SQLiteCursor query(Object[] args) throws SQLiteException {
+        bindArgs(args);
+        return new SQLiteCursor(this);
+    }
+
+    public SQLitePreparedStatement bindArgs(Object[] args) throws SQLiteException {
         if (args == null || args.length != queryArgsCount) {
             throw new IllegalArgumentException();
         }
@@ -44,6 +74,8 @@ public class SQLitePreparedStatement {
                 bindNull(sqliteStatementHandle, i);
             } else if (obj instanceof Integer) {
                 bindInt(sqliteStatementHandle, i, (Integer)obj);
+            } else if (obj instanceof Long) {
+                bindLong(sqliteStatementHandle, i, (Long)obj);
             } else if (obj instanceof Double) {
                 bindDouble(sqliteStatementHandle, i, (Double)obj);
             } else if (obj instanceof String) {
@@ -54,7 +86,7 @@ public class SQLitePreparedStatement {
             i++;
         }
 
-        return new SQLiteCursor(this);
+        return this;
     }
 
     public int step() throws SQLiteException {
@@ -74,7 +106,18 @@ public class SQLitePreparedStatement {
 	public void dispose() {
 		if (finalizeAfterQuery) {
 			finalizeQuery();
-		}
+		} else if (isCached) {
+            if (isEvicted) {
+                finalizeQuery();
+            } else if (!isFinalized) {
+                try {
+                    reset(sqliteStatementHandle);
+                } catch (SQLiteException e) {
+                    FileLog.e("tmessages", e.getMessage(), e);
+                }
+            }
+            database.releaseCached(this);
+        }
 	}
 
 	void checkFinalized() throws SQLiteException {
@@ -0,0 +1,140 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps bitmaps that dropped out of the memory cache so later decodes can write into them through
+ * BitmapFactory.Options.inBitmap instead of allocating. Bitmaps are bucketed by allocation size.
+ * Before KitKat a bitmap can only be reused for a decode of exactly the same dimensions and config,
+ * later any bitmap that is large enough will do. The pool is bounded by bytes and drops the oldest
+ * bitmaps first; there are no explicit GC calls, memory pressure is handled in trim.
+ */
+public class BitmapPool {
+
+    public static final int TRIM_LEVEL_BACKGROUND = 1;
+    public static final int TRIM_LEVEL_COMPLETE = 2;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> bitmapsBySize = new TreeMap<>();
+    private final LinkedList<Bitmap> bitmapsByAge = new LinkedList<>();
+    private final int maxSize;
+    private int size;
+
+    private long hits;
+    private long misses;
+    private long drops;
+
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 11;
+    }
+
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Takes a bitmap that a decode of the given size and config can write into, or returns null.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported() || width <= 0 || height <= 0) {
+            return null;
+        }
+        int needed = width * height * (config == Bitmap.Config.ARGB_8888 ? 4 : 2);
+        Map.Entry<Integer, ArrayList<Bitmap>> entry = bitmapsBySize.ceilingEntry(needed);
+        while (entry != null && entry.getKey() <= needed * 2) {
+            ArrayList<Bitmap> bitmaps = entry.getValue();
+            for (int a = bitmaps.size() - 1; a >= 0; a--) {
+                Bitmap bitmap = bitmaps.get(a);
+                if (Build.VERSION.SDK_INT < 19 && (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+                    continue;
+                }
+                bitmaps.remove(a);
+                if (bitmaps.isEmpty()) {
+                    bitmapsBySize.remove(entry.getKey());
+                }
+                bitmapsByAge.remove(bitmap);
+                size -= entry.getKey();
+                hits++;
+                return bitmap;
+            }
+            if (Build.VERSION.SDK_INT < 19) {
+                break;
+            }
+            entry = bitmapsBySize.higherEntry(entry.getKey());
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Hands over a bitmap nobody draws anymore. Bitmaps that can not be reused are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bitmapSize = getAllocationSize(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || bitmapSize > maxSize / 4) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayList<Bitmap> bitmaps = bitmapsBySize.get(bitmapSize);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            bitmapsBySize.put(bitmapSize, bitmaps);
+        } else if (bitmaps.contains(bitmap)) {
+            return;
+        }
+        bitmaps.add(bitmap);
+        bitmapsByAge.add(bitmap);
+        size += bitmapSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized void trim(int level) {
+        trimToSize(level >= TRIM_LEVEL_COMPLETE ? 0 : maxSize / 2);
+    }
+
+    private void trimToSize(int targetSize) {
+        while (size > targetSize && !bitmapsByAge.isEmpty()) {
+            Bitmap bitmap = bitmapsByAge.removeFirst();
+            int bitmapSize = getAllocationSize(bitmap);
+            ArrayList<Bitmap> bitmaps = bitmapsBySize.get(bitmapSize);
+            if (bitmaps != null) {
+                bitmaps.remove(bitmap);
+                if (bitmaps.isEmpty()) {
+                    bitmapsBySize.remove(bitmapSize);
+                }
+            }
+            size -= bitmapSize;
+            drops++;
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized String getStats() {
+        long total = hits + misses;
+        return String.format(Locale.US, "size=%dKB hit rate=%.2f%% hits=%d misses=%d drops=%d", size / 1024, total != 0 ? hits * 100.0 / total : 0.0, hits, misses, drops);
+    }
+}
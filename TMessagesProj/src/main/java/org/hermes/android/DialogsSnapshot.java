@@ -0,0 +1,222 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android;
+
+import org.hermes.messenger.ApplicationLoader;
+import org.hermes.messenger.ByteBufferDesc;
+import org.hermes.messenger.FileLog;
+import org.hermes.messenger.TLClassStore;
+import org.hermes.messenger.TLRPC;
+import org.hermes.messenger.UserConfig;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps the first page of the dialogs list in a small file next to the database, so it can be shown
+ * on launch before cache4.db is opened. The file starts with a header holding the format version, TL
+ * layer, database schema version and the owning user id; a file that does not match any of them is
+ * ignored. After the header come fixed size dialog records followed by the top messages, chats and users
+ * as TL objects. Secret chats are left out, their keys only live in the database.
+ */
+public class DialogsSnapshot {
+
+    public static final int MAX_DIALOGS = 30;
+
+    private static final int SNAPSHOT_MAGIC = 0x44534e50;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MAX_SNAPSHOT_SIZE = 4 * 1024 * 1024;
+
+    private static final Object sync = new Object();
+
+    private static File getSnapshotFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "dialogs_snapshot.dat");
+    }
+
+    private static void writeHeader(ByteBufferDesc data, int count) {
+        data.writeInt32(SNAPSHOT_MAGIC);
+        data.writeInt32(SNAPSHOT_VERSION);
+        data.writeInt32(TLRPC.LAYER);
+        data.writeInt32(MessagesStorage.LAST_DB_VERSION);
+        data.writeInt32(UserConfig.getClientUserId());
+        data.writeInt32(count);
+    }
+
+    private static void serialize(ByteBufferDesc data, ArrayList<TLRPC.TL_dialog> dialogs, ArrayList<TLRPC.Message> messages, ArrayList<TLRPC.Chat> chats, ArrayList<TLRPC.User> users) {
+        writeHeader(data, dialogs.size());
+        for (TLRPC.TL_dialog dialog : dialogs) {
+            data.writeInt64(dialog.id);
+            data.writeInt32(dialog.top_message);
+            data.writeInt32(dialog.unread_count);
+            data.writeInt32(dialog.last_message_date);
+            data.writeInt32(dialog.notify_settings != null ? dialog.notify_settings.mute_until : 0);
+        }
+        data.writeInt32(messages.size());
+        for (TLRPC.Message message : messages) {
+            data.writeInt32(message.send_state);
+            message.serializeToStream(data);
+        }
+        data.writeInt32(chats.size());
+        for (TLRPC.Chat chat : chats) {
+            chat.serializeToStream(data);
+        }
+        data.writeInt32(users.size());
+        for (TLRPC.User user : users) {
+            user.serializeToStream(data);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given first page of dialogs, as loaded from the database. The file
+     * is written next to the old one and renamed over it, so a reader never sees a partial file.
+     */
+    public static void write(TLRPC.messages_Dialogs res) {
+        ArrayList<TLRPC.TL_dialog> dialogs = new ArrayList<>();
+        HashMap<Integer, TLRPC.Message> messagesDict = new HashMap<>();
+        for (TLRPC.Message message : res.messages) {
+            messagesDict.put(message.id, message);
+        }
+        ArrayList<TLRPC.Message> messages = new ArrayList<>();
+        for (TLRPC.TL_dialog dialog : res.dialogs) {
+            if ((int) dialog.id == 0) {
+                continue;
+            }
+            dialogs.add(dialog);
+            TLRPC.Message message = messagesDict.get(dialog.top_message);
+            if (message != null) {
+                messages.add(message);
+            }
+            if (dialogs.size() == MAX_DIALOGS) {
+                break;
+            }
+        }
+
+        ByteBufferDesc sizeCalc = new ByteBufferDesc(true);
+        serialize(sizeCalc, dialogs, messages, res.chats, res.users);
+        int size = sizeCalc.length();
+        if (size > MAX_SNAPSHOT_SIZE) {
+            delete();
+            return;
+        }
+        ByteBufferDesc data = new ByteBufferDesc(new byte[size]);
+        serialize(data, dialogs, messages, res.chats, res.users);
+        data.rewind();
+
+        synchronized (sync) {
+            File file = getSnapshotFile();
+            File tempFile = new File(file.getPath() + ".tmp");
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(tempFile, "rw");
+                randomAccessFile.setLength(0);
+                randomAccessFile.getChannel().write(data.buffer);
+                randomAccessFile.close();
+                randomAccessFile = null;
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                tempFile.delete();
+            } finally {
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot. Returns null when there is no snapshot or it was written by another account,
+     * app layer or database schema.
+     */
+    public static TLRPC.messages_Dialogs read() {
+        synchronized (sync) {
+            File file = getSnapshotFile();
+            if (!file.exists() || file.length() > MAX_SNAPSHOT_SIZE || !UserConfig.isClientActivated()) {
+                return null;
+            }
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "r");
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                ByteBufferDesc data = new ByteBufferDesc(buffer);
+                if (data.readInt32() != SNAPSHOT_MAGIC || data.readInt32() != SNAPSHOT_VERSION || data.readInt32() != TLRPC.LAYER ||
+                        data.readInt32() != MessagesStorage.LAST_DB_VERSION || data.readInt32() != UserConfig.getClientUserId()) {
+                    return null;
+                }
+                TLRPC.messages_Dialogs res = new TLRPC.messages_Dialogs();
+                int count = data.readInt32();
+                for (int a = 0; a < count; a++) {
+                    TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
+                    dialog.id = data.readInt64();
+                    dialog.top_message = data.readInt32();
+                    dialog.unread_count = data.readInt32();
+                    dialog.last_message_date = data.readInt32();
+                    dialog.notify_settings = new TLRPC.TL_peerNotifySettings();
+                    dialog.notify_settings.mute_until = data.readInt32();
+                    res.dialogs.add(dialog);
+                }
+                count = data.readInt32();
+                for (int a = 0; a < count; a++) {
+                    int sendState = data.readInt32();
+                    TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                    if (message == null) {
+                        return null;
+                    }
+                    message.send_state = sendState;
+                    res.messages.add(message);
+                }
+                count = data.readInt32();
+                for (int a = 0; a < count; a++) {
+                    TLRPC.Chat chat = (TLRPC.Chat) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                    if (chat == null) {
+                        return null;
+                    }
+                    res.chats.add(chat);
+                }
+                count = data.readInt32();
+                for (int a = 0; a < count; a++) {
+                    TLRPC.User user = (TLRPC.User) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                    if (user == null) {
+                        return null;
+                    }
+                    res.users.add(user);
+                }
+                return res;
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                file.delete();
+            } finally {
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    public static void delete() {
+        synchronized (sync) {
+            getSnapshotFile().delete();
+        }
+    }
+}
@@ -10,8 +10,10 @@ package org.hermes.android;
 
 import java.io.File;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -32,7 +34,8 @@ import org.hermes.messenger.Utilities;
 import org.hermes.messenger.ApplicationLoader;
 
 public class Emoji {
-	private static HashMap<Long, DrawableInfo> rects = new HashMap<>();
+	private static EmojiTable emojiTable;
+	private static DrawableInfo[] emojiInfos;
 	private static int drawImgSize, bigImgSize;
 	private static boolean inited = false;
 	private static Paint placeholderPaint;
@@ -43,20 +46,17 @@ public class Emoji {
             13, 10, 15, 10, 14
     };
 
-    private static final char[] emojiChars = {
-            0x00A9, 0x00AE, 0x203C, 0x2049, 0x2122, 0x2139, 0x2194, 0x2195, 0x2196, 0x2197,
-            0x2198, 0x2199, 0x21A9, 0x21AA, 0x231A, 0x231B, 0x23E9, 0x23EA, 0x23EB, 0x23EC,
-            0x23F0, 0x23F3, 0x24C2, 0x25AA, 0x25AB, 0x25B6, 0x25C0, 0x25FB, 0x25FC, 0x25FD,
-            0x25FE, 0x2600, 0x2601, 0x260E, 0x2611, 0x2614, 0x2615, 0x261D, 0x263A, 0x2648,
-            0x2649, 0x264A, 0x264B, 0x264C, 0x264D, 0x264E, 0x264F, 0x2650, 0x2651, 0x2652,
-            0x2653, 0x2660, 0x2663, 0x2665, 0x2666, 0x2668, 0x267B, 0x267F, 0x2693, 0x26A0,
-            0x26A1, 0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5, 0x26CE, 0x26D4, 0x26EA,
-            0x26F2, 0x26F3, 0x26F5, 0x26FA, 0x26FD, 0x2702, 0x2705, 0x2708, 0x2709, 0x270A,
-            0x270B, 0x270C, 0x270F, 0x2712, 0x2714, 0x2716, 0x2728, 0x2733, 0x2734, 0x2744,
-            0x2747, 0x274C, 0x274E, 0x2753, 0x2754, 0x2755, 0x2757, 0x2764, 0x2795, 0x2796,
-            0x2797, 0x27A1, 0x27B0, 0x27BF, 0x2934, 0x2935, 0x2B05, 0x2B06, 0x2B07, 0x2B1B,
-            0x2B1C, 0x2B50, 0x2B55, 0x3030, 0x303D, 0x3297, 0x3299
+    private static final int MAX_CACHED_TEXTS = 200;
+    private static final int MAX_CACHED_TEXT_LENGTH = 256;
+
+    private static final LinkedHashMap<TextKey, CharSequence> textCache = new LinkedHashMap<TextKey, CharSequence>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TextKey, CharSequence> eldest) {
+            return size() > MAX_CACHED_TEXTS;
+        }
     };
+    private static long textCacheHits;
+    private static long textCacheMisses;
 
     public static  long[][] data = {
             new long[]
@@ -208,10 +208,12 @@ public class Emoji {
             bigImgSize = AndroidUtilities.dp(30);
         }
 
+        emojiTable = new EmojiTable(Arrays.copyOfRange(data, 1, data.length));
+        emojiInfos = new DrawableInfo[emojiTable.size()];
 		for (int j = 1; j < data.length; j++) {
 			for (int i = 0; i < data[j].length; i++) {
                 Rect rect = new Rect((i % cols[j - 1]) * emojiFullSize, (i / cols[j - 1]) * emojiFullSize, (i % cols[j - 1] + 1) * emojiFullSize, (i / cols[j - 1] + 1) * emojiFullSize);
-				rects.put(data[j][i], new DrawableInfo(rect, (byte)(j - 1)));
+				emojiInfos[emojiTable.indexOf(data[j][i])] = new DrawableInfo(rect, (byte)(j - 1));
 			}
 		}
 		placeholderPaint = new Paint();
@@ -300,7 +302,8 @@ public class Emoji {
 	}
 	
 	public static EmojiDrawable getEmojiDrawable(long code) {
-		DrawableInfo info = rects.get(code);
+        int index = emojiTable.indexOf(code);
+		DrawableInfo info = index != EmojiTable.NOT_FOUND ? emojiInfos[index] : null;
 		if (info == null) {
             FileLog.e("tmessages", "No emoji drawable for code " + String.format("%016X", code));
 			return null;
@@ -388,13 +391,80 @@ public class Emoji {
 		}
 	}
 
-    private static boolean inArray(char c, char[] a) {
-        for (char cc : a) {
-            if (cc == c) {
-                return true;
+    private static class TextKey {
+        private final String text;
+        private final boolean tags;
+        private final int size;
+        private final int ascent;
+        private final int descent;
+        private final int top;
+        private final int bottom;
+
+        public TextKey(String text, boolean tags, Paint.FontMetricsInt fontMetrics, int size) {
+            this.text = text;
+            this.tags = tags;
+            this.size = size;
+            if (fontMetrics != null) {
+                ascent = fontMetrics.ascent;
+                descent = fontMetrics.descent;
+                top = fontMetrics.top;
+                bottom = fontMetrics.bottom;
+            } else {
+                ascent = descent = top = bottom = Integer.MIN_VALUE;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TextKey)) {
+                return false;
+            }
+            TextKey key = (TextKey) o;
+            return size == key.size && tags == key.tags && ascent == key.ascent && descent == key.descent && top == key.top && bottom == key.bottom && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = text.hashCode();
+            result = 31 * result + size;
+            result = 31 * result + (tags ? 1 : 0);
+            result = 31 * result + ascent;
+            result = 31 * result + descent;
+            return result;
+        }
+    }
+
+    /**
+     * Replaces emoji in a text that is only drawn, like a dialog preview, and keeps the result for
+     * the next bind of the same text. With tags the text first goes through
+     * AndroidUtilities.replaceTags. The returned text is shared and must not be changed.
+     */
+    public static CharSequence replaceEmojiCached(String text, boolean tags, Paint.FontMetricsInt fontMetrics, int size) {
+        if (text == null || text.length() == 0 || text.length() > MAX_CACHED_TEXT_LENGTH) {
+            return replaceEmoji(tags && text != null ? AndroidUtilities.replaceTags(text) : text, fontMetrics, size);
+        }
+        TextKey key = new TextKey(text, tags, fontMetrics, size);
+        CharSequence result;
+        synchronized (textCache) {
+            result = textCache.get(key);
+            if (result != null) {
+                textCacheHits++;
+                return result;
             }
+            textCacheMisses++;
+        }
+        result = replaceEmoji(tags ? AndroidUtilities.replaceTags(text) : text, fontMetrics, size);
+        synchronized (textCache) {
+            textCache.put(key, result);
+        }
+        return result;
+    }
+
+    public static String getStats() {
+        synchronized (textCache) {
+            long total = textCacheHits + textCacheMisses;
+            return String.format(Locale.US, "codes=%d cached texts=%d hit rate=%.2f%%", emojiTable.size(), textCache.size(), total != 0 ? textCacheHits * 100.0 / total : 0.0);
         }
-        return false;
     }
 
     public static CharSequence replaceEmoji(CharSequence cs, Paint.FontMetricsInt fontMetrics, int size) {
@@ -410,7 +480,8 @@ public class Emoji {
         long buf = 0;
         int emojiCount = 0;
         try {
-            for (int i = 0; i < cs.length(); i++) {
+            int length = cs.length();
+            for (int i = 0; i < length; i++) {
                 char c = cs.charAt(i);
                 if (c == 0xD83C || c == 0xD83D || (buf != 0 && (buf & 0xFFFFFFFF00000000L) == 0 && (c >= 0xDDE6 && c <= 0xDDFA))) {
                     buf <<= 16;
@@ -445,7 +516,7 @@ public class Emoji {
                             buf = 0;
                         }
                     }
-                } else if (inArray(c, emojiChars)) {
+                } else if (emojiTable.isEmojiChar(c)) {
                     EmojiDrawable d = Emoji.getEmojiDrawable(c);
                     if (d != null) {
                         EmojiSpan span = new EmojiSpan(d, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
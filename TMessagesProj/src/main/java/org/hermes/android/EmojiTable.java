@@ -0,0 +1,83 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.android;
+
+import java.util.Arrays;
+
+/**
+ * The emoji Emoji can draw: the codes of its sprite pages, sorted and without duplicates so an
+ * index is found by binary search, and a bitset of the single chars that are emoji on their own.
+ */
+class EmojiTable {
+
+    static final int NOT_FOUND = -1;
+
+    static final char[] EMOJI_CHARS = {
+            0x00A9, 0x00AE, 0x203C, 0x2049, 0x2122, 0x2139, 0x2194, 0x2195, 0x2196, 0x2197,
+            0x2198, 0x2199, 0x21A9, 0x21AA, 0x231A, 0x231B, 0x23E9, 0x23EA, 0x23EB, 0x23EC,
+            0x23F0, 0x23F3, 0x24C2, 0x25AA, 0x25AB, 0x25B6, 0x25C0, 0x25FB, 0x25FC, 0x25FD,
+            0x25FE, 0x2600, 0x2601, 0x260E, 0x2611, 0x2614, 0x2615, 0x261D, 0x263A, 0x2648,
+            0x2649, 0x264A, 0x264B, 0x264C, 0x264D, 0x264E, 0x264F, 0x2650, 0x2651, 0x2652,
+            0x2653, 0x2660, 0x2663, 0x2665, 0x2666, 0x2668, 0x267B, 0x267F, 0x2693, 0x26A0,
+            0x26A1, 0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5, 0x26CE, 0x26D4, 0x26EA,
+            0x26F2, 0x26F3, 0x26F5, 0x26FA, 0x26FD, 0x2702, 0x2705, 0x2708, 0x2709, 0x270A,
+            0x270B, 0x270C, 0x270F, 0x2712, 0x2714, 0x2716, 0x2728, 0x2733, 0x2734, 0x2744,
+            0x2747, 0x274C, 0x274E, 0x2753, 0x2754, 0x2755, 0x2757, 0x2764, 0x2795, 0x2796,
+            0x2797, 0x27A1, 0x27B0, 0x27BF, 0x2934, 0x2935, 0x2B05, 0x2B06, 0x2B07, 0x2B1B,
+            0x2B1C, 0x2B50, 0x2B55, 0x3030, 0x303D, 0x3297, 0x3299
+    };
+
+    private static final long[] emojiCharBits = new long[(EMOJI_CHARS[EMOJI_CHARS.length - 1] >> 6) + 1];
+
+    static {
+        for (char c : EMOJI_CHARS) {
+            emojiCharBits[c >> 6] |= 1L << (c & 63);
+        }
+    }
+
+    private final long[] codes;
+
+    EmojiTable(long[][] pages) {
+        int count = 0;
+        for (long[] page : pages) {
+            count += page.length;
+        }
+        long[] sorted = new long[count];
+        count = 0;
+        for (long[] page : pages) {
+            System.arraycopy(page, 0, sorted, count, page.length);
+            count += page.length;
+        }
+        Arrays.sort(sorted);
+        count = 0;
+        for (int a = 0; a < sorted.length; a++) {
+            if (a == 0 || sorted[a] != sorted[count - 1]) {
+                sorted[count++] = sorted[a];
+            }
+        }
+        codes = Arrays.copyOf(sorted, count);
+    }
+
+    int size() {
+        return codes.length;
+    }
+
+    /**
+     * Returns the index of code among the codes of the pages, from 0 to size() - 1, or NOT_FOUND.
+     */
+    int indexOf(long code) {
+        int index = Arrays.binarySearch(codes, code);
+        return index >= 0 ? index : NOT_FOUND;
+    }
+
+    boolean isEmojiChar(char c) {
+        int word = c >> 6;
+        return word < emojiCharBits.length && (emojiCharBits[word] & (1L << (c & 63))) != 0;
+    }
+}
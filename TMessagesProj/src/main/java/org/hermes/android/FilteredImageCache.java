@@ -0,0 +1,315 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import org.hermes.messenger.ApplicationLoader;
+import org.hermes.messenger.DispatchQueue;
+import org.hermes.messenger.FileLog;
+import org.hermes.messenger.Utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache of images after their filter was applied, so a blurred or downscaled thumbnail is
+ * read back as raw pixels instead of being decoded, scaled and blurred again on every cold load.
+ * Entries are keyed by the memory cache key (location and filter) and remember the length and
+ * modification time of the source file, a changed source makes the entry stale. Writes happen on
+ * their own queue, the directory is kept under its size limit by dropping the least recently used
+ * entries.
+ */
+public class FilteredImageCache {
+
+    private static final int MAGIC = 0x46494331;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAX_ENTRY_SIZE = 256 * 1024;
+    private static final long MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private final DispatchQueue writeQueue = new DispatchQueue("filteredImageQueue");
+    private final File directory;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long totalSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public FilteredImageCache() {
+        directory = new File(ApplicationLoader.applicationContext.getCacheDir(), "filtered");
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                loadEntries();
+            }
+        });
+    }
+
+    private void loadEntries() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        synchronized (entries) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                    continue;
+                }
+                if (!entries.containsKey(file.getName())) {
+                    entries.put(file.getName(), file.length());
+                    totalSize += file.length();
+                }
+            }
+        }
+        trim();
+    }
+
+    private static int getConfigId(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the filtered image stored for the key, or returns null. Called on a decode thread.
+     */
+    public Bitmap get(String key, File source, BitmapPool pool) {
+        String name = Utilities.MD5(key);
+        File file = new File(directory, name);
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Bitmap bitmap = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            int width = 0;
+            int height = 0;
+            Bitmap.Config config = null;
+            if (buffer.limit() > HEADER_SIZE && buffer.getInt(0) == MAGIC) {
+                width = buffer.getInt(4);
+                height = buffer.getInt(8);
+                int configId = buffer.getInt(12);
+                config = configId == 1 ? Bitmap.Config.ARGB_8888 : (configId == 2 ? Bitmap.Config.RGB_565 : null);
+                if (source != null && source.exists() && (source.length() != buffer.getLong(16) || source.lastModified() != buffer.getLong(24))) {
+                    config = null;
+                }
+            }
+            if (config != null && buffer.limit() - HEADER_SIZE >= width * height * (config == Bitmap.Config.ARGB_8888 ? 4 : 2)) {
+                bitmap = pool.get(width, height, config);
+                if (bitmap != null && (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+                    if (Build.VERSION.SDK_INT >= 19) {
+                        bitmap.reconfigure(width, height, config);
+                    } else {
+                        pool.put(bitmap);
+                        bitmap = null;
+                    }
+                }
+                if (bitmap == null) {
+                    bitmap = Bitmap.createBitmap(width, height, config);
+                }
+                buffer.position(HEADER_SIZE);
+                bitmap.copyPixelsFromBuffer(buffer);
+            }
+        } catch (Throwable e) {
+            FileLog.e("tmessages", e);
+            if (bitmap != null) {
+                pool.put(bitmap);
+                bitmap = null;
+            }
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        if (bitmap == null) {
+            misses.incrementAndGet();
+            remove(name);
+            return null;
+        }
+        hits.incrementAndGet();
+        touch(name);
+        return bitmap;
+    }
+
+    /**
+     * Copies the pixels out right away and writes them on the cache queue. Called on a decode thread
+     * before the bitmap is handed out.
+     */
+    public void put(String key, File source, Bitmap bitmap) {
+        int configId = getConfigId(bitmap.getConfig());
+        int size = bitmap.getRowBytes() * bitmap.getHeight();
+        if (configId == 0 || size > MAX_ENTRY_SIZE || bitmap.getRowBytes() != bitmap.getWidth() * (configId == 1 ? 4 : 2)) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putInt(configId);
+        buffer.putLong(source != null ? source.length() : 0);
+        buffer.putLong(source != null ? source.lastModified() : 0);
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        final String name = Utilities.MD5(key);
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                write(name, buffer);
+            }
+        });
+    }
+
+    private void write(String name, ByteBuffer buffer) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File temp = new File(directory, name + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            FileChannel channel = stream.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            stream.close();
+            stream = null;
+            File file = new File(directory, name);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            synchronized (entries) {
+                Long old = entries.put(name, file.length());
+                if (old != null) {
+                    totalSize -= old;
+                }
+                totalSize += file.length();
+            }
+            writes.incrementAndGet();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            temp.delete();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        trim();
+    }
+
+    private void touch(final String name) {
+        synchronized (entries) {
+            entries.get(name);
+        }
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                new File(directory, name).setLastModified(System.currentTimeMillis());
+            }
+        });
+    }
+
+    private void remove(final String name) {
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (entries) {
+                    Long size = entries.remove(name);
+                    if (size != null) {
+                        totalSize -= size;
+                    }
+                }
+                new File(directory, name).delete();
+            }
+        });
+    }
+
+    private void trim() {
+        while (true) {
+            String name;
+            synchronized (entries) {
+                if (totalSize <= MAX_CACHE_SIZE || entries.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+                Map.Entry<String, Long> entry = iterator.next();
+                name = entry.getKey();
+                totalSize -= entry.getValue();
+                iterator.remove();
+            }
+            new File(directory, name).delete();
+        }
+    }
+
+    public void clear() {
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (entries) {
+                    entries.clear();
+                    totalSize = 0;
+                }
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    public String getStats() {
+        long hitsCount = hits.get();
+        long total = hitsCount + misses.get();
+        long size;
+        synchronized (entries) {
+            size = totalSize;
+        }
+        return String.format(Locale.US, "size=%dKB hit rate=%.2f%% writes=%d", size / 1024, total != 0 ? hitsCount * 100.0 / total : 0.0, writes.get());
+    }
+}
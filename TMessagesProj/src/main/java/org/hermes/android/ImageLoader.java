@@ -26,6 +26,7 @@ import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 
+import org.hermes.messenger.DispatchPool;
 import org.hermes.messenger.DispatchQueue;
 import org.hermes.messenger.FileLoader;
 import org.hermes.messenger.FileLog;
@@ -51,23 +52,29 @@ import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ImageLoader {
 
-    private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_VISIBLE = 2;
+
+    private HashMap<String, int[]> bitmapUseCounts = new HashMap<>();
+    private BitmapPool bitmapPool;
+    private FilteredImageCache filteredImageCache;
     private LruCache memCache;
+    private LruCache prefetchCache;
     private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
     private HashMap<String, CacheImage> imageLoadingByKeys = new HashMap<>();
     private HashMap<Integer, CacheImage> imageLoadingByTag = new HashMap<>();
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private HashMap<Integer, String> waitingForQualityThumbByTag = new HashMap<>();
     private LinkedList<HttpImageTask> httpTasks = new LinkedList<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
+    private DispatchPool cacheOutPool = new DispatchPool("cacheOutQueue", Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
-    private DispatchQueue recycleQueue = new DispatchQueue("recycleQueue");
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
     private int currentHttpTasksCount = 0;
@@ -79,8 +86,10 @@ public class ImageLoader {
 
     protected VMRuntimeHack runtimeHack = null;
     private String ignoreRemoval = null;
+    private String ignorePrefetchRemoval = null;
+    private long prefetchHits;
+    private long prefetchDrops;
 
-    private volatile long lastCacheOutTime = 0;
     private int lastImageNum = 0;
     private long lastProgressUpdateTime = 0;
 
@@ -444,7 +453,6 @@ public class ImageLoader {
                 Bitmap scaledBitmap = Bitmap.createScaledBitmap(originalBitmap, (int) (w / scaleFactor), (int) (h / scaleFactor), true);
                 if (scaledBitmap != originalBitmap) {
                     originalBitmap.recycle();
-                    callGC();
                 }
                 originalBitmap = scaledBitmap;
                 FileOutputStream stream = new FileOutputStream(thumbFile);
@@ -530,13 +538,17 @@ public class ImageLoader {
                 }
 
                 try {
-                    lastCacheOutTime = System.currentTimeMillis();
                     synchronized (sync) {
                         if (isCancelled) {
                             return;
                         }
                     }
 
+                    boolean fromFilteredCache = false;
+                    if (blurType != 0) {
+                        image = filteredImageCache.get(cacheImage.key, cacheFileFinal, bitmapPool);
+                        fromFilteredCache = image != null;
+                    }
                     if (image == null) {
                         if (isWebp) {
                             RandomAccessFile file = new RandomAccessFile(cacheFileFinal, "r");
@@ -544,9 +556,7 @@ public class ImageLoader {
                             image = Utilities.loadWebpImage(buffer, buffer.limit(), null);
                             file.close();
                         } else {
-                            FileInputStream is = new FileInputStream(cacheFileFinal);
-                            image = BitmapFactory.decodeStream(is, null, null);
-                            is.close();
+                            image = decodeFile(cacheFileFinal, new BitmapFactory.Options());
                         }
                     }
                     if (image == null) {
@@ -554,7 +564,7 @@ public class ImageLoader {
                             cacheFileFinal.delete();
                         }
                     } else {
-                        if (image != null) {
+                        if (!fromFilteredCache && blurType != 0) {
                             if (blurType == 1) {
                                 Utilities.blurBitmap(image, 3);
                             } else if (blurType == 2) {
@@ -564,6 +574,7 @@ public class ImageLoader {
                                 Utilities.blurBitmap(image, 7);
                                 Utilities.blurBitmap(image, 7);
                             }
+                            filteredImageCache.put(cacheImage.key, cacheFileFinal, image);
                         }
                         if (runtimeHack != null) {
                             runtimeHack.trackFree(image.getRowBytes() * image.getHeight());
@@ -586,29 +597,24 @@ public class ImageLoader {
                         }
                     }
 
-                    int delay = 20;
-                    if (runtimeHack != null) {
-                        delay = 60;
-                    }
-                    if (mediaId != null) {
-                        delay = 0;
-                    }
-                    if (delay != 0 && lastCacheOutTime != 0 && lastCacheOutTime > System.currentTimeMillis() - delay && Build.VERSION.SDK_INT < 21) {
-                        Thread.sleep(delay);
-                    }
-                    lastCacheOutTime = System.currentTimeMillis();
                     synchronized (sync) {
                         if (isCancelled) {
                             return;
                         }
                     }
 
+                    boolean fromFilteredCache = false;
+                    if (mediaId == null && cacheImage.filter != null) {
+                        image = filteredImageCache.get(cacheImage.key, cacheFileFinal, bitmapPool);
+                        fromFilteredCache = image != null;
+                    }
+
                     BitmapFactory.Options opts = new BitmapFactory.Options();
 
                     float w_filter = 0;
                     float h_filter = 0;
                     boolean blur = false;
-                    if (cacheImage.filter != null) {
+                    if (!fromFilteredCache && cacheImage.filter != null) {
                         String args[] = cacheImage.filter.split("_");
                         w_filter = Float.parseFloat(args[0]) * AndroidUtilities.density;
                         h_filter = Float.parseFloat(args[1]) * AndroidUtilities.density;
@@ -660,9 +666,7 @@ public class ImageLoader {
                             image = Utilities.loadWebpImage(buffer, buffer.limit(), null);
                             file.close();
                         } else {
-                            FileInputStream is = new FileInputStream(cacheFileFinal);
-                            image = BitmapFactory.decodeStream(is, null, opts);
-                            is.close();
+                            image = decodeFile(cacheFileFinal, opts);
                         }
                     }
                     if (image == null) {
@@ -670,21 +674,23 @@ public class ImageLoader {
                             cacheFileFinal.delete();
                         }
                     } else {
-                        if (cacheImage.filter != null) {
+                        if (!fromFilteredCache && cacheImage.filter != null) {
                             float bitmapW = image.getWidth();
                             float bitmapH = image.getHeight();
                             if (bitmapW != w_filter && bitmapW > w_filter) {
                                 float scaleFactor = bitmapW / w_filter;
                                 Bitmap scaledBitmap = Bitmap.createScaledBitmap(image, (int)w_filter, (int)(bitmapH / scaleFactor), true);
                                 if (image != scaledBitmap) {
-                                    image.recycle();
-                                    callGC();
+                                    bitmapPool.put(image);
                                     image = scaledBitmap;
                                 }
                             }
                             if (image != null && blur && bitmapH < 100 && bitmapW < 100) {
                                 Utilities.blurBitmap(image, 3);
                             }
+                            if (mediaId == null) {
+                                filteredImageCache.put(cacheImage.key, cacheFileFinal, image);
+                            }
                         }
                         if (runtimeHack != null) {
                             runtimeHack.trackFree(image.getRowBytes() * image.getHeight());
@@ -706,15 +712,21 @@ public class ImageLoader {
                     if (bitmapDrawable != null) {
                         toSet = memCache.get(cacheImage.key);
                         if (toSet == null) {
-                            memCache.put(cacheImage.key, bitmapDrawable);
+                            toSet = prefetchCache.get(cacheImage.key);
+                        }
+                        if (toSet == null) {
+                            if (cacheImage.priority == PRIORITY_PREFETCH) {
+                                prefetchCache.put(cacheImage.key, bitmapDrawable);
+                            } else {
+                                memCache.put(cacheImage.key, bitmapDrawable);
+                            }
                             toSet = bitmapDrawable;
                         } else {
                             Bitmap image = bitmapDrawable.getBitmap();
                             if (runtimeHack != null) {
                                 runtimeHack.trackAlloc(image.getRowBytes() * image.getHeight());
                             }
-                            image.recycle();
-                            callGC();
+                            bitmapPool.put(image);
                         }
                     }
                     final BitmapDrawable toSetFinal = toSet;
@@ -802,6 +814,8 @@ public class ImageLoader {
         protected String httpUrl;
         protected HttpImageTask httpTask;
         protected CacheOutTask cacheTask;
+        protected int size;
+        protected volatile int priority = -1;
 
         protected ArrayList<ImageReceiver> imageReceiverArray = new ArrayList<>();
 
@@ -817,6 +831,25 @@ public class ImageLoader {
                 imageReceiverArray.add(imageReceiver);
                 imageLoadingByTag.put(imageReceiver.getTag(thumb), this);
             }
+            int receiverPriority = imageReceiver.getLoadPriority();
+            if (receiverPriority > priority) {
+                if (priority == PRIORITY_PREFETCH && location instanceof TLRPC.FileLocation && httpUrl == null) {
+                    TLRPC.FileLocation fileLocation = (TLRPC.FileLocation) location;
+                    FileLoader.getInstance().loadFile(fileLocation, size, size == 0 || fileLocation.key != null, true);
+                }
+                priority = receiverPriority;
+                if (cacheTask != null) {
+                    cacheOutPool.setPriority(cacheTask, getTaskPriority());
+                }
+            }
+        }
+
+        public int getTaskPriority() {
+            return priority * 2 + (thumb ? 1 : 0);
+        }
+
+        public void postCacheTask() {
+            cacheOutPool.postRunnable(cacheTask, getTaskPriority());
         }
 
         public void removeImageReceiver(ImageReceiver imageReceiver) {
@@ -843,11 +876,7 @@ public class ImageLoader {
                     }
                 }
                 if (cacheTask != null) {
-                    if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    cacheOutPool.cancelRunnable(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
                 }
@@ -911,6 +940,36 @@ public class ImageLoader {
             runtimeHack = new VMRuntimeHack();
             cacheSize = 1024 * 1024 * 3;
         }
+        bitmapPool = new BitmapPool(cacheSize / 3);
+        prefetchCache = new LruCache(cacheSize / 4) {
+            @Override
+            protected int sizeOf(String key, BitmapDrawable bitmap) {
+                Bitmap b = bitmap.getBitmap();
+                if(Build.VERSION.SDK_INT < 12) {
+                    return b.getRowBytes() * b.getHeight();
+                } else {
+                    return b.getByteCount();
+                }
+            }
+            @Override
+            protected void entryRemoved(boolean evicted, String key, final BitmapDrawable oldBitmap, BitmapDrawable newBitmap) {
+                if (ignorePrefetchRemoval != null && key != null && ignorePrefetchRemoval.equals(key)) {
+                    return;
+                }
+                if (evicted) {
+                    prefetchDrops++;
+                }
+                int[] count = bitmapUseCounts.get(key);
+                if (count == null || count[0] == 0) {
+                    Bitmap b = oldBitmap.getBitmap();
+                    if (runtimeHack != null) {
+                        runtimeHack.trackAlloc(b.getRowBytes() * b.getHeight());
+                    }
+                    bitmapPool.put(b);
+                }
+            }
+        };
+        filteredImageCache = new FilteredImageCache();
         memCache = new LruCache(cacheSize) {
             @Override
             protected int sizeOf(String key, BitmapDrawable bitmap) {
@@ -926,15 +985,13 @@ public class ImageLoader {
                 if (ignoreRemoval != null && key != null && ignoreRemoval.equals(key)) {
                     return;
                 }
-                final Integer count = bitmapUseCounts.get(key);
-                if (count == null || count == 0) {
+                int[] count = bitmapUseCounts.get(key);
+                if (count == null || count[0] == 0) {
                     Bitmap b = oldBitmap.getBitmap();
                     if (runtimeHack != null) {
                         runtimeHack.trackAlloc(b.getRowBytes() * b.getHeight());
                     }
-                    if (!b.isRecycled()) {
-                        b.recycle();
-                    }
+                    bitmapPool.put(b);
                 }
             }
         };
@@ -1172,7 +1229,7 @@ public class ImageLoader {
             memCache.put(newKey, b);
             ignoreRemoval = null;
         }
-        Integer val = bitmapUseCounts.get(oldKey);
+        int[] val = bitmapUseCounts.get(oldKey);
         if (val != null) {
             bitmapUseCounts.put(newKey, val);
             bitmapUseCounts.remove(oldKey);
@@ -1180,50 +1237,136 @@ public class ImageLoader {
     }
 
     public void incrementUseCount(String key) {
-        Integer count = bitmapUseCounts.get(key);
+        int[] count = bitmapUseCounts.get(key);
         if (count == null) {
-            bitmapUseCounts.put(key, 1);
+            bitmapUseCounts.put(key, new int[] {1});
         } else {
-            bitmapUseCounts.put(key, count + 1);
-        }
-    }
-
-    public void callGC() {
-        if (Build.VERSION.SDK_INT > 13) {
-            recycleQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    System.gc();
-                }
-            });
+            count[0]++;
         }
     }
 
     public boolean decrementUseCount(String key) {
-        Integer count = bitmapUseCounts.get(key);
+        int[] count = bitmapUseCounts.get(key);
         if (count == null) {
             return true;
         }
-        if (count == 1) {
+        if (count[0] == 1) {
             bitmapUseCounts.remove(key);
             return true;
-        } else {
-            bitmapUseCounts.put(key, count - 1);
         }
+        count[0]--;
         return false;
     }
 
+    /**
+     * Gives a bitmap that is not drawn anywhere anymore back for reuse by later decodes.
+     */
+    public void recycleBitmap(Bitmap bitmap) {
+        bitmapPool.put(bitmap);
+    }
+
+    public void trimMemory(int level) {
+        prefetchCache.evictAll();
+        bitmapPool.trim(level);
+    }
+
+    public String getBitmapPoolStats() {
+        return bitmapPool.getStats();
+    }
+
+    public String getPrefetchCacheStats() {
+        return String.format(Locale.US, "size=%dKB limit=%dKB hits=%d drops=%d", prefetchCache.size() / 1024, prefetchCache.maxSize() / 1024, prefetchHits, prefetchDrops);
+    }
+
+    /**
+     * Looks the key up in the memory cache and then among the prefetched images. A prefetched image
+     * that is asked for by a real receiver moves over to the memory cache.
+     */
+    private BitmapDrawable getFromMemory(String key, boolean promote) {
+        BitmapDrawable bitmapDrawable = memCache.get(key);
+        if (bitmapDrawable == null) {
+            bitmapDrawable = prefetchCache.get(key);
+            if (bitmapDrawable != null && promote) {
+                prefetchHits++;
+                ignorePrefetchRemoval = key;
+                prefetchCache.remove(key);
+                ignorePrefetchRemoval = null;
+                memCache.put(key, bitmapDrawable);
+            }
+        }
+        return bitmapDrawable;
+    }
+
+    public String getFilteredImageCacheStats() {
+        return filteredImageCache.getStats();
+    }
+
+    public void clearFilteredImageCache() {
+        filteredImageCache.clear();
+    }
+
+    /**
+     * Decodes the file into a pooled bitmap when one of a fitting size is available. Sampled decodes
+     * can only reuse bitmaps from KitKat on, where the target just has to be large enough.
+     */
+    private Bitmap decodeFile(File file, BitmapFactory.Options opts) throws Exception {
+        if (BitmapPool.isSupported()) {
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                opts.inJustDecodeBounds = true;
+                FileInputStream is = new FileInputStream(file);
+                BitmapFactory.decodeStream(is, null, opts);
+                is.close();
+                opts.inJustDecodeBounds = false;
+            }
+            int sampleSize = 1;
+            while (sampleSize * 2 <= opts.inSampleSize) {
+                sampleSize *= 2;
+            }
+            if (sampleSize == 1 || Build.VERSION.SDK_INT >= 19) {
+                Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+                opts.inBitmap = bitmapPool.get((opts.outWidth + sampleSize - 1) / sampleSize, (opts.outHeight + sampleSize - 1) / sampleSize, config);
+            }
+            opts.inMutable = true;
+        }
+        Bitmap bitmap = null;
+        if (BitmapPool.isSupported() && opts.inBitmap != null) {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                bitmap = BitmapFactory.decodeStream(is, null, opts);
+            } catch (IllegalArgumentException e) {
+                //pooled bitmap doesn't fit this image
+            } finally {
+                is.close();
+            }
+            if (bitmap == null) {
+                bitmapPool.put(opts.inBitmap);
+                opts.inBitmap = null;
+            }
+        }
+        if (bitmap == null) {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                bitmap = BitmapFactory.decodeStream(is, null, opts);
+            } finally {
+                is.close();
+            }
+        }
+        return bitmap;
+    }
+
     public void removeImage(String key) {
         bitmapUseCounts.remove(key);
         memCache.remove(key);
+        prefetchCache.remove(key);
     }
 
     public boolean isInCache(String key) {
-        return memCache.get(key) != null;
+        return memCache.get(key) != null || prefetchCache.get(key) != null;
     }
 
     public void clearMemory() {
         memCache.evictAll();
+        prefetchCache.evictAll();
     }
 
     private void removeFromWaitingForThumb(Integer TAG) {
@@ -1240,6 +1383,10 @@ public class ImageLoader {
         }
     }
 
+    public String getDecodeStats() {
+        return cacheOutPool.getStats();
+    }
+
     public void cancelLoadingForImageReceiver(final ImageReceiver imageReceiver, final int type) {
         if (imageReceiver == null) {
             return;
@@ -1271,7 +1418,7 @@ public class ImageLoader {
     }
 
     public BitmapDrawable getImageFromMemory(String key) {
-        return memCache.get(key);
+        return getFromMemory(key, false);
     }
 
     public BitmapDrawable getImageFromMemory(TLObject fileLocation, String httpUrl, String filter) {
@@ -1293,7 +1440,7 @@ public class ImageLoader {
         if (filter != null) {
             key += "@" + filter;
         }
-        return memCache.get(key);
+        return getFromMemory(key, false);
     }
 
     public void replaceImageInCache(final String oldKey, final String newKey) {
@@ -1439,16 +1586,13 @@ public class ImageLoader {
                         img.key = key;
                         img.filter = filter;
                         img.httpUrl = httpLocation;
+                        img.size = size;
                         img.addImageReceiver(imageReceiver);
                         if (onlyCache || cacheFile.exists()) {
                             img.finalFilePath = cacheFile;
                             img.cacheTask = new CacheOutTask(img);
                             imageLoadingByKeys.put(key, img);
-                            if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
-                            } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
-                            }
+                            img.postCacheTask();
                         } else {
                             img.url = url;
                             img.location = imageLocation;
@@ -1456,7 +1600,7 @@ public class ImageLoader {
                             if (httpLocation == null) {
                                 if (imageLocation instanceof TLRPC.FileLocation) {
                                     TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
-                                    FileLoader.getInstance().loadFile(location, size, size == 0 || location.key != null || cacheOnly);
+                                    FileLoader.getInstance().loadFile(location, size, size == 0 || location.key != null || cacheOnly, img.priority != PRIORITY_PREFETCH);
                                 } else if (imageLocation instanceof TLRPC.Document) {
                                     FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, true, true);
                                 }
@@ -1481,9 +1625,10 @@ public class ImageLoader {
             return;
         }
 
+        boolean promote = imageReceiver.getLoadPriority() != PRIORITY_PREFETCH;
         String key = imageReceiver.getKey();
         if (key != null) {
-            BitmapDrawable bitmapDrawable = memCache.get(key);
+            BitmapDrawable bitmapDrawable = getFromMemory(key, promote);
             if (bitmapDrawable != null) {
                 cancelLoadingForImageReceiver(imageReceiver, 0);
                 if (!imageReceiver.isForcePreview()) {
@@ -1495,7 +1640,7 @@ public class ImageLoader {
         boolean thumbSet = false;
         String thumbKey = imageReceiver.getThumbKey();
         if (thumbKey != null) {
-            BitmapDrawable bitmapDrawable = memCache.get(thumbKey);
+            BitmapDrawable bitmapDrawable = getFromMemory(thumbKey, promote);
             if (bitmapDrawable != null) {
                 imageReceiver.setImageBitmapByKey(bitmapDrawable, thumbKey, true);
                 cancelLoadingForImageReceiver(imageReceiver, 1);
@@ -1602,7 +1747,7 @@ public class ImageLoader {
                     return;
                 }
                 imageLoadingByUrl.remove(location);
-                CacheOutTask task = null;
+                CacheImage newCacheImage = null;
                 for (ImageReceiver imageReceiver : img.imageReceiverArray) {
                     CacheImage cacheImage = imageLoadingByKeys.get(img.key);
                     if (cacheImage == null) {
@@ -1611,18 +1756,15 @@ public class ImageLoader {
                         cacheImage.key = img.key;
                         cacheImage.httpUrl = img.httpUrl;
                         cacheImage.thumb = img.thumb;
-                        cacheImage.cacheTask = task = new CacheOutTask(cacheImage);
+                        cacheImage.cacheTask = new CacheOutTask(cacheImage);
+                        newCacheImage = cacheImage;
                         cacheImage.filter = img.filter;
                         imageLoadingByKeys.put(cacheImage.key, cacheImage);
                     }
                     cacheImage.addImageReceiver(imageReceiver);
                 }
-                if (task != null) {
-                    if (img.thumb) {
-                        cacheThumbOutQueue.postRunnable(task);
-                    } else {
-                        cacheOutQueue.postRunnable(task);
-                    }
+                if (newCacheImage != null) {
+                    newCacheImage.postCacheTask();
                 }
             }
         });
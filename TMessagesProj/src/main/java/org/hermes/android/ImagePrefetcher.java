@@ -0,0 +1,257 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android;
+
+import android.os.SystemClock;
+
+import org.hermes.messenger.FileLoader;
+import org.hermes.messenger.TLRPC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Warms the images of the rows a list is about to show. Fed from the list's scroll listener, it
+ * looks a few rows past the visible range in the direction of the scroll, further the faster the
+ * list moves. Thumbnails are decoded at prefetch priority into the separate prefetch budget of
+ * ImageLoader, medium size photos are downloaded without force so they queue behind everything
+ * visible. Their filter depends on the cell layout, so they are decoded only once a cell shows them.
+ * Prefetches the list scrolled past or away from are cancelled, those that became visible are left
+ * to the cell that now loads the same image.
+ */
+public class ImagePrefetcher {
+
+    public interface ImagePrefetcherDelegate {
+        void getMessagesForPosition(int position, ArrayList<MessageObject> messages);
+    }
+
+    private static final int MIN_AHEAD = 3;
+    private static final int MAX_AHEAD = 15;
+    private static final int LOOKAHEAD_TIME = 600;
+    private static final float FLING_VELOCITY = 25.0f;
+    private static final int MAX_ACTIVE = 24;
+
+    private static class Prefetch {
+        TLRPC.PhotoSize photoSize;
+        boolean thumb;
+        ImageReceiver imageReceiver;
+        boolean done;
+
+        Prefetch(TLRPC.PhotoSize photoSize, boolean thumb) {
+            this.photoSize = photoSize;
+            this.thumb = thumb;
+        }
+    }
+
+    private final ImagePrefetcherDelegate delegate;
+    private final String thumbFilter;
+    private final boolean prefetchPhotos;
+
+    private HashMap<String, Prefetch> prefetches = new HashMap<>();
+    private ArrayList<MessageObject> messages = new ArrayList<>();
+    private HashSet<String> visibleKeys = new HashSet<>();
+
+    private int lastFirstVisibleItem = -1;
+    private int lastVisibleItemCount;
+    private int lastTotalItemCount;
+    private long lastScrollTime;
+    private float velocity;
+
+    private long started;
+    private long cancelled;
+    private long finished;
+
+    /**
+     * @param thumbFilter filter the list shows thumbnails with, null to leave thumbnails alone
+     * @param prefetchPhotos whether medium size photos are downloaded ahead
+     */
+    public ImagePrefetcher(ImagePrefetcherDelegate delegate, String thumbFilter, boolean prefetchPhotos) {
+        this.delegate = delegate;
+        this.thumbFilter = thumbFilter;
+        this.prefetchPhotos = prefetchPhotos;
+    }
+
+    public void onScrollStateChanged(boolean idle) {
+        if (idle) {
+            velocity = 0;
+            update();
+        }
+    }
+
+    public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (visibleItemCount <= 0 || firstVisibleItem == lastFirstVisibleItem && visibleItemCount == lastVisibleItemCount && totalItemCount == lastTotalItemCount) {
+            return;
+        }
+        long time = SystemClock.uptimeMillis();
+        if (firstVisibleItem != lastFirstVisibleItem) {
+            long dt = time - lastScrollTime;
+            if (lastFirstVisibleItem < 0 || totalItemCount != lastTotalItemCount || dt > 500) {
+                velocity = 0;
+            } else if (dt > 0) {
+                velocity = velocity * 0.5f + (firstVisibleItem - lastFirstVisibleItem) * 1000.0f / dt * 0.5f;
+            }
+            lastScrollTime = time;
+        }
+        lastFirstVisibleItem = firstVisibleItem;
+        lastVisibleItemCount = visibleItemCount;
+        lastTotalItemCount = totalItemCount;
+        update();
+    }
+
+    /**
+     * Drops everything, for a list whose content was replaced or that is going away.
+     */
+    public void cancelAll() {
+        for (Prefetch prefetch : prefetches.values()) {
+            cancel(prefetch);
+        }
+        prefetches.clear();
+        lastFirstVisibleItem = -1;
+        velocity = 0;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "active=%d started=%d finished=%d cancelled=%d velocity=%.1f", prefetches.size(), started, finished, cancelled, velocity);
+    }
+
+    private void update() {
+        int first = lastFirstVisibleItem;
+        int last = first + lastVisibleItemCount;
+        if (first < 0) {
+            return;
+        }
+        float speed = Math.abs(velocity);
+        int ahead = Math.min(MAX_AHEAD, MIN_AHEAD + (int) (speed * LOOKAHEAD_TIME / 1000));
+        int photosAhead = speed > FLING_VELOCITY ? 0 : Math.max(1, ahead / 2);
+
+        visibleKeys.clear();
+        for (int position = first; position < last; position++) {
+            collect(position, true, null);
+        }
+        LinkedHashMap<String, Prefetch> wanted = new LinkedHashMap<>();
+        for (int a = 0; a < ahead; a++) {
+            if (velocity >= 0 && last + a < lastTotalItemCount) {
+                collect(last + a, a < photosAhead, wanted);
+            }
+            if (velocity <= 0 && first - 1 - a >= 0) {
+                collect(first - 1 - a, a < photosAhead, wanted);
+            }
+        }
+
+        Iterator<Map.Entry<String, Prefetch>> iterator = prefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Prefetch> entry = iterator.next();
+            if (wanted.containsKey(entry.getKey())) {
+                continue;
+            }
+            Prefetch prefetch = entry.getValue();
+            if (!visibleKeys.contains(entry.getKey())) {
+                cancel(prefetch);
+            } else if (prefetch.imageReceiver != null) {
+                prefetch.imageReceiver.setDelegate(null);
+                prefetch.imageReceiver.cancelLoadImage();
+            }
+            iterator.remove();
+        }
+
+        int active = 0;
+        for (Prefetch prefetch : prefetches.values()) {
+            if (!prefetch.done) {
+                active++;
+            }
+        }
+        for (Map.Entry<String, Prefetch> entry : wanted.entrySet()) {
+            if (active >= MAX_ACTIVE) {
+                break;
+            }
+            if (!prefetches.containsKey(entry.getKey())) {
+                start(entry.getValue());
+                prefetches.put(entry.getKey(), entry.getValue());
+                active++;
+            }
+        }
+    }
+
+    /**
+     * Collects the thumbnail (keyed by location and filter) and the photo (keyed by file name) of
+     * every message at the position. Without wanted the keys are noted as visible.
+     */
+    private void collect(int position, boolean photos, LinkedHashMap<String, Prefetch> wanted) {
+        messages.clear();
+        delegate.getMessagesForPosition(position, messages);
+        for (MessageObject messageObject : messages) {
+            if (messageObject == null || messageObject.photoThumbs == null || messageObject.photoThumbs.isEmpty() || messageObject.isSecretPhoto()) {
+                continue;
+            }
+            if (messageObject.type != 1 && messageObject.type != 3) {
+                continue;
+            }
+            TLRPC.PhotoSize thumb = FileLoader.getClosestPhotoSizeWithSize(messageObject.photoThumbs, 80);
+            if (thumbFilter != null && thumb != null && thumb.location instanceof TLRPC.TL_fileLocation) {
+                String key = thumb.location.volume_id + "_" + thumb.location.local_id + "@" + thumbFilter;
+                if (wanted == null) {
+                    visibleKeys.add(key);
+                } else if (prefetches.containsKey(key) || ImageLoader.getInstance().getImageFromMemory(key) == null) {
+                    wanted.put(key, new Prefetch(thumb, true));
+                }
+            }
+            if (prefetchPhotos && photos && messageObject.type == 1) {
+                TLRPC.PhotoSize photo = FileLoader.getClosestPhotoSizeWithSize(messageObject.photoThumbs, AndroidUtilities.getPhotoSize());
+                if (photo == null || photo == thumb || !(photo.location instanceof TLRPC.TL_fileLocation) || photo.location.dc_id == Integer.MIN_VALUE) {
+                    continue;
+                }
+                String key = FileLoader.getAttachFileName(photo);
+                if (wanted == null) {
+                    visibleKeys.add(key);
+                } else if (prefetches.containsKey(key) || MediaController.getInstance().canDownloadMedia(MediaController.AUTODOWNLOAD_MASK_PHOTO) && !FileLoader.getPathToAttach(photo).exists()) {
+                    wanted.put(key, new Prefetch(photo, false));
+                }
+            }
+        }
+    }
+
+    private void start(final Prefetch prefetch) {
+        started++;
+        if (prefetch.thumb) {
+            prefetch.imageReceiver = new ImageReceiver();
+            prefetch.imageReceiver.setLoadPriority(ImageLoader.PRIORITY_PREFETCH);
+            prefetch.imageReceiver.setDelegate(new ImageReceiver.ImageReceiverDelegate() {
+                @Override
+                public void didSetImage(ImageReceiver imageReceiver, boolean set, boolean thumb) {
+                    if (set && !prefetch.done) {
+                        prefetch.done = true;
+                        finished++;
+                        imageReceiver.clearImage();
+                    }
+                }
+            });
+            prefetch.imageReceiver.setImage(null, null, null, null, prefetch.photoSize.location, thumbFilter, 0, true);
+        } else {
+            FileLoader.getInstance().loadFile(prefetch.photoSize.location, prefetch.photoSize.size != 0 ? prefetch.photoSize.size : -1, false, false);
+        }
+    }
+
+    private void cancel(Prefetch prefetch) {
+        if (prefetch.done) {
+            return;
+        }
+        cancelled++;
+        if (prefetch.imageReceiver != null) {
+            prefetch.imageReceiver.setDelegate(null);
+            prefetch.imageReceiver.cancelLoadImage();
+        } else {
+            FileLoader.getInstance().cancelLoadFile(prefetch.photoSize.location);
+        }
+    }
+}
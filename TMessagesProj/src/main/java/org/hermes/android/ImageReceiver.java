@@ -38,6 +38,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
     private Integer thumbTag;
     private MessageObject parentMessageObject;
     private boolean canceledLoading;
+    private int loadPriority = -1;
 
     private TLObject currentImageLocation;
     private String currentKey;
@@ -252,8 +253,8 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         recycleBitmap(null, true);
         if (needsQualityThumb) {
             NotificationCenter.getInstance().removeObserver(this, NotificationCenter.messageThumbGenerated);
-            ImageLoader.getInstance().cancelLoadingForImageReceiver(this, 0);
         }
+        cancelLoadImage();
     }
 
     public boolean draw(Canvas canvas) {
@@ -477,6 +478,21 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         isAspectFit = value;
     }
 
+    /**
+     * Overrides the decode priority, by default receivers attached to a view load as visible and
+     * the rest as background.
+     */
+    public void setLoadPriority(int priority) {
+        loadPriority = priority;
+    }
+
+    public int getLoadPriority() {
+        if (loadPriority >= 0) {
+            return loadPriority;
+        }
+        return parentView != null ? ImageLoader.PRIORITY_VISIBLE : ImageLoader.PRIORITY_BACKGROUND;
+    }
+
     public void setParentView(View view) {
         parentView = view;
     }
@@ -695,8 +711,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
                 ImageLoader.getInstance().runtimeHack.trackAlloc(bitmap.getRowBytes() * bitmap.getHeight());
             }
             if (canDelete) {
-                bitmap.recycle();
-                ImageLoader.getInstance().callGC();
+                ImageLoader.getInstance().recycleBitmap(bitmap);
             }
         }
         if (thumb) {
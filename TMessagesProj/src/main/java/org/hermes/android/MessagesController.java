@@ -28,6 +28,10 @@ import org.hermes.messenger.TLRPC;
 import org.hermes.messenger.UserConfig;
 import org.hermes.messenger.Utilities;
 import org.hermes.messenger.ApplicationLoader;
+import org.hermes.messenger.IntObjectCache;
+import org.hermes.messenger.ConcurrentLongObjectMap;
+import org.hermes.messenger.IntHashSet;
+import org.hermes.messenger.IntObjectMap;
 import org.hermes.ui.ActionBar.BaseFragment;
 
 import java.util.ArrayList;
@@ -37,18 +41,24 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MessagesController implements NotificationCenter.NotificationCenterDelegate {
 
-    private ConcurrentHashMap<Integer, TLRPC.Chat> chats = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private static final int USERS_CACHE_SIZE = 5000;
+    private static final int CHATS_CACHE_SIZE = 1000;
+    private static final int PEERS_CACHE_TRIM_DELAY = 60000;
+
+    private IntObjectCache<TLRPC.Chat> chats = new IntObjectCache<>(CHATS_CACHE_SIZE);
     private ConcurrentHashMap<Integer, TLRPC.EncryptedChat> encryptedChats = new ConcurrentHashMap<>(10, 1.0f, 2);
-    private ConcurrentHashMap<Integer, TLRPC.User> users = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private IntObjectCache<TLRPC.User> users = new IntObjectCache<>(USERS_CACHE_SIZE);
     private ConcurrentHashMap<String, TLRPC.User> usersByUsernames = new ConcurrentHashMap<>(100, 1.0f, 2);
 
     public ArrayList<TLRPC.TL_dialog> dialogs = new ArrayList<>();
     public ArrayList<TLRPC.TL_dialog> dialogsServerOnly = new ArrayList<>();
-    public ConcurrentHashMap<Long, TLRPC.TL_dialog> dialogs_dict = new ConcurrentHashMap<>(100, 1.0f, 2);
-    public HashMap<Integer, MessageObject> dialogMessage = new HashMap<>();
+    public ConcurrentLongObjectMap<TLRPC.TL_dialog> dialogs_dict = new ConcurrentLongObjectMap<>(100);
+    public IntObjectMap<MessageObject> dialogMessage = new IntObjectMap<>();
+    private HashMap<Long, TLRPC.TL_dialog> snapshotDialogs = new HashMap<>();
     public ConcurrentHashMap<Long, ArrayList<PrintingUser>> printingUsers = new ConcurrentHashMap<>(20, 1.0f, 2);
     public HashMap<Long, CharSequence> printingStrings = new HashMap<>();
     public HashMap<Long, Boolean> sendingTypings = new HashMap<>();
@@ -64,13 +74,35 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     private long updatesStartWaitTimeSeq = 0;
     private long updatesStartWaitTimePts = 0;
     private long updatesStartWaitTimeQts = 0;
-    private ArrayList<Integer> loadingFullUsers = new ArrayList<>();
-    private ArrayList<Integer> loadedFullUsers = new ArrayList<>();
-    private ArrayList<Integer> loadingFullChats = new ArrayList<>();
-    private ArrayList<Integer> loadedFullChats = new ArrayList<>();
+    private IntHashSet loadingFullUsers = new IntHashSet();
+    private IntHashSet loadedFullUsers = new IntHashSet();
+    private IntHashSet loadingFullChats = new IntHashSet();
+    private IntHashSet loadedFullChats = new IntHashSet();
 
     private ArrayList<Integer> reloadingMessages = new ArrayList<>();
 
+    private final AtomicBoolean peersTrimScheduled = new AtomicBoolean(false);
+    private final ArrayList<Integer> evictedUsersToLoad = new ArrayList<>();
+    private final ArrayList<Integer> evictedChatsToLoad = new ArrayList<>();
+    private boolean loadingEvictedPeers = false;
+
+    private static final int MESSAGES_PREFETCH_COUNT = 20;
+    private static final int MESSAGES_PREFETCH_BATCH = 5;
+    private static final int MESSAGES_PREFETCH_MAX = 4;
+
+    private static class PrefetchedMessages {
+        long dialog_id;
+        int count;
+        int max_id;
+        int minDate;
+        int load_type;
+        int generation;
+        TLRPC.messages_Messages res;
+        ArrayList<MessageObject> objects;
+    }
+
+    private HashMap<Integer, PrefetchedMessages> prefetchedMessages = new HashMap<>();
+
     private boolean gettingNewDeleteTask = false;
     private int currentDeletingTaskTime = 0;
     private ArrayList<Integer> currentDeletingTaskMids = null;
@@ -370,13 +402,22 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         NotificationsController.getInstance().cleanup();
         SendMessagesHelper.getInstance().cleanUp();
         SecretChatHelper.getInstance().cleanUp();
+        ImageLoader.getInstance().clearFilteredImageCache();
 
         dialogs_dict.clear();
         dialogs.clear();
         dialogsServerOnly.clear();
+        snapshotDialogs.clear();
+        prefetchedMessages.clear();
+        AndroidUtilities.cancelRunOnUIThread(trimPeersRunnable);
+        peersTrimScheduled.set(false);
         users.clear();
         usersByUsernames.clear();
         chats.clear();
+        synchronized (evictedUsersToLoad) {
+            evictedUsersToLoad.clear();
+            evictedChatsToLoad.clear();
+        }
         dialogMessage.clear();
         printingUsers.clear();
         printingStrings.clear();
@@ -422,20 +463,143 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         addSupportUser();
     }
 
-    public TLRPC.User getUser(Integer id) {
-        return users.get(id);
+    public TLRPC.User getUser(int id) {
+        TLRPC.User user = users.get(id);
+        if (user == null && users.takeEvicted(id)) {
+            loadEvictedPeer(id, 0);
+        }
+        return user;
     }
 
     public TLRPC.User getUser(String username) {
         return usersByUsernames.get(username);
     }
 
-    public ConcurrentHashMap<Integer, TLRPC.User> getUsers() {
-        return users;
+    public TLRPC.Chat getChat(int id) {
+        TLRPC.Chat chat = chats.get(id);
+        if (chat == null && chats.takeEvicted(id)) {
+            loadEvictedPeer(0, id);
+        }
+        return chat;
+    }
+
+    /**
+     * Reads users and chats dropped from the peers cache back from the database. Callers that got
+     * null are refreshed through updateInterfaces once they are loaded.
+     */
+    private void loadEvictedPeer(int uid, int chat_id) {
+        synchronized (evictedUsersToLoad) {
+            if (uid != 0) {
+                evictedUsersToLoad.add(uid);
+            } else {
+                evictedChatsToLoad.add(chat_id);
+            }
+            if (loadingEvictedPeers) {
+                return;
+            }
+            loadingEvictedPeers = true;
+        }
+        MessagesStorage.getInstance().readSnapshot(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Integer> usersToLoad;
+                ArrayList<Integer> chatsToLoad;
+                synchronized (evictedUsersToLoad) {
+                    usersToLoad = new ArrayList<>(evictedUsersToLoad);
+                    chatsToLoad = new ArrayList<>(evictedChatsToLoad);
+                    evictedUsersToLoad.clear();
+                    evictedChatsToLoad.clear();
+                    loadingEvictedPeers = false;
+                }
+                final ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
+                final ArrayList<TLRPC.Chat> loadedChats = new ArrayList<>();
+                try {
+                    MessagesStorage.getInstance().getUsersInternal(usersToLoad, loadedUsers);
+                    MessagesStorage.getInstance().getChatsInternal(chatsToLoad, loadedChats);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+                if (loadedUsers.isEmpty() && loadedChats.isEmpty()) {
+                    return;
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        putUsers(loadedUsers, true);
+                        putChats(loadedChats, true);
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_NAME | UPDATE_MASK_AVATAR | UPDATE_MASK_STATUS | UPDATE_MASK_CHAT_NAME | UPDATE_MASK_CHAT_AVATAR);
+                    }
+                });
+            }
+        });
     }
 
-    public TLRPC.Chat getChat(Integer id) {
-        return chats.get(id);
+    private void checkPeersCacheSize() {
+        if (peersTrimScheduled.get() || !users.isOverLimit() && !chats.isOverLimit()) {
+            return;
+        }
+        if (peersTrimScheduled.compareAndSet(false, true)) {
+            AndroidUtilities.runOnUIThread(trimPeersRunnable, PEERS_CACHE_TRIM_DELAY);
+        }
+    }
+
+    /**
+     * Drops users and chats that were not read during the last two trims. The current user, contacts
+     * and peers of loaded dialogs are never dropped; everything read by visible cells stays warm.
+     */
+    private Runnable trimPeersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            peersTrimScheduled.set(false);
+            final IntHashSet pinnedUsers = new IntHashSet();
+            final IntHashSet pinnedChats = new IntHashSet();
+            pinnedUsers.add(UserConfig.getClientUserId());
+            SparseArray<TLRPC.TL_contact> contactsDict = ContactsController.getInstance().contactsDict;
+            for (int a = 0; a < contactsDict.size(); a++) {
+                pinnedUsers.add(contactsDict.keyAt(a));
+            }
+            for (TLRPC.TL_dialog dialog : dialogs) {
+                int lower_id = (int) dialog.id;
+                int high_id = (int) (dialog.id >> 32);
+                if (lower_id != 0) {
+                    if (high_id == 1) {
+                        pinnedChats.add(lower_id);
+                    } else if (lower_id > 0) {
+                        pinnedUsers.add(lower_id);
+                    } else {
+                        pinnedChats.add(-lower_id);
+                    }
+                } else {
+                    TLRPC.EncryptedChat encryptedChat = encryptedChats.get(high_id);
+                    if (encryptedChat != null) {
+                        pinnedUsers.add(encryptedChat.user_id);
+                    }
+                }
+            }
+            ArrayList<TLRPC.User> evictedUsers = users.trim(new IntObjectCache.Pinned() {
+                @Override
+                public boolean isPinned(int key) {
+                    return pinnedUsers.contains(key);
+                }
+            });
+            for (TLRPC.User user : evictedUsers) {
+                if (user.username != null && user.username.length() > 0 && usersByUsernames.get(user.username) == user) {
+                    usersByUsernames.remove(user.username);
+                }
+            }
+            chats.trim(new IntObjectCache.Pinned() {
+                @Override
+                public boolean isPinned(int key) {
+                    return pinnedChats.contains(key);
+                }
+            });
+            FileLog.d("tmessages", "peers cache trimmed, " + getPeersCacheStats());
+            checkPeersCacheSize();
+        }
+    };
+
+    public String getPeersCacheStats() {
+        return "users: " + users.getStats() + ", chats: " + chats.getStats();
     }
 
     public TLRPC.EncryptedChat getEncryptedChat(Integer id) {
@@ -468,7 +632,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             return false;
         }
         fromCache = fromCache && user.id / 1000 != 333 && user.id != 777000;
-        TLRPC.User oldUser = users.get(user.id);
+        TLRPC.User oldUser = users.peek(user.id);
         if (oldUser != null && oldUser.username != null && oldUser.username.length() > 0) {
             usersByUsernames.remove(oldUser.username);
         }
@@ -500,6 +664,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 updateStatus = true;
             }
         }
+        checkPeersCacheSize();
         if (updateStatus) {
             AndroidUtilities.runOnUIThread(new Runnable() {
                 @Override
@@ -528,6 +693,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         for (TLRPC.Chat chat : chats) {
             putChat(chat, fromCache);
         }
+        checkPeersCacheSize();
     }
 
     public void putEncryptedChat(TLRPC.EncryptedChat encryptedChat, boolean fromCache) {
@@ -551,11 +717,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void cancelLoadFullUser(int uid) {
-        loadingFullUsers.remove((Integer) uid);
+        loadingFullUsers.remove(uid);
     }
 
     public void cancelLoadFullChat(int cid) {
-        loadingFullChats.remove((Integer) cid);
+        loadingFullChats.remove(cid);
     }
 
     protected void clearFullUsers() {
@@ -580,7 +746,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            loadingFullChats.remove((Integer)chat_id);
+                            loadingFullChats.remove(chat_id);
                             loadedFullChats.add(chat_id);
 
                             putUsers(res.users, false);
@@ -592,7 +758,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            loadingFullChats.remove((Integer) chat_id);
+                            loadingFullChats.remove(chat_id);
                         }
                     });
                 }
@@ -617,7 +783,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            loadingFullUsers.remove((Integer)user.id);
+                            loadingFullUsers.remove(user.id);
                             loadedFullUsers.add(user.id);
                             String names = user.first_name + user.last_name + user.username;
                             TLRPC.TL_userFull userFull = (TLRPC.TL_userFull)response;
@@ -634,7 +800,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            loadingFullUsers.remove((Integer)user.id);
+                            loadingFullUsers.remove(user.id);
                         }
                     });
                 }
@@ -1400,8 +1566,24 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
     public void loadMessages(final long dialog_id, final int count, final int max_id, boolean fromCache, int midDate, final int classGuid, final int load_type, final int last_message_id, final int first_message_id, final boolean allowCache) {
         int lower_part = (int)dialog_id;
+        if (fromCache && (load_type == 0 || load_type == 1)) {
+            final PrefetchedMessages prefetched = prefetchedMessages.remove(classGuid * 2 + load_type);
+            if (prefetched != null && prefetched.dialog_id == dialog_id && prefetched.count == count && prefetched.max_id == max_id && prefetched.minDate == midDate &&
+                    prefetched.generation == MessagesStorage.getInstance().getMessagesGeneration(prefetched.dialog_id)) {
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        putUsers(prefetched.res.users, true);
+                        putChats(prefetched.res.chats, true);
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDidLoaded, dialog_id, count, prefetched.objects, true, 0, 0, 0, 0, 0, load_type);
+                        prefetchMessages(dialog_id, count, prefetched.objects, classGuid, load_type);
+                    }
+                });
+                return;
+            }
+        }
         if (fromCache || lower_part == 0) {
-            MessagesStorage.getInstance().getMessages(dialog_id, count, max_id, midDate, classGuid, load_type);
+            MessagesStorage.getInstance().getMessages(dialog_id, count, max_id, midDate, classGuid, load_type, false);
         } else {
             TLRPC.TL_messages_getHistory req = new TLRPC.TL_messages_getHistory();
             if (lower_part < 0) {
@@ -1472,21 +1654,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     message.dialog_id = dialog_id;
                     objects.add(new MessageObject(message, usersLocal, true));
                     if (isCache) {
-                        if (message.media instanceof TLRPC.TL_messageMediaUnsupported) {
-                            if (message.media.bytes.length == 0 || message.media.bytes.length == 1 && message.media.bytes[0] < TLRPC.LAYER) {
-                                if (messagesToReload == null) {
-                                    messagesToReload = new ArrayList<>();
-                                }
-                                messagesToReload.add(message.id);
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaWebPage) {
-                            if (message.media.webpage instanceof TLRPC.TL_webPagePending && message.media.webpage.date <= ConnectionsManager.getInstance().getCurrentTime()) {
-                                if (messagesToReload == null) {
-                                    messagesToReload = new ArrayList<>();
-                                }
-                                messagesToReload.add(message.id);
-                            }
-                        }
+                        messagesToReload = checkMessageNeedsReload(message, messagesToReload);
                     }
                 }
                 if (messagesToReload != null) {
@@ -1498,6 +1666,119 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         putUsers(messagesRes.users, isCache);
                         putChats(messagesRes.chats, isCache);
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDidLoaded, dialog_id, count, objects, isCache, first_unread, last_message_id, first_message_id, unread_count, last_date, load_type);
+                        if (isCache) {
+                            prefetchMessages(dialog_id, count, objects, classGuid, load_type);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private ArrayList<Integer> checkMessageNeedsReload(TLRPC.Message message, ArrayList<Integer> messagesToReload) {
+        if (message.media instanceof TLRPC.TL_messageMediaUnsupported) {
+            if (message.media.bytes.length == 0 || message.media.bytes.length == 1 && message.media.bytes[0] < TLRPC.LAYER) {
+                if (messagesToReload == null) {
+                    messagesToReload = new ArrayList<>();
+                }
+                messagesToReload.add(message.id);
+            }
+        } else if (message.media instanceof TLRPC.TL_messageMediaWebPage) {
+            if (message.media.webpage instanceof TLRPC.TL_webPagePending && message.media.webpage.date <= ConnectionsManager.getInstance().getCurrentTime()) {
+                if (messagesToReload == null) {
+                    messagesToReload = new ArrayList<>();
+                }
+                messagesToReload.add(message.id);
+            }
+        }
+        return messagesToReload;
+    }
+
+    /**
+     * Starts loading the page ChatActivity will ask for next, in the direction it is scrolling. The
+     * keys are taken from the page just shown the same way ChatActivity computes them, so the
+     * prefetched page is only used when the next request matches it exactly.
+     */
+    private void prefetchMessages(long dialog_id, int count, ArrayList<MessageObject> objects, int classGuid, int load_type) {
+        int lower_id = (int) dialog_id;
+        int high_id = (int) (dialog_id >> 32);
+        if (lower_id == 0 || high_id == 1 || objects.isEmpty() || (load_type == 0 || load_type == 1) && objects.size() < count) {
+            return;
+        }
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        int minDate = 0;
+        int maxDate = Integer.MIN_VALUE;
+        for (MessageObject obj : objects) {
+            if (obj.getId() > 0) {
+                minId = Math.min(obj.getId(), minId);
+                maxId = Math.max(obj.getId(), maxId);
+            }
+            if (obj.messageOwner.date != 0) {
+                maxDate = Math.max(maxDate, obj.messageOwner.date);
+                if (minDate == 0 || obj.messageOwner.date < minDate) {
+                    minDate = obj.messageOwner.date;
+                }
+            }
+        }
+        if (minId == Integer.MAX_VALUE) {
+            return;
+        }
+        if (load_type != 1 && minDate != 0) {
+            MessagesStorage.getInstance().getMessages(dialog_id, MESSAGES_PREFETCH_COUNT, minId, minDate, classGuid, 0, true);
+        }
+        if (load_type == 1 || load_type == 3) {
+            MessagesStorage.getInstance().getMessages(dialog_id, MESSAGES_PREFETCH_COUNT, maxId, maxDate, classGuid, 1, true);
+        }
+    }
+
+    public void processPrefetchedMessages(final TLRPC.messages_Messages messagesRes, final long dialog_id, final int count, final int max_id, final int minDate, final int classGuid, final int load_type, final int generation) {
+        if (messagesRes.messages.isEmpty()) {
+            return;
+        }
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            private HashMap<Integer, TLRPC.User> usersLocal;
+            private ArrayList<MessageObject> objects = new ArrayList<>();
+            private ArrayList<Integer> messagesToReload = null;
+
+            @Override
+            public void run() {
+                if (usersLocal == null) {
+                    usersLocal = new HashMap<>();
+                    for (TLRPC.User u : messagesRes.users) {
+                        usersLocal.put(u.id, u);
+                    }
+                }
+                int end = Math.min(objects.size() + MESSAGES_PREFETCH_BATCH, messagesRes.messages.size());
+                for (int a = objects.size(); a < end; a++) {
+                    TLRPC.Message message = messagesRes.messages.get(a);
+                    message.dialog_id = dialog_id;
+                    objects.add(new MessageObject(message, usersLocal, true));
+                    messagesToReload = checkMessageNeedsReload(message, messagesToReload);
+                }
+                if (objects.size() < messagesRes.messages.size()) {
+                    Utilities.stageQueue.postRunnable(this);
+                    return;
+                }
+                if (messagesToReload != null) {
+                    reloadMessages(messagesToReload, dialog_id);
+                }
+                final PrefetchedMessages prefetched = new PrefetchedMessages();
+                prefetched.dialog_id = dialog_id;
+                prefetched.count = count;
+                prefetched.max_id = max_id;
+                prefetched.minDate = minDate;
+                prefetched.load_type = load_type;
+                prefetched.generation = generation;
+                prefetched.res = messagesRes;
+                prefetched.objects = objects;
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (prefetchedMessages.size() >= MESSAGES_PREFETCH_MAX) {
+                            prefetchedMessages.clear();
+                        }
+                        prefetchedMessages.put(classGuid * 2 + load_type, prefetched);
                     }
                 });
             }
@@ -1509,6 +1790,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             return;
         }
         loadingDialogs = true;
+        if (fromCache && offset == 0 && dialogs_dict.isEmpty()) {
+            loadDialogsSnapshot();
+        }
         NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
 
         if (fromCache) {
@@ -1671,6 +1955,67 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
+    /**
+     * Shows the dialogs snapshot written by MessagesStorage while the database is still loading. The
+     * file is read and its messages are laid out on the stage queue, ahead of the database result that
+     * takes the same way; the snapshot dialogs are replaced by that result in processLoadedDialogs.
+     */
+    private void loadDialogsSnapshot() {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final TLRPC.messages_Dialogs dialogsRes = DialogsSnapshot.read();
+                if (dialogsRes == null || dialogsRes.dialogs.isEmpty()) {
+                    return;
+                }
+                HashMap<Integer, TLRPC.User> usersLocal = new HashMap<>();
+                for (TLRPC.User u : dialogsRes.users) {
+                    usersLocal.put(u.id, u);
+                }
+                final ArrayList<MessageObject> messageObjects = new ArrayList<>();
+                for (TLRPC.Message m : dialogsRes.messages) {
+                    messageObjects.add(new MessageObject(m, usersLocal, false));
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!loadingDialogs || !dialogs_dict.isEmpty()) {
+                            return;
+                        }
+                        putUsers(dialogsRes.users, true);
+                        putChats(dialogsRes.chats, true);
+                        for (MessageObject messageObject : messageObjects) {
+                            dialogMessage.put(messageObject.messageOwner.id, messageObject);
+                        }
+                        for (TLRPC.TL_dialog d : dialogsRes.dialogs) {
+                            dialogs_dict.put(d.id, d);
+                            snapshotDialogs.put(d.id, d);
+                            dialogs.add(d);
+                            int high_id = (int) (d.id >> 32);
+                            if ((int) d.id != 0 && high_id != 1) {
+                                dialogsServerOnly.add(d);
+                            }
+                        }
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
+                    }
+                });
+            }
+        });
+    }
+
+    private void removeSnapshotDialogs() {
+        for (HashMap.Entry<Long, TLRPC.TL_dialog> entry : snapshotDialogs.entrySet()) {
+            TLRPC.TL_dialog dialog = entry.getValue();
+            if (dialogs_dict.get(entry.getKey()) == dialog) {
+                dialogs_dict.remove(entry.getKey());
+                dialogMessage.remove(dialog.top_message);
+                dialogs.remove(dialog);
+                dialogsServerOnly.remove(dialog);
+            }
+        }
+        snapshotDialogs.clear();
+    }
+
     public void processLoadedDialogs(final TLRPC.messages_Dialogs dialogsRes, final ArrayList<TLRPC.EncryptedChat> encChats, final int offset, final int serverOffset, final int count, final boolean isCache, final boolean resetEnd) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -1680,6 +2025,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         @Override
                         public void run() {
                             putUsers(dialogsRes.users, isCache);
+                            removeSnapshotDialogs();
                             loadingDialogs = false;
                             if (resetEnd) {
                                 dialogsEndReached = false;
@@ -1755,6 +2101,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             long key = pair.getKey();
                             TLRPC.TL_dialog value = pair.getValue();
                             TLRPC.TL_dialog currentDialog = dialogs_dict.get(key);
+                            if (currentDialog != null && snapshotDialogs.remove(key) == currentDialog) {
+                                dialogMessage.remove(currentDialog.top_message);
+                                currentDialog = null;
+                            }
                             if (currentDialog == null) {
                                 dialogs_dict.put(key, value);
                                 dialogMessage.put(value.top_message, new_dialogMessage.get(value.top_message));
@@ -1779,6 +2129,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             }
                         }
 
+                        if (isCache) {
+                            removeSnapshotDialogs();
+                        }
                         dialogs.clear();
                         dialogsServerOnly.clear();
                         dialogs.addAll(dialogs_dict.values());
@@ -1988,7 +2341,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             newMsg.date = ConnectionsManager.getInstance().getCurrentTime();
             newMsg.random_id = 0;
             UserConfig.saveConfig(false);
-            MessageObject newMsgObj = new MessageObject(newMsg, users, true);
+            MessageObject newMsgObj = new MessageObject(newMsg, null, true);
             newMsgObj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SENT;
 
             ArrayList<MessageObject> objArr = new ArrayList<>();
@@ -3005,25 +3358,21 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         final ArrayList<Integer> contactsIds = new ArrayList<>();
 
         boolean checkForUsers = true;
-        ConcurrentHashMap<Integer, TLRPC.User> usersDict;
-        ConcurrentHashMap<Integer, TLRPC.Chat> chatsDict;
+        ConcurrentHashMap<Integer, TLRPC.User> usersDict = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Integer, TLRPC.Chat> chatsDict = new ConcurrentHashMap<>();
         if (usersArr != null) {
-            usersDict = new ConcurrentHashMap<>();
             for (TLRPC.User user : usersArr) {
                 usersDict.put(user.id, user);
             }
         } else {
             checkForUsers = false;
-            usersDict = users;
         }
         if (chatsArr != null) {
-            chatsDict = new ConcurrentHashMap<>();
             for (TLRPC.Chat chat : chatsArr) {
                 chatsDict.put(chat.id, chat);
             }
         } else {
             checkForUsers = false;
-            chatsDict = chats;
         }
 
         if (usersArr != null || chatsArr != null) {
@@ -3141,7 +3490,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 interfaceUpdateMask |= UPDATE_MASK_PHONE;
                 updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateContactRegistered) {
-                if (enableJoined && usersDict.containsKey(update.user_id)) {
+                if (enableJoined && (usersArr != null ? usersDict.containsKey(update.user_id) : getUser(update.user_id) != null)) {
                     TLRPC.TL_messageService newMessage = new TLRPC.TL_messageService();
                     newMessage.action = new TLRPC.TL_messageActionUserJoined();
                     newMessage.local_id = newMessage.id = UserConfig.getNewMessageId();
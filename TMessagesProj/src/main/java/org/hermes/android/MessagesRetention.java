@@ -0,0 +1,263 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+
+import org.hermes.SQLite.SQLiteCursor;
+import org.hermes.SQLite.SQLiteDatabase;
+import org.hermes.messenger.ApplicationLoader;
+import org.hermes.messenger.ConnectionsManager;
+import org.hermes.messenger.FileLog;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Trims old cached history so the database stops growing with the age of the install. A pass walks
+ * the dialogs on the storage queue one small batch at a time and drops read messages past the
+ * per dialog count limit or older than the age limit, together with their media_v2, messages_seq,
+ * randoms and search rows. When the database is over its size limit the count limits are scaled
+ * down in proportion. Secret chats, unread incoming messages and unsent messages are never touched,
+ * so dialogs.unread_count and the secret chat media counts stay exact; media_counts_v2 of regular
+ * chats holds server totals and does not depend on what is cached. Freed pages are given back with
+ * incremental_vacuum once the pass is done; older databases are switched to incremental auto vacuum
+ * by a one-time VACUUM in the version 17 upgrade, and if that failed their free pages stay in the
+ * file for reuse and are reported as such.
+ */
+public class MessagesRetention {
+
+    public static final String KEY_DIALOG_MESSAGES = "retention_messages";
+    public static final String KEY_MAX_AGE_DAYS = "retention_days";
+    public static final String KEY_MAX_DATABASE_MB = "retention_database_mb";
+
+    private static final int DEFAULT_DIALOG_MESSAGES = 5000;
+    private static final int MIN_DIALOG_MESSAGES = 50;
+    private static final int DOWNLOAD_QUEUE_MAX_AGE = 30 * 24 * 60 * 60;
+    private static final int BATCH_SIZE = 100;
+    private static final int BATCH_DELAY = 100;
+    private static final int VACUUM_PAGES = 256;
+    private static final int PASS_INTERVAL = 6 * 60 * 60 * 1000;
+
+    private static volatile boolean running = false;
+    private static volatile int runToken = 0;
+
+    private static ArrayList<Long> passDialogs;
+    private static int passDialogIndex;
+    private static int passDialogLimit;
+    private static float passScale;
+    private static int passMinDate;
+    private static int passDeleted;
+    private static long passStartPages;
+
+    private static volatile long totalDeleted;
+    private static volatile long totalReclaimedBytes;
+    private static volatile long reusableBytes;
+    private static volatile long lastPassTime;
+
+    public static void start(int delay) {
+        if (running) {
+            return;
+        }
+        running = true;
+        final int token = ++runToken;
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!running || token != runToken) {
+                    return;
+                }
+                int next = step();
+                if (next < 0) {
+                    running = false;
+                    return;
+                }
+                MessagesStorage.getInstance().getStorageQueue().postRunnable(this, next);
+            }
+        }, delay);
+    }
+
+    public static void stop() {
+        running = false;
+        passDialogs = null;
+    }
+
+    public static String getStats() {
+        return String.format(Locale.US, "deleted=%d reclaimed=%dKB reusable=%dKB last pass=%d", totalDeleted, totalReclaimedBytes / 1024, reusableBytes / 1024, lastPassTime);
+    }
+
+    /**
+     * Does one unit of work and returns the delay before the next one, or -1 when the database went
+     * away.
+     */
+    private static int step() {
+        SQLiteDatabase database = MessagesStorage.getInstance().getDatabase();
+        if (database == null) {
+            return -1;
+        }
+        try {
+            if (passDialogs == null) {
+                startPass(database);
+                return BATCH_DELAY;
+            }
+            if (passDialogIndex < passDialogs.size()) {
+                long did = passDialogs.get(passDialogIndex);
+                if (trimDialog(database, did) < BATCH_SIZE) {
+                    passDialogIndex++;
+                }
+                return BATCH_DELAY;
+            }
+            if (vacuumStep(database)) {
+                return BATCH_DELAY;
+            }
+            finishPass(database);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            passDialogs = null;
+        }
+        return PASS_INTERVAL;
+    }
+
+    private static void startPass(SQLiteDatabase database) throws Exception {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        passDialogLimit = preferences.getInt(KEY_DIALOG_MESSAGES, DEFAULT_DIALOG_MESSAGES);
+        int maxAgeDays = preferences.getInt(KEY_MAX_AGE_DAYS, 0);
+        long maxDatabaseBytes = preferences.getInt(KEY_MAX_DATABASE_MB, 0) * 1024L * 1024L;
+        int currentTime = ConnectionsManager.getInstance().getCurrentTime();
+
+        passMinDate = maxAgeDays > 0 ? currentTime - maxAgeDays * 24 * 60 * 60 : 0;
+        passScale = 1.0f;
+        passStartPages = database.executeInt("PRAGMA page_count");
+        long usedBytes = (passStartPages - database.executeInt("PRAGMA freelist_count")) * database.executeInt("PRAGMA page_size");
+        if (maxDatabaseBytes > 0 && usedBytes > maxDatabaseBytes) {
+            passScale = (float) maxDatabaseBytes / usedBytes;
+            if (passDialogLimit <= 0) {
+                passDialogLimit = DEFAULT_DIALOG_MESSAGES;
+            }
+        }
+        passDeleted = 0;
+        passDialogIndex = 0;
+        passDialogs = new ArrayList<>();
+        if (passDialogLimit > 0 || passMinDate != 0) {
+            SQLiteCursor cursor = database.queryFinalized("SELECT did FROM dialogs WHERE 1");
+            while (cursor.next()) {
+                long did = cursor.longValue(0);
+                if ((int) did != 0) {
+                    passDialogs.add(did);
+                }
+            }
+            cursor.dispose();
+        }
+
+        int downloadMinDate = currentTime - DOWNLOAD_QUEUE_MAX_AGE;
+        if (passMinDate > downloadMinDate) {
+            downloadMinDate = passMinDate;
+        }
+        database.executeCached("DELETE FROM download_queue WHERE date < ?").bindArgs(new Object[] {downloadMinDate}).stepThis().dispose();
+    }
+
+    private static int getDialogLimit(SharedPreferences preferences, long did) {
+        int limit = preferences.getInt(KEY_DIALOG_MESSAGES + "_" + did, passDialogLimit);
+        if (limit <= 0) {
+            return 0;
+        }
+        return Math.max(MIN_DIALOG_MESSAGES, (int) (limit * passScale));
+    }
+
+    /**
+     * Deletes up to BATCH_SIZE messages of the dialog that fall behind its limits and returns how
+     * many were deleted. Messages are removed oldest first, so the cached history stays contiguous.
+     */
+    private static int trimDialog(SQLiteDatabase database, long did) throws Exception {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        int limit = getDialogLimit(preferences, did);
+        if (limit == 0 && passMinDate == 0) {
+            return 0;
+        }
+        long floor = getPosition(database, did, MIN_DIALOG_MESSAGES);
+        if (floor == 0) {
+            return 0;
+        }
+        long cutoff = limit != 0 ? getPosition(database, did, limit) : 0;
+        if (passMinDate != 0) {
+            cutoff = Math.max(cutoff, (long) passMinDate << 32);
+        }
+        cutoff = Math.min(cutoff, floor);
+        if (cutoff == 0) {
+            return 0;
+        }
+        int cutoffDate = (int) (cutoff >>> 32);
+        int cutoffMid = (int) cutoff;
+
+        MessagesStorage.getInstance().flushPendingWrites(false);
+        ArrayList<Integer> mids = new ArrayList<>();
+        SQLiteCursor cursor = database.queryCached("SELECT mid FROM messages WHERE uid = ? AND date <= ? AND (date < ? OR mid < ?) AND mid > 0 AND NOT (out = 0 AND read_state = 0) ORDER BY date ASC, mid ASC LIMIT ?", did, cutoffDate, cutoffDate, cutoffMid, BATCH_SIZE);
+        while (cursor.next()) {
+            mids.add(cursor.intValue(0));
+        }
+        cursor.dispose();
+        if (mids.isEmpty()) {
+            return 0;
+        }
+        database.beginTransaction();
+        try {
+            MessagesStorage.getInstance().deleteTrimmedMessagesInternal(did, mids);
+        } finally {
+            database.commitTransaction();
+        }
+        passDeleted += mids.size();
+        totalDeleted += mids.size();
+        return mids.size();
+    }
+
+    /**
+     * Returns the date and mid of the count-th newest message packed into a long, or 0 when the
+     * dialog has fewer messages. Everything older than it can go.
+     */
+    private static long getPosition(SQLiteDatabase database, long did, int count) throws Exception {
+        long position = 0;
+        SQLiteCursor cursor = database.queryCached("SELECT date, mid FROM messages WHERE uid = ? ORDER BY date DESC, mid DESC LIMIT 1 OFFSET ?", did, count - 1);
+        if (cursor.next()) {
+            position = ((long) cursor.intValue(0) << 32) | (cursor.intValue(1) & 0xffffffffL);
+        }
+        cursor.dispose();
+        return position;
+    }
+
+    /**
+     * Gives freed pages back to the file system a few at a time. Returns false when there is nothing
+     * left to free or the database was not created with incremental auto vacuum.
+     */
+    private static boolean vacuumStep(SQLiteDatabase database) throws Exception {
+        if (database.executeInt("PRAGMA auto_vacuum") != 2 || database.executeInt("PRAGMA freelist_count") == 0) {
+            return false;
+        }
+        SQLiteCursor cursor = database.queryFinalized("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+        while (cursor.next()) {
+            //every step frees one page
+        }
+        cursor.dispose();
+        return true;
+    }
+
+    private static void finishPass(SQLiteDatabase database) throws Exception {
+        int pageSize = database.executeInt("PRAGMA page_size");
+        int pageCount = database.executeInt("PRAGMA page_count");
+        long reclaimed = (passStartPages - pageCount) * pageSize;
+        if (reclaimed > 0) {
+            totalReclaimedBytes += reclaimed;
+        }
+        //pages incremental_vacuum could not give back stay in the file and are reused by later inserts
+        reusableBytes = (long) database.executeInt("PRAGMA freelist_count") * pageSize;
+        lastPassTime = System.currentTimeMillis();
+        FileLog.d("tmessages", String.format(Locale.US, "retention pass: dialogs=%d deleted=%d reclaimed=%dKB reusable=%dKB size=%dKB", passDialogs.size(), passDeleted, Math.max(0, reclaimed) / 1024, reusableBytes / 1024, (long) pageCount * pageSize / 1024));
+        passDialogs = null;
+    }
+}
@@ -17,6 +17,7 @@ import org.hermes.PhoneFormat.PhoneFormat;
 import org.hermes.SQLite.SQLiteCursor;
 import org.hermes.SQLite.SQLiteDatabase;
 import org.hermes.SQLite.SQLitePreparedStatement;
+import org.hermes.android.query.MessagesSearchQuery;
 import org.hermes.android.query.SharedMediaQuery;
 import org.hermes.messenger.BuffersStorage;
 import org.hermes.messenger.ByteBufferDesc;
@@ -24,6 +25,8 @@ import org.hermes.messenger.ConnectionsManager;
 import org.hermes.messenger.DispatchQueue;
 import org.hermes.messenger.FileLoader;
 import org.hermes.messenger.FileLog;
+import org.hermes.messenger.IntHashSet;
+import org.hermes.messenger.IntLongMap;
 import org.hermes.messenger.TLClassStore;
 import org.hermes.messenger.TLObject;
 import org.hermes.messenger.TLRPC;
@@ -36,15 +39,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MessagesStorage {
+    public static final int LAST_DB_VERSION = 17;
+
     private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
     private SQLiteDatabase database;
     private File cacheFile;
-    private BuffersStorage buffersStorage = new BuffersStorage(false);
+    private BuffersStorage buffersStorage = new BuffersStorage();
     public static int lastDateValue = 0;
     public static int lastPtsValue = 0;
     public static int lastQtsValue = 0;
@@ -58,6 +68,58 @@ public class MessagesStorage {
     private int lastSavedDate = 0;
     private int lastSavedQts = 0;
 
+    private static final int WRITE_BEHIND_DELAY = 100;
+    private static final int WRITE_BEHIND_MAX_ROWS = 500;
+
+    private HashMap<Integer, Integer> pendingUserStatuses = new HashMap<>();
+    private HashMap<Integer, Integer> pendingReadInbox = new HashMap<>();
+    private HashMap<Integer, Integer> pendingReadOutbox = new HashMap<>();
+    private HashMap<Integer, Integer> pendingReadEncrypted = new HashMap<>();
+    private Runnable pendingWritesRunnable = null;
+    private long pendingWritesStartTime = 0;
+    private volatile int pendingWritesCount = 0;
+    private final AtomicLong writeBehindFlushes = new AtomicLong();
+    private final AtomicLong writeBehindRows = new AtomicLong();
+    private final AtomicLong writeBehindCoalesced = new AtomicLong();
+    private final AtomicLong writeBehindFlushTime = new AtomicLong();
+    private volatile long lastFlushTime = 0;
+    private volatile long lastFlushDelay = 0;
+
+    private static final int READ_CONNECTIONS_COUNT = 2;
+
+    private static class ReadConnection {
+        DispatchQueue queue;
+        SQLiteDatabase database;
+        int generation;
+        AtomicInteger pending = new AtomicInteger();
+    }
+
+    private final ReadConnection[] readConnections = new ReadConnection[READ_CONNECTIONS_COUNT];
+    private final ThreadLocal<SQLiteDatabase> currentReadDatabase = new ThreadLocal<>();
+    private volatile int readGeneration = 0;
+    private int lastReadGeneration = 0;
+
+    private static final int DIALOGS_SNAPSHOT_DELAY = 1000;
+    private Runnable dialogsSnapshotRunnable = null;
+
+    // bumped on the storage queue by every write to the messages table and stored for the dialogs
+    // it touched, prefetched pages of a dialog read before its last bump are dropped; the dialogs are
+    // bumped again once the write is committed, a read that saw the first bump may still have taken
+    // its snapshot before the commit
+    private volatile int messagesGeneration = 0;
+    private volatile int allDialogsGeneration = 0;
+    private final ConcurrentHashMap<Long, Integer> dialogGenerations = new ConcurrentHashMap<>();
+    private final HashSet<Long> uncommittedDialogs = new HashSet<>();
+    private boolean uncommittedAllDialogs = false;
+    private boolean commitDialogGenerationsPosted = false;
+    private final Runnable commitDialogGenerationsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commitDialogGenerationsPosted = false;
+            commitDialogGenerations();
+        }
+    };
+
     private static volatile MessagesStorage Instance = null;
     public static MessagesStorage getInstance() {
         MessagesStorage localInstance = Instance;
@@ -74,6 +136,11 @@ public class MessagesStorage {
 
     public MessagesStorage() {
         storageQueue.setPriority(Thread.MAX_PRIORITY);
+        for (int a = 0; a < READ_CONNECTIONS_COUNT; a++) {
+            ReadConnection connection = new ReadConnection();
+            connection.queue = new DispatchQueue("storageReadQueue" + a);
+            readConnections[a] = connection;
+        }
         openDatabase();
     }
 
@@ -89,6 +156,166 @@ public class MessagesStorage {
         return buffersStorage;
     }
 
+    /**
+     * Returns the read only connection bound to the current read pool thread, or the writable
+     * database when called from the storage queue.
+     */
+    public SQLiteDatabase getReadDatabase() {
+        SQLiteDatabase readDatabase = currentReadDatabase.get();
+        return readDatabase != null ? readDatabase : database;
+    }
+
+    /**
+     * Runs a read on the least busy connection of the read pool instead of the storage queue, so it
+     * does not wait behind queued writes. The runnable sees one snapshot of the database through
+     * getReadDatabase(); writes that are still queued on the storage queue are not visible to it.
+     * Until the database is ready, or while it is being recreated, reads fall back to the storage queue.
+     */
+    public void readSnapshot(final Runnable runnable) {
+        if (readGeneration == 0) {
+            storageQueue.postRunnable(runnable);
+            return;
+        }
+        ReadConnection connection = readConnections[0];
+        for (int a = 1; a < READ_CONNECTIONS_COUNT; a++) {
+            if (readConnections[a].pending.get() < connection.pending.get()) {
+                connection = readConnections[a];
+            }
+        }
+        final ReadConnection readConnection = connection;
+        readConnection.pending.incrementAndGet();
+        readConnection.queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase readDatabase = getReadConnection(readConnection);
+                    if (readDatabase == null) {
+                        storageQueue.postRunnable(runnable);
+                        return;
+                    }
+                    currentReadDatabase.set(readDatabase);
+                    try {
+                        readDatabase.beginTransaction();
+                        runnable.run();
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    } finally {
+                        readDatabase.commitTransaction();
+                        currentReadDatabase.set(null);
+                    }
+                } finally {
+                    readConnection.pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as readSnapshot, but coalesced status and read state updates that are waiting for their
+     * flush window are committed first, so the read sees them.
+     */
+    public void readSnapshotAfterPendingWrites(final Runnable runnable) {
+        if (pendingWritesCount == 0) {
+            readSnapshot(runnable);
+            return;
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                flushPendingWritesInternal();
+                readSnapshot(runnable);
+            }
+        });
+    }
+
+    private SQLiteDatabase getReadConnection(ReadConnection connection) {
+        int generation = readGeneration;
+        if (connection.database != null && generation != 0 && connection.generation == generation) {
+            return connection.database;
+        }
+        return null;
+    }
+
+    private void closeReadConnection(ReadConnection connection) {
+        if (connection.database != null) {
+            connection.database.close();
+            connection.database = null;
+            connection.generation = 0;
+        }
+    }
+
+    /**
+     * Turns the read pool on once the writable connection runs in WAL mode. A native build without
+     * WAL support leaves the file in its rollback journal, all reads then stay on the storage queue.
+     */
+    private void enableReadConnections() {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (cacheFile == null || database == null) {
+                    return;
+                }
+                try {
+                    if (!database.enableWriteAheadLog()) {
+                        FileLog.e("tmessages", "journal mode is not wal, reads stay on the storage queue");
+                        return;
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                    return;
+                }
+                final int generation = ++lastReadGeneration;
+                for (final ReadConnection connection : readConnections) {
+                    final SQLiteDatabase readDatabase = openReadDatabase(cacheFile.getPath());
+                    if (readDatabase == null) {
+                        continue;
+                    }
+                    connection.queue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            closeReadConnection(connection);
+                            connection.database = readDatabase;
+                            connection.generation = generation;
+                        }
+                    });
+                }
+                readGeneration = generation;
+            }
+        });
+    }
+
+    /**
+     * Opens a connection of the read pool. Runs on the storage queue, native opendb resets the global
+     * temp directory and must not race with a running statement. Read connections keep their
+     * temporary tables in memory, so they never touch that directory afterwards.
+     */
+    private SQLiteDatabase openReadDatabase(String path) {
+        SQLiteDatabase readDatabase = null;
+        try {
+            readDatabase = new SQLiteDatabase(path, true);
+            readDatabase.executeFast("PRAGMA temp_store = 2").stepThis().dispose();
+            return readDatabase;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            if (readDatabase != null) {
+                readDatabase.close();
+            }
+        }
+        return null;
+    }
+
+    private void disableReadConnections() {
+        readGeneration = 0;
+        for (final ReadConnection connection : readConnections) {
+            connection.queue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    closeReadConnection(connection);
+                }
+            });
+        }
+    }
+
     public void openDatabase() {
         cacheFile = new File(ApplicationLoader.applicationContext.getFilesDir(), "cache4.db");
 
@@ -99,9 +326,16 @@ public class MessagesStorage {
         }
         try {
             database = new SQLiteDatabase(cacheFile.getPath());
+            database.setCommitListener(new Runnable() {
+                @Override
+                public void run() {
+                    commitDialogGenerations();
+                }
+            });
             database.executeFast("PRAGMA secure_delete = ON").stepThis().dispose();
             database.executeFast("PRAGMA temp_store = 1").stepThis().dispose();
             if (createTable) {
+                database.executeFast("PRAGMA auto_vacuum = 2").stepThis().dispose();
                 database.executeFast("CREATE TABLE users(uid INTEGER PRIMARY KEY, name TEXT, status INTEGER, data BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE messages(mid INTEGER PRIMARY KEY, uid INTEGER, read_state INTEGER, send_state INTEGER, date INTEGER, data BLOB, out INTEGER, ttl INTEGER, media INTEGER, replydata BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE chats(uid INTEGER PRIMARY KEY, name TEXT, data BLOB)").stepThis().dispose();
@@ -124,6 +358,8 @@ public class MessagesStorage {
                 database.executeFast("CREATE TABLE stickers(id INTEGER PRIMARY KEY, data BLOB, date INTEGER);").stepThis().dispose();
                 database.executeFast("CREATE TABLE hashtag_recent_v2(id TEXT PRIMARY KEY, date INTEGER);").stepThis().dispose();
                 database.executeFast("CREATE TABLE webpage_pending(id INTEGER, mid INTEGER, PRIMARY KEY (id, mid));").stepThis().dispose();
+                database.executeFast("CREATE TABLE messages_search_v2(token TEXT, mid INTEGER, uid INTEGER, PRIMARY KEY (token, mid)) WITHOUT ROWID;").stepThis().dispose();
+                database.executeFast("CREATE INDEX IF NOT EXISTS mid_token_idx_messages_search_v2 ON messages_search_v2(mid, token);").stepThis().dispose();
 
                 database.executeFast("CREATE TABLE user_contacts_v6(uid INTEGER PRIMARY KEY, fname TEXT, sname TEXT)").stepThis().dispose();
                 database.executeFast("CREATE TABLE user_phones_v6(uid INTEGER, phone TEXT, sphone TEXT, deleted INTEGER, PRIMARY KEY (uid, phone))").stepThis().dispose();
@@ -164,7 +400,7 @@ public class MessagesStorage {
                 database.executeFast("CREATE TABLE keyvalue(id TEXT PRIMARY KEY, value TEXT)").stepThis().dispose();
 
                 //version
-                database.executeFast("PRAGMA user_version = 16").stepThis().dispose();
+                database.executeFast("PRAGMA user_version = 17").stepThis().dispose();
             } else {
                 try {
                     SQLiteCursor cursor = database.queryFinalized("SELECT seq, pts, date, qts, lsv, sg, pbytes FROM params WHERE id = 1");
@@ -195,14 +431,22 @@ public class MessagesStorage {
                     }
                 }
                 int version = database.executeInt("PRAGMA user_version");
-                if (version < 16) {
+                if (version < 17) {
                     updateDbToLastVersion(version);
                 }
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
+        enableReadConnections();
         loadUnreadMessages();
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                MessagesSearchQuery.startIndexBackfill();
+            }
+        }, 10000);
+        MessagesRetention.start(60000);
     }
 
     public void updateDbToLastVersion(final int currentVersion) {
@@ -385,6 +629,21 @@ public class MessagesStorage {
                         database.executeFast("PRAGMA user_version = 16").stepThis().dispose();
                         version = 16;
                     }
+                    if (version == 16 && version < 17) {
+                        if (database.executeInt("PRAGMA auto_vacuum") != 2) {
+                            //auto vacuum can only be switched on by rebuilding the file once
+                            try {
+                                database.executeFast("PRAGMA auto_vacuum = 2").stepThis().dispose();
+                                database.executeFast("VACUUM").stepThis().dispose();
+                            } catch (Exception e) {
+                                FileLog.e("tmessages", e);
+                            }
+                        }
+                        database.executeFast("CREATE TABLE IF NOT EXISTS messages_search_v2(token TEXT, mid INTEGER, uid INTEGER, PRIMARY KEY (token, mid)) WITHOUT ROWID;").stepThis().dispose();
+                        database.executeFast("CREATE INDEX IF NOT EXISTS mid_token_idx_messages_search_v2 ON messages_search_v2(mid, token);").stepThis().dispose();
+                        database.executeFast("PRAGMA user_version = 17").stepThis().dispose();
+                        version = 17;
+                    }
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
                 }
@@ -410,12 +669,27 @@ public class MessagesStorage {
 
                 secretPBytes = null;
                 secretG = 0;
+                pendingWritesRunnable = null;
+                pendingUserStatuses.clear();
+                pendingReadInbox.clear();
+                pendingReadOutbox.clear();
+                pendingReadEncrypted.clear();
+                pendingWritesCount = 0;
+                dialogGenerations.clear();
+                allDialogsGeneration = ++messagesGeneration;
+                MessagesSearchQuery.stopIndexBackfill();
+                MessagesRetention.stop();
+                dialogsSnapshotRunnable = null;
+                DialogsSnapshot.delete();
+                disableReadConnections();
                 if (database != null) {
                     database.close();
                     database = null;
                 }
                 if (cacheFile != null) {
                     cacheFile.delete();
+                    new File(cacheFile.getPath() + "-wal").delete();
+                    new File(cacheFile.getPath() + "-shm").delete();
                     cacheFile = null;
                 }
                 openDatabase();
@@ -485,6 +759,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
+                    scheduleDialogsSnapshot();
                     database.executeFast(String.format(Locale.US, "REPLACE INTO dialog_settings VALUES(%d, %d)", did, flags)).stepThis().dispose();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -497,6 +772,7 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
+                flushPendingWritesInternal();
                 try {
                     final HashMap<Long, Integer> pushDialogs = new HashMap<>();
                     SQLiteCursor cursor = database.queryFinalized("SELECT d.did, d.unread_count, s.flags FROM dialogs as d LEFT JOIN dialog_settings as s ON d.did = s.did WHERE d.unread_count != 0");
@@ -852,7 +1128,9 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
+                    touchDialog(did);
                     if (!messagesOnly) {
+                        scheduleDialogsSnapshot();
                         database.executeFast("DELETE FROM dialogs WHERE did = " + did).stepThis().dispose();
                         database.executeFast("DELETE FROM chat_settings WHERE uid = " + did).stepThis().dispose();
                         int lower_id = (int)did;
@@ -921,7 +1199,9 @@ public class MessagesStorage {
                         FileLoader.getInstance().deleteFiles(filesToDelete);
                     }
 
+                    scheduleDialogsSnapshot();
                     database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = " + did).stepThis().dispose();
+                    database.executeFast("DELETE FROM messages_search_v2 WHERE mid IN(SELECT mid FROM messages WHERE uid = " + did + ")").stepThis().dispose();
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
@@ -1059,6 +1339,7 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
+                flushPendingWritesInternal();
                 try {
                     int minDate = Integer.MAX_VALUE;
                     SparseArray<ArrayList<Integer>> messages = new SparseArray<>();
@@ -1116,6 +1397,7 @@ public class MessagesStorage {
     }
 
     private void updateDialogsWithReadedMessagesInternal(final ArrayList<Integer> messages, final HashMap<Integer, Integer> inbox) {
+        flushPendingWritesInternal();
         try {
             HashMap<Long, Integer> dialogsToUpdate = new HashMap<>();
             StringBuilder dialogsToReload = new StringBuilder();
@@ -1178,6 +1460,7 @@ public class MessagesStorage {
                 cursor.dispose();
 
                 database.beginTransaction();
+                scheduleDialogsSnapshot();
                 SQLitePreparedStatement state = database.executeFast("UPDATE dialogs SET unread_count = ? WHERE did = ?");
                 for (HashMap.Entry<Long, Integer> entry : dialogsToUpdate.entrySet()) {
                     state.requery();
@@ -1369,6 +1652,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
+                    touchDialog(dialog_id);
                     if (delete) {
                         //database.executeFast("DELETE FROM pending_read WHERE uid = " + dialog_id).stepThis().dispose();
                     } else {
@@ -1398,6 +1682,7 @@ public class MessagesStorage {
                             state.dispose();
                         }
 
+                        scheduleDialogsSnapshot();
                         state = database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = ?");
                         state.requery();
                         state.bindLong(1, dialog_id);
@@ -1598,6 +1883,7 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
+                flushPendingWritesInternal();
                 try {
                     HashMap<Integer, TLRPC.Message> messageHashMap = new HashMap<>();
                     ArrayList<TLRPC.Message> messages = new ArrayList<>();
@@ -1737,14 +2023,176 @@ public class MessagesStorage {
         return holes;
     }*/
 
-    public void getMessages(final long dialog_id, final int count, final int max_id, final int minDate, final int classGuid, final int load_type) {
-        storageQueue.postRunnable(new Runnable() {
+    private void readMessagesAround(SQLiteDatabase database, long dialog_id, int date, int mid, int olderCount, int newerCount, ArrayList<TLRPC.Message> messages, ArrayList<Integer> fromUser,
+                                    ArrayList<Integer> replyMessages, HashMap<Integer, ArrayList<TLRPC.Message>> replyMessageOwners) throws Exception {
+        SQLiteCursor cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? AND (m.date < ? OR m.mid <= ?) ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, date, date, mid, olderCount);
+        readMessages(database, cursor, dialog_id, messages, fromUser, replyMessages, replyMessageOwners);
+        if (newerCount > 0) {
+            cursor = database.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date >= ? AND (m.date > ? OR m.mid > ?) ORDER BY m.date ASC, m.mid ASC LIMIT ?", dialog_id, date, date, mid, newerCount);
+            readMessages(database, cursor, dialog_id, messages, fromUser, replyMessages, replyMessageOwners);
+        }
+    }
+
+    private void readMessages(SQLiteDatabase database, SQLiteCursor cursor, long dialog_id, ArrayList<TLRPC.Message> messages, ArrayList<Integer> fromUser,
+                              ArrayList<Integer> replyMessages, HashMap<Integer, ArrayList<TLRPC.Message>> replyMessageOwners) throws Exception {
+        int lower_id = (int) dialog_id;
+        while (cursor.next()) {
+            ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(1));
+            if (data != null && cursor.byteBufferValue(1, data.buffer) != 0) {
+                TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                MessageObject.setIsUnread(message, cursor.intValue(0) != 1);
+                message.id = cursor.intValue(3);
+                message.date = cursor.intValue(4);
+                message.dialog_id = dialog_id;
+                messages.add(message);
+                fromUser.add(message.from_id);
+                if (message.action != null && message.action.user_id != 0) {
+                    fromUser.add(message.action.user_id);
+                }
+                if (message.media != null && message.media.user_id != 0) {
+                    fromUser.add(message.media.user_id);
+                }
+                if (message.media != null && message.media.audio != null && message.media.audio.user_id != 0) {
+                    fromUser.add(message.media.audio.user_id);
+                }
+                if (message.fwd_from_id != 0) {
+                    fromUser.add(message.fwd_from_id);
+                }
+                if (message.reply_to_msg_id != 0) {
+                    boolean ok = false;
+                    if (!cursor.isNull(6)) {
+                        ByteBufferDesc data2 = buffersStorage.getFreeBuffer(cursor.byteArrayLength(6));
+                        if (data2 != null && cursor.byteBufferValue(6, data2.buffer) != 0) {
+                            message.replyMessage = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data2, data2.readInt32());
+                            if (message.replyMessage != null) {
+                                fromUser.add(message.replyMessage.from_id);
+                                if (message.replyMessage.action != null && message.replyMessage.action.user_id != 0) {
+                                    fromUser.add(message.replyMessage.action.user_id);
+                                }
+                                if (message.replyMessage.media != null && message.replyMessage.media.user_id != 0) {
+                                    fromUser.add(message.replyMessage.media.user_id);
+                                }
+                                if (message.replyMessage.media != null && message.replyMessage.media.audio != null && message.replyMessage.media.audio.user_id != 0) {
+                                    fromUser.add(message.replyMessage.media.audio.user_id);
+                                }
+                                if (message.replyMessage.fwd_from_id != 0) {
+                                    fromUser.add(message.replyMessage.fwd_from_id);
+                                }
+                                ok = true;
+                            }
+                        }
+                        buffersStorage.reuseFreeBuffer(data2);
+                    }
+                    if (!ok) {
+                        if (!replyMessages.contains(message.reply_to_msg_id)) {
+                            replyMessages.add(message.reply_to_msg_id);
+                        }
+                        ArrayList<TLRPC.Message> owners = replyMessageOwners.get(message.reply_to_msg_id);
+                        if (owners == null) {
+                            owners = new ArrayList<>();
+                            replyMessageOwners.put(message.reply_to_msg_id, owners);
+                        }
+                        owners.add(message);
+                    }
+                }
+                message.send_state = cursor.intValue(2);
+                if (!MessageObject.isUnread(message) && lower_id != 0 || message.id > 0) {
+                    message.send_state = 0;
+                }
+                if (lower_id == 0 && !cursor.isNull(5)) {
+                    message.random_id = cursor.longValue(5);
+                }
+                if ((int) dialog_id == 0 && message.media != null && message.media.photo != null) {
+                    try {
+                        SQLiteCursor cursor2 = database.queryCached("SELECT date FROM enc_tasks_v2 WHERE mid = ?", message.id);
+                        if (cursor2.next()) {
+                            message.destroyTime = cursor2.intValue(0);
+                        }
+                        cursor2.dispose();
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            }
+            buffersStorage.reuseFreeBuffer(data);
+        }
+        cursor.dispose();
+    }
+
+    private void touchDialog(long did) {
+        dialogGenerations.put(did, ++messagesGeneration);
+        uncommittedDialogs.add(did);
+        postCommitDialogGenerations();
+    }
+
+    private void postCommitDialogGenerations() {
+        if (!commitDialogGenerationsPosted) {
+            commitDialogGenerationsPosted = true;
+            storageQueue.handler.postAtFrontOfQueue(commitDialogGenerationsRunnable);
+        }
+    }
+
+    /**
+     * Bumps the dialogs touched since the last commit once more. Runs from the commit listener, and
+     * right after the storage task that touched them for the writes that are not wrapped in a
+     * transaction; while a transaction is open it waits for its commit.
+     */
+    private void commitDialogGenerations() {
+        if (database.isInTransaction()) {
+            return;
+        }
+        if (uncommittedAllDialogs) {
+            allDialogsGeneration = ++messagesGeneration;
+            uncommittedAllDialogs = false;
+        }
+        for (Long did : uncommittedDialogs) {
+            dialogGenerations.put(did, ++messagesGeneration);
+        }
+        uncommittedDialogs.clear();
+    }
+
+    /**
+     * Bumps the generation of the dialogs the messages belong to. Must run before the rows are
+     * changed or deleted; if they can not be looked up every dialog is bumped.
+     */
+    private void touchDialogsOfMessages(List<Integer> mids) {
+        try {
+            for (int a = 0; a < mids.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                Object[] args = SQLiteDatabase.inListArgs(mids, a);
+                SQLiteCursor cursor = database.queryCached("SELECT DISTINCT uid FROM messages WHERE mid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+                while (cursor.next()) {
+                    touchDialog(cursor.longValue(0));
+                }
+                cursor.dispose();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            allDialogsGeneration = ++messagesGeneration;
+            uncommittedAllDialogs = true;
+            postCommitDialogGenerations();
+        }
+    }
+
+    public int getMessagesGeneration(long did) {
+        int generation = allDialogsGeneration;
+        Integer dialogGeneration = dialogGenerations.get(did);
+        return dialogGeneration != null && dialogGeneration > generation ? dialogGeneration : generation;
+    }
+
+    /**
+     * Loads a page of messages. Pages are addressed by a (date, mid) keyset instead of an OFFSET, so
+     * loading far back in a large dialog costs the same as loading the first page. With prefetch set
+     * the result goes to MessagesController.processPrefetchedMessages instead of processLoadedMessages.
+     */
+    public void getMessages(final long dialog_id, final int count, final int max_id, final int minDate, final int classGuid, final int load_type, final boolean prefetch) {
+        readSnapshotAfterPendingWrites(new Runnable() {
             @Override
             public void run() {
+                SQLiteDatabase readDatabase = getReadDatabase();
+                final int generation = getMessagesGeneration(dialog_id);
                 TLRPC.TL_messages_messages res = new TLRPC.TL_messages_messages();
                 int count_unread = 0;
                 int count_query = count;
-                int offset_query = 0;
                 int min_unread_id = 0;
                 int last_message_id = 0;
                 int first_message_id = 0;
@@ -1762,50 +2210,48 @@ public class MessagesStorage {
 
                     if (lower_id != 0) {
                         if (load_type == 3) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid), min(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                            cursor = readDatabase.queryCached("SELECT max(mid), min(mid) FROM messages WHERE uid = ? AND mid > 0", dialog_id);
                             if (cursor.next()) {
                                 last_message_id = cursor.intValue(0);
                                 first_message_id = cursor.intValue(1);
                             }
                             cursor.dispose();
 
-                            boolean containMessage = false;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM messages WHERE mid = %d", max_id));
+                            int anchorDate = 0;
+                            cursor = readDatabase.queryCached("SELECT date FROM messages WHERE mid = ?", max_id);
                             if (cursor.next()) {
-                                containMessage = true;
+                                anchorDate = cursor.intValue(0);
                             }
                             cursor.dispose();
+                            cursor = null;
 
-                            if (containMessage) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d) UNION " +
-                                        "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.date ASC, m.mid ASC LIMIT %d)", dialog_id, max_id, count_query / 2, dialog_id, max_id, count_query / 2 - 1));
-                            } else {
-                                cursor = null;
+                            if (anchorDate != 0) {
+                                readMessagesAround(readDatabase, dialog_id, anchorDate, max_id, count_query / 2, count_query / 2 - 1, res.messages, fromUser, replyMessages, replyMessageOwners);
                             }
                         } else if (load_type == 1) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, max_id, count_query));
+                            cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date >= ? AND (m.date > ? OR m.mid > ?) ORDER BY m.date ASC, m.mid ASC LIMIT ?", dialog_id, minDate, minDate, max_id, count_query);
                         } else if (minDate != 0) {
                             if (max_id != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, max_id, count_query));
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? AND (m.date < ? OR m.mid < ?) ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, minDate, minDate, max_id, count_query);
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, minDate, count_query);
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                                cursor = readDatabase.queryCached("SELECT max(mid) FROM messages WHERE uid = ? AND mid > 0", dialog_id);
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state = 0 AND mid > 0", dialog_id));
+                                cursor = readDatabase.queryCached("SELECT min(mid), max(date) FROM messages WHERE uid = ? AND out = 0 AND read_state = 0 AND mid > 0", dialog_id);
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d AND out = 0 AND read_state = 0", dialog_id, min_unread_id));
+                                    cursor = readDatabase.queryCached("SELECT COUNT(*) FROM messages WHERE uid = ? AND mid >= ? AND out = 0 AND read_state = 0", dialog_id, min_unread_id);
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -1820,37 +2266,44 @@ public class MessagesStorage {
                                     min_unread_id = 0;
                                     last_message_id = 0;
                                 }
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? ORDER BY m.date DESC, m.mid DESC LIMIT ?", dialog_id, count_query);
                             } else {
-                                offset_query = count_unread - count_query;
+                                int anchorDate = 0;
+                                cursor = readDatabase.queryCached("SELECT date FROM messages WHERE mid = ?", min_unread_id);
+                                if (cursor.next()) {
+                                    anchorDate = cursor.intValue(0);
+                                }
+                                cursor.dispose();
+                                cursor = null;
+                                readMessagesAround(readDatabase, dialog_id, anchorDate, min_unread_id, 11, count_query - 1, res.messages, fromUser, replyMessages, replyMessageOwners);
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, offset_query, count_query));
                         }
                     } else {
                         if (load_type == 1) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid < %d ORDER BY m.mid DESC LIMIT %d", dialog_id, max_id, count_query));
+                            cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid < ? ORDER BY m.mid DESC LIMIT ?", dialog_id, max_id, count_query);
                         } else if (minDate != 0) {
                             if (max_id != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d", dialog_id, max_id, count_query));
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid > ? ORDER BY m.mid ASC LIMIT ?", dialog_id, max_id, count_query);
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.date <= ? ORDER BY m.mid ASC LIMIT ?", dialog_id, minDate, count_query);
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid < 0", dialog_id));
+                                cursor = readDatabase.queryCached("SELECT min(mid) FROM messages WHERE uid = ? AND mid < 0", dialog_id);
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state = 0 AND mid < 0", dialog_id));
+                                cursor = readDatabase.queryCached("SELECT max(mid), max(date) FROM messages WHERE uid = ? AND out = 0 AND read_state = 0 AND mid < 0", dialog_id);
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state = 0", dialog_id, min_unread_id));
+                                    cursor = readDatabase.queryCached("SELECT COUNT(*) FROM messages WHERE uid = ? AND mid <= ? AND out = 0 AND read_state = 0", dialog_id, min_unread_id);
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -1865,95 +2318,17 @@ public class MessagesStorage {
                                     min_unread_id = 0;
                                     last_message_id = 0;
                                 }
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? ORDER BY m.mid ASC LIMIT ?", dialog_id, count_query);
                             } else {
-                                offset_query = count_unread - count_query;
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid < ? ORDER BY m.mid DESC LIMIT ?", dialog_id, min_unread_id, count_query - 1);
+                                readMessages(readDatabase, cursor, dialog_id, res.messages, fromUser, replyMessages, replyMessageOwners);
+                                cursor = readDatabase.queryCached("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = ? AND m.mid >= ? ORDER BY m.mid ASC LIMIT ?", dialog_id, min_unread_id, 11);
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, offset_query, count_query));
                         }
                     }
                     if (cursor != null) {
-                        while (cursor.next()) {
-                            ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(1));
-                            if (data != null && cursor.byteBufferValue(1, data.buffer) != 0) {
-                                TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
-                                MessageObject.setIsUnread(message, cursor.intValue(0) != 1);
-                                message.id = cursor.intValue(3);
-                                message.date = cursor.intValue(4);
-                                message.dialog_id = dialog_id;
-                                res.messages.add(message);
-                                fromUser.add(message.from_id);
-                                if (message.action != null && message.action.user_id != 0) {
-                                    fromUser.add(message.action.user_id);
-                                }
-                                if (message.media != null && message.media.user_id != 0) {
-                                    fromUser.add(message.media.user_id);
-                                }
-                                if (message.media != null && message.media.audio != null && message.media.audio.user_id != 0) {
-                                    fromUser.add(message.media.audio.user_id);
-                                }
-                                if (message.fwd_from_id != 0) {
-                                    fromUser.add(message.fwd_from_id);
-                                }
-                                if (message.reply_to_msg_id != 0) {
-                                    boolean ok = false;
-                                    if (!cursor.isNull(6)) {
-                                        ByteBufferDesc data2 = buffersStorage.getFreeBuffer(cursor.byteArrayLength(6));
-                                        if (data2 != null && cursor.byteBufferValue(6, data2.buffer) != 0) {
-                                            message.replyMessage = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data2, data2.readInt32());
-                                            if (message.replyMessage != null) {
-                                                fromUser.add(message.replyMessage.from_id);
-                                                if (message.replyMessage.action != null && message.replyMessage.action.user_id != 0) {
-                                                    fromUser.add(message.replyMessage.action.user_id);
-                                                }
-                                                if (message.replyMessage.media != null && message.replyMessage.media.user_id != 0) {
-                                                    fromUser.add(message.replyMessage.media.user_id);
-                                                }
-                                                if (message.replyMessage.media != null && message.replyMessage.media.audio != null && message.replyMessage.media.audio.user_id != 0) {
-                                                    fromUser.add(message.replyMessage.media.audio.user_id);
-                                                }
-                                                if (message.replyMessage.fwd_from_id != 0) {
-                                                    fromUser.add(message.replyMessage.fwd_from_id);
-                                                }
-                                                ok = true;
-                                            }
-                                        }
-                                        buffersStorage.reuseFreeBuffer(data2);
-                                    }
-                                    if (!ok) {
-                                        if (!replyMessages.contains(message.reply_to_msg_id)) {
-                                            replyMessages.add(message.reply_to_msg_id);
-                                        }
-                                        ArrayList<TLRPC.Message> messages = replyMessageOwners.get(message.reply_to_msg_id);
-                                        if (messages == null) {
-                                            messages = new ArrayList<>();
-                                            replyMessageOwners.put(message.reply_to_msg_id, messages);
-                                        }
-                                        messages.add(message);
-                                    }
-                                }
-                                message.send_state = cursor.intValue(2);
-                                if (!MessageObject.isUnread(message) && lower_id != 0 || message.id > 0) {
-                                    message.send_state = 0;
-                                }
-                                if (lower_id == 0 && !cursor.isNull(5)) {
-                                    message.random_id = cursor.longValue(5);
-                                }
-                                if ((int) dialog_id == 0 && message.media != null && message.media.photo != null) {
-                                    try {
-                                        SQLiteCursor cursor2 = database.queryFinalized(String.format(Locale.US, "SELECT date FROM enc_tasks_v2 WHERE mid = %d", message.id));
-                                        if (cursor2.next()) {
-                                            message.destroyTime = cursor2.intValue(0);
-                                        }
-                                        cursor2.dispose();
-                                    } catch (Exception e) {
-                                        FileLog.e("tmessages", e);
-                                    }
-                                }
-                            }
-                            buffersStorage.reuseFreeBuffer(data);
-                        }
-                        cursor.dispose();
+                        readMessages(readDatabase, cursor, dialog_id, res.messages, fromUser, replyMessages, replyMessageOwners);
                     }
 
                     Collections.sort(res.messages, new Comparator<TLRPC.Message>() {
@@ -1982,8 +2357,9 @@ public class MessagesStorage {
                         }
                     });
 
-                    if (!replyMessages.isEmpty()) {
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", TextUtils.join(",", replyMessages)));
+                    for (int a = 0; a < replyMessages.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                        Object[] args = SQLiteDatabase.inListArgs(replyMessages, a);
+                        cursor = readDatabase.queryCached("SELECT data, mid, date FROM messages WHERE mid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
                         while (cursor.next()) {
                             ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
@@ -2016,18 +2392,14 @@ public class MessagesStorage {
                         cursor.dispose();
                     }
 
-                    StringBuilder usersToLoad = new StringBuilder();
+                    IntHashSet loadedUsersSet = new IntHashSet(fromUser.size());
                     for (int uid : fromUser) {
-                        if (!loadedUsers.contains(uid)) {
-                            if (usersToLoad.length() != 0) {
-                                usersToLoad.append(",");
-                            }
-                            usersToLoad.append(uid);
+                        if (loadedUsersSet.add(uid)) {
                             loadedUsers.add(uid);
                         }
                     }
-                    if (usersToLoad.length() != 0) {
-                        getUsersInternal(usersToLoad.toString(), res.users);
+                    if (!loadedUsers.isEmpty()) {
+                        getUsersInternal(loadedUsers, res.users);
                     }
                 } catch (Exception e) {
                     res.messages.clear();
@@ -2035,7 +2407,11 @@ public class MessagesStorage {
                     res.users.clear();
                     FileLog.e("tmessages", e);
                 } finally {
-                    MessagesController.getInstance().processLoadedMessages(res, dialog_id, count_query, max_id, true, classGuid, min_unread_id, last_message_id, first_message_id, count_unread, max_unread_date, load_type, false);
+                    if (prefetch) {
+                        MessagesController.getInstance().processPrefetchedMessages(res, dialog_id, count_query, max_id, minDate, classGuid, load_type, generation);
+                    } else {
+                        MessagesController.getInstance().processLoadedMessages(res, dialog_id, count_query, max_id, true, classGuid, min_unread_id, last_message_id, first_message_id, count_unread, max_unread_date, load_type, false);
+                    }
                 }
             }
         });
@@ -2075,6 +2451,163 @@ public class MessagesStorage {
         }
     }
 
+    private void mergePendingMax(HashMap<Integer, Integer> pending, HashMap<Integer, Integer> values) {
+        if (values == null) {
+            return;
+        }
+        for (HashMap.Entry<Integer, Integer> entry : values.entrySet()) {
+            Integer current = pending.get(entry.getKey());
+            if (current != null) {
+                writeBehindCoalesced.incrementAndGet();
+                if (current >= entry.getValue()) {
+                    continue;
+                }
+            }
+            pending.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void schedulePendingWrites() {
+        pendingWritesCount = pendingUserStatuses.size() + pendingReadInbox.size() + pendingReadOutbox.size() + pendingReadEncrypted.size();
+        if (pendingWritesCount >= WRITE_BEHIND_MAX_ROWS) {
+            flushPendingWritesInternal();
+            return;
+        }
+        if (pendingWritesRunnable == null && pendingWritesCount != 0) {
+            pendingWritesStartTime = System.currentTimeMillis();
+            pendingWritesRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    pendingWritesRunnable = null;
+                    flushPendingWritesInternal();
+                }
+            };
+            storageQueue.postRunnable(pendingWritesRunnable, WRITE_BEHIND_DELAY);
+        }
+    }
+
+    private void flushPendingWritesInternal() {
+        if (Thread.currentThread().getId() != storageQueue.getId()) {
+            throw new RuntimeException("wrong db thread");
+        }
+        if (pendingWritesRunnable != null) {
+            storageQueue.cancelRunnable(pendingWritesRunnable);
+            pendingWritesRunnable = null;
+        }
+        int rows = pendingUserStatuses.size() + pendingReadInbox.size() + pendingReadOutbox.size() + pendingReadEncrypted.size();
+        if (rows == 0 || database == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        boolean withTransaction = !database.isInTransaction();
+        try {
+            if (withTransaction) {
+                database.beginTransaction();
+            }
+            if (!pendingUserStatuses.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached("UPDATE users SET status = ? WHERE uid = ?");
+                for (HashMap.Entry<Integer, Integer> entry : pendingUserStatuses.entrySet()) {
+                    state.requery();
+                    state.bindInteger(1, entry.getValue());
+                    state.bindInteger(2, entry.getKey());
+                    state.step();
+                }
+                state.dispose();
+            }
+            if (!pendingReadInbox.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached("UPDATE messages SET read_state = 1 WHERE uid = ? AND mid <= ? AND read_state = 0 AND out = 0");
+                for (HashMap.Entry<Integer, Integer> entry : pendingReadInbox.entrySet()) {
+                    touchDialog(entry.getKey());
+                    state.requery();
+                    state.bindInteger(1, entry.getKey());
+                    state.bindInteger(2, entry.getValue());
+                    state.step();
+                }
+                state.dispose();
+            }
+            if (!pendingReadOutbox.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached("UPDATE messages SET read_state = 1 WHERE uid = ? AND mid <= ? AND read_state = 0 AND out = 1");
+                for (HashMap.Entry<Integer, Integer> entry : pendingReadOutbox.entrySet()) {
+                    touchDialog(entry.getKey());
+                    state.requery();
+                    state.bindInteger(1, entry.getKey());
+                    state.bindInteger(2, entry.getValue());
+                    state.step();
+                }
+                state.dispose();
+            }
+            if (!pendingReadEncrypted.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached("UPDATE messages SET read_state = 1 WHERE uid = ? AND date <= ? AND read_state = 0 AND out = 1");
+                for (HashMap.Entry<Integer, Integer> entry : pendingReadEncrypted.entrySet()) {
+                    touchDialog(((long) entry.getKey()) << 32);
+                    state.requery();
+                    state.bindLong(1, ((long) entry.getKey()) << 32);
+                    state.bindInteger(2, entry.getValue());
+                    state.step();
+                }
+                state.dispose();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            if (withTransaction) {
+                database.commitTransaction();
+            }
+            pendingUserStatuses.clear();
+            pendingReadInbox.clear();
+            pendingReadOutbox.clear();
+            pendingReadEncrypted.clear();
+            pendingWritesCount = 0;
+
+            long time = System.currentTimeMillis();
+            lastFlushTime = time - startTime;
+            lastFlushDelay = pendingWritesStartTime != 0 ? time - pendingWritesStartTime : 0;
+            pendingWritesStartTime = 0;
+            writeBehindFlushes.incrementAndGet();
+            writeBehindRows.addAndGet(rows);
+            writeBehindFlushTime.addAndGet(lastFlushTime);
+        }
+    }
+
+    /**
+     * Commits coalesced status and read state updates that are still waiting for their flush
+     * window. With sync set the call blocks until the data is written.
+     */
+    public void flushPendingWrites(boolean sync) {
+        if (Thread.currentThread().getId() == storageQueue.getId()) {
+            flushPendingWritesInternal();
+            return;
+        }
+        final Semaphore semaphore = sync ? new Semaphore(0) : null;
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushPendingWritesInternal();
+                } finally {
+                    if (semaphore != null) {
+                        semaphore.release();
+                    }
+                }
+            }
+        });
+        if (semaphore != null) {
+            try {
+                semaphore.acquire();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+    }
+
+    public String getWriteBehindStats() {
+        long flushes = writeBehindFlushes.get();
+        long rows = writeBehindRows.get();
+        return String.format(Locale.US, "pending=%d flushes=%d coalesced=%d rows/transaction=%.2f avg flush=%.2fms last flush=%dms last delay=%dms",
+                pendingWritesCount, flushes, writeBehindCoalesced.get(), flushes != 0 ? (double) rows / flushes : 0.0,
+                flushes != 0 ? (double) writeBehindFlushTime.get() / flushes : 0.0, lastFlushTime, lastFlushDelay);
+    }
+
     public TLObject getSentFile(final String path, final int type) {
         if (path == null) {
             return null;
@@ -2374,6 +2907,7 @@ public class MessagesStorage {
                     buffersStorage.reuseFreeBuffer(data5);
 
                     if (dialog != null) {
+                        scheduleDialogsSnapshot();
                         state = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid) VALUES(?, ?, ?, ?)");
                         state.bindLong(1, dialog.id);
                         state.bindInteger(2, dialog.last_message_date);
@@ -2413,6 +2947,7 @@ public class MessagesStorage {
         }
         SQLitePreparedStatement state = database.executeFast("REPLACE INTO users VALUES(?, ?, ?, ?)");
         for (TLRPC.User user : users) {
+            pendingUserStatuses.remove(user.id);
             state.requery();
             ByteBufferDesc data = buffersStorage.getFreeBuffer(user.getObjectSize());
             user.serializeToStream(data);
@@ -2464,7 +2999,7 @@ public class MessagesStorage {
         if (usersToLoad == null || usersToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2485,11 +3020,39 @@ public class MessagesStorage {
         cursor.dispose();
     }
 
+    public void getUsersInternal(ArrayList<Integer> usersToLoad, ArrayList<TLRPC.User> result) throws Exception {
+        if (usersToLoad == null || usersToLoad.isEmpty() || result == null) {
+            return;
+        }
+        for (int a = 0; a < usersToLoad.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+            Object[] args = SQLiteDatabase.inListArgs(usersToLoad, a);
+            SQLiteCursor cursor = getReadDatabase().queryCached("SELECT data, status FROM users WHERE uid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+            while (cursor.next()) {
+                try {
+                    ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
+                    if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
+                        TLRPC.User user = (TLRPC.User)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                        if (user != null) {
+                            if (user.status != null) {
+                                user.status.expires = cursor.intValue(1);
+                            }
+                            result.add(user);
+                        }
+                    }
+                    buffersStorage.reuseFreeBuffer(data);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+            cursor.dispose();
+        }
+    }
+
     public void getChatsInternal(String chatsToLoad, ArrayList<TLRPC.Chat> result) throws Exception {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2507,12 +3070,37 @@ public class MessagesStorage {
         cursor.dispose();
     }
 
+    public void getChatsInternal(ArrayList<Integer> chatsToLoad, ArrayList<TLRPC.Chat> result) throws Exception {
+        if (chatsToLoad == null || chatsToLoad.isEmpty() || result == null) {
+            return;
+        }
+        for (int a = 0; a < chatsToLoad.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+            Object[] args = SQLiteDatabase.inListArgs(chatsToLoad, a);
+            SQLiteCursor cursor = getReadDatabase().queryCached("SELECT data FROM chats WHERE uid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+            while (cursor.next()) {
+                try {
+                    ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
+                    if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
+                        TLRPC.Chat chat = (TLRPC.Chat)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                        if (chat != null) {
+                            result.add(chat);
+                        }
+                    }
+                    buffersStorage.reuseFreeBuffer(data);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+            cursor.dispose();
+        }
+    }
+
     public void getEncryptedChatsInternal(String chatsToLoad, ArrayList<TLRPC.EncryptedChat> result, ArrayList<Integer> usersToLoad) throws Exception {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
         //use_count INTEGER, exchange_id INTEGER, key_date INTEGER, fprint INTEGER, fauthkey BLOB
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2685,6 +3273,7 @@ public class MessagesStorage {
                     if (mids.isEmpty()) {
                         return;
                     }
+                    touchDialogsOfMessages(mids);
                     final ArrayList<TLRPC.Message> messages = new ArrayList<>();
                     cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, data FROM messages WHERE mid IN (%s)", TextUtils.join(",", mids)));
                     while (cursor.next()) {
@@ -2748,15 +3337,15 @@ public class MessagesStorage {
             HashMap<Long, Integer> messagesCounts = new HashMap<>();
             HashMap<Integer, HashMap<Long, Integer>> mediaCounts = new HashMap<>();
             HashMap<Integer, Integer> mediaTypes = new HashMap<>();
-            HashMap<Integer, Long> messagesIdsMap = new HashMap<>();
-            HashMap<Integer, Long> messagesMediaIdsMap = new HashMap<>();
-            StringBuilder messageIds = new StringBuilder();
-            StringBuilder messageMediaIds = new StringBuilder();
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
-            SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
-            SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO randoms VALUES(?, ?)");
-            SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
-            SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO webpage_pending VALUES(?, ?)");
+            IntLongMap messagesIdsMap = new IntLongMap();
+            IntLongMap messagesMediaIdsMap = new IntLongMap();
+            ArrayList<Integer> messageIds = new ArrayList<>();
+            ArrayList<Integer> messageMediaIds = new ArrayList<>();
+            SQLitePreparedStatement state = database.executeCached("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
+            SQLitePreparedStatement state2 = database.executeCached("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
+            SQLitePreparedStatement state3 = database.executeCached("REPLACE INTO randoms VALUES(?, ?)");
+            SQLitePreparedStatement state4 = database.executeCached("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
+            SQLitePreparedStatement state5 = database.executeCached("REPLACE INTO webpage_pending VALUES(?, ?)");
 
             for (TLRPC.Message message : messages) {
                 long dialog_id = message.dialog_id;
@@ -2767,34 +3356,33 @@ public class MessagesStorage {
                         dialog_id = message.to_id.user_id;
                     }
                 }
+                touchDialog(dialog_id);
 
                 if (MessageObject.isUnread(message) && !MessageObject.isOut(message)) {
-                    if (messageIds.length() > 0) {
-                        messageIds.append(",");
-                    }
-                    messageIds.append(message.id);
+                    messageIds.add(message.id);
                     messagesIdsMap.put(message.id, dialog_id);
                 }
 
                 if (SharedMediaQuery.canAddMessageToMedia(message)) {
-                    if (messageMediaIds.length() > 0) {
-                        messageMediaIds.append(",");
-                    }
-                    messageMediaIds.append(message.id);
+                    messageMediaIds.add(message.id);
                     messagesMediaIdsMap.put(message.id, dialog_id);
                     mediaTypes.put(message.id, SharedMediaQuery.getMediaType(message));
                 }
             }
 
-            if (messageMediaIds.length() > 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM media_v2 WHERE mid IN(" + messageMediaIds.toString() + ")");
-                while (cursor.next()) {
-                    int mid = cursor.intValue(0);
-                    messagesMediaIdsMap.remove(mid);
+            if (!messageMediaIds.isEmpty()) {
+                for (int a = 0; a < messageMediaIds.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                    Object[] args = SQLiteDatabase.inListArgs(messageMediaIds, a);
+                    SQLiteCursor cursor = database.queryCached("SELECT mid FROM media_v2 WHERE mid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+                    while (cursor.next()) {
+                        int mid = cursor.intValue(0);
+                        messagesMediaIdsMap.remove(mid);
+                    }
+                    cursor.dispose();
                 }
-                cursor.dispose();
-                for (HashMap.Entry<Integer, Long> entry : messagesMediaIdsMap.entrySet()) {
-                    Integer type = mediaTypes.get(entry.getKey());
+                for (int mid : messagesMediaIdsMap.keys()) {
+                    long dialog_id = messagesMediaIdsMap.get(mid, 0);
+                    Integer type = mediaTypes.get(mid);
                     HashMap<Long, Integer> counts = mediaCounts.get(type);
                     Integer count;
                     if (counts == null) {
@@ -2802,24 +3390,27 @@ public class MessagesStorage {
                         count = 0;
                         mediaCounts.put(type, counts);
                     } else {
-                        count = counts.get(entry.getValue());
+                        count = counts.get(dialog_id);
                     }
                     if (count == null) {
                         count = 0;
                     }
                     count++;
-                    counts.put(entry.getValue(), count);
+                    counts.put(dialog_id, count);
                 }
             }
 
-            if (messageIds.length() > 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM messages WHERE mid IN(" + messageIds.toString() + ")");
-                while (cursor.next()) {
-                    int mid = cursor.intValue(0);
-                    messagesIdsMap.remove(mid);
+            if (!messageIds.isEmpty()) {
+                for (int a = 0; a < messageIds.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                    Object[] args = SQLiteDatabase.inListArgs(messageIds, a);
+                    SQLiteCursor cursor = database.queryCached("SELECT mid FROM messages WHERE mid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+                    while (cursor.next()) {
+                        int mid = cursor.intValue(0);
+                        messagesIdsMap.remove(mid);
+                    }
+                    cursor.dispose();
                 }
-                cursor.dispose();
-                for (Long dialog_id : messagesIdsMap.values()) {
+                for (long dialog_id : messagesIdsMap.values()) {
                     Integer count = messagesCounts.get(dialog_id);
                     if (count == null) {
                         count = 0;
@@ -2874,6 +3465,8 @@ public class MessagesStorage {
                 state.bindInteger(9, getMessageMediaType(message));
                 state.step();
 
+                MessagesSearchQuery.putSearchTextInternal(database, messageId, dialog_id, message.message);
+
                 if (message.random_id != 0) {
                     state3.requery();
                     state3.bindLong(1, message.random_id);
@@ -2954,13 +3547,14 @@ public class MessagesStorage {
             state4.dispose();
             state5.dispose();
 
-            state = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid) VALUES(?, ?, ?, ?)");
+            scheduleDialogsSnapshot();
+            state = database.executeCached("REPLACE INTO dialogs(did, date, unread_count, last_mid) VALUES(?, ?, ?, ?)");
             for (HashMap.Entry<Long, TLRPC.Message> pair : messagesMap.entrySet()) {
                 Long key = pair.getKey();
 
                 int dialog_date = 0;
                 int old_unread_count = 0;
-                SQLiteCursor cursor = database.queryFinalized("SELECT date, unread_count FROM dialogs WHERE did = " + key);
+                SQLiteCursor cursor = database.queryCached("SELECT date, unread_count FROM dialogs WHERE did = ?", key);
                 if (cursor.next()) {
                     dialog_date = cursor.intValue(0);
                     old_unread_count = cursor.intValue(1);
@@ -2992,14 +3586,14 @@ public class MessagesStorage {
             state.dispose();
 
             if (!mediaCounts.isEmpty()) {
-                state = database.executeFast("REPLACE INTO media_counts_v2 VALUES(?, ?, ?)");
+                state = database.executeCached("REPLACE INTO media_counts_v2 VALUES(?, ?, ?)");
                 for (HashMap.Entry<Integer, HashMap<Long, Integer>> counts : mediaCounts.entrySet()) {
                     Integer type = counts.getKey();
                     for (HashMap.Entry<Long, Integer> pair : counts.getValue().entrySet()) {
                         long uid = pair.getKey();
                         int lower_part = (int) uid;
                         int count = -1;
-                        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT count FROM media_counts_v2 WHERE uid = %d AND type = %d LIMIT 1", uid, type));
+                        SQLiteCursor cursor = database.queryCached("SELECT count FROM media_counts_v2 WHERE uid = ? AND type = ? LIMIT 1", uid, type);
                         if (cursor.next()) {
                             count = cursor.intValue(0);
                         }
@@ -3056,6 +3650,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
+                    touchDialogsOfMessages(Collections.singletonList(mid));
                     database.executeFast("UPDATE messages SET send_state = 2 WHERE mid = " + mid).stepThis().dispose();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -3139,6 +3734,7 @@ public class MessagesStorage {
 
     private Integer updateMessageStateAndIdInternal(long random_id, Integer _oldId, int newId, int date) {
         if (_oldId != null && _oldId == newId && date != 0) {
+            touchDialogsOfMessages(Collections.singletonList(newId));
             SQLitePreparedStatement state = null;
             try {
                 state = database.executeFast("UPDATE messages SET send_state = 0, date = ? WHERE mid = ?");
@@ -3181,6 +3777,7 @@ public class MessagesStorage {
             if (oldId == null) {
                 return null;
             }
+            touchDialogsOfMessages(Collections.singletonList(oldId));
 
             SQLitePreparedStatement state = null;
             try {
@@ -3223,6 +3820,14 @@ public class MessagesStorage {
             }
 
             try {
+                database.executeCached("DELETE FROM messages_search_v2 WHERE mid = ?").bindArgs(new Object[] {newId}).stepThis().dispose();
+                database.executeCached("UPDATE messages_search_v2 SET mid = ? WHERE mid = ?").bindArgs(new Object[] {newId, oldId}).stepThis().dispose();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+
+            try {
+                scheduleDialogsSnapshot();
                 state = database.executeFast("UPDATE dialogs SET last_mid = ? WHERE last_mid = ?");
                 state.bindInteger(1, newId);
                 state.bindLong(2, oldId);
@@ -3254,6 +3859,14 @@ public class MessagesStorage {
         return null;
     }
 
+    private void putPendingUserStatuses(ArrayList<TLRPC.User> users) {
+        for (TLRPC.User user : users) {
+            if (pendingUserStatuses.put(user.id, user.status != null ? user.status.expires : 0) != null) {
+                writeBehindCoalesced.incrementAndGet();
+            }
+        }
+    }
+
     private void updateUsersInternal(final ArrayList<TLRPC.User> users, final boolean onlyStatus, final boolean withTransaction) {
         if (Thread.currentThread().getId() != storageQueue.getId()) {
             throw new RuntimeException("wrong db thread");
@@ -3265,6 +3878,7 @@ public class MessagesStorage {
                 }
                 SQLitePreparedStatement state = database.executeFast("UPDATE users SET status = ? WHERE uid = ?");
                 for (TLRPC.User user : users) {
+                    pendingUserStatuses.remove(user.id);
                     state.requery();
                     if (user.status != null) {
                         state.bindInteger(1, user.status.expires);
@@ -3279,6 +3893,7 @@ public class MessagesStorage {
                     database.commitTransaction();
                 }
             } else {
+                flushPendingWritesInternal();
                 StringBuilder ids = new StringBuilder();
                 HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
                 for (TLRPC.User user : users) {
@@ -3328,7 +3943,12 @@ public class MessagesStorage {
             storageQueue.postRunnable(new Runnable() {
                 @Override
                 public void run() {
-                    updateUsersInternal(users, onlyStatus, withTransaction);
+                    if (onlyStatus) {
+                        putPendingUserStatuses(users);
+                        schedulePendingWrites();
+                    } else {
+                        updateUsersInternal(users, false, withTransaction);
+                    }
                 }
             });
         } else {
@@ -3343,11 +3963,13 @@ public class MessagesStorage {
         try {
             if (inbox != null) {
                 for (HashMap.Entry<Integer, Integer> entry : inbox.entrySet()) {
+                    touchDialog(entry.getKey());
                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = 1 WHERE uid = %d AND mid <= %d AND read_state = 0 AND out = 0", entry.getKey(), entry.getValue())).stepThis().dispose();
                 }
             }
             if (outbox != null) {
                 for (HashMap.Entry<Integer, Integer> entry : outbox.entrySet()) {
+                    touchDialog(entry.getKey());
                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = 1 WHERE uid = %d AND mid <= %d AND read_state = 0 AND out = 1", entry.getKey(), entry.getValue())).stepThis().dispose();
                 }
             }
@@ -3355,6 +3977,7 @@ public class MessagesStorage {
                 for (HashMap.Entry<Integer, Integer> entry : encryptedMessages.entrySet()) {
                     long dialog_id = ((long)entry.getKey()) << 32;
                     int max_date = entry.getValue();
+                    touchDialog(dialog_id);
                     SQLitePreparedStatement state = database.executeFast("UPDATE messages SET read_state = 1 WHERE uid = ? AND date <= ? AND read_state = 0 AND out = 1");
                     state.requery();
                     state.bindLong(1, dialog_id);
@@ -3373,7 +3996,10 @@ public class MessagesStorage {
             storageQueue.postRunnable(new Runnable() {
                 @Override
                 public void run() {
-                    markMessagesAsReadInternal(inbox, outbox, encryptedMessages);
+                    mergePendingMax(pendingReadInbox, inbox);
+                    mergePendingMax(pendingReadOutbox, outbox);
+                    mergePendingMax(pendingReadEncrypted, encryptedMessages);
+                    schedulePendingWrites();
                 }
             });
         } else {
@@ -3421,74 +4047,100 @@ public class MessagesStorage {
     }
 
     private void markMessagesAsDeletedInternal(final ArrayList<Integer> messages) {
+        touchDialogsOfMessages(messages);
         try {
-            String ids = TextUtils.join(",", messages);
-            SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT uid, data FROM messages WHERE mid IN(%s)", ids));
             ArrayList<File> filesToDelete = new ArrayList<>();
-            try {
-                while (cursor.next()) {
-                    long did = cursor.longValue(0);
-                    if ((int)did != 0) {
-                        continue;
-                    }
-                    ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(1));
-                    if (data != null && cursor.byteBufferValue(1, data.buffer) != 0) {
-                        TLRPC.Message message = (TLRPC.Message)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
-                        if (message == null || message.media == null) {
+            for (int a = 0; a < messages.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                Object[] args = SQLiteDatabase.inListArgs(messages, a);
+                SQLiteCursor cursor = database.queryCached("SELECT uid, data FROM messages WHERE mid IN(" + SQLiteDatabase.inListPlaceholders(args.length) + ")", args);
+                try {
+                    while (cursor.next()) {
+                        long did = cursor.longValue(0);
+                        if ((int)did != 0) {
                             continue;
                         }
-                        if (message.media instanceof TLRPC.TL_messageMediaAudio) {
-                            File file = FileLoader.getPathToAttach(message.media.audio);
-                            if (file != null && file.toString().length() > 0) {
-                                filesToDelete.add(file);
+                        ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(1));
+                        if (data != null && cursor.byteBufferValue(1, data.buffer) != 0) {
+                            TLRPC.Message message = (TLRPC.Message)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                            if (message == null || message.media == null) {
+                                continue;
                             }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
-                            for (TLRPC.PhotoSize photoSize : message.media.photo.sizes) {
-                                File file = FileLoader.getPathToAttach(photoSize);
+                            if (message.media instanceof TLRPC.TL_messageMediaAudio) {
+                                File file = FileLoader.getPathToAttach(message.media.audio);
+                                if (file != null && file.toString().length() > 0) {
+                                    filesToDelete.add(file);
+                                }
+                            } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
+                                for (TLRPC.PhotoSize photoSize : message.media.photo.sizes) {
+                                    File file = FileLoader.getPathToAttach(photoSize);
+                                    if (file != null && file.toString().length() > 0) {
+                                        filesToDelete.add(file);
+                                    }
+                                }
+                            } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
+                                File file = FileLoader.getPathToAttach(message.media.video);
+                                if (file != null && file.toString().length() > 0) {
+                                    filesToDelete.add(file);
+                                }
+                                file = FileLoader.getPathToAttach(message.media.video.thumb);
+                                if (file != null && file.toString().length() > 0) {
+                                    filesToDelete.add(file);
+                                }
+                            } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
+                                File file = FileLoader.getPathToAttach(message.media.document);
+                                if (file != null && file.toString().length() > 0) {
+                                    filesToDelete.add(file);
+                                }
+                                file = FileLoader.getPathToAttach(message.media.document.thumb);
                                 if (file != null && file.toString().length() > 0) {
                                     filesToDelete.add(file);
                                 }
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
-                            File file = FileLoader.getPathToAttach(message.media.video);
-                            if (file != null && file.toString().length() > 0) {
-                                filesToDelete.add(file);
-                            }
-                            file = FileLoader.getPathToAttach(message.media.video.thumb);
-                            if (file != null && file.toString().length() > 0) {
-                                filesToDelete.add(file);
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
-                            File file = FileLoader.getPathToAttach(message.media.document);
-                            if (file != null && file.toString().length() > 0) {
-                                filesToDelete.add(file);
-                            }
-                            file = FileLoader.getPathToAttach(message.media.document.thumb);
-                            if (file != null && file.toString().length() > 0) {
-                                filesToDelete.add(file);
                             }
                         }
+                        buffersStorage.reuseFreeBuffer(data);
                     }
-                    buffersStorage.reuseFreeBuffer(data);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
                 }
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+                cursor.dispose();
             }
-            cursor.dispose();
             FileLoader.getInstance().deleteFiles(filesToDelete);
-            database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE mid IN(%s)", ids)).stepThis().dispose();
-            database.executeFast(String.format(Locale.US, "DELETE FROM messages_seq WHERE mid IN(%s)", ids)).stepThis().dispose();
-            database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE mid IN(%s)", ids)).stepThis().dispose();
+            for (int a = 0; a < messages.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                Object[] args = SQLiteDatabase.inListArgs(messages, a);
+                String placeholders = SQLiteDatabase.inListPlaceholders(args.length);
+                database.executeCached("DELETE FROM messages WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+                database.executeCached("DELETE FROM messages_seq WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+                database.executeCached("DELETE FROM media_v2 WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+                database.executeCached("DELETE FROM messages_search_v2 WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+            }
             database.executeFast("DELETE FROM media_counts_v2 WHERE 1").stepThis().dispose();
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
     }
 
+    /**
+     * Drops cached copies of old messages for MessagesRetention. Unlike markMessagesAsDeletedInternal
+     * the messages still exist on the server, so media files and media_counts_v2 are left alone.
+     */
+    void deleteTrimmedMessagesInternal(long did, final ArrayList<Integer> messages) throws Exception {
+        touchDialog(did);
+        for (int a = 0; a < messages.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+            Object[] args = SQLiteDatabase.inListArgs(messages, a);
+            String placeholders = SQLiteDatabase.inListPlaceholders(args.length);
+            database.executeCached("DELETE FROM messages WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+            database.executeCached("DELETE FROM messages_seq WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+            database.executeCached("DELETE FROM media_v2 WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+            database.executeCached("DELETE FROM messages_search_v2 WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+            database.executeCached("DELETE FROM randoms WHERE mid IN(" + placeholders + ")").bindArgs(args).stepThis().dispose();
+        }
+    }
+
     private void updateDialogsWithDeletedMessagesInternal(final ArrayList<Integer> messages) {
         if (Thread.currentThread().getId() != storageQueue.getId()) {
             throw new RuntimeException("wrong db thread");
         }
+        flushPendingWritesInternal();
         try {
             String ids = TextUtils.join(",", messages);
             SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT did FROM dialogs WHERE last_mid IN(%s)", ids));
@@ -3498,6 +4150,7 @@ public class MessagesStorage {
             }
             cursor.dispose();
             database.beginTransaction();
+            scheduleDialogsSnapshot();
             SQLitePreparedStatement state = database.executeFast("UPDATE dialogs SET last_mid = (SELECT mid FROM messages WHERE uid = ? AND date = (SELECT MAX(date) FROM messages WHERE uid = ? )) WHERE did = ?");
             for (long did : dialogsToUpdate) {
                 state.requery();
@@ -3516,6 +4169,9 @@ public class MessagesStorage {
             ArrayList<Integer> usersToLoad = new ArrayList<>();
             ArrayList<Integer> chatsToLoad = new ArrayList<>();
             ArrayList<Integer> encryptedToLoad = new ArrayList<>();
+            IntHashSet usersSet = new IntHashSet();
+            IntHashSet chatsSet = new IntHashSet();
+            IntHashSet encryptedSet = new IntHashSet();
             cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, m.date FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid WHERE d.did IN(%s)", ids));
             while (cursor.next()) {
                 TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
@@ -3537,16 +4193,16 @@ public class MessagesStorage {
                     }
                     dialogs.messages.add(message);
 
-                    if (!usersToLoad.contains(message.from_id)) {
+                    if (usersSet.add(message.from_id)) {
                         usersToLoad.add(message.from_id);
                     }
                     if (message.action != null && message.action.user_id != 0) {
-                        if (!usersToLoad.contains(message.action.user_id)) {
+                        if (usersSet.add(message.action.user_id)) {
                             usersToLoad.add(message.action.user_id);
                         }
                     }
                     if (message.fwd_from_id != 0) {
-                        if (!usersToLoad.contains(message.fwd_from_id)) {
+                        if (usersSet.add(message.fwd_from_id)) {
                             usersToLoad.add(message.fwd_from_id);
                         }
                     }
@@ -3557,22 +4213,22 @@ public class MessagesStorage {
                 int high_id = (int)(dialog.id >> 32);
                 if (lower_id != 0) {
                     if (high_id == 1) {
-                        if (!chatsToLoad.contains(lower_id)) {
+                        if (chatsSet.add(lower_id)) {
                             chatsToLoad.add(lower_id);
                         }
                     } else {
                         if (lower_id > 0) {
-                            if (!usersToLoad.contains(lower_id)) {
+                            if (usersSet.add(lower_id)) {
                                 usersToLoad.add(lower_id);
                             }
                         } else {
-                            if (!chatsToLoad.contains(-lower_id)) {
+                            if (chatsSet.add(-lower_id)) {
                                 chatsToLoad.add(-lower_id);
                             }
                         }
                     }
                 } else {
-                    if (!encryptedToLoad.contains(high_id)) {
+                    if (encryptedSet.add(high_id)) {
                         encryptedToLoad.add(high_id);
                     }
                 }
@@ -3701,103 +4357,119 @@ public class MessagesStorage {
         });
     }
 
-    public void getDialogs(final int offset, final int serverOffset, final int count) {
-        storageQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
-                ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
-                try {
-                    ArrayList<Integer> usersToLoad = new ArrayList<>();
-                    usersToLoad.add(UserConfig.getClientUserId());
-                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
-                    ArrayList<Integer> encryptedToLoad = new ArrayList<>();
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.date DESC LIMIT %d,%d", offset, count));
-                    while (cursor.next()) {
-                        TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
-                        dialog.id = cursor.longValue(0);
-                        dialog.top_message = cursor.intValue(1);
-                        dialog.unread_count = cursor.intValue(2);
-                        dialog.last_message_date = cursor.intValue(3);
-                        long flags = cursor.longValue(8);
-                        int low_flags = (int)flags;
-                        dialog.notify_settings = new TLRPC.TL_peerNotifySettings();
-                        if ((low_flags & 1) != 0) {
-                            dialog.notify_settings.mute_until = (int)(flags >> 32);
-                            if (dialog.notify_settings.mute_until == 0) {
-                                dialog.notify_settings.mute_until = Integer.MAX_VALUE;
-                            }
-                        }
-                        dialogs.dialogs.add(dialog);
+    private void getDialogsInternal(SQLiteDatabase readDatabase, int offset, int count, TLRPC.messages_Dialogs dialogs, ArrayList<TLRPC.EncryptedChat> encryptedChats) throws Exception {
+        ArrayList<Integer> usersToLoad = new ArrayList<>();
+        usersToLoad.add(UserConfig.getClientUserId());
+        ArrayList<Integer> chatsToLoad = new ArrayList<>();
+        ArrayList<Integer> encryptedToLoad = new ArrayList<>();
+        IntHashSet usersSet = new IntHashSet();
+        usersSet.add(UserConfig.getClientUserId());
+        IntHashSet chatsSet = new IntHashSet();
+        IntHashSet encryptedSet = new IntHashSet();
+        SQLiteCursor cursor = readDatabase.queryCached("SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.date DESC LIMIT ?,?", offset, count);
+        while (cursor.next()) {
+            TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
+            dialog.id = cursor.longValue(0);
+            dialog.top_message = cursor.intValue(1);
+            dialog.unread_count = cursor.intValue(2);
+            dialog.last_message_date = cursor.intValue(3);
+            long flags = cursor.longValue(8);
+            int low_flags = (int)flags;
+            dialog.notify_settings = new TLRPC.TL_peerNotifySettings();
+            if ((low_flags & 1) != 0) {
+                dialog.notify_settings.mute_until = (int)(flags >> 32);
+                if (dialog.notify_settings.mute_until == 0) {
+                    dialog.notify_settings.mute_until = Integer.MAX_VALUE;
+                }
+            }
+            dialogs.dialogs.add(dialog);
 
-                        ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(4));
-                        if (data != null && cursor.byteBufferValue(4, data.buffer) != 0) {
-                            TLRPC.Message message = (TLRPC.Message)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
-                            if (message != null) {
-                                MessageObject.setIsUnread(message, cursor.intValue(5) != 1);
-                                message.id = cursor.intValue(6);
-                                int date = cursor.intValue(9);
-                                if (date != 0) {
-                                    dialog.last_message_date = date;
-                                }
-                                message.send_state = cursor.intValue(7);
-                                dialogs.messages.add(message);
+            ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(4));
+            if (data != null && cursor.byteBufferValue(4, data.buffer) != 0) {
+                TLRPC.Message message = (TLRPC.Message)TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                if (message != null) {
+                    MessageObject.setIsUnread(message, cursor.intValue(5) != 1);
+                    message.id = cursor.intValue(6);
+                    int date = cursor.intValue(9);
+                    if (date != 0) {
+                        dialog.last_message_date = date;
+                    }
+                    message.send_state = cursor.intValue(7);
+                    dialogs.messages.add(message);
 
-                                if (!usersToLoad.contains(message.from_id)) {
-                                    usersToLoad.add(message.from_id);
-                                }
-                                if (message.action != null && message.action.user_id != 0) {
-                                    if (!usersToLoad.contains(message.action.user_id)) {
-                                        usersToLoad.add(message.action.user_id);
-                                    }
-                                }
-                                if (message.fwd_from_id != 0) {
-                                    if (!usersToLoad.contains(message.fwd_from_id)) {
-                                        usersToLoad.add(message.fwd_from_id);
-                                    }
-                                }
-                            }
+                    if (usersSet.add(message.from_id)) {
+                        usersToLoad.add(message.from_id);
+                    }
+                    if (message.action != null && message.action.user_id != 0) {
+                        if (usersSet.add(message.action.user_id)) {
+                            usersToLoad.add(message.action.user_id);
                         }
-                        buffersStorage.reuseFreeBuffer(data);
-
-                        int lower_id = (int)dialog.id;
-                        int high_id = (int)(dialog.id >> 32);
-                        if (lower_id != 0) {
-                            if (high_id == 1) {
-                                if (!chatsToLoad.contains(lower_id)) {
-                                    chatsToLoad.add(lower_id);
-                                }
-                            } else {
-                                if (lower_id > 0) {
-                                    if (!usersToLoad.contains(lower_id)) {
-                                        usersToLoad.add(lower_id);
-                                    }
-                                } else {
-                                    if (!chatsToLoad.contains(-lower_id)) {
-                                        chatsToLoad.add(-lower_id);
-                                    }
-                                }
-                            }
-                        } else {
-                            if (!encryptedToLoad.contains(high_id)) {
-                                encryptedToLoad.add(high_id);
-                            }
+                    }
+                    if (message.fwd_from_id != 0) {
+                        if (usersSet.add(message.fwd_from_id)) {
+                            usersToLoad.add(message.fwd_from_id);
                         }
                     }
-                    cursor.dispose();
+                }
+            }
+            buffersStorage.reuseFreeBuffer(data);
 
-                    if (!encryptedToLoad.isEmpty()) {
-                        getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+            int lower_id = (int)dialog.id;
+            int high_id = (int)(dialog.id >> 32);
+            if (lower_id != 0) {
+                if (high_id == 1) {
+                    if (chatsSet.add(lower_id)) {
+                        chatsToLoad.add(lower_id);
                     }
-
-                    if (!chatsToLoad.isEmpty()) {
-                        getChatsInternal(TextUtils.join(",", chatsToLoad), dialogs.chats);
+                } else {
+                    if (lower_id > 0) {
+                        if (usersSet.add(lower_id)) {
+                            usersToLoad.add(lower_id);
+                        }
+                    } else {
+                        if (chatsSet.add(-lower_id)) {
+                            chatsToLoad.add(-lower_id);
+                        }
                     }
+                }
+            } else {
+                if (encryptedSet.add(high_id)) {
+                    encryptedToLoad.add(high_id);
+                }
+            }
+        }
+        cursor.dispose();
 
-                    if (!usersToLoad.isEmpty()) {
-                        getUsersInternal(TextUtils.join(",", usersToLoad), dialogs.users);
-                    }
+        if (!encryptedToLoad.isEmpty()) {
+            getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+        }
+
+        if (!chatsToLoad.isEmpty()) {
+            getChatsInternal(chatsToLoad, dialogs.chats);
+        }
+
+        if (!usersToLoad.isEmpty()) {
+            getUsersInternal(usersToLoad, dialogs.users);
+        }
+    }
+
+    public void getDialogs(final int offset, final int serverOffset, final int count) {
+        readSnapshotAfterPendingWrites(new Runnable() {
+            @Override
+            public void run() {
+                TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
+                ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
+                try {
+                    getDialogsInternal(getReadDatabase(), offset, count, dialogs, encryptedChats);
                     MessagesController.getInstance().processLoadedDialogs(dialogs, encryptedChats, offset, serverOffset, count, true, false);
+                    if (offset == 0) {
+                        storageQueue.postRunnable(new Runnable() {
+                            @Override
+                            public void run() {
+                                scheduleDialogsSnapshot();
+                            }
+                        });
+                    }
                 } catch (Exception e) {
                     dialogs.dialogs.clear();
                     dialogs.users.clear();
@@ -3815,6 +4487,36 @@ public class MessagesStorage {
         });
     }
 
+    /**
+     * Rewrites the dialogs snapshot shortly after the dialogs table changed. Several changes in a row
+     * produce one rewrite, which reads through the read pool so it does not block the storage queue.
+     */
+    private void scheduleDialogsSnapshot() {
+        if (dialogsSnapshotRunnable != null) {
+            return;
+        }
+        dialogsSnapshotRunnable = new Runnable() {
+            @Override
+            public void run() {
+                dialogsSnapshotRunnable = null;
+                flushPendingWritesInternal();
+                readSnapshot(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
+                            getDialogsInternal(getReadDatabase(), 0, DialogsSnapshot.MAX_DIALOGS, dialogs, new ArrayList<TLRPC.EncryptedChat>());
+                            DialogsSnapshot.write(dialogs);
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
+                        }
+                    }
+                });
+            }
+        };
+        storageQueue.postRunnable(dialogsSnapshotRunnable, DIALOGS_SNAPSHOT_DELAY);
+    }
+
     public void putDialogs(final TLRPC.messages_Dialogs dialogs) {
         if (dialogs.dialogs.isEmpty()) {
             return;
@@ -3830,6 +4532,7 @@ public class MessagesStorage {
                     }
 
                     if (!dialogs.dialogs.isEmpty()) {
+                        scheduleDialogsSnapshot();
                         SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
                         SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid) VALUES(?, ?, ?, ?)");
                         SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
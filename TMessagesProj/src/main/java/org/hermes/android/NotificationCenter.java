@@ -8,8 +8,16 @@
 
 package org.hermes.android;
 
+import android.os.Build;
+import android.os.Looper;
+import android.view.Choreographer;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class NotificationCenter {
 
@@ -31,6 +39,7 @@ public class NotificationCenter {
     public static final int chatInfoDidLoaded = totalEvents++;
     public static final int mediaDidLoaded = totalEvents++;
     public static final int mediaCountDidLoaded = totalEvents++;
+    public static final int messagesSearchDidLoaded = totalEvents++;
     public static final int encryptedChatUpdated = totalEvents++;
     public static final int messagesReadedEncrypted = totalEvents++;
     public static final int encryptedChatCreated = totalEvents++;
@@ -91,12 +100,46 @@ public class NotificationCenter {
     public static final int audioDidStarted = totalEvents++;
     public static final int audioRouteChanged = totalEvents++;
 
-    final private HashMap<Integer, ArrayList<Object>> observers = new HashMap<>();
+    private static final int NOT_COALESCED = -2;
+    private static final int NO_KEY = -1;
+    private static final int FRAME_DELAY = 16;
+
+    private static class PendingNotification {
+        final int id;
+        final Object key;
+        Object[] args;
 
-    final private HashMap<Integer, Object> removeAfterBroadcast = new HashMap<>();
-    final private HashMap<Integer, Object> addAfterBroadcast = new HashMap<>();
+        PendingNotification(int id, Object key, Object[] args) {
+            this.id = id;
+            this.key = key;
+            this.args = args;
+        }
+    }
 
-    private int broadcasting = 0;
+    final private Object observersLock = new Object();
+    final private AtomicReferenceArray<Object[]> observers = new AtomicReferenceArray<>(totalEvents);
+
+    final private int[] coalesceKeys = new int[totalEvents];
+    final private ArrayList<PendingNotification> pending = new ArrayList<>();
+    private boolean frameScheduled;
+
+    final private AtomicLongArray dispatchCounts = new AtomicLongArray(totalEvents);
+    final private AtomicLongArray dispatchTimes = new AtomicLongArray(totalEvents);
+    final private AtomicLongArray coalescedCounts = new AtomicLongArray(totalEvents);
+
+    private Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    private Runnable scheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduleFrame();
+        }
+    };
 
     private static volatile NotificationCenter Instance = null;
     public static NotificationCenter getInstance() {
@@ -116,62 +159,161 @@ public class NotificationCenter {
         void didReceivedNotification(int id, Object... args);
     }
 
+    public NotificationCenter() {
+        Arrays.fill(coalesceKeys, NOT_COALESCED);
+        coalesceKeys[updateInterfaces] = NO_KEY;
+        coalesceKeys[messagesRead] = NO_KEY;
+        coalesceKeys[FileLoadProgressChanged] = 0;
+        coalesceKeys[FileUploadProgressChanged] = 0;
+        coalesceKeys[audioProgressDidChanged] = 0;
+    }
+
+    /**
+     * High frequency events (load progress, interface updates, read marks) are not delivered right
+     * away: posts made within a frame are merged per event id and key argument and delivered once on
+     * the next frame, everything else is delivered synchronously on the calling thread.
+     */
     public void postNotificationName(int id, Object... args) {
-        synchronized (observers) {
-            broadcasting++;
-            ArrayList<Object> objects = observers.get(id);
-            if (objects != null) {
-                for (Object obj : objects) {
-                    ((NotificationCenterDelegate)obj).didReceivedNotification(id, args);
+        if (coalesceKeys[id] != NOT_COALESCED) {
+            enqueue(id, args);
+        } else {
+            dispatch(id, args);
+        }
+    }
+
+    private void dispatch(int id, Object[] args) {
+        Object[] objects = observers.get(id);
+        if (objects == null) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        for (Object obj : objects) {
+            ((NotificationCenterDelegate)obj).didReceivedNotification(id, args);
+        }
+        dispatchCounts.incrementAndGet(id);
+        dispatchTimes.addAndGet(id, System.nanoTime() - startTime);
+    }
+
+    private void enqueue(int id, Object[] args) {
+        int keyIndex = coalesceKeys[id];
+        Object key = keyIndex >= 0 && keyIndex < args.length ? args[keyIndex] : null;
+        synchronized (pending) {
+            for (PendingNotification notification : pending) {
+                if (notification.id == id && (key == null ? notification.key == null : key.equals(notification.key))) {
+                    notification.args = merge(id, notification.args, args);
+                    coalescedCounts.incrementAndGet(id);
+                    return;
                 }
             }
-            broadcasting--;
-            if (broadcasting == 0) {
-                if (!removeAfterBroadcast.isEmpty()) {
-                    for (HashMap.Entry<Integer, Object> entry : removeAfterBroadcast.entrySet()) {
-                        removeObserver(entry.getValue(), entry.getKey());
-                    }
-                    removeAfterBroadcast.clear();
-                }
-                if (!addAfterBroadcast.isEmpty()) {
-                    for (HashMap.Entry<Integer, Object> entry : addAfterBroadcast.entrySet()) {
-                        addObserver(entry.getValue(), entry.getKey());
-                    }
-                    addAfterBroadcast.clear();
-                }
+            pending.add(new PendingNotification(id, key, args));
+            if (frameScheduled) {
+                return;
             }
+            frameScheduled = true;
         }
+        scheduleFrame();
     }
 
-    public void addObserver(Object observer, int id) {
-        synchronized (observers) {
-            if (broadcasting != 0) {
-                addAfterBroadcast.put(id, observer);
+    private Object[] merge(int id, Object[] oldArgs, Object[] newArgs) {
+        if (id == updateInterfaces) {
+            return new Object[] {(Integer) oldArgs[0] | (Integer) newArgs[0]};
+        } else if (id == messagesRead) {
+            return new Object[] {mergeMaxIds(oldArgs[0], newArgs[0]), mergeMaxIds(oldArgs[1], newArgs[1])};
+        }
+        return newArgs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private HashMap<Object, Integer> mergeMaxIds(Object oldMap, Object newMap) {
+        HashMap<Object, Integer> result = new HashMap<>((HashMap<Object, Integer>) oldMap);
+        for (HashMap.Entry<Object, Integer> entry : ((HashMap<Object, Integer>) newMap).entrySet()) {
+            Integer value = result.get(entry.getKey());
+            if (value == null || value < entry.getValue()) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private void scheduleFrame() {
+        if (Build.VERSION.SDK_INT >= 16) {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                AndroidUtilities.runOnUIThread(scheduleFrameRunnable);
                 return;
             }
-            ArrayList<Object> objects = observers.get(id);
-            if (objects == null) {
-                observers.put(id, (objects = new ArrayList<>()));
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    flushPending();
+                }
+            });
+        } else {
+            AndroidUtilities.runOnUIThread(flushRunnable, FRAME_DELAY);
+        }
+    }
+
+    private void flushPending() {
+        ArrayList<PendingNotification> notifications;
+        synchronized (pending) {
+            notifications = new ArrayList<>(pending);
+            pending.clear();
+            frameScheduled = false;
+        }
+        for (PendingNotification notification : notifications) {
+            dispatch(notification.id, notification.args);
+        }
+    }
+
+    public String getDispatchStats() {
+        StringBuilder builder = new StringBuilder();
+        for (int a = 1; a < totalEvents; a++) {
+            long count = dispatchCounts.get(a);
+            if (count == 0) {
+                continue;
             }
-            if (objects.contains(observer)) {
+            builder.append(String.format(Locale.US, "event %d: dispatched=%d coalesced=%d time=%.2fms\n", a, count, coalescedCounts.get(a), dispatchTimes.get(a) / 1000000.0));
+        }
+        return builder.toString();
+    }
+
+    public void addObserver(Object observer, int id) {
+        synchronized (observersLock) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
+                observers.set(id, new Object[] {observer});
                 return;
             }
-            objects.add(observer);
+            for (Object obj : objects) {
+                if (obj == observer) {
+                    return;
+                }
+            }
+            Object[] newObjects = new Object[objects.length + 1];
+            System.arraycopy(objects, 0, newObjects, 0, objects.length);
+            newObjects[objects.length] = observer;
+            observers.set(id, newObjects);
         }
     }
 
     public void removeObserver(Object observer, int id) {
-        synchronized (observers) {
-            if (broadcasting != 0) {
-                removeAfterBroadcast.put(id, observer);
+        synchronized (observersLock) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
                 return;
             }
-            ArrayList<Object> objects = observers.get(id);
-            if (objects != null) {
-                objects.remove(observer);
-                if (objects.size() == 0) {
-                    observers.remove(id);
+            for (int a = 0; a < objects.length; a++) {
+                if (objects[a] != observer) {
+                    continue;
+                }
+                if (objects.length == 1) {
+                    observers.set(id, null);
+                } else {
+                    Object[] newObjects = new Object[objects.length - 1];
+                    System.arraycopy(objects, 0, newObjects, 0, a);
+                    System.arraycopy(objects, a + 1, newObjects, a, objects.length - a - 1);
+                    observers.set(id, newObjects);
                 }
+                return;
             }
         }
     }
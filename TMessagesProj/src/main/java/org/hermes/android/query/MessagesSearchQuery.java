@@ -0,0 +1,315 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.android.query;
+
+import org.hermes.SQLite.SQLiteCursor;
+import org.hermes.SQLite.SQLiteDatabase;
+import org.hermes.SQLite.SQLitePreparedStatement;
+import org.hermes.android.AndroidUtilities;
+import org.hermes.android.LocaleController;
+import org.hermes.android.MessageObject;
+import org.hermes.android.MessagesController;
+import org.hermes.android.MessagesStorage;
+import org.hermes.android.NotificationCenter;
+import org.hermes.messenger.ByteBufferDesc;
+import org.hermes.messenger.FileLog;
+import org.hermes.messenger.IntHashSet;
+import org.hermes.messenger.TLClassStore;
+import org.hermes.messenger.TLRPC;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Local message search over messages_search_v2, a plain token table: one row per distinct word of a
+ * message and per prefix of up to MAX_PREFIX_LENGTH characters of its longer words. The primary key
+ * (token, mid) keeps the rows of a token in mid order, so a query reads its newest matches straight
+ * from the index however many messages there are, and (mid, token) answers the check of the other
+ * words of the query and the deletes.
+ */
+public class MessagesSearchQuery {
+
+    private static final String INDEX_PROGRESS_KEY = "search_index_mid";
+    private static final String INDEX_PROGRESS_DONE = "done";
+    private static final int INDEX_BATCH_SIZE = 200;
+    private static final int INDEX_BATCH_DELAY = 50;
+    private static final int MAX_PREFIX_LENGTH = 3;
+    // sorts after every character a token can hold, normalize turns anything else into a separator
+    private static final char TOKEN_RANGE_END = '\uffff';
+
+    private static volatile boolean indexBackfillRunning = false;
+
+    /**
+     * Normalizes message text for the search index: letters and digits are lower cased,
+     * everything else becomes a token separator. The transliterated form is appended when it
+     * differs, so latin queries match cyrillic text and the other way round.
+     */
+    public static String getSearchText(String text) {
+        if (text == null || text.length() == 0) {
+            return null;
+        }
+        String normalized = normalize(text);
+        if (normalized.trim().length() == 0) {
+            return null;
+        }
+        String translit = normalize(LocaleController.getInstance().getTranslitString(normalized));
+        if (!translit.equals(normalized)) {
+            normalized = normalized + " " + translit;
+        }
+        return normalized;
+    }
+
+    private static String normalize(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int a = 0; a < text.length(); a++) {
+            char ch = text.charAt(a);
+            if (Character.isLetterOrDigit(ch)) {
+                builder.append(Character.toLowerCase(ch));
+            } else {
+                builder.append(' ');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the rows to index for the text: every word and the prefixes of the longer ones.
+     */
+    public static HashSet<String> getSearchTokens(String text) {
+        HashSet<String> tokens = new HashSet<>();
+        String searchText = getSearchText(text);
+        if (searchText == null) {
+            return tokens;
+        }
+        for (String token : searchText.split(" ")) {
+            if (token.length() == 0) {
+                continue;
+            }
+            tokens.add(token);
+            for (int a = 1; a <= MAX_PREFIX_LENGTH && a < token.length(); a++) {
+                tokens.add(token.substring(0, a));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the distinct words of the query, longest first: the longest is the most selective
+     * and drives the lookup.
+     */
+    private static ArrayList<String> getQueryTokens(String query) {
+        ArrayList<String> tokens = new ArrayList<>();
+        for (String token : normalize(query).split(" ")) {
+            if (token.length() != 0 && !tokens.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        Collections.sort(tokens, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return rhs.length() - lhs.length();
+            }
+        });
+        return tokens;
+    }
+
+    /**
+     * Searches locally stored messages. Every word of the query matches as a prefix. Results come
+     * newest first, count per page; pass the id of the last loaded message as max_id for the next page
+     * and dialog_id 0 to search in all chats. The result is posted as messagesSearchDidLoaded.
+     */
+    public static void searchMessages(final String query, final long dialog_id, final int max_id, final int count, final int classGuid) {
+        final ArrayList<String> tokens = query != null ? getQueryTokens(query) : null;
+        if (tokens == null || tokens.isEmpty()) {
+            NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesSearchDidLoaded, query, dialog_id, new ArrayList<MessageObject>(), true, classGuid);
+            return;
+        }
+        MessagesStorage.getInstance().readSnapshot(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<TLRPC.Message> messages = new ArrayList<>();
+                final ArrayList<TLRPC.User> users = new ArrayList<>();
+                try {
+                    SQLiteDatabase database = MessagesStorage.getInstance().getReadDatabase();
+                    ArrayList<Object> args = new ArrayList<>();
+                    StringBuilder sql = new StringBuilder("SELECT m.data, m.mid, m.uid, m.send_state, m.date FROM messages_search_v2 AS s INNER JOIN messages AS m ON m.mid = s.mid WHERE s.token = ? AND s.mid < ?");
+                    String first = tokens.get(0);
+                    args.add(first.length() > MAX_PREFIX_LENGTH ? first.substring(0, MAX_PREFIX_LENGTH) : first);
+                    args.add(max_id != 0 ? max_id : Integer.MAX_VALUE);
+                    if (dialog_id != 0) {
+                        sql.append(" AND s.uid = ?");
+                        args.add(dialog_id);
+                    }
+                    for (int a = 0; a < tokens.size(); a++) {
+                        String token = tokens.get(a);
+                        if (token.length() > MAX_PREFIX_LENGTH) {
+                            sql.append(" AND EXISTS(SELECT 1 FROM messages_search_v2 WHERE mid = s.mid AND token >= ? AND token < ?)");
+                            args.add(token);
+                            args.add(token + TOKEN_RANGE_END);
+                        } else if (a != 0) {
+                            sql.append(" AND EXISTS(SELECT 1 FROM messages_search_v2 WHERE mid = s.mid AND token = ?)");
+                            args.add(token);
+                        }
+                    }
+                    sql.append(" ORDER BY s.mid DESC LIMIT ?");
+                    args.add(count);
+                    SQLiteCursor cursor = database.queryCached(sql.toString(), args.toArray());
+                    ArrayList<Integer> usersToLoad = new ArrayList<>();
+                    IntHashSet usersSet = new IntHashSet();
+                    while (cursor.next()) {
+                        ByteBufferDesc data = MessagesStorage.getInstance().getBuffersStorage().getFreeBuffer(cursor.byteArrayLength(0));
+                        if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
+                            TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                            if (message != null) {
+                                message.id = cursor.intValue(1);
+                                message.dialog_id = cursor.longValue(2);
+                                message.send_state = cursor.intValue(3);
+                                message.date = cursor.intValue(4);
+                                messages.add(message);
+                                if (usersSet.add(message.from_id)) {
+                                    usersToLoad.add(message.from_id);
+                                }
+                            }
+                        }
+                        MessagesStorage.getInstance().getBuffersStorage().reuseFreeBuffer(data);
+                    }
+                    cursor.dispose();
+                    MessagesStorage.getInstance().getUsersInternal(usersToLoad, users);
+                } catch (Exception e) {
+                    messages.clear();
+                    users.clear();
+                    FileLog.e("tmessages", e);
+                }
+
+                HashMap<Integer, TLRPC.User> usersLocal = new HashMap<>();
+                for (TLRPC.User user : users) {
+                    usersLocal.put(user.id, user);
+                }
+                final ArrayList<MessageObject> objects = new ArrayList<>();
+                for (TLRPC.Message message : messages) {
+                    objects.add(new MessageObject(message, usersLocal, false));
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        MessagesController.getInstance().putUsers(users, true);
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesSearchDidLoaded, query, dialog_id, objects, messages.size() < count, classGuid);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Indexes messages stored before the search table existed. Works from the newest message down in
+     * small transactions on the storage queue, so it does not hold up other writes, and resumes from
+     * the saved position after a restart.
+     */
+    public static void startIndexBackfill() {
+        if (indexBackfillRunning) {
+            return;
+        }
+        indexBackfillRunning = true;
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!indexBackfillRunning) {
+                    indexBackfillRunning = false;
+                    return;
+                }
+                if (!indexBackfillStep()) {
+                    indexBackfillRunning = false;
+                    return;
+                }
+                MessagesStorage.getInstance().getStorageQueue().postRunnable(this, INDEX_BATCH_DELAY);
+            }
+        });
+    }
+
+    public static void stopIndexBackfill() {
+        indexBackfillRunning = false;
+    }
+
+    private static boolean indexBackfillStep() {
+        SQLiteDatabase database = MessagesStorage.getInstance().getDatabase();
+        if (database == null) {
+            return false;
+        }
+        try {
+            int lastMid = Integer.MAX_VALUE;
+            SQLiteCursor cursor = database.queryCached("SELECT value FROM keyvalue WHERE id = ?", INDEX_PROGRESS_KEY);
+            if (cursor.next()) {
+                String value = cursor.stringValue(0);
+                if (INDEX_PROGRESS_DONE.equals(value)) {
+                    cursor.dispose();
+                    return false;
+                }
+                lastMid = Integer.parseInt(value);
+            }
+            cursor.dispose();
+
+            database.beginTransaction();
+            int count = 0;
+            cursor = database.queryCached("SELECT mid, uid, data FROM messages WHERE mid < ? ORDER BY mid DESC LIMIT ?", lastMid, INDEX_BATCH_SIZE);
+            while (cursor.next()) {
+                lastMid = cursor.intValue(0);
+                count++;
+                ByteBufferDesc data = MessagesStorage.getInstance().getBuffersStorage().getFreeBuffer(cursor.byteArrayLength(2));
+                if (data != null && cursor.byteBufferValue(2, data.buffer) != 0) {
+                    TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                    if (message != null) {
+                        putSearchTextInternal(database, lastMid, cursor.longValue(1), message.message);
+                    }
+                }
+                MessagesStorage.getInstance().getBuffersStorage().reuseFreeBuffer(data);
+            }
+            cursor.dispose();
+
+            SQLitePreparedStatement state = database.executeCached("REPLACE INTO keyvalue VALUES(?, ?)");
+            state.requery();
+            state.bindString(1, INDEX_PROGRESS_KEY);
+            state.bindString(2, count < INDEX_BATCH_SIZE ? INDEX_PROGRESS_DONE : Integer.toString(lastMid));
+            state.step();
+            state.dispose();
+            database.commitTransaction();
+            return count == INDEX_BATCH_SIZE;
+        } catch (Exception e) {
+            database.commitTransaction();
+            FileLog.e("tmessages", e);
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the indexed text of the message. Must be called on the storage queue, never fails the
+     * write of the message itself.
+     */
+    public static void putSearchTextInternal(SQLiteDatabase database, int mid, long uid, String text) {
+        try {
+            database.executeCached("DELETE FROM messages_search_v2 WHERE mid = ?").bindArgs(new Object[] {mid}).stepThis().dispose();
+            HashSet<String> tokens = getSearchTokens(text);
+            if (!tokens.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached("INSERT OR IGNORE INTO messages_search_v2 VALUES(?, ?, ?)");
+                for (String token : tokens) {
+                    state.requery();
+                    state.bindString(1, token);
+                    state.bindInteger(2, mid);
+                    state.bindLong(3, uid);
+                    state.step();
+                }
+                state.dispose();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.hermes.android.NotificationCenter;
 import org.hermes.messenger.ByteBufferDesc;
 import org.hermes.messenger.ConnectionsManager;
 import org.hermes.messenger.FileLog;
+import org.hermes.messenger.IntHashSet;
 import org.hermes.messenger.RPCRequest;
 import org.hermes.messenger.TLClassStore;
 import org.hermes.messenger.TLObject;
@@ -58,7 +59,7 @@ public class ReplyMessageQuery {
                 try {
                     final ArrayList<TLRPC.Message> result = new ArrayList<>();
                     final ArrayList<TLRPC.User> users = new ArrayList<>();
-                    ArrayList<Integer> loadedUsers = new ArrayList<>();
+                    IntHashSet loadedUsers = new IntHashSet();
                     ArrayList<Integer> fromUser = new ArrayList<>();
 
                     SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", TextUtils.join(",", replyMessages)));
@@ -91,12 +92,11 @@ public class ReplyMessageQuery {
 
                     StringBuilder usersToLoad = new StringBuilder();
                     for (int uid : fromUser) {
-                        if (!loadedUsers.contains(uid)) {
+                        if (loadedUsers.add(uid)) {
                             if (usersToLoad.length() != 0) {
                                 usersToLoad.append(",");
                             }
                             usersToLoad.append(uid);
-                            loadedUsers.add(uid);
                         }
                     }
                     if (usersToLoad.length() != 0) {
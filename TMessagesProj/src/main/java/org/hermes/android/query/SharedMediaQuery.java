@@ -19,6 +19,7 @@ import org.hermes.android.NotificationCenter;
 import org.hermes.messenger.ByteBufferDesc;
 import org.hermes.messenger.ConnectionsManager;
 import org.hermes.messenger.FileLog;
+import org.hermes.messenger.IntHashSet;
 import org.hermes.messenger.RPCRequest;
 import org.hermes.messenger.TLClassStore;
 import org.hermes.messenger.TLObject;
@@ -297,27 +298,27 @@ public class SharedMediaQuery {
     }
 
     private static void loadMediaDatabase(final long uid, final int offset, final int count, final int max_id, final int type, final int classGuid) {
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        MessagesStorage.getInstance().readSnapshot(new Runnable() {
             @Override
             public void run() {
                 TLRPC.TL_messages_messages res = new TLRPC.TL_messages_messages();
                 try {
-                    ArrayList<Integer> loadedUsers = new ArrayList<>();
+                    IntHashSet loadedUsers = new IntHashSet();
                     ArrayList<Integer> fromUser = new ArrayList<>();
 
                     SQLiteCursor cursor;
 
                     if ((int)uid != 0) {
                         if (max_id != 0) {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, max_id, type, count));
+                            cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, max_id, type, count));
                         } else {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, type, offset, count));
+                            cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, type, offset, count));
                         }
                     } else {
                         if (max_id != 0) {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d AND type = %d ORDER BY m.mid ASC LIMIT %d", uid, max_id, type, count));
+                            cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d AND type = %d ORDER BY m.mid ASC LIMIT %d", uid, max_id, type, count));
                         } else {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND type = %d ORDER BY m.mid ASC LIMIT %d,%d", uid, type, offset, count));
+                            cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND type = %d ORDER BY m.mid ASC LIMIT %d,%d", uid, type, offset, count));
                         }
                     }
 
@@ -339,12 +340,11 @@ public class SharedMediaQuery {
 
                     StringBuilder usersToLoad = new StringBuilder();
                     for (int uid : fromUser) {
-                        if (!loadedUsers.contains(uid)) {
+                        if (loadedUsers.add(uid)) {
                             if (usersToLoad.length() != 0) {
                                 usersToLoad.append(",");
                             }
                             usersToLoad.append(uid);
-                            loadedUsers.add(uid);
                         }
                     }
                     if (usersToLoad.length() != 0) {
@@ -32,6 +32,8 @@ import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 
 import org.hermes.android.AndroidUtilities;
+import org.hermes.android.BitmapPool;
+import org.hermes.android.ImageLoader;
 import org.hermes.android.ContactsController;
 import org.hermes.android.MediaController;
 import org.hermes.android.NotificationsService;
@@ -236,6 +238,25 @@ public class ApplicationLoader extends Application {
         }
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        BuffersStorage.getInstance().trim(BuffersStorage.TRIM_LEVEL_COMPLETE);
+        ImageLoader.getInstance().trimMemory(BitmapPool.TRIM_LEVEL_COMPLETE);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            BuffersStorage.getInstance().trim(BuffersStorage.TRIM_LEVEL_COMPLETE);
+            ImageLoader.getInstance().trimMemory(BitmapPool.TRIM_LEVEL_COMPLETE);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            BuffersStorage.getInstance().trim(BuffersStorage.TRIM_LEVEL_BACKGROUND);
+            ImageLoader.getInstance().trimMemory(BitmapPool.TRIM_LEVEL_BACKGROUND);
+        }
+    }
+
     private void initPlayServices() {
         if (checkPlayServices()) {
             gcm = GoogleCloudMessaging.getInstance(this);
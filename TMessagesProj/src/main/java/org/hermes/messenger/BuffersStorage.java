@@ -8,18 +8,55 @@
 
 package org.hermes.messenger;
 
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BuffersStorage {
 
-    private final ArrayList<ByteBufferDesc> freeBuffers128;
-    private final ArrayList<ByteBufferDesc> freeBuffers1024;
-    private final ArrayList<ByteBufferDesc> freeBuffers4096;
-    private final ArrayList<ByteBufferDesc> freeBuffers16384;
-    private final ArrayList<ByteBufferDesc> freeBuffers32768;
-    private final ArrayList<ByteBufferDesc> freeBuffersBig;
-    private boolean isThreadSafe;
-    private final static Object sync = new Object();
+    // the two largest classes hold file parts up to 256 KB and 512 KB together with the headers of
+    // the encrypted packet and of upload.file / upload.saveBigFilePart around them; an upload of a
+    // big file keeps four parts in flight, each as the read part and as its serialized packet
+    public static final int[] DEFAULT_SIZE_CLASSES = new int[] {128, 1024 + 200, 4096 + 200, 16384 + 200, 40000, 280000, 1024 * 512 + 4096};
+    public static final int[] DEFAULT_SOFT_CAPS = new int[] {10, 10, 10, 10, 10, 10, 8};
+
+    public static final int TRIM_LEVEL_BACKGROUND = 1;
+    public static final int TRIM_LEVEL_COMPLETE = 2;
+
+    private static class SizeClass {
+        final int byteCount;
+        volatile int softCap;
+        final ConcurrentLinkedQueue<ByteBufferDesc> freeBuffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger freeCount = new AtomicInteger();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong drops = new AtomicLong();
+
+        SizeClass(int byteCount, int softCap) {
+            this.byteCount = byteCount;
+            this.softCap = softCap;
+        }
+
+        ByteBufferDesc poll() {
+            ByteBufferDesc buffer = freeBuffers.poll();
+            if (buffer != null) {
+                freeCount.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        boolean offer(ByteBufferDesc buffer) {
+            if (freeCount.incrementAndGet() > softCap) {
+                freeCount.decrementAndGet();
+                return false;
+            }
+            freeBuffers.offer(buffer);
+            return true;
+        }
+    }
+
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong oversizedAllocations = new AtomicLong();
 
     private static volatile BuffersStorage Instance = null;
     public static BuffersStorage getInstance() {
@@ -28,75 +65,71 @@ public class BuffersStorage {
             synchronized (BuffersStorage.class) {
                 localInstance = Instance;
                 if (localInstance == null) {
-                    Instance = localInstance = new BuffersStorage(true);
+                    Instance = localInstance = new BuffersStorage();
                 }
             }
         }
         return localInstance;
     }
 
-    public BuffersStorage(boolean threadSafe) {
-        isThreadSafe = threadSafe;
-        freeBuffers128 = new ArrayList<ByteBufferDesc>();
-        freeBuffers1024 = new ArrayList<ByteBufferDesc>();
-        freeBuffers4096 = new ArrayList<ByteBufferDesc>();
-        freeBuffers16384 = new ArrayList<ByteBufferDesc>();
-        freeBuffers32768 = new ArrayList<ByteBufferDesc>();
-        freeBuffersBig = new ArrayList<ByteBufferDesc>();
-
+    /**
+     * Creates a pool with the default size classes. Every pool is safe to share between threads.
+     */
+    public BuffersStorage() {
+        this(DEFAULT_SIZE_CLASSES, DEFAULT_SOFT_CAPS);
         for (int a = 0; a < 5; a++) {
-            freeBuffers128.add(new ByteBufferDesc(128));
+            reuseFreeBuffer(new ByteBufferDesc(sizeClasses[0].byteCount));
         }
     }
 
-    public ByteBufferDesc getFreeBuffer(int size) {
-        if (size <= 0) {
-            return null;
+    public BuffersStorage(int[] sizes, int[] softCaps) {
+        if (sizes.length != softCaps.length) {
+            throw new IllegalArgumentException("sizes and caps differ in length");
         }
-        int byteCount = 0;
-        ArrayList<ByteBufferDesc> arrayToGetFrom = null;
-        ByteBufferDesc buffer = null;
-        if (size <= 128) {
-            arrayToGetFrom = freeBuffers128;
-            byteCount = 128;
-        } else if (size <= 1024 + 200) {
-            arrayToGetFrom = freeBuffers1024;
-            byteCount = 1024 + 200;
-        } else if (size <= 4096 + 200) {
-            arrayToGetFrom = freeBuffers4096;
-            byteCount = 4096 + 200;
-        } else if (size <= 16384 + 200) {
-            arrayToGetFrom = freeBuffers16384;
-            byteCount = 16384 + 200;
-        } else if (size <= 40000) {
-            arrayToGetFrom = freeBuffers32768;
-            byteCount = 40000;
-        } else if (size <= 280000) {
-            arrayToGetFrom = freeBuffersBig;
-            byteCount = 280000;
-        } else {
-            buffer = new ByteBufferDesc(size);
+        sizeClasses = new SizeClass[sizes.length];
+        for (int a = 0; a < sizes.length; a++) {
+            if (a > 0 && sizes[a] <= sizes[a - 1]) {
+                throw new IllegalArgumentException("size classes must be ascending");
+            }
+            sizeClasses[a] = new SizeClass(sizes[a], softCaps[a]);
         }
+    }
 
-        if (arrayToGetFrom != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToGetFrom.size() > 0) {
-                        buffer = arrayToGetFrom.get(0);
-                        arrayToGetFrom.remove(0);
-                    }
-                }
-            } else {
-                if (arrayToGetFrom.size() > 0) {
-                    buffer = arrayToGetFrom.get(0);
-                    arrayToGetFrom.remove(0);
-                }
+    private SizeClass sizeClassForSize(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.byteCount) {
+                return sizeClass;
             }
+        }
+        return null;
+    }
+
+    private SizeClass sizeClassForCapacity(int capacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (capacity == sizeClass.byteCount) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
 
-            if (buffer == null) {
-                buffer = new ByteBufferDesc(byteCount);
-                FileLog.e("tmessages", "create new " + byteCount + " buffer");
+    public ByteBufferDesc getFreeBuffer(int size) {
+        if (size <= 0) {
+            return null;
+        }
+        ByteBufferDesc buffer;
+        SizeClass sizeClass = sizeClassForSize(size);
+        if (sizeClass != null) {
+            buffer = sizeClass.poll();
+            if (buffer != null) {
+                sizeClass.hits.incrementAndGet();
+            } else {
+                sizeClass.misses.incrementAndGet();
+                buffer = new ByteBufferDesc(sizeClass.byteCount);
             }
+        } else {
+            oversizedAllocations.incrementAndGet();
+            buffer = new ByteBufferDesc(size);
         }
 
         buffer.buffer.limit(size).rewind();
@@ -107,36 +140,60 @@ public class BuffersStorage {
         if (buffer == null) {
             return;
         }
-        int maxCount = 10;
-        ArrayList<ByteBufferDesc> arrayToReuse = null;
-        if (buffer.buffer.capacity() == 128) {
-            arrayToReuse = freeBuffers128;
-        } else if (buffer.buffer.capacity() == 1024 + 200) {
-            arrayToReuse = freeBuffers1024;
-        } if (buffer.buffer.capacity() == 4096 + 200) {
-            arrayToReuse = freeBuffers4096;
-        } else if (buffer.buffer.capacity() == 16384 + 200) {
-            arrayToReuse = freeBuffers16384;
-        } else if (buffer.buffer.capacity() == 40000) {
-            arrayToReuse = freeBuffers32768;
-        } else if (buffer.buffer.capacity() == 280000) {
-            arrayToReuse = freeBuffersBig;
-            maxCount = 10;
-        }
-        if (arrayToReuse != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToReuse.size() < maxCount) {
-                        arrayToReuse.add(buffer);
-                    } else {
-                        FileLog.e("tmessages", "too more");
-                    }
-                }
-            } else {
-                if (arrayToReuse.size() < maxCount) {
-                    arrayToReuse.add(buffer);
-                }
+        SizeClass sizeClass = sizeClassForCapacity(buffer.buffer.capacity());
+        if (sizeClass != null && !sizeClass.offer(buffer)) {
+            sizeClass.drops.incrementAndGet();
+        }
+    }
+
+    public void setSoftCap(int sizeClassIndex, int softCap) {
+        sizeClasses[sizeClassIndex].softCap = softCap;
+        trimSizeClass(sizeClasses[sizeClassIndex], softCap);
+    }
+
+    private void trimSizeClass(SizeClass sizeClass, int keep) {
+        while (sizeClass.freeCount.get() > keep) {
+            if (sizeClass.poll() == null) {
+                break;
             }
         }
     }
+
+    public void trim(int level) {
+        for (SizeClass sizeClass : sizeClasses) {
+            trimSizeClass(sizeClass, level >= TRIM_LEVEL_COMPLETE ? 0 : sizeClass.softCap / 2);
+        }
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (SizeClass sizeClass : sizeClasses) {
+            builder.append(sizeClass.byteCount).append(": hits=").append(sizeClass.hits.get())
+                    .append(" misses=").append(sizeClass.misses.get())
+                    .append(" drops=").append(sizeClass.drops.get())
+                    .append(" free=").append(sizeClass.freeCount.get()).append("; ");
+        }
+        builder.append("oversized=").append(oversizedAllocations.get());
+        return builder.toString();
+    }
+
+    public long getHitCount() {
+        long count = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            count += sizeClass.hits.get();
+        }
+        return count;
+    }
+
+    public long getMissCount() {
+        long count = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            count += sizeClass.misses.get();
+        }
+        return count;
+    }
+
+    public long getAllocationCount() {
+        return getMissCount() + oversizedAllocations.get();
+    }
 }
@@ -12,6 +12,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class ByteBufferDesc extends AbsSerializedData {
+    private static final int STRING_BUFFER_SIZE = 4096;
+    private static final ThreadLocal<byte[]> stringBufferLocal = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STRING_BUFFER_SIZE];
+        }
+    };
+
     public ByteBuffer buffer;
     private boolean justCalc = false;
     private int len = 0;
@@ -30,6 +38,11 @@ public class ByteBufferDesc extends AbsSerializedData {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    public ByteBufferDesc(ByteBuffer byteBuffer) {
+        buffer = byteBuffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     public int position() {
         return buffer.position();
     }
@@ -353,14 +366,21 @@ public class ByteBufferDesc extends AbsSerializedData {
                 l = getIntFromByte(buffer.get()) | (getIntFromByte(buffer.get()) << 8) | (getIntFromByte(buffer.get()) << 16);
                 sl = 4;
             }
-            byte[] b = new byte[l];
-            buffer.get(b);
+            String result;
+            if (buffer.hasArray()) {
+                result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), l, "UTF-8");
+                buffer.position(buffer.position() + l);
+            } else {
+                byte[] b = l <= STRING_BUFFER_SIZE ? stringBufferLocal.get() : new byte[l];
+                buffer.get(b, 0, l);
+                result = new String(b, 0, l, "UTF-8");
+            }
             int i = sl;
             while((l + i) % 4 != 0) {
                 buffer.get();
                 i++;
             }
-            return new String(b, "UTF-8");
+            return result;
         } catch (Exception x) {
             FileLog.e("tmessages", "read string error");
         }
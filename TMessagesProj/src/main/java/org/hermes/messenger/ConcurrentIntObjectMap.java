@@ -0,0 +1,134 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+
+/**
+ * Thread safe int to object map made of lock striped IntObjectMap segments. Lookups from the UI,
+ * stage and storage threads only contend when they hit the same segment.
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    private static final int SEGMENTS_COUNT = 16;
+
+    private final IntObjectMap<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntObjectMap(int capacity) {
+        segments = new IntObjectMap[SEGMENTS_COUNT];
+        for (int a = 0; a < SEGMENTS_COUNT; a++) {
+            segments[a] = new IntObjectMap<>(capacity / SEGMENTS_COUNT);
+        }
+    }
+
+    private IntObjectMap<V> segmentFor(int key) {
+        return segments[IntObjectMap.hash(key) >>> 28];
+    }
+
+    public V get(int key) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public boolean containsKey(int key) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    public V put(int key, V value) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public V putIfAbsent(int key, V value) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            V old = segment.get(key);
+            if (old == null) {
+                segment.put(key, value);
+            }
+            return old;
+        }
+    }
+
+    public V remove(int key) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    public boolean remove(int key, V value) {
+        IntObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.get(key) != value) {
+                return false;
+            }
+            segment.remove(key);
+            return true;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (IntObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (IntObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int[] keys() {
+        int[][] parts = new int[SEGMENTS_COUNT][];
+        int count = 0;
+        for (int a = 0; a < SEGMENTS_COUNT; a++) {
+            synchronized (segments[a]) {
+                parts[a] = segments[a].keys();
+            }
+            count += parts[a].length;
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, result, count, part.length);
+            count += part.length;
+        }
+        return result;
+    }
+
+    public ArrayList<V> values() {
+        ArrayList<V> result = new ArrayList<>();
+        for (IntObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                result.addAll(segment.values());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+
+/**
+ * Thread safe long to object map made of lock striped LongObjectMap segments. Lookups from the UI,
+ * stage and storage threads only contend when they hit the same segment.
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final int SEGMENTS_COUNT = 16;
+
+    private final LongObjectMap<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongObjectMap(int capacity) {
+        segments = new LongObjectMap[SEGMENTS_COUNT];
+        for (int a = 0; a < SEGMENTS_COUNT; a++) {
+            segments[a] = new LongObjectMap<>(capacity / SEGMENTS_COUNT);
+        }
+    }
+
+    private LongObjectMap<V> segmentFor(long key) {
+        return segments[LongObjectMap.hash(key) >>> 28];
+    }
+
+    public V get(long key) {
+        LongObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        LongObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    public V put(long key, V value) {
+        LongObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public V remove(long key) {
+        LongObjectMap<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (LongObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public ArrayList<V> values() {
+        ArrayList<V> result = new ArrayList<>();
+        for (LongObjectMap<V> segment : segments) {
+            synchronized (segment) {
+                result.addAll(segment.values());
+            }
+        }
+        return result;
+    }
+}
@@ -21,13 +21,16 @@ import org.hermes.android.AndroidUtilities;
 import org.hermes.android.ContactsController;
 import org.hermes.android.LocaleController;
 import org.hermes.android.MessagesController;
+import org.hermes.android.MessagesStorage;
 import org.hermes.android.NotificationCenter;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,18 +46,35 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     private ConcurrentHashMap<Long, Integer> requestsByClass = new ConcurrentHashMap<>(100, 1.0f, 2);
     private volatile int connectionState = 2;
 
-    private ArrayList<RPCRequest> requestQueue = new ArrayList<>();
-    private ArrayList<RPCRequest> runningRequests = new ArrayList<>();
+    private RequestScheduler requestScheduler = new RequestScheduler();
     private ArrayList<Action> actionQueue = new ArrayList<>();
 
     private ArrayList<Integer> unknownDatacenterIds = new ArrayList<>();
     private ArrayList<Integer> neededDatacenterIds = new ArrayList<>();
     private ArrayList<Integer> unauthorizedDatacenterIds = new ArrayList<>();
-    private final HashMap<Integer, ArrayList<NetworkMessage>> genericMessagesToDatacenters = new HashMap<>();
+    private final HashMap<Integer, GenericBatch> genericMessagesToDatacenters = new HashMap<>();
+    private long genericFlushTime;
+    private volatile int genericBatchDelay = DEFAULT_GENERIC_BATCH_DELAY;
+    private volatile int maxContainerBytes = DEFAULT_MAX_CONTAINER_BYTES;
+    private volatile int maxContainerMessages = DEFAULT_MAX_CONTAINER_MESSAGES;
+
+    private final long statsStartTime = System.currentTimeMillis();
+    private final AtomicLong sentPacketsCount = new AtomicLong();
+    private final AtomicLong sentMessagesCount = new AtomicLong();
+    private final AtomicLong sentContainersCount = new AtomicLong();
 
     private TLRPC.TL_auth_exportedAuthorization movingAuthorization;
     public static final int DEFAULT_DATACENTER_ID = Integer.MAX_VALUE;
     private static final int DC_UPDATE_TIME = 60 * 60;
+    private static final int MAX_RUNNING_GENERIC_REQUESTS = 60;
+    private static final int GENERIC_REQUEST_TIMEOUT = 8;
+    private static final int MEDIA_REQUEST_TIMEOUT = 30;
+    public static final int DEFAULT_GENERIC_BATCH_DELAY = 10;
+    public static final int DEFAULT_MAX_CONTAINER_BYTES = 8 * 1024;
+    public static final int DEFAULT_MAX_CONTAINER_MESSAGES = 64;
+    private static final int MAX_CONTAINER_MESSAGES = 1020;
+    private static final int MAX_RUNNING_DOWNLOAD_REQUESTS = 8 * Datacenter.DOWNLOAD_CONNECTIONS_COUNT;
+    private static final int MAX_RUNNING_UPLOAD_REQUESTS = 4 * Datacenter.UPLOAD_CONNECTIONS_COUNT;
     protected int currentDatacenterId;
     protected int movingToDatacenterId;
     private long lastOutgoingMessageId = 0;
@@ -81,9 +101,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     private boolean appPaused = true;
 
     private volatile long nextCallToken = 1;
+    private int nextDownloadConnectionNum = 0;
+    private int nextUploadConnectionNum = 0;
 
     private PowerManager.WakeLock wakeLock = null;
 
+    private final MessageEncryption messageEncryption = new MessageEncryption();
+
     private static volatile ConnectionsManager Instance = null;
     public static ConnectionsManager getInstance() {
         ConnectionsManager localInstance = Instance;
@@ -98,6 +122,20 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         return localInstance;
     }
 
+    private static class GenericBatch {
+        final ArrayList<NetworkMessage> messages = new ArrayList<>();
+        long startTime;
+        int bytes;
+    }
+
+    private Runnable genericFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            genericFlushTime = 0;
+            flushGenericMessages(0, false);
+        }
+    };
+
     private Runnable stageRunnable = new Runnable() {
         @Override
         public void run() {
@@ -125,7 +163,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if (lastPauseTime != 0 && lastPauseTime < currentTime - nextSleepTimeout) {
                 boolean dontSleep = !pushMessagesReceived;
                 if (!dontSleep) {
-                    for (RPCRequest request : runningRequests) {
+                    for (RPCRequest request : requestScheduler.runningRequests) {
                         if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                             dontSleep = true;
                         } else if (request.retryCount < 10 && (request.runningStartTime + 60 > (int) (currentTime / 1000)) && ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0)) {
@@ -135,13 +173,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 }
                 if (!dontSleep) {
-                    for (RPCRequest request : requestQueue) {
-                        if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
-                            dontSleep = true;
-                        } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                            dontSleep = true;
-                            break;
-                        }
+                    if (requestScheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_DOWNLOAD) != 0 || requestScheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_UPLOAD) != 0) {
+                        dontSleep = true;
+                    } else if (findQueuedRequest(TLRPC.TL_get_future_salts.class, 0) != null) {
+                        dontSleep = true;
                     }
                 }
                 if (!dontSleep) {
@@ -274,6 +309,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 if (!byScreenState) {
                     appPaused = value;
                     FileLog.e("tmessages", "app paused = " + value);
+                    if (value) {
+                        MessagesStorage.getInstance().flushPendingWrites(false);
+                    }
                 }
                 if (value) {
                     if (byScreenState) {
@@ -566,42 +604,70 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     void clearRequestsForRequestClass(int requestClass, Datacenter datacenter) {
-        for (RPCRequest request : runningRequests) {
+        for (RPCRequest request : requestScheduler.runningRequests) {
             Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
             if ((request.flags & requestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                request.runningMessageId = 0;
+                requestScheduler.setRunningMessageId(request, 0);
                 request.runningMessageSeqNo = 0;
                 request.runningStartTime = 0;
                 request.runningMinStartTime = 0;
                 request.transportChannelToken = 0;
+                requestScheduler.scheduleNow(request);
+            }
+        }
+        if ((requestClass & RPCRequest.RPCRequestClassGeneric) != 0) {
+            genericMessagesToDatacenters.remove(datacenter.datacenterId);
+        }
+    }
+
+    private RPCRequest findQueuedRequest(Class<? extends TLObject> requestClass, int datacenterId) {
+        for (RequestScheduler.RequestQueue queue : requestScheduler.queues) {
+            if (queue.transportClass != RequestScheduler.TRANSPORT_CLASS_GENERIC) {
+                continue;
+            }
+            for (RPCRequest request : queue.requests) {
+                if (request.cancelled || !requestClass.isInstance(request.rawRequest)) {
+                    continue;
+                }
+                if (datacenterId == 0 || datacenterWithId(request.runningDatacenterId).datacenterId == datacenterId) {
+                    return request;
+                }
             }
         }
+        return null;
     }
 
     public void cleanUp() {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (int a = 0; a < requestQueue.size(); a++) {
-                    RPCRequest request = requestQueue.get(a);
-                    if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0) {
-                        continue;
-                    }
-                    requestQueue.remove(a);
-                    if (request.completionBlock != null) {
-                        TLRPC.TL_error implicitError = new TLRPC.TL_error();
-                        implicitError.code = -1000;
-                        implicitError.text = "";
-                        request.completionBlock.run(null, implicitError);
+                for (RequestScheduler.RequestQueue queue : requestScheduler.queues) {
+                    Iterator<RPCRequest> iterator = queue.requests.iterator();
+                    while (iterator.hasNext()) {
+                        RPCRequest request = iterator.next();
+                        if (request.cancelled) {
+                            iterator.remove();
+                            continue;
+                        }
+                        if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0) {
+                            continue;
+                        }
+                        iterator.remove();
+                        requestScheduler.removeQueued(request);
+                        if (request.completionBlock != null) {
+                            TLRPC.TL_error implicitError = new TLRPC.TL_error();
+                            implicitError.code = -1000;
+                            implicitError.text = "";
+                            request.completionBlock.run(null, implicitError);
+                        }
                     }
-                    a--;
                 }
-                for (int a = 0; a < runningRequests.size(); a++) {
-                    RPCRequest request = runningRequests.get(a);
+                for (int a = 0; a < requestScheduler.runningRequests.size(); a++) {
+                    RPCRequest request = requestScheduler.runningRequests.get(a);
                     if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0) {
                         continue;
                     }
-                    runningRequests.remove(a);
+                    requestScheduler.removeRunning(request);
                     if (request.completionBlock != null) {
                         TLRPC.TL_error implicitError = new TLRPC.TL_error();
                         implicitError.code = -1000;
@@ -612,6 +678,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 }
                 pingIdToDate.clear();
                 quickAckIdToRequestIds.clear();
+                genericMessagesToDatacenters.clear();
 
                 for (Datacenter datacenter : datacenters.values()) {
                     datacenter.recreateSessions();
@@ -894,7 +961,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 request.quickAckBlock = quickAckBlock;
                 request.requiresCompletion = requiresCompletion;
 
-                requestQueue.add(request);
+                requestScheduler.enqueue(request);
 
                 if (runQueue) {
                     processRequestQueue(0, 0);
@@ -918,39 +985,32 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             public void run() {
                 boolean found = false;
 
-                for (int i = 0; i < requestQueue.size(); i++) {
-                    RPCRequest request = requestQueue.get(i);
-                    if (request.token == token) {
-                        found = true;
-                        request.cancelled = true;
-                        FileLog.d("tmessages", "===== Cancelled queued rpc request " + request.rawRequest);
-                        requestQueue.remove(i);
-                        break;
-                    }
+                RPCRequest request = requestScheduler.getRequest(token);
+                if (request != null && !request.running) {
+                    found = true;
+                    request.cancelled = true;
+                    FileLog.d("tmessages", "===== Cancelled queued rpc request " + request.rawRequest);
+                    requestScheduler.removeQueued(request);
                 }
 
                 if (!ifNotSent) {
-                    for (int i = 0; i < runningRequests.size(); i++) {
-                        RPCRequest request = runningRequests.get(i);
-                        if (request.token == token) {
-                            found = true;
-
-                            FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
-
-                            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                                if (notifyServer) {
-                                    TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
-                                    dropAnswer.req_msg_id = request.runningMessageId;
-                                    performRpc(dropAnswer, null, false, request.flags);
-                                }
-                            }
+                    if (request != null && request.running) {
+                        found = true;
 
-                            request.cancelled = true;
-                            request.rawRequest.freeResources();
-                            request.rpcRequest.freeResources();
-                            runningRequests.remove(i);
-                            break;
+                        FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
+
+                        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                            if (notifyServer) {
+                                TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
+                                dropAnswer.req_msg_id = request.runningMessageId;
+                                performRpc(dropAnswer, null, false, request.flags);
+                            }
                         }
+
+                        request.cancelled = true;
+                        request.rawRequest.freeResources();
+                        request.rpcRequest.freeResources();
+                        requestScheduler.removeRunning(request);
                     }
                     if (!found) {
                         FileLog.d("tmessages", "***** Warning: cancelling unknown request");
@@ -1022,7 +1082,6 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     private void processRequestQueue(int requestClass, int _datacenterId) {
         boolean haveNetwork = true;//isNetworkOnline();
 
-        genericMessagesToDatacenters.clear();
         unknownDatacenterIds.clear();
         neededDatacenterIds.clear();
         unauthorizedDatacenterIds.clear();
@@ -1034,164 +1093,15 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
 
         int currentTime = (int)(System.currentTimeMillis() / 1000);
-        for (int i = 0; i < runningRequests.size(); i++) {
-            RPCRequest request = runningRequests.get(i);
-
-            int datacenterId = request.runningDatacenterId;
-            if (datacenterId == DEFAULT_DATACENTER_ID) {
-                if (movingToDatacenterId != DEFAULT_DATACENTER_ID) {
-                    continue;
-                }
-                datacenterId = currentDatacenterId;
-            }
-
-            if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
-                int requestStartTime = request.runningStartTime;
-                int timeout = 30;
-                if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
-                    requestStartTime = updatingDcStartTime;
-                    timeout = 60;
-                }
-                if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
-                    FileLog.e("tmessages", "move " + request.rawRequest + " to requestQueue");
-                    requestQueue.add(request);
-                    runningRequests.remove(i);
-                    i--;
-                    continue;
-                }
-            }
-
-            Datacenter requestDatacenter = datacenterWithId(datacenterId);
-            if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
-                request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
-                ByteBufferDesc os = new ByteBufferDesc(true);
-                request.rpcRequest.serializeToStream(os);
-                request.serializedLength = os.length();
-            }
-
-            if (requestDatacenter == null) {
-                if (!unknownDatacenterIds.contains(datacenterId)) {
-                    unknownDatacenterIds.add(datacenterId);
-                }
-                continue;
-            } else if (requestDatacenter.authKey == null) {
-                if (!neededDatacenterIds.contains(datacenterId)) {
-                    neededDatacenterIds.add(datacenterId);
-                }
-                continue;
-            } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
-                if (!unauthorizedDatacenterIds.contains(datacenterId)) {
-                    unauthorizedDatacenterIds.add(datacenterId);
-                }
-                continue;
-            }
-
-            float maxTimeout = 8.0f;
-
-            TcpConnection connection = null;
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                connection = requestDatacenter.getGenericConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0 ) {
-                connection = requestDatacenter.getUploadConnection(this);
-            }
-
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                if (connection.channelToken == 0) {
-                    continue;
-                }
-            } else {
-                if (!haveNetwork || connection.channelToken == 0) {
-                    continue;
-                }
-                maxTimeout = 30.0f;
-            }
-
-            boolean forceThisRequest = (request.flags & requestClass) != 0 && requestDatacenter.datacenterId == _datacenterId;
-
-            if (request.rawRequest instanceof TLRPC.TL_get_future_salts || request.rawRequest instanceof TLRPC.TL_destroy_session) {
-                if (request.runningMessageId != 0) {
-                    request.addRespondMessageId(request.runningMessageId);
-                }
-                request.runningMessageId = 0;
-                request.runningMessageSeqNo = 0;
-                request.transportChannelToken = 0;
-                forceThisRequest = false;
-            }
-
-            if (((Math.abs(currentTime - request.runningStartTime) > maxTimeout) && (currentTime > request.runningMinStartTime || Math.abs(currentTime - request.runningMinStartTime) > 60.0)) || forceThisRequest) {
-                if (!forceThisRequest && request.transportChannelToken > 0) {
-                    if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && request.transportChannelToken == connection.channelToken) {
-                        FileLog.d("tmessages", "Request token is valid, not retrying " + request.rawRequest);
-                        continue;
-                    } else {
-                        if (connection.channelToken != 0 && request.transportChannelToken == connection.channelToken) {
-                            FileLog.d("tmessages", "Request download token is valid, not retrying " + request.rawRequest);
-                            continue;
-                        }
-                    }
-                }
-
-                if (request.transportChannelToken != 0 && request.transportChannelToken != connection.channelToken) {
-                    request.lastResendTime = 0;
-                }
-
-                request.retryCount++;
-
-                if (!request.salt && (request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    int retryMax = 10;
-                    if ((request.flags & RPCRequest.RPCRequestClassForceDownload) == 0) {
-                        if (request.wait) {
-                            retryMax = 1;
-                        } else {
-                            retryMax = 6;
-                        }
-                    }
-                    if (request.retryCount >= retryMax) {
-                        FileLog.e("tmessages", "timed out " + request.rawRequest);
-                        TLRPC.TL_error error = new TLRPC.TL_error();
-                        error.code = -123;
-                        error.text = "RETRY_LIMIT";
-                        if (request.completionBlock != null) {
-                            request.completionBlock.run(null, error);
-                        }
-                        runningRequests.remove(i);
-                        i--;
-                        continue;
-                    }
-                }
-
-                NetworkMessage networkMessage = new NetworkMessage();
-                networkMessage.protoMessage = new TLRPC.TL_protoMessage();
-
-                if (request.runningMessageSeqNo == 0) {
-                    request.runningMessageSeqNo = connection.generateMessageSeqNo(true);
-                    request.runningMessageId = generateMessageId();
-                }
-                networkMessage.protoMessage.msg_id = request.runningMessageId;
-                networkMessage.protoMessage.seqno = request.runningMessageSeqNo;
-                networkMessage.protoMessage.bytes = request.serializedLength;
-                networkMessage.protoMessage.body = request.rpcRequest;
-                networkMessage.rawRequest = request.rawRequest;
-                networkMessage.requestId = request.token;
-
-                request.runningStartTime = currentTime;
-
-                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    request.transportChannelToken = connection.channelToken;
-                    addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
-                } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    request.transportChannelToken = connection.channelToken;
-                    ArrayList<NetworkMessage> arr = new ArrayList<>();
-                    arr.add(networkMessage);
-                    proceedToSendingMessages(arr, connection, false);
-                } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                    request.transportChannelToken = connection.channelToken;
-                    ArrayList<NetworkMessage> arr = new ArrayList<>();
-                    arr.add(networkMessage);
-                    proceedToSendingMessages(arr, connection, false);
-                }
+        ArrayList<RPCRequest> requests = new ArrayList<>();
+        if (!requestScheduler.collectDueRequests(currentTime, requests) || requestClass != 0) {
+            requests.clear();
+            requests.addAll(requestScheduler.runningRequests);
+        }
+        for (RPCRequest request : requests) {
+            int nextCheckTime = checkRunningRequest(request, currentTime, requestClass, _datacenterId, haveNetwork);
+            if (nextCheckTime != 0) {
+                requestScheduler.schedule(request, nextCheckTime);
             }
         }
 
@@ -1217,266 +1127,183 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
         }
 
-        int genericRunningRequestCount = 0;
-        int uploadRunningRequestCount = 0;
-        int downloadRunningRequestCount = 0;
-
-        for (RPCRequest request : runningRequests) {
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                genericRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                uploadRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                downloadRunningRequestCount++;
+        for (int q = 0; q < requestScheduler.queues.size(); q++) {
+            RequestScheduler.RequestQueue queue = requestScheduler.queues.get(q);
+            if (queue.requests.isEmpty()) {
+                continue;
             }
-        }
-
-        for (int i = 0; i < requestQueue.size(); i++) {
-            RPCRequest request = requestQueue.get(i);
-            if (request.cancelled) {
-                requestQueue.remove(i);
-                i--;
+            int maxRunningRequests = getMaxRunningRequests(queue.transportClass);
+            if (queue.withoutCompletionCount == 0 && requestScheduler.getRunningCount(queue.transportClass) >= maxRunningRequests) {
+                checkQueueDatacenter(queue);
                 continue;
             }
 
-            int datacenterId = request.runningDatacenterId;
-            if (datacenterId == DEFAULT_DATACENTER_ID) {
-                if (movingToDatacenterId != DEFAULT_DATACENTER_ID && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+            Iterator<RPCRequest> iterator = queue.requests.iterator();
+            while (iterator.hasNext()) {
+                RPCRequest request = iterator.next();
+                if (request.cancelled) {
+                    iterator.remove();
                     continue;
                 }
-                datacenterId = currentDatacenterId;
-            }
 
-            if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
-                int requestStartTime = request.runningStartTime;
-                int timeout = 30;
-                if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
-                    requestStartTime = updatingDcStartTime;
-                    updatingDcStartTime = currentTime;
-                    timeout = 60;
-                } else {
-                    request.runningStartTime = 0;
-                }
-                if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
-                    ArrayList<Datacenter> allDc = new ArrayList<>(datacenters.values());
-                    for (int a = 0; a < allDc.size(); a++) {
-                        Datacenter dc = allDc.get(a);
-                        if (dc.datacenterId == datacenterId) {
-                            allDc.remove(a);
-                            break;
-                        }
-                    }
-                    Datacenter newDc = allDc.get(Math.abs(Utilities.random.nextInt() % allDc.size()));
-                    datacenterId = newDc.datacenterId;
-                    if (!(request.rawRequest instanceof TLRPC.TL_help_getConfig)) {
-                        currentDatacenterId = datacenterId;
-                    } else {
-                        request.runningDatacenterId = datacenterId;
+                int datacenterId = request.runningDatacenterId;
+                if (datacenterId == DEFAULT_DATACENTER_ID) {
+                    if (movingToDatacenterId != DEFAULT_DATACENTER_ID && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+                        continue;
                     }
+                    datacenterId = currentDatacenterId;
                 }
-            }
-
-            Datacenter requestDatacenter = datacenterWithId(datacenterId);
-            if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
-                request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
-            }
-
-            if (requestDatacenter == null) {
-                unknownDatacenterIds.add(datacenterId);
-                continue;
-            } else if (requestDatacenter.authKey == null) {
-                neededDatacenterIds.add(datacenterId);
-                continue;
-            } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
-                unauthorizedDatacenterIds.add(datacenterId);
-                continue;
-            }
-
-            TcpConnection connection = null;
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                connection = requestDatacenter.getGenericConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                connection = requestDatacenter.getUploadConnection(this);
-            }
-
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && connection.channelToken == 0) {
-                continue;
-            }
 
-            if (request.requiresCompletion) {
-                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    if (genericRunningRequestCount >= 60) {
-                        continue;
-                    }
-                    genericRunningRequestCount++;
-                } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                    if (!haveNetwork || uploadRunningRequestCount >= 5) {
-                        continue;
+                if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
+                    int requestStartTime = request.runningStartTime;
+                    int timeout = 30;
+                    if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
+                        requestStartTime = updatingDcStartTime;
+                        updatingDcStartTime = currentTime;
+                        timeout = 60;
+                    } else {
+                        request.runningStartTime = 0;
                     }
-                    uploadRunningRequestCount++;
-                } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    if (!haveNetwork || downloadRunningRequestCount >= 5) {
-                        continue;
+                    if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
+                        ArrayList<Datacenter> allDc = new ArrayList<>(datacenters.values());
+                        for (int a = 0; a < allDc.size(); a++) {
+                            Datacenter dc = allDc.get(a);
+                            if (dc.datacenterId == datacenterId) {
+                                allDc.remove(a);
+                                break;
+                            }
+                        }
+                        Datacenter newDc = allDc.get(Math.abs(Utilities.random.nextInt() % allDc.size()));
+                        datacenterId = newDc.datacenterId;
+                        if (!(request.rawRequest instanceof TLRPC.TL_help_getConfig)) {
+                            currentDatacenterId = datacenterId;
+                        } else {
+                            iterator.remove();
+                            requestScheduler.removeQueued(request);
+                            request.runningDatacenterId = datacenterId;
+                            requestScheduler.enqueue(request);
+                            continue;
+                        }
                     }
-                    downloadRunningRequestCount++;
                 }
-            }
-
-            long messageId = generateMessageId();
 
-            boolean canCompress = (request.flags & RPCRequest.RPCRequestClassCanCompress) != 0;
-
-            SerializedData os = new SerializedData(!canCompress);
-            request.rpcRequest.serializeToStream(os);
-            int requestLength = os.length();
-
-            if (requestLength != 0) {
-                if (canCompress) {
-                    try {
-                        byte[] data = Utilities.compress(os.toByteArray());
-                        os.cleanup();
-                        if (data.length < requestLength) {
-                            TLRPC.TL_gzip_packed packed = new TLRPC.TL_gzip_packed();
-                            packed.packed_data = data;
-                            request.rpcRequest = packed;
-                            os = new SerializedData(true);
-                            packed.serializeToStream(os);
-                            requestLength = os.length();
-                            os.cleanup();
-                        }
-                    } catch (Exception e) {
-                        FileLog.e("tmessages", e);
-                    }
+                Datacenter requestDatacenter = datacenterWithId(datacenterId);
+                if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
+                    request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
                 }
 
-                NetworkMessage networkMessage = new NetworkMessage();
-                networkMessage.protoMessage = new TLRPC.TL_protoMessage();
-                networkMessage.protoMessage.msg_id = messageId;
-                networkMessage.protoMessage.seqno = connection.generateMessageSeqNo(true);
-                networkMessage.protoMessage.bytes = requestLength;
-                networkMessage.protoMessage.body = request.rpcRequest;
-                networkMessage.rawRequest = request.rawRequest;
-                networkMessage.requestId = request.token;
-
-                request.runningMessageId = messageId;
-                request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
-                request.serializedLength = requestLength;
-                request.runningStartTime = (int)(System.currentTimeMillis() / 1000);
-                request.transportChannelToken = connection.channelToken;
-                if (request.requiresCompletion) {
-                    runningRequests.add(request);
+                if (requestDatacenter == null) {
+                    unknownDatacenterIds.add(datacenterId);
+                    continue;
+                } else if (requestDatacenter.authKey == null) {
+                    neededDatacenterIds.add(datacenterId);
+                    continue;
+                } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+                    unauthorizedDatacenterIds.add(datacenterId);
+                    continue;
                 }
 
+                TcpConnection connection = null;
                 if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                    addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
-                } else {
-                    ArrayList<NetworkMessage> arr = new ArrayList<>();
-                    arr.add(networkMessage);
-                    proceedToSendingMessages(arr, connection, false);
+                    connection = requestDatacenter.getGenericConnection(this);
+                } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                    request.connectionNum = nextDownloadConnectionNum;
+                    nextDownloadConnectionNum = (nextDownloadConnectionNum + 1) % Datacenter.DOWNLOAD_CONNECTIONS_COUNT;
+                    connection = requestDatacenter.getDownloadConnection(request.connectionNum, this);
+                } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                    request.connectionNum = nextUploadConnectionNum;
+                    nextUploadConnectionNum = (nextUploadConnectionNum + 1) % Datacenter.UPLOAD_CONNECTIONS_COUNT;
+                    connection = requestDatacenter.getUploadConnection(request.connectionNum, this);
                 }
-            } else {
-                FileLog.e("tmessages", "***** Couldn't serialize " + request.rawRequest);
-            }
-
-            requestQueue.remove(i);
-            i--;
-        }
-
-        for (Datacenter datacenter : datacenters.values()) {
-            if (genericMessagesToDatacenters.get(datacenter.datacenterId) == null && datacenter.connection != null && datacenter.connection.channelToken != 0 && datacenter.connection.hasMessagesToConfirm()) {
-                genericMessagesToDatacenters.put(datacenter.datacenterId, new ArrayList<NetworkMessage>());
-            }
-        }
-
-        for (int iter : genericMessagesToDatacenters.keySet()) {
-            Datacenter datacenter = datacenterWithId(iter);
-            if (datacenter != null) {
-                boolean scannedPreviousRequests = false;
-                long lastSendMessageRpcId = 0;
-
-                boolean hasSendMessage = false;
-                ArrayList<NetworkMessage> arr = genericMessagesToDatacenters.get(iter);
-                for (NetworkMessage networkMessage : arr) {
-                    TLRPC.TL_protoMessage message = networkMessage.protoMessage;
-
-                    Object rawRequest = networkMessage.rawRequest;
 
-                    if (rawRequest != null && (rawRequest instanceof TLRPC.TL_messages_sendMessage ||
-                            rawRequest instanceof TLRPC.TL_messages_sendMedia ||
-                            rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
-                            rawRequest instanceof TLRPC.TL_messages_forwardMessage ||
-                            rawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
-                            rawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
-                            rawRequest instanceof TLRPC.TL_messages_sendEncryptedService)) {
+                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && connection.channelToken == 0) {
+                    continue;
+                }
 
-                        if (rawRequest instanceof TLRPC.TL_messages_sendMessage) {
-                            hasSendMessage = true;
-                        }
+                if (request.requiresCompletion && (!haveNetwork && queue.transportClass != RequestScheduler.TRANSPORT_CLASS_GENERIC || requestScheduler.getRunningCount(queue.transportClass) >= maxRunningRequests)) {
+                    if (queue.withoutCompletionCount == 0) {
+                        break;
+                    }
+                    continue;
+                }
 
-                        if (!scannedPreviousRequests) {
-                            scannedPreviousRequests = true;
+                iterator.remove();
+                requestScheduler.removeQueued(request);
 
-                            ArrayList<Long> currentRequests = new ArrayList<>();
-                            for (NetworkMessage currentNetworkMessage : arr) {
-                                TLRPC.TL_protoMessage currentMessage = currentNetworkMessage.protoMessage;
+                long messageId = generateMessageId();
 
-                                Object currentRawRequest = currentNetworkMessage.rawRequest;
+                boolean canCompress = (request.flags & RPCRequest.RPCRequestClassCanCompress) != 0;
 
-                                if (currentRawRequest instanceof TLRPC.TL_messages_sendMessage ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_sendMedia ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_forwardMessages ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_forwardMessage ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
-                                        currentRawRequest instanceof TLRPC.TL_messages_sendEncryptedService) {
-                                    currentRequests.add(currentMessage.msg_id);
-                                }
-                            }
+                SerializedData os = new SerializedData(!canCompress);
+                request.rpcRequest.serializeToStream(os);
+                int requestLength = os.length();
 
-                            long maxRequestId = 0;
-                            for (RPCRequest request : runningRequests) {
-                                if (request.rawRequest instanceof TLRPC.TL_messages_sendMessage ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_sendMedia ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_forwardMessage ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
-                                        request.rawRequest instanceof TLRPC.TL_messages_sendEncryptedService) {
-                                    if (!currentRequests.contains(request.runningMessageId)) {
-                                        maxRequestId = Math.max(maxRequestId, request.runningMessageId);
-                                    }
-                                }
+                if (requestLength != 0) {
+                    if (canCompress) {
+                        try {
+                            byte[] data = Utilities.compress(os.toByteArray());
+                            os.cleanup();
+                            if (data.length < requestLength) {
+                                TLRPC.TL_gzip_packed packed = new TLRPC.TL_gzip_packed();
+                                packed.packed_data = data;
+                                request.rpcRequest = packed;
+                                os = new SerializedData(true);
+                                packed.serializeToStream(os);
+                                requestLength = os.length();
+                                os.cleanup();
                             }
-
-                            lastSendMessageRpcId = maxRequestId;
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
                         }
+                    }
 
-                        if (lastSendMessageRpcId != 0 && lastSendMessageRpcId != message.msg_id) {
-                            TLRPC.TL_invokeAfterMsg invokeAfterMsg = new TLRPC.TL_invokeAfterMsg();
-                            invokeAfterMsg.msg_id = lastSendMessageRpcId;
-                            invokeAfterMsg.query = message.body;
-
-                            message.body = invokeAfterMsg;
-                            message.bytes = message.bytes + 4 + 8;
-                        }
+                    NetworkMessage networkMessage = new NetworkMessage();
+                    networkMessage.protoMessage = new TLRPC.TL_protoMessage();
+                    networkMessage.protoMessage.msg_id = messageId;
+                    networkMessage.protoMessage.seqno = connection.generateMessageSeqNo(true);
+                    networkMessage.protoMessage.bytes = requestLength;
+                    networkMessage.protoMessage.body = request.rpcRequest;
+                    networkMessage.rawRequest = request.rawRequest;
+                    networkMessage.requestId = request.token;
+
+                    requestScheduler.setRunningMessageId(request, messageId);
+                    request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
+                    request.serializedLength = requestLength;
+                    request.runningStartTime = (int)(System.currentTimeMillis() / 1000);
+                    request.transportChannelToken = connection.channelToken;
+                    if (request.requiresCompletion) {
+                        int timeout = (request.flags & RPCRequest.RPCRequestClassGeneric) != 0 ? GENERIC_REQUEST_TIMEOUT : MEDIA_REQUEST_TIMEOUT;
+                        requestScheduler.addRunning(request, request.runningStartTime + timeout + 1);
+                    }
 
-                        lastSendMessageRpcId = message.msg_id;
+                    if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                        addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
+                    } else {
+                        ArrayList<NetworkMessage> arr = new ArrayList<>();
+                        arr.add(networkMessage);
+                        proceedToSendingMessages(arr, connection, false);
                     }
+                } else {
+                    FileLog.e("tmessages", "***** Couldn't serialize " + request.rawRequest);
                 }
+            }
+        }
 
-                proceedToSendingMessages(arr, datacenter.getGenericConnection(this), hasSendMessage);
+        for (Datacenter datacenter : datacenters.values()) {
+            if (genericMessagesToDatacenters.get(datacenter.datacenterId) == null && datacenter.connection != null && datacenter.connection.channelToken != 0 && datacenter.connection.hasMessagesToConfirm()) {
+                getGenericBatch(datacenter.datacenterId);
             }
         }
 
         if ((requestClass & RPCRequest.RPCRequestClassGeneric) != 0) {
-            ArrayList<NetworkMessage> messagesIt = genericMessagesToDatacenters.get(_datacenterId);
-            if (messagesIt == null || messagesIt.size() == 0) {
+            GenericBatch batch = genericMessagesToDatacenters.get(_datacenterId);
+            if (batch == null || batch.messages.isEmpty()) {
                 generatePing();
             }
         }
 
+        flushGenericMessages(0, false);
+
         if (!unknownDatacenterIds.isEmpty() && !updatingDcSettings) {
             updateDcSettings(0);
         }
@@ -1522,18 +1349,377 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
     }
 
-    void addMessageToDatacenter(int datacenterId, NetworkMessage message) {
-        ArrayList<NetworkMessage> arr = genericMessagesToDatacenters.get(datacenterId);
-        if (arr == null) {
-            arr = new ArrayList<>();
-            genericMessagesToDatacenters.put(datacenterId, arr);
+    private int getMaxRunningRequests(int transportClass) {
+        if (transportClass == RequestScheduler.TRANSPORT_CLASS_DOWNLOAD) {
+            return MAX_RUNNING_DOWNLOAD_REQUESTS;
+        } else if (transportClass == RequestScheduler.TRANSPORT_CLASS_UPLOAD) {
+            return MAX_RUNNING_UPLOAD_REQUESTS;
         }
-        arr.add(message);
+        return MAX_RUNNING_GENERIC_REQUESTS;
     }
 
-    TLRPC.TL_protoMessage wrapMessage(TLObject message, TcpConnection connection, boolean meaningful) {
-        ByteBufferDesc os = new ByteBufferDesc(true);
-        message.serializeToStream(os);
+    private void checkQueueDatacenter(RequestScheduler.RequestQueue queue) {
+        int datacenterId = queue.datacenterId;
+        if (datacenterId == DEFAULT_DATACENTER_ID) {
+            if (movingToDatacenterId != DEFAULT_DATACENTER_ID) {
+                return;
+            }
+            datacenterId = currentDatacenterId;
+        }
+        Datacenter datacenter = datacenterWithId(datacenterId);
+        if (datacenter == null) {
+            if (!unknownDatacenterIds.contains(datacenterId)) {
+                unknownDatacenterIds.add(datacenterId);
+            }
+        } else if (datacenter.authKey == null) {
+            if (!neededDatacenterIds.contains(datacenterId)) {
+                neededDatacenterIds.add(datacenterId);
+            }
+        } else if (!datacenter.authorized && queue.datacenterId != DEFAULT_DATACENTER_ID && queue.datacenterId != currentDatacenterId) {
+            if (!unauthorizedDatacenterIds.contains(datacenterId)) {
+                unauthorizedDatacenterIds.add(datacenterId);
+            }
+        }
+    }
+
+    /**
+     * Resends a running request if its timeout has passed. Returns the time it has to be checked
+     * again, or 0 if it is no longer running.
+     */
+    private int checkRunningRequest(RPCRequest request, int currentTime, int requestClass, int _datacenterId, boolean haveNetwork) {
+        int datacenterId = request.runningDatacenterId;
+        if (datacenterId == DEFAULT_DATACENTER_ID) {
+            if (movingToDatacenterId != DEFAULT_DATACENTER_ID) {
+                return currentTime + 1;
+            }
+            datacenterId = currentDatacenterId;
+        }
+
+        if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
+            int requestStartTime = request.runningStartTime;
+            int timeout = 30;
+            if (updatingDcSettings && request.rawRequest instanceof TLRPC.TL_help_getConfig) {
+                requestStartTime = updatingDcStartTime;
+                timeout = 60;
+            }
+            if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
+                FileLog.e("tmessages", "move " + request.rawRequest + " to request queue");
+                requestScheduler.removeRunning(request);
+                requestScheduler.enqueue(request);
+                return 0;
+            }
+        }
+
+        Datacenter requestDatacenter = datacenterWithId(datacenterId);
+        if (!request.initRequest && requestDatacenter.lastInitVersion != currentAppVersion) {
+            request.rpcRequest = wrapInLayer(request.rawRequest, requestDatacenter.datacenterId, request);
+            ByteBufferDesc os = new ByteBufferDesc(true);
+            request.rpcRequest.serializeToStream(os);
+            request.serializedLength = os.length();
+        }
+
+        if (requestDatacenter == null) {
+            if (!unknownDatacenterIds.contains(datacenterId)) {
+                unknownDatacenterIds.add(datacenterId);
+            }
+            return currentTime + 1;
+        } else if (requestDatacenter.authKey == null) {
+            if (!neededDatacenterIds.contains(datacenterId)) {
+                neededDatacenterIds.add(datacenterId);
+            }
+            return currentTime + 1;
+        } else if (!requestDatacenter.authorized && request.runningDatacenterId != DEFAULT_DATACENTER_ID && request.runningDatacenterId != currentDatacenterId && (request.flags & RPCRequest.RPCRequestClassEnableUnauthorized) == 0) {
+            if (!unauthorizedDatacenterIds.contains(datacenterId)) {
+                unauthorizedDatacenterIds.add(datacenterId);
+            }
+            return currentTime + 1;
+        }
+
+        float maxTimeout = GENERIC_REQUEST_TIMEOUT;
+
+        TcpConnection connection = null;
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            connection = requestDatacenter.getGenericConnection(this);
+        } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            connection = requestDatacenter.getDownloadConnection(request.connectionNum, this);
+        } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0 ) {
+            connection = requestDatacenter.getUploadConnection(request.connectionNum, this);
+        }
+
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            if (connection.channelToken == 0) {
+                return currentTime + 1;
+            }
+        } else {
+            if (!haveNetwork || connection.channelToken == 0) {
+                return currentTime + 1;
+            }
+            maxTimeout = MEDIA_REQUEST_TIMEOUT;
+        }
+
+        boolean forceThisRequest = (request.flags & requestClass) != 0 && requestDatacenter.datacenterId == _datacenterId;
+
+        if (request.rawRequest instanceof TLRPC.TL_get_future_salts || request.rawRequest instanceof TLRPC.TL_destroy_session) {
+            if (request.runningMessageId != 0) {
+                request.addRespondMessageId(request.runningMessageId);
+            }
+            requestScheduler.setRunningMessageId(request, 0);
+            request.runningMessageSeqNo = 0;
+            request.transportChannelToken = 0;
+            forceThisRequest = false;
+        }
+
+        if (((Math.abs(currentTime - request.runningStartTime) > maxTimeout) && (currentTime > request.runningMinStartTime || Math.abs(currentTime - request.runningMinStartTime) > 60.0)) || forceThisRequest) {
+            if (!forceThisRequest && request.transportChannelToken > 0) {
+                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && request.transportChannelToken == connection.channelToken) {
+                    FileLog.d("tmessages", "Request token is valid, not retrying " + request.rawRequest);
+                    return currentTime + (int) maxTimeout;
+                } else {
+                    if (connection.channelToken != 0 && request.transportChannelToken == connection.channelToken) {
+                        FileLog.d("tmessages", "Request download token is valid, not retrying " + request.rawRequest);
+                        return currentTime + (int) maxTimeout;
+                    }
+                }
+            }
+
+            if (request.transportChannelToken != 0 && request.transportChannelToken != connection.channelToken) {
+                request.lastResendTime = 0;
+            }
+
+            request.retryCount++;
+
+            if (!request.salt && (request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                int retryMax = 10;
+                if ((request.flags & RPCRequest.RPCRequestClassForceDownload) == 0) {
+                    if (request.wait) {
+                        retryMax = 1;
+                    } else {
+                        retryMax = 6;
+                    }
+                }
+                if (request.retryCount >= retryMax) {
+                    FileLog.e("tmessages", "timed out " + request.rawRequest);
+                    TLRPC.TL_error error = new TLRPC.TL_error();
+                    error.code = -123;
+                    error.text = "RETRY_LIMIT";
+                    if (request.completionBlock != null) {
+                        request.completionBlock.run(null, error);
+                    }
+                    requestScheduler.removeRunning(request);
+                    return 0;
+                }
+            }
+
+            NetworkMessage networkMessage = new NetworkMessage();
+            networkMessage.protoMessage = new TLRPC.TL_protoMessage();
+
+            if (request.runningMessageSeqNo == 0) {
+                request.runningMessageSeqNo = connection.generateMessageSeqNo(true);
+                requestScheduler.setRunningMessageId(request, generateMessageId());
+            }
+            networkMessage.protoMessage.msg_id = request.runningMessageId;
+            networkMessage.protoMessage.seqno = request.runningMessageSeqNo;
+            networkMessage.protoMessage.bytes = request.serializedLength;
+            networkMessage.protoMessage.body = request.rpcRequest;
+            networkMessage.rawRequest = request.rawRequest;
+            networkMessage.requestId = request.token;
+
+            request.runningStartTime = currentTime;
+
+            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                request.transportChannelToken = connection.channelToken;
+                addMessageToDatacenter(requestDatacenter.datacenterId, networkMessage);
+            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                request.transportChannelToken = connection.channelToken;
+                ArrayList<NetworkMessage> arr = new ArrayList<>();
+                arr.add(networkMessage);
+                proceedToSendingMessages(arr, connection, false);
+            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                request.transportChannelToken = connection.channelToken;
+                ArrayList<NetworkMessage> arr = new ArrayList<>();
+                arr.add(networkMessage);
+                proceedToSendingMessages(arr, connection, false);
+            }
+            return currentTime + (int) maxTimeout + 1;
+        }
+
+        if (datacenters.size() > 1 && (request.flags & RPCRequest.RPCRequestClassTryDifferentDc) != 0) {
+            return currentTime + 1;
+        }
+        return Math.max(request.runningStartTime + (int) maxTimeout + 1, request.runningMinStartTime + 1);
+    }
+
+    private GenericBatch getGenericBatch(int datacenterId) {
+        GenericBatch batch = genericMessagesToDatacenters.get(datacenterId);
+        if (batch == null) {
+            batch = new GenericBatch();
+            batch.startTime = System.currentTimeMillis();
+            genericMessagesToDatacenters.put(datacenterId, batch);
+        }
+        return batch;
+    }
+
+    void addMessageToDatacenter(int datacenterId, NetworkMessage message) {
+        GenericBatch batch = getGenericBatch(datacenterId);
+        batch.messages.add(message);
+        batch.bytes += message.protoMessage.bytes;
+    }
+
+    /**
+     * Sends the pending generic messages of a datacenter (or of all of them when datacenterId is 0)
+     * together with the acks waiting on the connection. Unless forced, a batch waits up to
+     * genericBatchDelay ms for more messages, or until it fills a container.
+     */
+    private void flushGenericMessages(int datacenterId, boolean force) {
+        long currentTime = System.currentTimeMillis();
+        long nextFlushTime = 0;
+        ArrayList<Integer> readyDatacenterIds = null;
+        for (HashMap.Entry<Integer, GenericBatch> entry : genericMessagesToDatacenters.entrySet()) {
+            if (datacenterId != 0 && entry.getKey() != datacenterId) {
+                continue;
+            }
+            GenericBatch batch = entry.getValue();
+            if (!force && batch.bytes < maxContainerBytes && batch.messages.size() < maxContainerMessages) {
+                long flushTime = batch.startTime + genericBatchDelay;
+                if (flushTime > currentTime) {
+                    if (nextFlushTime == 0 || flushTime < nextFlushTime) {
+                        nextFlushTime = flushTime;
+                    }
+                    continue;
+                }
+            }
+            if (readyDatacenterIds == null) {
+                readyDatacenterIds = new ArrayList<>();
+            }
+            readyDatacenterIds.add(entry.getKey());
+        }
+
+        if (readyDatacenterIds != null) {
+            for (int id : readyDatacenterIds) {
+                GenericBatch batch = genericMessagesToDatacenters.remove(id);
+                Datacenter datacenter = datacenterWithId(id);
+                if (datacenter != null) {
+                    sendGenericMessages(datacenter, batch.messages);
+                }
+            }
+        }
+
+        if (nextFlushTime != 0 && (genericFlushTime == 0 || nextFlushTime < genericFlushTime)) {
+            if (genericFlushTime != 0) {
+                Utilities.stageQueue.cancelRunnable(genericFlushRunnable);
+            }
+            genericFlushTime = nextFlushTime;
+            Utilities.stageQueue.postRunnable(genericFlushRunnable, Math.max(1, nextFlushTime - currentTime));
+        }
+    }
+
+    private void sendGenericMessages(Datacenter datacenter, ArrayList<NetworkMessage> arr) {
+        boolean scannedPreviousRequests = false;
+        long lastSendMessageRpcId = 0;
+
+        boolean hasSendMessage = false;
+        for (NetworkMessage networkMessage : arr) {
+            TLRPC.TL_protoMessage message = networkMessage.protoMessage;
+
+            Object rawRequest = networkMessage.rawRequest;
+
+            if (rawRequest != null && (rawRequest instanceof TLRPC.TL_messages_sendMessage ||
+                    rawRequest instanceof TLRPC.TL_messages_sendMedia ||
+                    rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
+                    rawRequest instanceof TLRPC.TL_messages_forwardMessage ||
+                    rawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
+                    rawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
+                    rawRequest instanceof TLRPC.TL_messages_sendEncryptedService)) {
+
+                if (rawRequest instanceof TLRPC.TL_messages_sendMessage) {
+                    hasSendMessage = true;
+                }
+
+                if (!scannedPreviousRequests) {
+                    scannedPreviousRequests = true;
+
+                    ArrayList<Long> currentRequests = new ArrayList<>();
+                    for (NetworkMessage currentNetworkMessage : arr) {
+                        TLRPC.TL_protoMessage currentMessage = currentNetworkMessage.protoMessage;
+
+                        Object currentRawRequest = currentNetworkMessage.rawRequest;
+
+                        if (currentRawRequest instanceof TLRPC.TL_messages_sendMessage ||
+                                currentRawRequest instanceof TLRPC.TL_messages_sendMedia ||
+                                currentRawRequest instanceof TLRPC.TL_messages_forwardMessages ||
+                                currentRawRequest instanceof TLRPC.TL_messages_forwardMessage ||
+                                currentRawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
+                                currentRawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
+                                currentRawRequest instanceof TLRPC.TL_messages_sendEncryptedService) {
+                            currentRequests.add(currentMessage.msg_id);
+                        }
+                    }
+
+                    long maxRequestId = 0;
+                    for (RPCRequest request : requestScheduler.runningRequests) {
+                        if (request.rawRequest instanceof TLRPC.TL_messages_sendMessage ||
+                                request.rawRequest instanceof TLRPC.TL_messages_sendMedia ||
+                                request.rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
+                                request.rawRequest instanceof TLRPC.TL_messages_forwardMessage ||
+                                request.rawRequest instanceof TLRPC.TL_messages_sendEncrypted ||
+                                request.rawRequest instanceof TLRPC.TL_messages_sendEncryptedFile ||
+                                request.rawRequest instanceof TLRPC.TL_messages_sendEncryptedService) {
+                            if (!currentRequests.contains(request.runningMessageId)) {
+                                maxRequestId = Math.max(maxRequestId, request.runningMessageId);
+                            }
+                        }
+                    }
+
+                    lastSendMessageRpcId = maxRequestId;
+                }
+
+                if (lastSendMessageRpcId != 0 && lastSendMessageRpcId != message.msg_id) {
+                    TLRPC.TL_invokeAfterMsg invokeAfterMsg = new TLRPC.TL_invokeAfterMsg();
+                    invokeAfterMsg.msg_id = lastSendMessageRpcId;
+                    invokeAfterMsg.query = message.body;
+
+                    message.body = invokeAfterMsg;
+                    message.bytes = message.bytes + 4 + 8;
+                }
+
+                lastSendMessageRpcId = message.msg_id;
+            }
+        }
+
+        proceedToSendingMessages(arr, datacenter.getGenericConnection(this), hasSendMessage);
+    }
+
+    /**
+     * Sets how generic requests are coalesced into containers: how long a batch may wait for more
+     * messages, and the byte and message budget of a single container. A delay of 0 sends every
+     * processing pass right away.
+     */
+    public void setGenericBatchingPolicy(int maxDelay, int maxBytes, int maxMessages) {
+        genericBatchDelay = Math.max(0, maxDelay);
+        maxContainerBytes = Math.max(1024, maxBytes);
+        maxContainerMessages = Math.max(1, Math.min(MAX_CONTAINER_MESSAGES, maxMessages));
+    }
+
+    public long getSentPacketsCount() {
+        return sentPacketsCount.get();
+    }
+
+    public long getSentMessagesCount() {
+        return sentMessagesCount.get();
+    }
+
+    public String getTransportStats() {
+        long packets = sentPacketsCount.get();
+        long messages = sentMessagesCount.get();
+        long containers = sentContainersCount.get();
+        long elapsed = Math.max(1, System.currentTimeMillis() - statsStartTime);
+        return String.format(Locale.US, "packets=%d messages=%d containers=%d packets/s=%.2f messages/packet=%.2f",
+                packets, messages, containers, packets * 1000.0 / elapsed, packets != 0 ? (double) messages / packets : 0.0);
+    }
+
+    TLRPC.TL_protoMessage wrapMessage(TLObject message, TcpConnection connection, boolean meaningful) {
+        ByteBufferDesc os = new ByteBufferDesc(true);
+        message.serializeToStream(os);
 
         if (os.length() != 0) {
             TLRPC.TL_protoMessage protoMessage = new TLRPC.TL_protoMessage();
@@ -1580,48 +1766,60 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         int currentSize = 0;
         for (int a = 0; a < messagesToSend.size(); a++) {
             NetworkMessage networkMessage = messagesToSend.get(a);
-            currentMessages.add(networkMessage);
-
-            TLRPC.TL_protoMessage protoMessage = networkMessage.protoMessage;
+            int messageSize = networkMessage.protoMessage.bytes;
 
-            currentSize += protoMessage.bytes;
+            if (!currentMessages.isEmpty() && (currentSize + messageSize > maxContainerBytes || currentMessages.size() >= maxContainerMessages)) {
+                sendTransportPacket(currentMessages, connection, reportAck);
+                currentSize = 0;
+                currentMessages.clear();
+            }
 
-            if (currentSize >= 3 * 1024 || a == messagesToSend.size() - 1) {
-                ArrayList<Integer> quickAckId = new ArrayList<>();
-                ByteBufferDesc transportData = createConnectionData(currentMessages, quickAckId, connection);
+            currentMessages.add(networkMessage);
+            currentSize += messageSize;
+        }
+        sendTransportPacket(currentMessages, connection, reportAck);
+    }
 
-                if (transportData != null) {
-                    if (reportAck && quickAckId.size() != 0) {
-                        ArrayList<Long> requestIds = new ArrayList<>();
+    private void sendTransportPacket(ArrayList<NetworkMessage> messages, TcpConnection connection, boolean reportAck) {
+        ArrayList<Integer> quickAckId = new ArrayList<>();
+        ByteBufferDesc transportData = createConnectionData(messages, quickAckId, connection);
 
-                        for (NetworkMessage message : messagesToSend) {
-                            if (message.requestId != 0) {
-                                requestIds.add(message.requestId);
-                            }
-                        }
+        if (transportData != null) {
+            if (reportAck && quickAckId.size() != 0) {
+                ArrayList<Long> requestIds = new ArrayList<>();
 
-                        if (requestIds.size() != 0) {
-                            int ack = quickAckId.get(0);
-                            ArrayList<Long> arr = quickAckIdToRequestIds.get(ack);
-                            if (arr == null) {
-                                arr = new ArrayList<>();
-                                quickAckIdToRequestIds.put(ack, arr);
-                            }
-                            arr.addAll(requestIds);
-                        }
+                for (NetworkMessage message : messages) {
+                    if (message.requestId != 0) {
+                        requestIds.add(message.requestId);
                     }
+                }
 
-                    connection.sendData(transportData, true, reportAck);
-                } else {
-                    FileLog.e("tmessages", "***** Transport data is nil");
+                if (requestIds.size() != 0) {
+                    int ack = quickAckId.get(0);
+                    ArrayList<Long> arr = quickAckIdToRequestIds.get(ack);
+                    if (arr == null) {
+                        arr = new ArrayList<>();
+                        quickAckIdToRequestIds.put(ack, arr);
+                    }
+                    arr.addAll(requestIds);
                 }
+            }
 
-                currentSize = 0;
-                currentMessages.clear();
+            sentPacketsCount.incrementAndGet();
+            sentMessagesCount.addAndGet(messages.size());
+            if (messages.size() > 1) {
+                sentContainersCount.incrementAndGet();
             }
+            connection.sendData(transportData, TcpConnection.FRAME_HEADER_SPACE, true, reportAck);
+        } else {
+            FileLog.e("tmessages", "***** Transport data is nil");
         }
     }
 
+    /**
+     * Returns the encrypted packet preceded by TcpConnection.FRAME_HEADER_SPACE free bytes, so the
+     * transport header can be written in place.
+     */
     ByteBufferDesc createConnectionData(ArrayList<NetworkMessage> messages, ArrayList<Integer> quickAckId, TcpConnection connection) {
         Datacenter datacenter = datacenterWithId(connection.getDatacenterId());
         if (datacenter.authKey == null) {
@@ -1631,6 +1829,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         long messageId;
         TLObject messageBody;
         int messageSeqNo;
+        int messageLength;
 
         if (messages.size() == 1) {
             NetworkMessage networkMessage = messages.get(0);
@@ -1663,19 +1862,23 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 messageId = generateMessageId();
                 messageBody = messageContainer;
                 messageSeqNo = connection.generateMessageSeqNo(false);
+                messageLength = 4 + 4 + 8 + 4 + 4 + message.bytes;
             } else {
                 messageId = message.msg_id;
                 messageBody = message.body;
                 messageSeqNo = message.seqno;
+                messageLength = message.bytes;
             }
         } else {
             TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
 
             ArrayList<TLRPC.TL_protoMessage> containerMessages = new ArrayList<>(messages.size());
+            messageLength = 4 + 4;
 
             for (NetworkMessage networkMessage : messages) {
                 TLRPC.TL_protoMessage message = networkMessage.protoMessage;
                 containerMessages.add(message);
+                messageLength += 8 + 4 + 4 + message.bytes;
                 if (BuildVars.DEBUG_VERSION) {
                     if (message.body instanceof TLRPC.invokeWithLayer) {
                         FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer)message.body).query);
@@ -1699,58 +1902,47 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             messageSeqNo = connection.generateMessageSeqNo(false);
         }
 
-        ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
-        messageBody.serializeToStream(sizeBuffer);
-
-        ByteBufferDesc innerOs = BuffersStorage.getInstance().getFreeBuffer(8 + 8 + 8 + 4 + 4 + sizeBuffer.length());
-
-        long serverSalt = datacenter.selectServerSalt(getCurrentTime());
-        if (serverSalt == 0) {
-            innerOs.writeInt64(0);
-        } else {
-            innerOs.writeInt64(serverSalt);
+        ByteBufferDesc data = serializeMessage(datacenter, connection, messageId, messageSeqNo, messageBody, messageLength);
+        if (data == null) {
+            ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+            messageBody.serializeToStream(sizeBuffer);
+            FileLog.e("tmessages", "message length mismatch " + messageLength + " " + sizeBuffer.length());
+            data = serializeMessage(datacenter, connection, messageId, messageSeqNo, messageBody, sizeBuffer.length());
+            if (data == null) {
+                return null;
+            }
         }
-        innerOs.writeInt64(connection.getSissionId());
-        innerOs.writeInt64(messageId);
-        innerOs.writeInt32(messageSeqNo);
-        innerOs.writeInt32(sizeBuffer.length());
-        messageBody.serializeToStream(innerOs);
-
-        byte[] messageKeyFull = Utilities.computeSHA1(innerOs.buffer, 0, innerOs.limit());
-        byte[] messageKey = new byte[16];
-        System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
 
-        if (quickAckId != null) {
-            SerializedData data = new SerializedData(messageKeyFull);
-            quickAckId.add(data.readInt32() & 0x7fffffff);
-            data.cleanup();
+        if (!messageEncryption.encryptMessage(data, TcpConnection.FRAME_HEADER_SPACE, datacenter.authKey, datacenter.authKeyId, false)) {
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            return null;
         }
 
-        MessageKeyData keyData = Utilities.generateMessageKeyData(datacenter.authKey, messageKey, false);
-
-        int zeroCount = 0;
-        if (innerOs.limit() % 16 != 0) {
-            zeroCount = 16 - innerOs.limit() % 16;
+        if (quickAckId != null) {
+            quickAckId.add(messageEncryption.getQuickAckId());
         }
 
-        ByteBufferDesc dataForEncryption = BuffersStorage.getInstance().getFreeBuffer(innerOs.limit() + zeroCount);
-        dataForEncryption.writeRaw(innerOs);
-        BuffersStorage.getInstance().reuseFreeBuffer(innerOs);
+        return data;
+    }
 
-        if (zeroCount != 0) {
-            byte[] b = new byte[zeroCount];
-            Utilities.random.nextBytes(b);
-            dataForEncryption.writeRaw(b);
+    private ByteBufferDesc serializeMessage(Datacenter datacenter, TcpConnection connection, long messageId, int messageSeqNo, TLObject messageBody, int messageLength) {
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(TcpConnection.FRAME_HEADER_SPACE + 8 + 16 + 8 + 8 + 8 + 4 + 4 + messageLength + 15);
+        data.limit(data.capacity());
+        data.position(TcpConnection.FRAME_HEADER_SPACE + 8 + 16);
+        data.writeInt64(datacenter.selectServerSalt(getCurrentTime()));
+        data.writeInt64(connection.getSissionId());
+        data.writeInt64(messageId);
+        data.writeInt32(messageSeqNo);
+        int lengthPosition = data.position();
+        data.writeInt32(0);
+        messageBody.serializeToStream(data);
+
+        int writtenLength = data.position() - lengthPosition - 4;
+        if (writtenLength != messageLength) {
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            return null;
         }
-
-        Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, false, 0, dataForEncryption.limit());
-
-        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(8 + messageKey.length + dataForEncryption.limit());
-        data.writeInt64(datacenter.authKeyId);
-        data.writeRaw(messageKey);
-        data.writeRaw(dataForEncryption);
-        BuffersStorage.getInstance().reuseFreeBuffer(dataForEncryption);
-
+        data.buffer.putInt(lengthPosition, writtenLength);
         return data;
     }
 
@@ -1758,16 +1950,11 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (RPCRequest request : requestQueue) {
-                    if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
-                        Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
-                        if (requestDatacenter.datacenterId == datacenter.datacenterId) {
-                            return;
-                        }
-                    }
+                if (findQueuedRequest(TLRPC.TL_get_future_salts.class, datacenter.datacenterId) != null) {
+                    return;
                 }
 
-                for (RPCRequest request : runningRequests) {
+                for (RPCRequest request : requestScheduler.runningRequests) {
                     if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                         Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
                         if (requestDatacenter.datacenterId == datacenter.datacenterId) {
@@ -1798,10 +1985,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (RPCRequest request : runningRequests) {
-                    if (requestMsgId == request.runningMessageId) {
-                        request.confirmed = true;
-                    }
+                RPCRequest request = requestScheduler.getRunningRequest(requestMsgId);
+                if (request != null && request.runningMessageId == requestMsgId) {
+                    request.confirmed = true;
                 }
             }
         });
@@ -1811,15 +1997,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (int i = 0; i < runningRequests.size(); i++) {
-                    RPCRequest request = runningRequests.get(i);
+                RPCRequest request = requestScheduler.getRunningRequest(requestMsgId);
+                if (request != null) {
                     removeRequestInClass(request.token);
-                    if (request.respondsToMessageId(requestMsgId)) {
-                        request.rawRequest.freeResources();
-                        request.rpcRequest.freeResources();
-                        runningRequests.remove(i);
-                        i--;
-                    }
+                    request.rawRequest.freeResources();
+                    request.rpcRequest.freeResources();
+                    requestScheduler.removeRunning(request);
                 }
             }
         });
@@ -1912,14 +2095,15 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 serverSaltDesc.value = serverSalt;
                 datacenter.addServerSalt(serverSaltDesc);
 
-                for (RPCRequest request : runningRequests) {
+                for (RPCRequest request : requestScheduler.runningRequests) {
                     Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
-                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                        request.runningMessageId = 0;
+                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && request.connectionNum == connection.connectionNum && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
+                        requestScheduler.setRunningMessageId(request, 0);
                         request.runningMessageSeqNo = 0;
                         request.runningStartTime = 0;
                         request.runningMinStartTime = 0;
                         request.transportChannelToken = 0;
+                        requestScheduler.scheduleNow(request);
                     }
                 }
 
@@ -1991,20 +2175,17 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         } else if (message instanceof TLRPC.TL_futuresalts) {
             TLRPC.TL_futuresalts futureSalts = (TLRPC.TL_futuresalts)message;
             long requestMid = futureSalts.req_msg_id;
-            for (RPCRequest request : runningRequests) {
-                if (request.respondsToMessageId(requestMid)) {
-                    if (request.completionBlock != null) {
-                        request.completionBlock.run(futureSalts, null);
-                    }
-
-                    futureSalts.freeResources();
+            RPCRequest request = requestScheduler.getRunningRequest(requestMid);
+            if (request != null) {
+                if (request.completionBlock != null) {
+                    request.completionBlock.run(futureSalts, null);
+                }
 
-                    messagesConfirmed(requestMid);
-                    request.completed = true;
-                    rpcCompleted(requestMid);
+                futureSalts.freeResources();
 
-                    break;
-                }
+                messagesConfirmed(requestMid);
+                request.completed = true;
+                rpcCompleted(requestMid);
             }
         } else if (message instanceof TLRPC.DestroySessionRes) {
             TLRPC.DestroySessionRes res = (TLRPC.DestroySessionRes)message;
@@ -2073,164 +2254,163 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if (!ignoreResult) {
                 boolean found = false;
 
-                for (RPCRequest request : runningRequests) {
-                    if (request.respondsToMessageId(resultMid)) {
-                        found = true;
+                RPCRequest request = requestScheduler.getRunningRequest(resultMid);
+                if (request != null) {
+                    found = true;
 
-                        boolean discardResponse = false;
-                        boolean isError = false;
-                        if (request.completionBlock != null) {
-                            TLRPC.TL_error implicitError = null;
-                            if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
-                                TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed)resultContainer.result;
-                                TLObject uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
-                                if (uncomressed == null) {
-                                    System.gc();
-                                    uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
-                                }
-                                if (uncomressed == null) {
-                                    throw new RuntimeException("failed to decomress responce for " + request.rawRequest);
-                                }
-                                resultContainer.result = uncomressed;
+                    boolean discardResponse = false;
+                    boolean isError = false;
+                    if (request.completionBlock != null) {
+                        TLRPC.TL_error implicitError = null;
+                        if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
+                            TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed)resultContainer.result;
+                            TLObject uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
+                            if (uncomressed == null) {
+                                System.gc();
+                                uncomressed = Utilities.decompress(packet.packed_data, request.rawRequest);
                             }
-                            if (resultContainer.result instanceof TLRPC.RpcError) {
-                                String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
-                                FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
-
-                                int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
-
-                                if (errorCode == 500 || errorCode < 0) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
-                                        discardResponse = true;
-                                        int delay = Math.min(1, request.serverFailureCount * 2);
-                                        request.runningMinStartTime = request.runningStartTime + delay;
-                                        request.confirmed = false;
-                                    }
-                                    request.serverFailureCount++;
-                                } else if (errorCode == 420) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
-                                        double waitTime = 2.0;
-
-                                        if (errorMessage.contains("FLOOD_WAIT_")) {
-                                            String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
-
-                                            Pattern pattern = Pattern.compile("[0-9]+");
-                                            Matcher matcher = pattern.matcher(errorMsg);
-                                            if (matcher.find()) {
-                                                errorMsg = matcher.group(0);
-                                            }
-
-                                            Integer val;
-                                            try {
-                                                val = Integer.parseInt(errorMsg);
-                                            } catch (Exception e) {
-                                                val = null;
-                                            }
-                                            if (val != null) {
-                                                waitTime = val;
-                                            }
-                                        }
+                            if (uncomressed == null) {
+                                throw new RuntimeException("failed to decomress responce for " + request.rawRequest);
+                            }
+                            resultContainer.result = uncomressed;
+                        }
+                        if (resultContainer.result instanceof TLRPC.RpcError) {
+                            String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
+                            FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
 
-                                        waitTime = Math.min(30, waitTime);
+                            int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
 
-                                        discardResponse = true;
-                                        request.wait = true;
-                                        request.runningMinStartTime = (int)(System.currentTimeMillis() / 1000 + waitTime);
-                                        request.confirmed = false;
-                                    }
+                            if (errorCode == 500 || errorCode < 0) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
+                                    discardResponse = true;
+                                    int delay = Math.min(1, request.serverFailureCount * 2);
+                                    request.runningMinStartTime = request.runningStartTime + delay;
+                                    request.confirmed = false;
                                 }
+                                request.serverFailureCount++;
+                            } else if (errorCode == 420) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
+                                    double waitTime = 2.0;
+
+                                    if (errorMessage.contains("FLOOD_WAIT_")) {
+                                        String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
+
+                                        Pattern pattern = Pattern.compile("[0-9]+");
+                                        Matcher matcher = pattern.matcher(errorMsg);
+                                        if (matcher.find()) {
+                                            errorMsg = matcher.group(0);
+                                        }
 
-                                implicitError = new TLRPC.TL_error();
-                                implicitError.code = ((TLRPC.RpcError)resultContainer.result).error_code;
-                                implicitError.text = ((TLRPC.RpcError)resultContainer.result).error_message;
-                            } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
-                                if (request.rawRequest == null || resultContainer.result == null || !request.rawRequest.responseClass().isAssignableFrom(resultContainer.result.getClass())) {
-                                    if (request.rawRequest == null) {
-                                        FileLog.e("tmessages", "rawRequest is null");
-                                    } else {
-                                        FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (" + request.rawRequest.responseClass() + " expected)");
+                                        Integer val;
+                                        try {
+                                            val = Integer.parseInt(errorMsg);
+                                        } catch (Exception e) {
+                                            val = null;
+                                        }
+                                        if (val != null) {
+                                            waitTime = val;
+                                        }
                                     }
-                                    implicitError = new TLRPC.TL_error();
-                                    implicitError.code = -1000;
-                                    implicitError.text = "";
+
+                                    waitTime = Math.min(30, waitTime);
+
+                                    discardResponse = true;
+                                    request.wait = true;
+                                    request.runningMinStartTime = (int)(System.currentTimeMillis() / 1000 + waitTime);
+                                    request.confirmed = false;
                                 }
                             }
 
-                            if (!discardResponse) {
-                                if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
-                                    isError = true;
-                                    request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
+                            implicitError = new TLRPC.TL_error();
+                            implicitError.code = ((TLRPC.RpcError)resultContainer.result).error_code;
+                            implicitError.text = ((TLRPC.RpcError)resultContainer.result).error_message;
+                        } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
+                            if (request.rawRequest == null || resultContainer.result == null || !request.rawRequest.responseClass().isAssignableFrom(resultContainer.result.getClass())) {
+                                if (request.rawRequest == null) {
+                                    FileLog.e("tmessages", "rawRequest is null");
                                 } else {
-                                    if (resultContainer.result instanceof TLRPC.updates_Difference) {
-                                        pushMessagesReceived = true;
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                if (wakeLock.isHeld()) {
-                                                    FileLog.e("tmessages", "release wakelock");
-                                                    wakeLock.release();
-                                                }
-                                            }
-                                        });
-                                    }
-                                    request.completionBlock.run(resultContainer.result, null);
+                                    FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (" + request.rawRequest.responseClass() + " expected)");
                                 }
+                                implicitError = new TLRPC.TL_error();
+                                implicitError.code = -1000;
+                                implicitError.text = "";
                             }
+                        }
 
-                            if (implicitError != null && implicitError.code == 401) {
+                        if (!discardResponse) {
+                            if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
                                 isError = true;
-                                if (implicitError.text != null && implicitError.text.contains("SESSION_PASSWORD_NEEDED")) {
-                                    /*UserConfig.setWaitingForPasswordEnter(true); TODO
-                                    UserConfig.saveConfig(false);
-                                    if (UserConfig.isClientActivated()) {
-                                        discardResponse = true;
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.needPasswordEnter);
-                                            }
-                                        });
-                                    }*/
-                                } else if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && UserConfig.isClientActivated()) {
-                                        UserConfig.clearConfig();
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.appDidLogout);
+                                request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
+                            } else {
+                                if (resultContainer.result instanceof TLRPC.updates_Difference) {
+                                    pushMessagesReceived = true;
+                                    AndroidUtilities.runOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (wakeLock.isHeld()) {
+                                                FileLog.e("tmessages", "release wakelock");
+                                                wakeLock.release();
                                             }
-                                        });
-                                    }
-                                } else {
-                                    datacenter.authorized = false;
-                                    saveSession();
-                                    discardResponse = true;
-                                    if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                                        retryRequestsFromDatacenter = datacenter.datacenterId;
-                                        retryRequestsClass = request.flags;
-                                    }
+                                        }
+                                    });
                                 }
+                                request.completionBlock.run(resultContainer.result, null);
                             }
                         }
 
-                        if (!discardResponse) {
-                            if (request.initRequest && !isError) {
-                                if (datacenter.lastInitVersion != currentAppVersion) {
-                                    datacenter.lastInitVersion = currentAppVersion;
-                                    saveSession();
-                                    FileLog.e("tmessages", "init connection completed");
-                                } else {
-                                    FileLog.e("tmessages", "rpc is init, but init connection already completed");
+                        if (implicitError != null && implicitError.code == 401) {
+                            isError = true;
+                            if (implicitError.text != null && implicitError.text.contains("SESSION_PASSWORD_NEEDED")) {
+                                /*UserConfig.setWaitingForPasswordEnter(true); TODO
+                                UserConfig.saveConfig(false);
+                                if (UserConfig.isClientActivated()) {
+                                    discardResponse = true;
+                                    AndroidUtilities.runOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.needPasswordEnter);
+                                        }
+                                    });
+                                }*/
+                            } else if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
+                                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && UserConfig.isClientActivated()) {
+                                    UserConfig.clearConfig();
+                                    AndroidUtilities.runOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.appDidLogout);
+                                        }
+                                    });
+                                }
+                            } else {
+                                datacenter.authorized = false;
+                                saveSession();
+                                discardResponse = true;
+                                if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                                    retryRequestsFromDatacenter = datacenter.datacenterId;
+                                    retryRequestsClass = request.flags;
                                 }
                             }
-                            request.completed = true;
-                            rpcCompleted(resultMid);
-                        } else {
-                            request.runningMessageId = 0;
-                            request.runningMessageSeqNo = 0;
-                            request.transportChannelToken = 0;
                         }
-                        break;
+                    }
+
+                    if (!discardResponse) {
+                        if (request.initRequest && !isError) {
+                            if (datacenter.lastInitVersion != currentAppVersion) {
+                                datacenter.lastInitVersion = currentAppVersion;
+                                saveSession();
+                                FileLog.e("tmessages", "init connection completed");
+                            } else {
+                                FileLog.e("tmessages", "rpc is init, but init connection already completed");
+                            }
+                        }
+                        request.completed = true;
+                        rpcCompleted(resultMid);
+                    } else {
+                        requestScheduler.setRunningMessageId(request, 0);
+                        request.runningMessageSeqNo = 0;
+                        request.transportChannelToken = 0;
+                        requestScheduler.scheduleNow(request);
                     }
                 }
 
@@ -2289,15 +2469,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
             long resultMid = ((TLRPC.TL_bad_server_salt) message).bad_msg_id;
             if (resultMid != 0) {
-                for (RPCRequest request : runningRequests) {
-                    if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) == 0) {
-                        continue;
-                    }
-                    if (request.respondsToMessageId(resultMid)) {
-                        request.retryCount = 0;
-                        request.salt = true;
-                        break;
-                    }
+                RPCRequest request = requestScheduler.getRunningRequest(resultMid);
+                if (request != null && (request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                    request.retryCount = 0;
+                    request.salt = true;
                 }
             }
 
@@ -2322,18 +2497,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             boolean confirm = true;
 
             if (detailedInfo instanceof TLRPC.TL_msg_detailed_info) {
-                for (RPCRequest request : runningRequests) {
-                    if (request.respondsToMessageId(detailedInfo.msg_id)) {
-                        if (request.completed) {
-                            break;
-                        }
-                        if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int)(System.currentTimeMillis() / 1000)) {
-                            request.lastResendTime = (int)(System.currentTimeMillis() / 1000);
-                            requestResend = true;
-                        } else {
-                            confirm = false;
-                        }
-                        break;
+                RPCRequest request = requestScheduler.getRunningRequest(detailedInfo.msg_id);
+                if (request != null && !request.completed) {
+                    if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int)(System.currentTimeMillis() / 1000)) {
+                        request.lastResendTime = (int)(System.currentTimeMillis() / 1000);
+                        requestResend = true;
+                    } else {
+                        confirm = false;
                     }
                 }
             } else {
@@ -2398,7 +2568,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         }
     }
 
-    private ByteBufferDesc generatePingData(TcpConnection connection) {
+    private NetworkMessage generatePingMessage(TcpConnection connection) {
         if (connection == null) {
             return null;
         }
@@ -2425,10 +2595,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
         NetworkMessage networkMessage = new NetworkMessage();
         networkMessage.protoMessage = wrapMessage(ping, connection, false);
-
-        ArrayList<NetworkMessage> arr = new ArrayList<>();
-        arr.add(networkMessage);
-        return createConnectionData(arr, null, connection);
+        if (networkMessage.protoMessage == null) {
+            return null;
+        }
+        return networkMessage;
     }
 
     void generatePing(Datacenter datacenter, boolean push) {
@@ -2439,13 +2609,22 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             connection = datacenter.connection;
         }
         if (connection != null && (push || !push && connection.channelToken != 0)) {
-            ByteBufferDesc transportData = generatePingData(connection);
-            if (transportData != null) {
-                if (push) {
+            NetworkMessage networkMessage = generatePingMessage(connection);
+            if (networkMessage == null) {
+                return;
+            }
+            if (push) {
+                ArrayList<NetworkMessage> arr = new ArrayList<>();
+                arr.add(networkMessage);
+                ByteBufferDesc transportData = createConnectionData(arr, null, connection);
+                if (transportData != null) {
                     FileLog.e("tmessages", "send push ping");
                     sendingPushPing = true;
+                    connection.sendData(transportData, TcpConnection.FRAME_HEADER_SPACE, true, false);
                 }
-                connection.sendData(transportData, true, false);
+            } else {
+                addMessageToDatacenter(datacenter.datacenterId, networkMessage);
+                flushGenericMessages(datacenter.datacenterId, true);
             }
         }
     }
@@ -2536,11 +2715,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     public void tcpConnectionQuiackAckReceived(TcpConnection connection, int ack) {
         ArrayList<Long> arr = quickAckIdToRequestIds.get(ack);
         if (arr != null) {
-            for (RPCRequest request : runningRequests) {
-                if (arr.contains(request.token)) {
-                    if (request.quickAckBlock != null) {
-                        request.quickAckBlock.quickAck();
-                    }
+            for (Long token : arr) {
+                RPCRequest request = requestScheduler.getRequest(token);
+                if (request != null && request.running && request.quickAckBlock != null) {
+                    request.quickAckBlock.quickAck();
                 }
             }
             quickAckIdToRequestIds.remove(ack);
@@ -2612,10 +2790,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 return;
             }
 
-            byte[] messageKey = data.readData(16);
-            MessageKeyData keyData = Utilities.generateMessageKeyData(datacenter.authKey, messageKey, true);
-
-            Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, false, false, data.position(), length - 24);
+            if (!messageEncryption.decryptMessage(data, length, datacenter.authKey, true)) {
+                FileLog.e("tmessages", "***** Error: invalid message key");
+                datacenter.switchTo443Port();
+                connection.suspendConnection(true);
+                connection.connect();
+                return;
+            }
 
             long messageServerSalt = data.readInt64();
             long messageSessionId = data.readInt64();
@@ -2640,19 +2821,6 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 connection.addMessageToConfirm(messageId);
             }
 
-            byte[] realMessageKeyFull = Utilities.computeSHA1(data.buffer, 24, Math.min(messageLength + 32 + 24, data.limit()));
-            if (realMessageKeyFull == null) {
-                return;
-            }
-
-            if (!Utilities.arraysEquals(messageKey, 0, realMessageKeyFull, realMessageKeyFull.length - 16)) {
-                FileLog.e("tmessages", "***** Error: invalid message key");
-                datacenter.switchTo443Port();
-                connection.suspendConnection(true);
-                connection.connect();
-                return;
-            }
-
             if (!doNotProcess) {
                 int constructor = data.readInt32();
                 TLObject message = TLClassStore.Instance().TLdeserialize(data, constructor, getRequestWithMessageId(messageId));
@@ -2681,10 +2849,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     public TLObject getRequestWithMessageId(long msgId) {
-        for (RPCRequest request : runningRequests) {
-            if (msgId == request.runningMessageId) {
-                return request.rawRequest;
-            }
+        RPCRequest request = requestScheduler.getRunningRequest(msgId);
+        if (request != null && request.runningMessageId == msgId) {
+            return request.rawRequest;
         }
         return null;
     }
@@ -18,6 +18,8 @@ import java.util.HashMap;
 
 public class Datacenter {
     private static final int DATA_VERSION = 4;
+    public static final int DOWNLOAD_CONNECTIONS_COUNT = 2;
+    public static final int UPLOAD_CONNECTIONS_COUNT = 2;
 
     public int datacenterId;
     public ArrayList<String> addresses = new ArrayList<>();
@@ -33,8 +35,8 @@ public class Datacenter {
     private volatile int currentAddressNum = 0;
 
     public TcpConnection connection;
-    private TcpConnection downloadConnection;
-    private TcpConnection uploadConnection;
+    private TcpConnection[] downloadConnections = new TcpConnection[DOWNLOAD_CONNECTIONS_COUNT];
+    private TcpConnection[] uploadConnections = new TcpConnection[UPLOAD_CONNECTIONS_COUNT];
     public TcpConnection pushConnection;
 
     private ArrayList<ServerSalt> authServerSaltSet = new ArrayList<>();
@@ -332,11 +334,15 @@ public class Datacenter {
         if (connection != null) {
             connection.suspendConnection(true);
         }
-        if (uploadConnection != null) {
-            uploadConnection.suspendConnection(true);
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                uploadConnection.suspendConnection(true);
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.suspendConnection(true);
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                downloadConnection.suspendConnection(true);
+            }
         }
     }
 
@@ -344,11 +350,15 @@ public class Datacenter {
         if (connection != null) {
             sessions.add(connection.getSissionId());
         }
-        if (uploadConnection != null) {
-            sessions.add(uploadConnection.getSissionId());
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                sessions.add(uploadConnection.getSissionId());
+            }
         }
-        if (downloadConnection != null) {
-            sessions.add(downloadConnection.getSissionId());
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                sessions.add(downloadConnection.getSissionId());
+            }
         }
     }
 
@@ -356,36 +366,50 @@ public class Datacenter {
         if (connection != null) {
             connection.recreateSession();
         }
-        if (uploadConnection != null) {
-            uploadConnection.recreateSession();
+        for (TcpConnection uploadConnection : uploadConnections) {
+            if (uploadConnection != null) {
+                uploadConnection.recreateSession();
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.recreateSession();
+        for (TcpConnection downloadConnection : downloadConnections) {
+            if (downloadConnection != null) {
+                downloadConnection.recreateSession();
+            }
         }
     }
 
     public TcpConnection getDownloadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+        return getDownloadConnection(0, delegate);
+    }
+
+    public TcpConnection getDownloadConnection(int num, TcpConnection.TcpConnectionDelegate delegate) {
         if (authKey != null) {
-            if (downloadConnection == null) {
-                downloadConnection = new TcpConnection(datacenterId);
-                downloadConnection.delegate = delegate;
-                downloadConnection.transportRequestClass = RPCRequest.RPCRequestClassDownloadMedia;
+            if (downloadConnections[num] == null) {
+                downloadConnections[num] = new TcpConnection(datacenterId);
+                downloadConnections[num].delegate = delegate;
+                downloadConnections[num].transportRequestClass = RPCRequest.RPCRequestClassDownloadMedia;
+                downloadConnections[num].connectionNum = num;
             }
-            downloadConnection.connect();
+            downloadConnections[num].connect();
         }
-        return downloadConnection;
+        return downloadConnections[num];
     }
 
     public TcpConnection getUploadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+        return getUploadConnection(0, delegate);
+    }
+
+    public TcpConnection getUploadConnection(int num, TcpConnection.TcpConnectionDelegate delegate) {
         if (authKey != null) {
-            if (uploadConnection == null) {
-                uploadConnection = new TcpConnection(datacenterId);
-                uploadConnection.delegate = delegate;
-                uploadConnection.transportRequestClass = RPCRequest.RPCRequestClassUploadMedia;
+            if (uploadConnections[num] == null) {
+                uploadConnections[num] = new TcpConnection(datacenterId);
+                uploadConnections[num].delegate = delegate;
+                uploadConnections[num].transportRequestClass = RPCRequest.RPCRequestClassUploadMedia;
+                uploadConnections[num].connectionNum = num;
             }
-            uploadConnection.connect();
+            uploadConnections[num].connect();
         }
-        return uploadConnection;
+        return uploadConnections[num];
     }
 
     public TcpConnection getGenericConnection(TcpConnection.TcpConnectionDelegate delegate) {
@@ -0,0 +1,167 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed set of worker threads fed from one priority queue. Higher priority runnables are taken
+ * first, equal priorities keep posting order. A runnable that has not started yet can be cancelled
+ * or moved to another priority. Queue wait and run times are collected into power of two
+ * millisecond histograms.
+ */
+public class DispatchPool {
+
+    private static final int HISTOGRAM_BUCKETS = 10;
+
+    private static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long sequence;
+        final long postTime;
+        int priority;
+
+        Task(Runnable runnable, int priority, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+            postTime = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private long sequence;
+    private final String name;
+
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLongArray runHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    public DispatchPool(String name, int threadsCount) {
+        this.name = name;
+        for (int a = 0; a < threadsCount; a++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+            thread.setName(name + a);
+            thread.start();
+        }
+    }
+
+    public void postRunnable(Runnable runnable, int priority) {
+        synchronized (queue) {
+            queue.add(new Task(runnable, priority, sequence++));
+            queue.notify();
+        }
+    }
+
+    public void cancelRunnable(Runnable runnable) {
+        synchronized (queue) {
+            Iterator<Task> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == runnable) {
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a runnable that is still waiting to the given priority, keeping its place among the
+     * runnables of that priority.
+     */
+    public void setPriority(Runnable runnable, int priority) {
+        synchronized (queue) {
+            Iterator<Task> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (task.runnable == runnable) {
+                    if (task.priority != priority) {
+                        iterator.remove();
+                        task.priority = priority;
+                        queue.add(task);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    public void cleanupQueue() {
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Task task;
+            synchronized (queue) {
+                while (queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        //cancelled runnables interrupt their thread, keep waiting
+                    }
+                }
+                task = queue.poll();
+            }
+            long startTime = System.nanoTime();
+            waitHistogram.incrementAndGet(bucket(startTime - task.postTime));
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                FileLog.e("tmessages", e);
+            }
+            runHistogram.incrementAndGet(bucket(System.nanoTime() - startTime));
+        }
+    }
+
+    private static int bucket(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (millis > 0 && bucket < HISTOGRAM_BUCKETS - 1) {
+            millis >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder(name);
+        int waiting;
+        synchronized (queue) {
+            waiting = queue.size();
+        }
+        builder.append(String.format(Locale.US, " waiting=%d", waiting));
+        appendHistogram(builder, " wait:", waitHistogram);
+        appendHistogram(builder, " run:", runHistogram);
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String title, AtomicLongArray histogram) {
+        builder.append(title);
+        for (int a = 0; a < HISTOGRAM_BUCKETS; a++) {
+            builder.append(a == HISTOGRAM_BUCKETS - 1 ? " >=" : " <").append(a == HISTOGRAM_BUCKETS - 1 ? 1 << (a - 1) : 1 << a).append("ms=").append(histogram.get(a));
+        }
+    }
+}
@@ -10,6 +10,7 @@ package org.hermes.messenger;
 
 import java.io.RandomAccessFile;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -19,6 +20,9 @@ public class FileLoadOperation {
     private static class RequestInfo {
         private long requestToken = 0;
         private int offset = 0;
+        private int limit = 0;
+        private int bytesCount = 0;
+        private long startTime = 0;
         private TLRPC.TL_upload_file response = null;
     }
 
@@ -27,29 +31,42 @@ public class FileLoadOperation {
     private final static int stateFailed = 2;
     private final static int stateFinished = 3;
 
-    private final static int downloadChunkSize = 1024 * 32;
-    private final static int maxDownloadRequests = 3;
+    private final static int minDownloadChunkSize = 1024 * 32;
+    private final static int maxDownloadChunkSize = 1024 * 512;
+    private final static int minDownloadRequests = 2;
+    private final static int maxDownloadRequests = 8;
+    private final static int syncBytesInterval = 1024 * 1024;
 
     private int datacenter_id;
     private TLRPC.InputFileLocation location;
     private volatile int state = stateIdle;
     private int downloadedBytes;
+    private int writtenAheadBytes;
     private int totalBytesCount;
+    private int endOffset = -1;
     private FileLoadOperationDelegate delegate;
     private byte[] key;
     private byte[] iv;
 
     private int nextDownloadOffset = 0;
+    private int downloadChunkSize = minDownloadChunkSize;
+    private int currentMaxDownloadRequests = 3;
+    private float averageRtt = 0;
+    private float minRtt = 0;
+    private int unsyncedBytes = 0;
     private ArrayList<RequestInfo> requestInfos = new ArrayList<>(maxDownloadRequests);
     private ArrayList<RequestInfo> delayedRequestInfos = new ArrayList<>(maxDownloadRequests - 1);
 
     private File cacheFileTemp;
     private File cacheFileFinal;
     private File cacheIvTemp;
+    private File cacheFileParts;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
+    private FileChannel fileOutputChannel;
     private RandomAccessFile fiv;
+    private RandomAccessFile fparts;
     private File storePath = null;
     private File tempPath = null;
     private boolean isForceRequest = false;
@@ -225,9 +242,22 @@ public class FileLoadOperation {
 
         if (!cacheFileFinal.exists()) {
             cacheFileTemp = new File(tempPath, fileNameTemp);
+            if (fileNameIv == null) {
+                cacheFileParts = new File(tempPath, fileNameTemp + ".pt");
+            }
             if (cacheFileTemp.exists()) {
-                downloadedBytes = (int)cacheFileTemp.length();
-                nextDownloadOffset = downloadedBytes = downloadedBytes / 1024 * 1024;
+                if (cacheFileParts != null && cacheFileParts.exists()) {
+                    try {
+                        fparts = new RandomAccessFile(cacheFileParts, "rw");
+                        downloadedBytes = fparts.length() >= 4 ? fparts.readInt() : 0;
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        downloadedBytes = 0;
+                    }
+                } else {
+                    downloadedBytes = (int)cacheFileTemp.length();
+                }
+                downloadedBytes = Math.max(0, Math.min(downloadedBytes, (int) cacheFileTemp.length())) / 1024 * 1024;
             }
             if (fileNameIv != null) {
                 cacheIvTemp = new File(tempPath, fileNameIv);
@@ -244,11 +274,29 @@ public class FileLoadOperation {
                     downloadedBytes = 0;
                 }
             }
-            try {
-                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
-                if (downloadedBytes != 0) {
-                    fileOutputStream.seek(downloadedBytes);
+            nextDownloadOffset = downloadedBytes;
+            if (cacheFileParts != null) {
+                try {
+                    if (fparts == null) {
+                        fparts = new RandomAccessFile(cacheFileParts, "rw");
+                    }
+                    fparts.seek(0);
+                    fparts.writeInt(downloadedBytes);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                    try {
+                        if (fparts != null) {
+                            fparts.close();
+                        }
+                    } catch (Exception e2) {
+                        FileLog.e("tmessages", e2);
+                    }
+                    fparts = null;
                 }
+            }
+            try {
+                fileOutputStream = new RandomAccessFile(cacheFileTemp, isWritingOutOfOrder() ? "rw" : "rws");
+                fileOutputChannel = fileOutputStream.getChannel();
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
@@ -304,11 +352,17 @@ public class FileLoadOperation {
         });
     }
 
+    private boolean isWritingOutOfOrder() {
+        return key == null && fparts != null;
+    }
+
     private void cleanup() {
+        syncDownloadedBytes();
         try {
             if (fileOutputStream != null) {
                 fileOutputStream.close();
                 fileOutputStream = null;
+                fileOutputChannel = null;
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -322,11 +376,17 @@ public class FileLoadOperation {
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
-        for (RequestInfo requestInfo : delayedRequestInfos) {
-            if (requestInfo.response != null) {
-                requestInfo.response.disableFree = false;
-                requestInfo.response.freeResources();
+
+        try {
+            if (fparts != null) {
+                fparts.close();
+                fparts = null;
             }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        for (RequestInfo requestInfo : delayedRequestInfos) {
+            freeResponse(requestInfo);
         }
         delayedRequestInfos.clear();
     }
@@ -340,7 +400,15 @@ public class FileLoadOperation {
         if (cacheIvTemp != null) {
             cacheIvTemp.delete();
         }
+        if (cacheFileParts != null) {
+            cacheFileParts.delete();
+        }
         if (cacheFileTemp != null) {
+            if (endOffset >= 0 && cacheFileTemp.length() > endOffset) {
+                RandomAccessFile file = new RandomAccessFile(cacheFileTemp, "rw");
+                file.setLength(endOffset);
+                file.close();
+            }
             if (!cacheFileTemp.renameTo(cacheFileFinal)) {
                 cacheFileFinal = cacheFileTemp;
             }
@@ -348,59 +416,170 @@ public class FileLoadOperation {
         delegate.didFinishLoadingFile(FileLoadOperation.this, cacheFileFinal);
     }
 
+    private void freeResponse(RequestInfo requestInfo) {
+        if (requestInfo.response != null) {
+            requestInfo.response.disableFree = false;
+            requestInfo.response.freeResources();
+            requestInfo.response = null;
+        }
+    }
+
+    private void writeResponse(RequestInfo requestInfo) throws Exception {
+        ByteBuffer buffer = requestInfo.response.bytes.buffer;
+        if (key != null) {
+            Utilities.aesIgeEncryption(buffer, key, iv, false, true, 0, requestInfo.bytesCount);
+        }
+        if (fileOutputChannel != null) {
+            long position = requestInfo.offset;
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                position += fileOutputChannel.write(buffer, position);
+            }
+        }
+        if (fiv != null) {
+            fiv.seek(0);
+            fiv.write(iv);
+        }
+        unsyncedBytes += requestInfo.bytesCount;
+    }
+
+    private void syncDownloadedBytes() {
+        unsyncedBytes = 0;
+        if (fileOutputChannel == null || fparts == null) {
+            return;
+        }
+        try {
+            fileOutputChannel.force(false);
+            fparts.seek(0);
+            fparts.writeInt(downloadedBytes);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void updateDownloadWindow(RequestInfo requestInfo) {
+        long currentTime = System.currentTimeMillis();
+        float rtt = Math.max(1, currentTime - requestInfo.startTime);
+        if (averageRtt == 0) {
+            averageRtt = rtt;
+            minRtt = rtt;
+        } else {
+            averageRtt = averageRtt * 0.75f + rtt * 0.25f;
+            minRtt = Math.min(minRtt, rtt);
+        }
+        if (totalBytesCount <= 0 || requestInfo.bytesCount < requestInfo.limit) {
+            return;
+        }
+        if (averageRtt > minRtt * 3) {
+            if (currentMaxDownloadRequests > minDownloadRequests) {
+                currentMaxDownloadRequests--;
+            } else if (downloadChunkSize > minDownloadChunkSize) {
+                downloadChunkSize /= 2;
+            }
+        } else if (averageRtt < minRtt * 1.5f) {
+            int maxChunkSize = minDownloadChunkSize;
+            while (maxChunkSize < maxDownloadChunkSize && maxChunkSize * 2 * minDownloadRequests * 2 <= totalBytesCount) {
+                maxChunkSize *= 2;
+            }
+            if (downloadChunkSize < maxChunkSize) {
+                downloadChunkSize *= 2;
+            } else if (currentMaxDownloadRequests < maxDownloadRequests) {
+                currentMaxDownloadRequests++;
+            }
+        }
+    }
+
+    private void reportProgress() {
+        if (totalBytesCount > 0 && state == stateDownloading) {
+            delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) (downloadedBytes + writtenAheadBytes) / (float) totalBytesCount));
+        }
+    }
+
+    private void setEndOffset(int offset) {
+        if (endOffset < 0 || offset < endOffset) {
+            endOffset = offset;
+        }
+    }
+
+    private boolean isDownloadComplete() {
+        return endOffset >= 0 && downloadedBytes >= endOffset || totalBytesCount > 0 && downloadedBytes >= totalBytesCount;
+    }
+
+    private RequestInfo findDelayedRequestInfo(int offset) {
+        for (RequestInfo delayedRequestInfo : delayedRequestInfos) {
+            if (delayedRequestInfo.offset == offset) {
+                return delayedRequestInfo;
+            }
+        }
+        return null;
+    }
+
     private void processRequestResult(RequestInfo requestInfo, TLRPC.TL_error error) {
         requestInfos.remove(requestInfo);
+        if (state != stateDownloading) {
+            freeResponse(requestInfo);
+            return;
+        }
         if (error == null) {
             try {
+                requestInfo.bytesCount = requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0;
+                updateDownloadWindow(requestInfo);
+                if (requestInfo.bytesCount < requestInfo.limit) {
+                    setEndOffset(requestInfo.offset + requestInfo.bytesCount);
+                }
+
                 if (downloadedBytes != requestInfo.offset) {
-                    if (state == stateDownloading) {
+                    if (requestInfo.offset < downloadedBytes || findDelayedRequestInfo(requestInfo.offset) != null) {
+                        freeResponse(requestInfo);
+                    } else if (isWritingOutOfOrder()) {
+                        if (requestInfo.bytesCount != 0) {
+                            writeResponse(requestInfo);
+                        }
+                        writtenAheadBytes += requestInfo.bytesCount;
+                        freeResponse(requestInfo);
                         delayedRequestInfos.add(requestInfo);
+                        reportProgress();
+                    } else {
                         requestInfo.response.disableFree = true;
+                        delayedRequestInfos.add(requestInfo);
                     }
                     return;
                 }
 
-                if (requestInfo.response.bytes == null || requestInfo.response.bytes.limit() == 0) {
+                if (requestInfo.bytesCount == 0) {
+                    freeResponse(requestInfo);
                     onFinishLoadingFile();
                     return;
                 }
-                if (key != null) {
-                    Utilities.aesIgeEncryption(requestInfo.response.bytes.buffer, key, iv, false, true, 0, requestInfo.response.bytes.limit());
-                }
-                if (fileOutputStream != null) {
-                    FileChannel channel = fileOutputStream.getChannel();
-                    channel.write(requestInfo.response.bytes.buffer);
-                }
-                if (fiv != null) {
-                    fiv.seek(0);
-                    fiv.write(iv);
-                }
-                int currentBytesSize = requestInfo.response.bytes.limit();
-                downloadedBytes += currentBytesSize;
-                if (totalBytesCount > 0 && state == stateDownloading) {
-                    delegate.didChangedLoadProgress(FileLoadOperation.this,  Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
-                }
-
-                for (int a = 0; a < delayedRequestInfos.size(); a++) {
-                    RequestInfo delayedRequestInfo = delayedRequestInfos.get(a);
-                    if (downloadedBytes == delayedRequestInfo.offset) {
-                        delayedRequestInfos.remove(a);
-                        processRequestResult(delayedRequestInfo, null);
-                        delayedRequestInfo.response.disableFree = false;
-                        delayedRequestInfo.response.freeResources();
-                        delayedRequestInfo = null;
+                writeResponse(requestInfo);
+                freeResponse(requestInfo);
+                downloadedBytes += requestInfo.bytesCount;
+
+                RequestInfo delayedRequestInfo;
+                while ((delayedRequestInfo = findDelayedRequestInfo(downloadedBytes)) != null) {
+                    delayedRequestInfos.remove(delayedRequestInfo);
+                    if (delayedRequestInfo.bytesCount == 0) {
+                        freeResponse(delayedRequestInfo);
                         break;
                     }
+                    if (delayedRequestInfo.response != null) {
+                        writeResponse(delayedRequestInfo);
+                        freeResponse(delayedRequestInfo);
+                    } else {
+                        writtenAheadBytes -= delayedRequestInfo.bytesCount;
+                    }
+                    downloadedBytes += delayedRequestInfo.bytesCount;
+                }
+
+                if (unsyncedBytes >= syncBytesInterval) {
+                    syncDownloadedBytes();
                 }
+                reportProgress();
 
-                if (currentBytesSize != downloadChunkSize) {
+                if (isDownloadComplete()) {
                     onFinishLoadingFile();
                 } else {
-                    if (totalBytesCount != downloadedBytes && downloadedBytes % downloadChunkSize == 0 || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
-                        startDownloadRequest();
-                    } else {
-                        onFinishLoadingFile();
-                    }
+                    startDownloadRequest();
                 }
             } catch (Exception e) {
                 cleanup();
@@ -423,17 +602,22 @@ public class FileLoadOperation {
                     delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
                 } else {
                     datacenter_id = val;
-                    nextDownloadOffset = 0;
+                    nextDownloadOffset = downloadedBytes;
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
-                if (downloadedBytes % downloadChunkSize == 0) {
-                    try {
-                        onFinishLoadingFile();
-                    } catch (Exception e) {
-                        FileLog.e("tmessages", e);
-                        cleanup();
-                        delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
+                if (downloadedBytes % 1024 == 0) {
+                    setEndOffset(requestInfo.offset);
+                    if (isDownloadComplete()) {
+                        try {
+                            onFinishLoadingFile();
+                        } catch (Exception e) {
+                            FileLog.e("tmessages", e);
+                            cleanup();
+                            delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
+                        }
+                    } else {
+                        startDownloadRequest();
                     }
                 } else {
                     cleanup();
@@ -452,29 +636,40 @@ public class FileLoadOperation {
         }
     }
 
+    private int getNextChunkSize() {
+        int chunkSize = downloadChunkSize;
+        while (chunkSize > 1024 && nextDownloadOffset % chunkSize != 0) {
+            chunkSize /= 2;
+        }
+        return chunkSize;
+    }
+
     private void startDownloadRequest() {
-        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= maxDownloadRequests) {
+        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || endOffset >= 0 && nextDownloadOffset >= endOffset || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
             return;
         }
         int count = 1;
         if (totalBytesCount > 0) {
-            count = Math.max(0, maxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
+            count = Math.max(0, currentMaxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
         }
 
         for (int a = 0; a < count; a++) {
-            if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
+            if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || endOffset >= 0 && nextDownloadOffset >= endOffset) {
                 break;
             }
-            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + downloadChunkSize >= totalBytesCount;
+            int chunkSize = totalBytesCount > 0 ? getNextChunkSize() : minDownloadChunkSize;
+            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + chunkSize >= totalBytesCount;
             TLRPC.TL_upload_getFile req = new TLRPC.TL_upload_getFile();
             req.location = location;
             req.offset = nextDownloadOffset;
-            req.limit = downloadChunkSize;
-            nextDownloadOffset += downloadChunkSize;
+            req.limit = chunkSize;
+            nextDownloadOffset += chunkSize;
 
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = req.offset;
+            requestInfo.limit = req.limit;
+            requestInfo.startTime = System.currentTimeMillis();
             requestInfo.requestToken = ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
@@ -351,7 +351,15 @@ public class FileLoader {
     }
 
     public void loadFile(TLRPC.FileLocation location, int size, boolean cacheOnly) {
-        loadFile(null, null, null, location, size, true, cacheOnly || size == 0 || (location != null && location.key != null));
+        loadFile(location, size, cacheOnly, true);
+    }
+
+    /**
+     * Loads without force for speculative downloads, they wait behind everything that was asked for
+     * with force. Asking for the same location with force later moves it to the front.
+     */
+    public void loadFile(TLRPC.FileLocation location, int size, boolean cacheOnly, boolean force) {
+        loadFile(null, null, null, location, size, force, cacheOnly || size == 0 || (location != null && location.key != null));
     }
 
     private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final int locationSize, final boolean force, final boolean cacheOnly) {
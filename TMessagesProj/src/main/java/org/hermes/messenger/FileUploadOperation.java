@@ -14,27 +14,42 @@ import android.content.SharedPreferences;
 import java.io.File;
 import java.io.FileInputStream;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class FileUploadOperation {
+
+    private static class UploadPart {
+        private int partNum;
+        private int size;
+        private long requestToken;
+        private byte[] ivChange;
+        private boolean confirmed;
+    }
+
+    private final static int maxUploadRequests = 4;
+
     private int uploadChunkSize = 1024 * 32;
     private String uploadingFilePath;
     public int state = 0;
-    private byte[] readBuffer;
     public FileUploadOperationDelegate delegate;
-    private long requestToken = 0;
     private int currentPartNum = 0;
+    private int nextPartNum = 0;
     private long currentFileId;
     private boolean isLastPart = false;
     private long totalFileSize = 0;
     private int totalPartsCount = 0;
     private long currentUploaded = 0;
+    private long confirmedBytes = 0;
+    private long readOffset = 0;
     private int saveInfoTimes = 0;
     private byte[] key;
     private byte[] iv;
     private byte[] ivChange;
+    private byte[] confirmedIvChange;
     private boolean isEncrypted = false;
     private int fingerprint = 0;
     private boolean isBigFile = false;
@@ -42,8 +57,10 @@ public class FileUploadOperation {
     private int estimatedSize = 0;
     private int uploadStartTime = 0;
     private FileInputStream stream;
+    private FileChannel channel;
     private MessageDigest mdEnc = null;
     private boolean started = false;
+    private ArrayList<UploadPart> uploadParts = new ArrayList<>(maxUploadRequests);
 
     public interface FileUploadOperationDelegate {
         void didFinishUploadingFile(FileUploadOperation operation, TLRPC.InputFile inputFile, TLRPC.InputEncryptedFile inputEncryptedFile);
@@ -75,13 +92,26 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        if (requestToken != 0) {
-            ConnectionsManager.getInstance().cancelRpc(requestToken, true);
-        }
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests();
+            }
+        });
         delegate.didFailedUploadingFile(this);
         cleanup();
     }
 
+    private void cancelRequests() {
+        for (UploadPart part : uploadParts) {
+            if (part.requestToken != 0) {
+                ConnectionsManager.getInstance().cancelRpc(part.requestToken, true);
+                part.requestToken = 0;
+            }
+        }
+        uploadParts.clear();
+    }
+
     private void cleanup() {
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
         preferences.edit().remove(fileKey + "_time").
@@ -95,6 +125,7 @@ public class FileUploadOperation {
             if (stream != null) {
                 stream.close();
                 stream = null;
+                channel = null;
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -114,9 +145,7 @@ public class FileUploadOperation {
                         storeFileUploadInfo(preferences);
                     }
                 }
-                if (requestToken == 0) {
-                    startUploadRequest();
-                }
+                startUploadRequest();
             }
         });
     }
@@ -135,270 +164,307 @@ public class FileUploadOperation {
         editor.commit();
     }
 
-    private void startUploadRequest() {
-        if (state != 1) {
+    private void storeUploadedInfo() {
+        if (estimatedSize != 0) {
             return;
         }
+        if (saveInfoTimes >= 4) {
+            saveInfoTimes = 0;
+        }
+        if (isBigFile && currentUploaded % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putLong(fileKey + "_uploaded", currentUploaded);
+            if (isEncrypted && confirmedIvChange != null) {
+                editor.putString(fileKey + "_ivc", Utilities.bytesToHex(confirmedIvChange));
+            }
+            editor.commit();
+        }
+        saveInfoTimes++;
+    }
 
-        TLObject finalRequest;
+    private ByteBufferDesc readPart(long offset) throws Exception {
+        ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(uploadChunkSize);
+        int read = 0;
+        while (sendBuffer.buffer.hasRemaining()) {
+            int count = channel.read(sendBuffer.buffer, offset + read);
+            if (count <= 0) {
+                break;
+            }
+            read += count;
+        }
+        int toAdd = 0;
+        if (isEncrypted && read % 16 != 0) {
+            toAdd += 16 - read % 16;
+        }
+        for (int a = 0; a < toAdd; a++) {
+            sendBuffer.writeByte(0);
+        }
+        sendBuffer.limit(read + toAdd);
+        if (isEncrypted) {
+            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
+        }
+        sendBuffer.rewind();
+        if (!isBigFile) {
+            mdEnc.update(sendBuffer.buffer);
+            sendBuffer.rewind();
+        }
+        return sendBuffer;
+    }
 
-        try {
-            started = true;
-            if (stream == null) {
-                File cacheFile = new File(uploadingFilePath);
-                stream = new FileInputStream(cacheFile);
-                if (estimatedSize != 0) {
-                    totalFileSize = estimatedSize;
-                } else {
-                    totalFileSize = cacheFile.length();
-                }
-                if (totalFileSize > 10 * 1024 * 1024) {
-                    isBigFile = true;
-                } else {
-                    try {
-                        mdEnc = MessageDigest.getInstance("MD5");
-                    } catch (NoSuchAlgorithmException e) {
-                        FileLog.e("tmessages", e);
-                    }
-                }
+    private void initUpload() throws Exception {
+        started = true;
+        File cacheFile = new File(uploadingFilePath);
+        stream = new FileInputStream(cacheFile);
+        channel = stream.getChannel();
+        if (estimatedSize != 0) {
+            totalFileSize = estimatedSize;
+        } else {
+            totalFileSize = cacheFile.length();
+        }
+        int minChunkSize = 32;
+        if (totalFileSize > 10 * 1024 * 1024) {
+            isBigFile = true;
+            minChunkSize = 512;
+        } else {
+            if (totalFileSize > 1024 * 1024) {
+                minChunkSize = 128;
+            }
+            try {
+                mdEnc = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                FileLog.e("tmessages", e);
+            }
+        }
 
-                uploadChunkSize = (int) Math.max(32, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
-                if (1024 % uploadChunkSize != 0) {
-                    int chunkSize = 64;
-                    while (uploadChunkSize > chunkSize) {
-                        chunkSize *= 2;
-                    }
-                    uploadChunkSize = chunkSize;
-                }
+        uploadChunkSize = (int) Math.max(minChunkSize, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
+        if (1024 % uploadChunkSize != 0) {
+            int chunkSize = 64;
+            while (uploadChunkSize > chunkSize) {
+                chunkSize *= 2;
+            }
+            uploadChunkSize = chunkSize;
+        }
 
-                uploadChunkSize *= 1024;
-                totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
-                readBuffer = new byte[uploadChunkSize];
+        uploadChunkSize *= 1024;
+        totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
 
-                fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
-                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                long fileSize = preferences.getLong(fileKey + "_size", 0);
-                uploadStartTime = (int)(System.currentTimeMillis() / 1000);
-                boolean rewrite = false;
-                if (estimatedSize == 0 && fileSize == totalFileSize) {
-                    currentFileId = preferences.getLong(fileKey + "_id", 0);
-                    int date = preferences.getInt(fileKey + "_time", 0);
-                    long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
-                    if (isEncrypted) {
-                        String ivString = preferences.getString(fileKey + "_iv", null);
-                        String keyString = preferences.getString(fileKey + "_key", null);
-                        if (ivString != null && keyString != null) {
-                            key = Utilities.hexToBytes(keyString);
-                            iv = Utilities.hexToBytes(ivString);
-                            ivChange = new byte[32];
-                            System.arraycopy(iv, 0, ivChange, 0, 32);
-                        } else {
-                            rewrite = true;
-                        }
-                    }
-                    if (!rewrite && date != 0) {
-                        if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
-                            date = 0;
-                        } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
-                            date = 0;
-                        }
-                        if (date != 0) {
-                            if (uploadedSize > 0) {
-                                currentUploaded = uploadedSize;
-                                currentPartNum = (int) (uploadedSize / uploadChunkSize);
-                                if (!isBigFile) {
-                                    for (int b = 0; b < currentUploaded / uploadChunkSize; b++) {
-                                        int read = stream.read(readBuffer);
-                                        int toAdd = 0;
-                                        if (isEncrypted && read % 16 != 0) {
-                                            toAdd += 16 - read % 16;
-                                        }
-                                        ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(read + toAdd);
-                                        if (read != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                                            isLastPart = true;
-                                        }
-                                        sendBuffer.writeRaw(readBuffer, 0, read);
-                                        if (isEncrypted) {
-                                            for (int a = 0; a < toAdd; a++) {
-                                                sendBuffer.writeByte(0);
-                                            }
-                                            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
-                                        }
-                                        sendBuffer.rewind();
-                                        mdEnc.update(sendBuffer.buffer);
-                                        BuffersStorage.getInstance().reuseFreeBuffer(sendBuffer);
-                                    }
-                                } else {
-                                    stream.skip(uploadedSize);
-                                    if (isEncrypted) {
-                                        String ivcString = preferences.getString(fileKey + "_ivc", null);
-                                        if (ivcString != null) {
-                                            ivChange = Utilities.hexToBytes(ivcString);
-                                        } else {
-                                            rewrite = true;
-                                            currentUploaded = 0;
-                                            currentPartNum = 0;
-                                        }
-                                    }
-                                }
+        fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+        long fileSize = preferences.getLong(fileKey + "_size", 0);
+        uploadStartTime = (int)(System.currentTimeMillis() / 1000);
+        boolean rewrite = false;
+        if (estimatedSize == 0 && fileSize == totalFileSize) {
+            currentFileId = preferences.getLong(fileKey + "_id", 0);
+            int date = preferences.getInt(fileKey + "_time", 0);
+            long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
+            if (isEncrypted) {
+                String ivString = preferences.getString(fileKey + "_iv", null);
+                String keyString = preferences.getString(fileKey + "_key", null);
+                if (ivString != null && keyString != null) {
+                    key = Utilities.hexToBytes(keyString);
+                    iv = Utilities.hexToBytes(ivString);
+                    ivChange = new byte[32];
+                    System.arraycopy(iv, 0, ivChange, 0, 32);
+                } else {
+                    rewrite = true;
+                }
+            }
+            if (!rewrite && date != 0) {
+                if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
+                    date = 0;
+                } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
+                    date = 0;
+                }
+                if (date != 0) {
+                    if (uploadedSize > 0 && uploadedSize % uploadChunkSize == 0) {
+                        currentUploaded = uploadedSize;
+                        currentPartNum = (int) (uploadedSize / uploadChunkSize);
+                        if (!isBigFile) {
+                            for (int b = 0; b < currentPartNum; b++) {
+                                BuffersStorage.getInstance().reuseFreeBuffer(readPart((long) b * uploadChunkSize));
+                            }
+                        } else if (isEncrypted) {
+                            String ivcString = preferences.getString(fileKey + "_ivc", null);
+                            if (ivcString != null) {
+                                ivChange = Utilities.hexToBytes(ivcString);
                             } else {
                                 rewrite = true;
+                                currentUploaded = 0;
+                                currentPartNum = 0;
                             }
                         }
                     } else {
                         rewrite = true;
                     }
-                } else {
-                    rewrite = true;
-                }
-                if (rewrite) {
-                    if (isEncrypted) {
-                        iv = new byte[32];
-                        key = new byte[32];
-                        ivChange = new byte[32];
-                        Utilities.random.nextBytes(iv);
-                        Utilities.random.nextBytes(key);
-                        System.arraycopy(iv, 0, ivChange, 0, 32);
-                    }
-                    currentFileId = Utilities.random.nextLong();
-                    if (estimatedSize == 0) {
-                        storeFileUploadInfo(preferences);
-                    }
                 }
+            } else {
+                rewrite = true;
+            }
+        } else {
+            rewrite = true;
+        }
+        if (rewrite) {
+            if (isEncrypted) {
+                iv = new byte[32];
+                key = new byte[32];
+                ivChange = new byte[32];
+                Utilities.random.nextBytes(iv);
+                Utilities.random.nextBytes(key);
+                System.arraycopy(iv, 0, ivChange, 0, 32);
+            }
+            currentFileId = Utilities.random.nextLong();
+            if (estimatedSize == 0) {
+                storeFileUploadInfo(preferences);
+            }
+        }
+        nextPartNum = currentPartNum;
+        readOffset = confirmedBytes = currentUploaded;
 
-                if (isEncrypted) {
-                    try {
-                        java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-                        byte[] arr = new byte[64];
-                        System.arraycopy(key, 0, arr, 0, 32);
-                        System.arraycopy(iv, 0, arr, 32, 32);
-                        byte[] digest = md.digest(arr);
-                        for (int a = 0; a < 4; a++) {
-                            fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
-                        }
-                    } catch (Exception e) {
-                        FileLog.e("tmessages", e);
-                    }
-                }
-            } else if (estimatedSize == 0) {
-                if (saveInfoTimes >= 4) {
-                    saveInfoTimes = 0;
+        if (isEncrypted) {
+            try {
+                java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
+                byte[] arr = new byte[64];
+                System.arraycopy(key, 0, arr, 0, 32);
+                System.arraycopy(iv, 0, arr, 32, 32);
+                byte[] digest = md.digest(arr);
+                for (int a = 0; a < 4; a++) {
+                    fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
                 }
-                if (isBigFile && currentUploaded % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
-                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putLong(fileKey + "_uploaded", currentUploaded);
-                    if (isEncrypted) {
-                        editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivChange));
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+    }
+
+    private void startUploadRequest() {
+        if (state != 1) {
+            return;
+        }
+
+        try {
+            if (stream == null) {
+                initUpload();
+            }
+            while (!isLastPart && uploadParts.size() < maxUploadRequests) {
+                if (estimatedSize != 0) {
+                    long size = channel.size();
+                    if (readOffset + uploadChunkSize > size) {
+                        break;
                     }
-                    editor.commit();
                 }
-                saveInfoTimes++;
-            }
 
-            if (estimatedSize != 0) {
-                long size = stream.getChannel().size();
-                if (currentUploaded + uploadChunkSize > size) {
-                    return;
+                ByteBufferDesc sendBuffer = readPart(readOffset);
+                int read = (int) Math.min(uploadChunkSize, Math.max(0, (estimatedSize != 0 ? channel.size() : totalFileSize) - readOffset));
+                if (read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == nextPartNum + 1) {
+                    isLastPart = true;
                 }
-            }
 
-            int read = stream.read(readBuffer);
-            int toAdd = 0;
-            if (isEncrypted && read % 16 != 0) {
-                toAdd += 16 - read % 16;
-            }
-            ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(read + toAdd);
-            if (read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
-                isLastPart = true;
-            }
-            sendBuffer.writeRaw(readBuffer, 0, read);
-            if (isEncrypted) {
-                for (int a = 0; a < toAdd; a++) {
-                    sendBuffer.writeByte(0);
+                final UploadPart part = new UploadPart();
+                part.partNum = nextPartNum;
+                part.size = read;
+                if (isEncrypted) {
+                    part.ivChange = new byte[32];
+                    System.arraycopy(ivChange, 0, part.ivChange, 0, 32);
                 }
-                Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
-            }
-            sendBuffer.rewind();
-            if (!isBigFile) {
-                mdEnc.update(sendBuffer.buffer);
-            }
-            if (isBigFile) {
-                TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                if (estimatedSize != 0) {
-                    req.file_total_parts = -1;
+                uploadParts.add(part);
+                nextPartNum++;
+                readOffset += read;
+
+                TLObject finalRequest;
+                if (isBigFile) {
+                    TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
+                    req.file_part = part.partNum;
+                    req.file_id = currentFileId;
+                    if (estimatedSize != 0) {
+                        req.file_total_parts = -1;
+                    } else {
+                        req.file_total_parts = totalPartsCount;
+                    }
+                    req.bytes = sendBuffer;
+                    finalRequest = req;
                 } else {
-                    req.file_total_parts = totalPartsCount;
+                    TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
+                    req.file_part = part.partNum;
+                    req.file_id = currentFileId;
+                    req.bytes = sendBuffer;
+                    finalRequest = req;
                 }
-                req.bytes = sendBuffer;
-                finalRequest = req;
-            } else {
-                TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentPartNum;
-                req.file_id = currentFileId;
-                req.bytes = sendBuffer;
-                finalRequest = req;
+                part.requestToken = ConnectionsManager.getInstance().performRpc(finalRequest, new RPCRequest.RPCRequestDelegate() {
+                    @Override
+                    public void run(TLObject response, TLRPC.TL_error error) {
+                        part.requestToken = 0;
+                        if (state != 1) {
+                            return;
+                        }
+                        if (error == null && response instanceof TLRPC.TL_boolTrue) {
+                            onPartUploaded(part);
+                        } else {
+                            state = 2;
+                            cancelRequests();
+                            delegate.didFailedUploadingFile(FileUploadOperation.this);
+                            cleanup();
+                        }
+                    }
+                }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID);
             }
-            currentUploaded += read;
         } catch (Exception e) {
             FileLog.e("tmessages", e);
+            state = 2;
+            cancelRequests();
             delegate.didFailedUploadingFile(this);
             cleanup();
-            return;
         }
-        requestToken = ConnectionsManager.getInstance().performRpc(finalRequest, new RPCRequest.RPCRequestDelegate() {
-            @Override
-            public void run(TLObject response, TLRPC.TL_error error) {
-                requestToken = 0;
-                if (error == null) {
-                    if (response instanceof TLRPC.TL_boolTrue) {
-                        currentPartNum++;
-                        delegate.didChangedUploadProgress(FileUploadOperation.this, currentUploaded / (float) totalFileSize);
-                        if (isLastPart) {
-                            state = 3;
-                            if (key == null) {
-                                TLRPC.InputFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputFileBig();
-                                } else {
-                                    result = new TLRPC.TL_inputFile();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null);
-                                cleanup();
-                            } else {
-                                TLRPC.InputEncryptedFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                                } else {
-                                    result = new TLRPC.TL_inputEncryptedFileUploaded();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.key_fingerprint = fingerprint;
-                                result.iv = iv;
-                                result.key = key;
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result);
-                                cleanup();
-                            }
-                        } else {
-                            startUploadRequest();
-                        }
-                    } else {
-                        delegate.didFailedUploadingFile(FileUploadOperation.this);
-                        cleanup();
-                    }
+    }
+
+    private void onPartUploaded(UploadPart part) {
+        part.confirmed = true;
+        confirmedBytes += part.size;
+        delegate.didChangedUploadProgress(FileUploadOperation.this, confirmedBytes / (float) totalFileSize);
+
+        while (!uploadParts.isEmpty() && uploadParts.get(0).confirmed) {
+            UploadPart confirmedPart = uploadParts.remove(0);
+            currentPartNum = confirmedPart.partNum + 1;
+            currentUploaded += confirmedPart.size;
+            if (confirmedPart.ivChange != null) {
+                confirmedIvChange = confirmedPart.ivChange;
+            }
+            storeUploadedInfo();
+        }
+
+        if (isLastPart && uploadParts.isEmpty()) {
+            state = 3;
+            if (key == null) {
+                TLRPC.InputFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputFileBig();
                 } else {
-                    delegate.didFailedUploadingFile(FileUploadOperation.this);
-                    cleanup();
+                    result = new TLRPC.TL_inputFile();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
                 }
+                result.parts = currentPartNum;
+                result.id = currentFileId;
+                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null);
+                cleanup();
+            } else {
+                TLRPC.InputEncryptedFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
+                } else {
+                    result = new TLRPC.TL_inputEncryptedFileUploaded();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+                }
+                result.parts = currentPartNum;
+                result.id = currentFileId;
+                result.key_fingerprint = fingerprint;
+                result.iv = iv;
+                result.key = key;
+                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result);
+                cleanup();
             }
-        }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID);
+        } else {
+            startUploadRequest();
+        }
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of ints, used in place of ArrayList<Integer>.contains dedupe loops. Not thread
+ * safe.
+ */
+public class IntHashSet {
+
+    private int[] keys;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int maxSize;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int capacity) {
+        allocate(IntObjectMap.tableSizeFor(capacity));
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        used = new boolean[tableSize];
+        mask = tableSize - 1;
+        maxSize = tableSize * 3 / 4;
+    }
+
+    private int find(int key) {
+        int slot = IntObjectMap.hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns false when the key was already in the set.
+     */
+    public boolean add(int key) {
+        int slot = IntObjectMap.hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        used[slot] = true;
+        if (++size > maxSize) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean remove(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int ideal = IntObjectMap.hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        return true;
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(tableSize);
+        for (int a = 0; a < oldUsed.length; a++) {
+            if (oldUsed[a]) {
+                int slot = IntObjectMap.hash(oldKeys[a]) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[a];
+                used[slot] = true;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public int[] toArray() {
+        int[] result = new int[size];
+        int count = 0;
+        for (int a = 0; a < used.length; a++) {
+            if (used[a]) {
+                result[count++] = keys[a];
+            }
+        }
+        return result;
+    }
+}
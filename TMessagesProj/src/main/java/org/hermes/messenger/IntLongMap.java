@@ -0,0 +1,155 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing int to long map, for message id to dialog id lookups without boxing either side.
+ * Not thread safe.
+ */
+public class IntLongMap {
+
+    private int[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int maxSize;
+
+    public IntLongMap() {
+        this(16);
+    }
+
+    public IntLongMap(int capacity) {
+        allocate(IntObjectMap.tableSizeFor(capacity));
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        values = new long[tableSize];
+        used = new boolean[tableSize];
+        mask = tableSize - 1;
+        maxSize = tableSize * 3 / 4;
+    }
+
+    private int find(int key) {
+        int slot = IntObjectMap.hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public long get(int key, long defaultValue) {
+        int slot = find(key);
+        return slot >= 0 ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    public void put(int key, long value) {
+        int slot = IntObjectMap.hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+        if (++size > maxSize) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public boolean remove(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int ideal = IntObjectMap.hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        return true;
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(tableSize);
+        for (int a = 0; a < oldUsed.length; a++) {
+            if (oldUsed[a]) {
+                int slot = IntObjectMap.hash(oldKeys[a]) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[a];
+                values[slot] = oldValues[a];
+                used[slot] = true;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public int[] keys() {
+        int[] result = new int[size];
+        int count = 0;
+        for (int a = 0; a < used.length; a++) {
+            if (used[a]) {
+                result[count++] = keys[a];
+            }
+        }
+        return result;
+    }
+
+    public long[] values() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int a = 0; a < used.length; a++) {
+            if (used[a]) {
+                result[count++] = values[a];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This is the source code of Hermes for Android v. 2.0.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe int keyed cache with a soft size limit. Entries remember the sweep during which they
+ * were last read; trim drops the ones that were not read during the last two sweeps and are not
+ * pinned, until the cache is back under its limit. Keys that were dropped are remembered so a miss
+ * on them can be told apart from a key that was never loaded.
+ */
+public class IntObjectCache<V> {
+
+    public interface Pinned {
+        boolean isPinned(int key);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        volatile int lastSweep;
+
+        Entry(V value, int lastSweep) {
+            this.value = value;
+            this.lastSweep = lastSweep;
+        }
+    }
+
+    private final ConcurrentIntObjectMap<Entry<V>> map;
+    private final IntHashSet evicted = new IntHashSet();
+    private final int maxSize;
+    private volatile int sweep = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    public IntObjectCache(int maxSize) {
+        this.maxSize = maxSize;
+        map = new ConcurrentIntObjectMap<>(maxSize);
+    }
+
+    public V get(int key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastSweep = sweep;
+        return entry.value;
+    }
+
+    /**
+     * Reads an entry without counting it as a hit or keeping it warm.
+     */
+    public V peek(int key) {
+        Entry<V> entry = map.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public void put(int key, V value) {
+        map.put(key, new Entry<>(value, sweep));
+        forgetEvicted(key);
+    }
+
+    public V putIfAbsent(int key, V value) {
+        Entry<V> old = map.putIfAbsent(key, new Entry<>(value, sweep));
+        if (old == null) {
+            forgetEvicted(key);
+            return null;
+        }
+        return old.value;
+    }
+
+    public V remove(int key) {
+        Entry<V> entry = map.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isOverLimit() {
+        return map.size() > maxSize;
+    }
+
+    public void clear() {
+        map.clear();
+        synchronized (evicted) {
+            evicted.clear();
+        }
+    }
+
+    private void forgetEvicted(int key) {
+        synchronized (evicted) {
+            evicted.remove(key);
+        }
+    }
+
+    /**
+     * Returns true once for a key that was dropped by trim, the caller is expected to reload it.
+     */
+    public boolean takeEvicted(int key) {
+        synchronized (evicted) {
+            if (evicted.remove(key)) {
+                reloads.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops cold entries until the cache is under its limit and returns their values.
+     */
+    public ArrayList<V> trim(Pinned pinned) {
+        ArrayList<V> result = new ArrayList<>();
+        int currentSweep = sweep;
+        sweep = currentSweep + 1;
+        int toRemove = map.size() - maxSize;
+        if (toRemove <= 0) {
+            return result;
+        }
+        int[] keys = map.keys();
+        for (int a = 0; a < keys.length && result.size() < toRemove; a++) {
+            int key = keys[a];
+            Entry<V> entry = map.get(key);
+            if (entry == null || currentSweep - entry.lastSweep < 2 || pinned.isPinned(key)) {
+                continue;
+            }
+            if (!map.remove(key, entry)) {
+                continue;
+            }
+            synchronized (evicted) {
+                evicted.add(key);
+            }
+            result.add(entry.value);
+        }
+        evictions.addAndGet(result.size());
+        return result;
+    }
+
+    public String getStats() {
+        long hitsCount = hits.get();
+        long total = hitsCount + misses.get();
+        return String.format(Locale.US, "size=%d limit=%d hit rate=%.2f%% evictions=%d reloads=%d",
+                map.size(), maxSize, total != 0 ? hitsCount * 100.0 / total : 0.0, evictions.get(), reloads.get());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Encryption of MTProto messages sent with an auth key. A packet starts with the 8 byte auth_key_id
+ * and the 16 byte msg_key, the encrypted message follows. Packets are encrypted and decrypted in
+ * place; an instance keeps its msg_key and AES key buffers between calls, so it must stay on one
+ * thread (the stage queue for ConnectionsManager).
+ */
+class MessageEncryption {
+
+    static final int HEADER_LENGTH = 8 + 16;
+
+    private static final ThreadLocal<MessageDigest> sha1Local = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            return null;
+        }
+    };
+
+    private static final ThreadLocal<byte[]> sha1BufferLocal = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[20 * 4];
+        }
+    };
+
+    private final byte[] messageKey = new byte[20];
+    private final byte[] receivedMessageKey = new byte[16];
+    private final MessageKeyData keyData = new MessageKeyData();
+
+    /**
+     * Encrypts the message written to data between offset + HEADER_LENGTH and its position. The
+     * message is padded with random bytes to the AES block size, auth_key_id and msg_key are written
+     * at offset. incoming selects the key derivation of messages sent by the server. On return data
+     * is positioned at and limited to the end of the packet.
+     */
+    boolean encryptMessage(ByteBufferDesc data, int offset, byte[] authKey, long authKeyId, boolean incoming) {
+        int start = offset + HEADER_LENGTH;
+        int innerLength = data.position() - start;
+        if (!computeSHA1(data.buffer, start, data.position(), messageKey)) {
+            return false;
+        }
+
+        generateMessageKeyData(authKey, messageKey, 4, incoming, keyData);
+
+        int zeroCount = 0;
+        if (innerLength % 16 != 0) {
+            zeroCount = 16 - innerLength % 16;
+        }
+        int a = 0;
+        for (; a + 4 <= zeroCount; a += 4) {
+            data.writeInt32(Utilities.random.nextInt());
+        }
+        for (; a < zeroCount; a++) {
+            data.writeByte(Utilities.random.nextInt());
+        }
+        int length = data.position();
+
+        Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, true, true, start, innerLength + zeroCount);
+
+        data.position(offset);
+        data.writeInt64(authKeyId);
+        data.writeRaw(messageKey, 4, 16);
+        data.limit(length);
+        data.position(length);
+        return true;
+    }
+
+    /**
+     * Returns the quick ack id of the last encrypted or decrypted message, the first 4 bytes of its
+     * SHA1 without the high bit.
+     */
+    int getQuickAckId() {
+        int ack = (messageKey[0] & 0xff) | (messageKey[1] & 0xff) << 8 | (messageKey[2] & 0xff) << 16 | (messageKey[3] & 0xff) << 24;
+        return ack & 0x7fffffff;
+    }
+
+    /**
+     * Decrypts the packet of length bytes whose auth_key_id has just been read from data and checks
+     * its msg_key against the decrypted message. On success data is positioned at the server salt.
+     */
+    boolean decryptMessage(ByteBufferDesc data, int length, byte[] authKey, boolean incoming) {
+        if (length - HEADER_LENGTH < 32 || (length - HEADER_LENGTH) % 16 != 0) {
+            return false;
+        }
+        int start = data.position() - 8;
+        data.readRaw(receivedMessageKey);
+        generateMessageKeyData(authKey, receivedMessageKey, 0, incoming, keyData);
+
+        int position = data.position();
+        Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, false, true, position, length - HEADER_LENGTH);
+
+        int messageLength = data.buffer.getInt(position + 8 + 8 + 8 + 4);
+        if (!computeSHA1(data.buffer, position, Math.min(position + 32 + messageLength, start + length), messageKey)) {
+            return false;
+        }
+        for (int a = 0; a < 16; a++) {
+            if (receivedMessageKey[a] != messageKey[a + 4]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void generateMessageKeyData(byte[] authKey, byte[] messageKey, int messageKeyOffset, boolean incoming, MessageKeyData keyData) {
+        if (keyData.aesKey == null) {
+            keyData.aesKey = new byte[32];
+        }
+        if (keyData.aesIv == null) {
+            keyData.aesIv = new byte[32];
+        }
+
+        int x = incoming ? 8 : 0;
+        MessageDigest md = sha1Local.get();
+        byte[] sha1 = sha1BufferLocal.get();
+        try {
+            md.update(messageKey, messageKeyOffset, 16);
+            md.update(authKey, x, 32);
+            md.digest(sha1, 0, 20);
+
+            md.update(authKey, 32 + x, 16);
+            md.update(messageKey, messageKeyOffset, 16);
+            md.update(authKey, 48 + x, 16);
+            md.digest(sha1, 20, 20);
+
+            md.update(authKey, 64 + x, 32);
+            md.update(messageKey, messageKeyOffset, 16);
+            md.digest(sha1, 40, 20);
+
+            md.update(messageKey, messageKeyOffset, 16);
+            md.update(authKey, 96 + x, 32);
+            md.digest(sha1, 60, 20);
+        } catch (Exception e) {
+            md.reset();
+            FileLog.e("tmessages", e);
+        }
+
+        System.arraycopy(sha1, 0, keyData.aesKey, 0, 8);
+        System.arraycopy(sha1, 20 + 8, keyData.aesKey, 8, 12);
+        System.arraycopy(sha1, 40 + 4, keyData.aesKey, 20, 12);
+
+        System.arraycopy(sha1, 8, keyData.aesIv, 0, 12);
+        System.arraycopy(sha1, 20, keyData.aesIv, 12, 8);
+        System.arraycopy(sha1, 40 + 16, keyData.aesIv, 20, 4);
+        System.arraycopy(sha1, 60, keyData.aesIv, 24, 8);
+    }
+
+    private static boolean computeSHA1(ByteBuffer buffer, int start, int end, byte[] result) {
+        int oldp = buffer.position();
+        int oldl = buffer.limit();
+        MessageDigest md = sha1Local.get();
+        try {
+            buffer.limit(end);
+            buffer.position(start);
+            md.update(buffer);
+            md.digest(result, 0, 20);
+            return true;
+        } catch (Exception e) {
+            md.reset();
+            FileLog.e("tmessages", e);
+        } finally {
+            buffer.limit(oldl);
+            buffer.position(oldp);
+        }
+        return false;
+    }
+}
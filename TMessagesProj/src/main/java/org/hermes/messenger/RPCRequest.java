@@ -54,11 +54,15 @@ public class RPCRequest {
     long runningMessageId;
     int runningMessageSeqNo;
     int runningDatacenterId;
+    int connectionNum;
     int transportChannelToken;
 
     int runningStartTime;
     int runningMinStartTime;
 
+    boolean running;
+    int scheduledTime;
+
     boolean confirmed;
 
     boolean initRequest = false;
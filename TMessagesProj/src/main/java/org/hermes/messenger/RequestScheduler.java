@@ -0,0 +1,228 @@
+/*
+ * This is the source code of Hermes for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2014.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Bookkeeping for ConnectionsManager requests. Queued requests are kept in FIFO queues per transport
+ * class and target datacenter, running requests are indexed by token and message id and sit on a
+ * one second timeout wheel, so a scheduling pass only looks at the requests that can make progress.
+ * Must only be used from the stage queue.
+ */
+class RequestScheduler {
+
+    static final int TRANSPORT_CLASS_GENERIC = 0;
+    static final int TRANSPORT_CLASS_DOWNLOAD = 1;
+    static final int TRANSPORT_CLASS_UPLOAD = 2;
+    private static final int TRANSPORT_CLASSES_COUNT = 3;
+
+    private static final int WHEEL_SIZE = 64;
+
+    static class RequestQueue {
+        final int transportClass;
+        final int datacenterId;
+        final LinkedList<RPCRequest> requests = new LinkedList<>();
+        int withoutCompletionCount;
+
+        RequestQueue(int transportClass, int datacenterId) {
+            this.transportClass = transportClass;
+            this.datacenterId = datacenterId;
+        }
+    }
+
+    final ArrayList<RequestQueue> queues = new ArrayList<>();
+    final ArrayList<RPCRequest> runningRequests = new ArrayList<>();
+
+    private final HashMap<Long, RPCRequest> requestsByToken = new HashMap<>();
+    private final HashMap<Long, RPCRequest> requestsByMessageId = new HashMap<>();
+    private final int[] queuedCount = new int[TRANSPORT_CLASSES_COUNT];
+    private final int[] runningCount = new int[TRANSPORT_CLASSES_COUNT];
+    private final ArrayList<ArrayList<RPCRequest>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private int wheelTime;
+
+    RequestScheduler() {
+        for (int a = 0; a < WHEEL_SIZE; a++) {
+            wheel.add(new ArrayList<RPCRequest>());
+        }
+    }
+
+    static int getTransportClass(int flags) {
+        if ((flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            return TRANSPORT_CLASS_GENERIC;
+        } else if ((flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+            return TRANSPORT_CLASS_UPLOAD;
+        } else if ((flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            return TRANSPORT_CLASS_DOWNLOAD;
+        }
+        return TRANSPORT_CLASS_GENERIC;
+    }
+
+    RPCRequest getRequest(long token) {
+        return requestsByToken.get(token);
+    }
+
+    RPCRequest getRunningRequest(long messageId) {
+        RPCRequest request = requestsByMessageId.get(messageId);
+        if (request != null && request.respondsToMessageId(messageId)) {
+            return request;
+        }
+        return null;
+    }
+
+    int getQueuedCount(int transportClass) {
+        return queuedCount[transportClass];
+    }
+
+    int getRunningCount(int transportClass) {
+        return runningCount[transportClass];
+    }
+
+    void enqueue(RPCRequest request) {
+        int transportClass = getTransportClass(request.flags);
+        RequestQueue queue = null;
+        for (RequestQueue q : queues) {
+            if (q.transportClass == transportClass && q.datacenterId == request.runningDatacenterId) {
+                queue = q;
+                break;
+            }
+        }
+        if (queue == null) {
+            queue = new RequestQueue(transportClass, request.runningDatacenterId);
+            queues.add(queue);
+        }
+        queue.requests.add(request);
+        if (!request.requiresCompletion) {
+            queue.withoutCompletionCount++;
+        }
+        queuedCount[transportClass]++;
+        requestsByToken.put(request.token, request);
+    }
+
+    /**
+     * Forgets a queued request. The caller either removes it from its queue right away or marks it
+     * cancelled, in which case it is dropped the next time the queue is walked.
+     */
+    void removeQueued(RPCRequest request) {
+        int transportClass = getTransportClass(request.flags);
+        if (!request.requiresCompletion) {
+            for (RequestQueue queue : queues) {
+                if (queue.transportClass == transportClass && queue.datacenterId == request.runningDatacenterId) {
+                    queue.withoutCompletionCount--;
+                    break;
+                }
+            }
+        }
+        queuedCount[transportClass]--;
+        requestsByToken.remove(request.token);
+    }
+
+    void addRunning(RPCRequest request, int checkTime) {
+        request.running = true;
+        runningRequests.add(request);
+        runningCount[getTransportClass(request.flags)]++;
+        requestsByToken.put(request.token, request);
+        if (request.runningMessageId != 0) {
+            requestsByMessageId.put(request.runningMessageId, request);
+        }
+        for (Long messageId : request.respondsToMessageIds) {
+            requestsByMessageId.put(messageId, request);
+        }
+        schedule(request, checkTime);
+    }
+
+    void removeRunning(RPCRequest request) {
+        if (!request.running) {
+            return;
+        }
+        request.running = false;
+        request.scheduledTime = 0;
+        runningRequests.remove(request);
+        runningCount[getTransportClass(request.flags)]--;
+        requestsByToken.remove(request.token);
+        if (request.runningMessageId != 0 && requestsByMessageId.get(request.runningMessageId) == request) {
+            requestsByMessageId.remove(request.runningMessageId);
+        }
+        for (Long messageId : request.respondsToMessageIds) {
+            if (requestsByMessageId.get(messageId) == request) {
+                requestsByMessageId.remove(messageId);
+            }
+        }
+    }
+
+    void setRunningMessageId(RPCRequest request, long messageId) {
+        long oldMessageId = request.runningMessageId;
+        request.runningMessageId = messageId;
+        if (!request.running) {
+            return;
+        }
+        if (oldMessageId != 0 && !request.respondsToMessageIds.contains(oldMessageId) && requestsByMessageId.get(oldMessageId) == request) {
+            requestsByMessageId.remove(oldMessageId);
+        }
+        if (messageId != 0) {
+            requestsByMessageId.put(messageId, request);
+        }
+    }
+
+    void schedule(RPCRequest request, int time) {
+        if (!request.running) {
+            return;
+        }
+        if (time <= wheelTime) {
+            time = wheelTime + 1;
+        }
+        if (request.scheduledTime == time) {
+            return;
+        }
+        request.scheduledTime = time;
+        wheel.get(time & (WHEEL_SIZE - 1)).add(request);
+    }
+
+    void scheduleNow(RPCRequest request) {
+        schedule(request, 0);
+    }
+
+    /**
+     * Moves the running requests whose check time has come to dueRequests. Returns false when the
+     * wheel can't tell, after a clock jump or a pause longer than the wheel, and every running
+     * request has to be checked.
+     */
+    boolean collectDueRequests(int currentTime, ArrayList<RPCRequest> dueRequests) {
+        if (wheelTime == 0 || currentTime < wheelTime || currentTime - wheelTime >= WHEEL_SIZE) {
+            for (ArrayList<RPCRequest> slot : wheel) {
+                slot.clear();
+            }
+            for (RPCRequest request : runningRequests) {
+                request.scheduledTime = 0;
+            }
+            wheelTime = currentTime;
+            return false;
+        }
+        for (int time = wheelTime + 1; time <= currentTime; time++) {
+            ArrayList<RPCRequest> slot = wheel.get(time & (WHEEL_SIZE - 1));
+            int kept = 0;
+            for (int a = 0; a < slot.size(); a++) {
+                RPCRequest request = slot.get(a);
+                if (request.scheduledTime == time) {
+                    request.scheduledTime = 0;
+                    dueRequests.add(request);
+                } else if (request.scheduledTime > currentTime && (request.scheduledTime & (WHEEL_SIZE - 1)) == (time & (WHEEL_SIZE - 1))) {
+                    slot.set(kept++, request);
+                }
+            }
+            for (int a = slot.size() - 1; a >= kept; a--) {
+                slot.remove(a);
+            }
+        }
+        wheelTime = currentTime;
+        return true;
+    }
+}
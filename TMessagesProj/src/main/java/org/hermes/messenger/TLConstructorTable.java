@@ -0,0 +1,885 @@
+/*
+ * This is the source code of Hermes for Android v. 1.3.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+/**
+ * Constructor id -> object factory for every type TLClassStore can deserialize.
+ * Ids are resolved through a primitive open-addressing table into a dense index,
+ * and objects are created by a switch over that index, so deserialization needs
+ * neither reflection nor Integer boxing.
+ *
+ * Generated from the TLRPC type list: the order of CONSTRUCTORS must match the
+ * cases of create(). When adding a type, append it to both.
+ */
+final class TLConstructorTable {
+
+    static final int NOT_FOUND = -1;
+
+    private static final int[] CONSTRUCTORS = new int[] {
+            TLRPC.TL_chatPhotoEmpty.constructor,
+            TLRPC.TL_chatPhoto.constructor,
+            TLRPC.TL_futuresalts.constructor,
+            TLRPC.TL_bad_msg_notification.constructor,
+            TLRPC.TL_bad_server_salt.constructor,
+            TLRPC.TL_error.constructor,
+            TLRPC.TL_messages_sentEncryptedMessage.constructor,
+            TLRPC.TL_messages_sentEncryptedFile.constructor,
+            TLRPC.TL_notifyAll.constructor,
+            TLRPC.TL_notifyChats.constructor,
+            TLRPC.TL_notifyUsers.constructor,
+            TLRPC.TL_notifyPeer.constructor,
+            TLRPC.TL_auth_checkedPhone.constructor,
+            TLRPC.TL_msgs_ack.constructor,
+            TLRPC.TL_messages_chatFull.constructor,
+            TLRPC.TL_documentAttributeAnimated.constructor,
+            TLRPC.TL_documentAttributeAudio.constructor,
+            TLRPC.TL_documentAttributeFilename.constructor,
+            TLRPC.TL_documentAttributeVideo.constructor,
+            TLRPC.TL_documentAttributeSticker.constructor,
+            TLRPC.TL_documentAttributeImageSize.constructor,
+            TLRPC.TL_rpc_result.constructor,
+            TLRPC.TL_contactStatus.constructor,
+            TLRPC.TL_auth_authorization.constructor,
+            TLRPC.TL_messages_messages.constructor,
+            TLRPC.TL_messages_messagesSlice.constructor,
+            TLRPC.TL_rpc_answer_unknown.constructor,
+            TLRPC.TL_rpc_answer_dropped.constructor,
+            TLRPC.TL_rpc_answer_dropped_running.constructor,
+            TLRPC.TL_contacts_link.constructor,
+            TLRPC.TL_peerUser.constructor,
+            TLRPC.TL_peerChat.constructor,
+            TLRPC.TL_encryptedFile.constructor,
+            TLRPC.TL_encryptedFileEmpty.constructor,
+            TLRPC.TL_destroy_session_ok.constructor,
+            TLRPC.TL_destroy_session_none.constructor,
+            TLRPC.TL_updates_differenceEmpty.constructor,
+            TLRPC.TL_updates_differenceSlice.constructor,
+            TLRPC.TL_updates_difference.constructor,
+            TLRPC.TL_geoPointEmpty.constructor,
+            TLRPC.TL_geoPoint.constructor,
+            TLRPC.TL_privacyKeyStatusTimestamp.constructor,
+            TLRPC.TL_account_privacyRules.constructor,
+            TLRPC.TL_help_appUpdate.constructor,
+            TLRPC.TL_help_noAppUpdate.constructor,
+            TLRPC.TL_messageEmpty.constructor,
+            TLRPC.TL_message.constructor,
+            TLRPC.TL_messageService.constructor,
+            TLRPC.TL_inputPhoneContact.constructor,
+            TLRPC.TL_sendMessageGeoLocationAction.constructor,
+            TLRPC.TL_sendMessageChooseContactAction.constructor,
+            TLRPC.TL_sendMessageTypingAction.constructor,
+            TLRPC.TL_sendMessageUploadDocumentAction.constructor,
+            TLRPC.TL_sendMessageRecordVideoAction.constructor,
+            TLRPC.TL_sendMessageUploadPhotoAction.constructor,
+            TLRPC.TL_sendMessageUploadVideoAction.constructor,
+            TLRPC.TL_sendMessageUploadAudioAction.constructor,
+            TLRPC.TL_sendMessageCancelAction.constructor,
+            TLRPC.TL_sendMessageRecordAudioAction.constructor,
+            TLRPC.TL_invokeAfterMsg.constructor,
+            TLRPC.TL_messageMediaVideo.constructor,
+            TLRPC.TL_messageMediaPhoto.constructor,
+            TLRPC.TL_messageMediaDocument.constructor,
+            TLRPC.TL_messageMediaGeo.constructor,
+            TLRPC.TL_messageMediaEmpty.constructor,
+            TLRPC.TL_messageMediaAudio.constructor,
+            TLRPC.TL_messageMediaContact.constructor,
+            TLRPC.TL_messageMediaUnsupported.constructor,
+            TLRPC.TL_auth_sentAppCode.constructor,
+            TLRPC.TL_auth_sentCode.constructor,
+            TLRPC.TL_peerNotifySettingsEmpty.constructor,
+            TLRPC.TL_peerNotifySettings.constructor,
+            TLRPC.TL_msg_resend_req.constructor,
+            TLRPC.TL_http_wait.constructor,
+            TLRPC.TL_contacts_blocked.constructor,
+            TLRPC.TL_contacts_blockedSlice.constructor,
+            TLRPC.TL_inputGeoPoint.constructor,
+            TLRPC.TL_inputGeoPointEmpty.constructor,
+            TLRPC.TL_help_inviteText.constructor,
+            TLRPC.TL_messages_dhConfigNotModified.constructor,
+            TLRPC.TL_messages_dhConfig.constructor,
+            TLRPC.TL_audioEmpty.constructor,
+            TLRPC.TL_audio.constructor,
+            TLRPC.TL_destroy_sessions_res.constructor,
+            TLRPC.TL_privacyValueAllowUsers.constructor,
+            TLRPC.TL_privacyValueDisallowAll.constructor,
+            TLRPC.TL_privacyValueAllowContacts.constructor,
+            TLRPC.TL_privacyValueDisallowContacts.constructor,
+            TLRPC.TL_privacyValueAllowAll.constructor,
+            TLRPC.TL_privacyValueDisallowUsers.constructor,
+            TLRPC.TL_contacts_contacts.constructor,
+            TLRPC.TL_contacts_contactsNotModified.constructor,
+            TLRPC.TL_inputPrivacyKeyStatusTimestamp.constructor,
+            TLRPC.TL_photos_photos.constructor,
+            TLRPC.TL_photos_photosSlice.constructor,
+            TLRPC.TL_chatFull.constructor,
+            TLRPC.TL_msgs_all_info.constructor,
+            TLRPC.TL_inputPeerNotifySettings.constructor,
+            TLRPC.TL_null.constructor,
+            TLRPC.TL_inputUserSelf.constructor,
+            TLRPC.TL_inputUserForeign.constructor,
+            TLRPC.TL_inputUserEmpty.constructor,
+            TLRPC.TL_inputUserContact.constructor,
+            TLRPC.TL_p_q_inner_data.constructor,
+            TLRPC.TL_msgs_state_req.constructor,
+            TLRPC.TL_boolTrue.constructor,
+            TLRPC.TL_boolFalse.constructor,
+            TLRPC.TL_auth_exportedAuthorization.constructor,
+            TLRPC.TL_inputNotifyChats.constructor,
+            TLRPC.TL_inputNotifyPeer.constructor,
+            TLRPC.TL_inputNotifyUsers.constructor,
+            TLRPC.TL_inputNotifyGeoChatPeer.constructor,
+            TLRPC.TL_inputNotifyAll.constructor,
+            TLRPC.TL_inputAudioFileLocation.constructor,
+            TLRPC.TL_inputEncryptedFileLocation.constructor,
+            TLRPC.TL_inputVideoFileLocation.constructor,
+            TLRPC.TL_inputDocumentFileLocation.constructor,
+            TLRPC.TL_inputFileLocation.constructor,
+            TLRPC.TL_photos_photo.constructor,
+            TLRPC.TL_userContact.constructor,
+            TLRPC.TL_userRequest.constructor,
+            TLRPC.TL_userForeign.constructor,
+            TLRPC.TL_userDeleted.constructor,
+            TLRPC.TL_userSelf.constructor,
+            TLRPC.TL_userEmpty.constructor,
+            TLRPC.TL_geoChatMessage.constructor,
+            TLRPC.TL_geoChatMessageService.constructor,
+            TLRPC.TL_geoChatMessageEmpty.constructor,
+            TLRPC.TL_pong.constructor,
+            TLRPC.TL_messageActionChatEditPhoto.constructor,
+            TLRPC.TL_messageActionChatDeleteUser.constructor,
+            TLRPC.TL_messageActionChatDeletePhoto.constructor,
+            TLRPC.TL_messageActionChatAddUser.constructor,
+            TLRPC.TL_messageActionChatCreate.constructor,
+            TLRPC.TL_messageActionEmpty.constructor,
+            TLRPC.TL_messageActionChatEditTitle.constructor,
+            TLRPC.TL_messageActionGeoChatCreate.constructor,
+            TLRPC.TL_messageActionGeoChatCheckin.constructor,
+            TLRPC.TL_dh_gen_retry.constructor,
+            TLRPC.TL_dh_gen_fail.constructor,
+            TLRPC.TL_dh_gen_ok.constructor,
+            TLRPC.TL_peerNotifyEventsEmpty.constructor,
+            TLRPC.TL_peerNotifyEventsAll.constructor,
+            TLRPC.TL_chatLocated.constructor,
+            TLRPC.TL_decryptedMessageService.constructor,
+            TLRPC.TL_decryptedMessage.constructor,
+            TLRPC.TL_inputPeerNotifyEventsAll.constructor,
+            TLRPC.TL_inputPeerNotifyEventsEmpty.constructor,
+            TLRPC.TL_client_DH_inner_data.constructor,
+            TLRPC.TL_video.constructor,
+            TLRPC.TL_videoEmpty.constructor,
+            TLRPC.TL_contactBlocked.constructor,
+            TLRPC.TL_inputDocumentEmpty.constructor,
+            TLRPC.TL_inputDocument.constructor,
+            TLRPC.TL_inputAppEvent.constructor,
+            TLRPC.TL_messages_affectedHistory.constructor,
+            TLRPC.TL_documentEmpty.constructor,
+            TLRPC.TL_document.constructor,
+            TLRPC.TL_inputPrivacyValueDisallowUsers.constructor,
+            TLRPC.TL_inputPrivacyValueDisallowAll.constructor,
+            TLRPC.TL_inputPrivacyValueDisallowContacts.constructor,
+            TLRPC.TL_inputPrivacyValueAllowAll.constructor,
+            TLRPC.TL_inputPrivacyValueAllowContacts.constructor,
+            TLRPC.TL_inputPrivacyValueAllowUsers.constructor,
+            TLRPC.TL_inputMediaContact.constructor,
+            TLRPC.TL_inputMediaUploadedThumbDocument.constructor,
+            TLRPC.TL_inputMediaAudio.constructor,
+            TLRPC.TL_inputMediaDocument.constructor,
+            TLRPC.TL_inputMediaVideo.constructor,
+            TLRPC.TL_inputMediaGeoPoint.constructor,
+            TLRPC.TL_inputMediaEmpty.constructor,
+            TLRPC.TL_inputMediaUploadedThumbVideo.constructor,
+            TLRPC.TL_inputMediaUploadedPhoto.constructor,
+            TLRPC.TL_inputMediaUploadedAudio.constructor,
+            TLRPC.TL_inputMediaUploadedVideo.constructor,
+            TLRPC.TL_inputMediaUploadedDocument.constructor,
+            TLRPC.TL_inputMediaPhoto.constructor,
+            TLRPC.TL_geochats_messagesSlice.constructor,
+            TLRPC.TL_geochats_messages.constructor,
+            TLRPC.TL_messages_sentMessage.constructor,
+            TLRPC.TL_messages_sentMessageLink.constructor,
+            TLRPC.TL_encryptedMessageService.constructor,
+            TLRPC.TL_encryptedMessage.constructor,
+            TLRPC.TL_contactSuggested.constructor,
+            TLRPC.TL_server_DH_params_fail.constructor,
+            TLRPC.TL_server_DH_params_ok.constructor,
+            TLRPC.TL_userStatusOffline.constructor,
+            TLRPC.TL_userStatusLastWeek.constructor,
+            TLRPC.TL_userStatusEmpty.constructor,
+            TLRPC.TL_userStatusLastMonth.constructor,
+            TLRPC.TL_userStatusOnline.constructor,
+            TLRPC.TL_userStatusRecently.constructor,
+            TLRPC.TL_msg_copy.constructor,
+            TLRPC.TL_contacts_importedContacts.constructor,
+            TLRPC.TL_disabledFeature.constructor,
+            TLRPC.TL_futureSalt.constructor,
+            TLRPC.TL_updateEncryptedMessagesRead.constructor,
+            TLRPC.TL_updateContactLink.constructor,
+            TLRPC.TL_updateReadMessages.constructor,
+            TLRPC.TL_updateChatParticipantDelete.constructor,
+            TLRPC.TL_updateServiceNotification.constructor,
+            TLRPC.TL_updateNotifySettings.constructor,
+            TLRPC.TL_updateUserTyping.constructor,
+            TLRPC.TL_updateChatUserTyping.constructor,
+            TLRPC.TL_updateUserName.constructor,
+            TLRPC.TL_updateNewEncryptedMessage.constructor,
+            TLRPC.TL_updateNewMessage.constructor,
+            TLRPC.TL_updateMessageID.constructor,
+            TLRPC.TL_updateDeleteMessages.constructor,
+            TLRPC.TL_updateEncryptedChatTyping.constructor,
+            TLRPC.TL_updateDcOptions.constructor,
+            TLRPC.TL_updateChatParticipants.constructor,
+            TLRPC.TL_updatePrivacy.constructor,
+            TLRPC.TL_updateEncryption.constructor,
+            TLRPC.TL_updateUserBlocked.constructor,
+            TLRPC.TL_updateActivation.constructor,
+            TLRPC.TL_updateNewAuthorization.constructor,
+            TLRPC.TL_updateNewGeoChatMessage.constructor,
+            TLRPC.TL_updateUserPhoto.constructor,
+            TLRPC.TL_updateContactRegistered.constructor,
+            TLRPC.TL_updateChatParticipantAdd.constructor,
+            TLRPC.TL_updateUserStatus.constructor,
+            TLRPC.TL_contacts_suggested.constructor,
+            TLRPC.TL_rpc_error.constructor,
+            TLRPC.TL_rpc_req_error.constructor,
+            TLRPC.TL_inputEncryptedFile.constructor,
+            TLRPC.TL_inputEncryptedFileBigUploaded.constructor,
+            TLRPC.TL_inputEncryptedFileEmpty.constructor,
+            TLRPC.TL_inputEncryptedFileUploaded.constructor,
+            TLRPC.TL_decryptedMessageActionFlushHistory.constructor,
+            TLRPC.TL_decryptedMessageActionResend.constructor,
+            TLRPC.TL_decryptedMessageActionNotifyLayer.constructor,
+            TLRPC.TL_decryptedMessageActionSetMessageTTL.constructor,
+            TLRPC.TL_decryptedMessageActionDeleteMessages.constructor,
+            TLRPC.TL_decryptedMessageActionTyping.constructor,
+            TLRPC.TL_decryptedMessageActionReadMessages.constructor,
+            TLRPC.TL_decryptedMessageActionScreenshotMessages.constructor,
+            TLRPC.TL_server_DH_inner_data.constructor,
+            TLRPC.TL_new_session_created.constructor,
+            TLRPC.TL_account_password.constructor,
+            TLRPC.TL_account_noPassword.constructor,
+            TLRPC.TL_userProfilePhotoEmpty.constructor,
+            TLRPC.TL_userProfilePhoto.constructor,
+            TLRPC.TL_photo.constructor,
+            TLRPC.TL_photoEmpty.constructor,
+            TLRPC.TL_encryptedChatWaiting.constructor,
+            TLRPC.TL_encryptedChatEmpty.constructor,
+            TLRPC.TL_encryptedChatDiscarded.constructor,
+            TLRPC.TL_encryptedChat.constructor,
+            TLRPC.TL_encryptedChatRequested.constructor,
+            TLRPC.TL_geochats_statedMessage.constructor,
+            TLRPC.TL_contact.constructor,
+            TLRPC.TL_config.constructor,
+            TLRPC.TL_inputAudio.constructor,
+            TLRPC.TL_inputAudioEmpty.constructor,
+            TLRPC.TL_help_support.constructor,
+            TLRPC.TL_messages_chats.constructor,
+            TLRPC.TL_contacts_found.constructor,
+            TLRPC.TL_chatParticipants.constructor,
+            TLRPC.TL_chatParticipantsForbidden.constructor,
+            TLRPC.TL_decryptedMessageMediaDocument.constructor,
+            TLRPC.TL_decryptedMessageMediaGeoPoint.constructor,
+            TLRPC.TL_decryptedMessageMediaAudio.constructor,
+            TLRPC.TL_decryptedMessageMediaVideo.constructor,
+            TLRPC.TL_decryptedMessageMediaContact.constructor,
+            TLRPC.TL_decryptedMessageMediaEmpty.constructor,
+            TLRPC.TL_decryptedMessageMediaPhoto.constructor,
+            TLRPC.TL_chatParticipant.constructor,
+            TLRPC.TL_chatForbidden.constructor,
+            TLRPC.TL_geoChat.constructor,
+            TLRPC.TL_chatEmpty.constructor,
+            TLRPC.TL_chat.constructor,
+            TLRPC.TL_storage_fileUnknown.constructor,
+            TLRPC.TL_storage_fileMp4.constructor,
+            TLRPC.TL_storage_fileWebp.constructor,
+            TLRPC.TL_storage_filePng.constructor,
+            TLRPC.TL_storage_fileGif.constructor,
+            TLRPC.TL_storage_filePdf.constructor,
+            TLRPC.TL_storage_fileMp3.constructor,
+            TLRPC.TL_storage_fileJpeg.constructor,
+            TLRPC.TL_storage_fileMov.constructor,
+            TLRPC.TL_storage_filePartial.constructor,
+            TLRPC.TL_inputMessagesFilterVideo.constructor,
+            TLRPC.TL_inputMessagesFilterEmpty.constructor,
+            TLRPC.TL_inputMessagesFilterPhotos.constructor,
+            TLRPC.TL_inputMessagesFilterPhotoVideo.constructor,
+            TLRPC.TL_inputMessagesFilterDocument.constructor,
+            TLRPC.TL_inputMessagesFilterAudio.constructor,
+            TLRPC.TL_msgs_state_info.constructor,
+            TLRPC.TL_upload_file.constructor,
+            TLRPC.TL_dialog.constructor,
+            TLRPC.TL_fileLocation.constructor,
+            TLRPC.TL_fileLocationUnavailable.constructor,
+            TLRPC.TL_messages_messageEmpty.constructor,
+            TLRPC.TL_messages_message.constructor,
+            TLRPC.TL_geochats_located.constructor,
+            TLRPC.TL_inputGeoChat.constructor,
+            TLRPC.TL_protoMessage.constructor,
+            TLRPC.TL_photoSize.constructor,
+            TLRPC.TL_photoSizeEmpty.constructor,
+            TLRPC.TL_photoCachedSize.constructor,
+            TLRPC.TL_contactFound.constructor,
+            TLRPC.TL_inputFileBig.constructor,
+            TLRPC.TL_inputFile.constructor,
+            TLRPC.TL_userFull.constructor,
+            TLRPC.TL_updates_state.constructor,
+            TLRPC.TL_resPQ.constructor,
+            TLRPC.TL_updateShortChatMessage.constructor,
+            TLRPC.TL_updates.constructor,
+            TLRPC.TL_updateShortMessage.constructor,
+            TLRPC.TL_updateShort.constructor,
+            TLRPC.TL_updatesCombined.constructor,
+            TLRPC.TL_updatesTooLong.constructor,
+            TLRPC.TL_wallPaper.constructor,
+            TLRPC.TL_wallPaperSolid.constructor,
+            TLRPC.TL_msg_new_detailed_info.constructor,
+            TLRPC.TL_msg_detailed_info.constructor,
+            TLRPC.TL_inputEncryptedChat.constructor,
+            TLRPC.TL_inputChatPhoto.constructor,
+            TLRPC.TL_inputChatPhotoEmpty.constructor,
+            TLRPC.TL_inputChatUploadedPhoto.constructor,
+            TLRPC.TL_inputVideoEmpty.constructor,
+            TLRPC.TL_inputVideo.constructor,
+            TLRPC.TL_nearestDc.constructor,
+            TLRPC.TL_inputPhotoEmpty.constructor,
+            TLRPC.TL_inputPhoto.constructor,
+            TLRPC.TL_importedContact.constructor,
+            TLRPC.TL_accountDaysTTL.constructor,
+            TLRPC.TL_stickerPack.constructor,
+            TLRPC.TL_messages_allStickers.constructor,
+            TLRPC.TL_messages_allStickersNotModified.constructor,
+            TLRPC.TL_inputPeerContact.constructor,
+            TLRPC.TL_inputPeerChat.constructor,
+            TLRPC.TL_inputPeerEmpty.constructor,
+            TLRPC.TL_inputPeerSelf.constructor,
+            TLRPC.TL_inputPeerForeign.constructor,
+            TLRPC.TL_dcOption.constructor,
+            TLRPC.TL_decryptedMessageLayer.constructor,
+            TLRPC.TL_inputPhotoCropAuto.constructor,
+            TLRPC.TL_inputPhotoCrop.constructor,
+            TLRPC.TL_messages_dialogs.constructor,
+            TLRPC.TL_messages_dialogsSlice.constructor,
+            TLRPC.TL_account_sentChangePhoneCode.constructor,
+            TLRPC.TL_updateUserPhone.constructor,
+            TLRPC.TL_decryptedMessageActionRequestKey.constructor,
+            TLRPC.TL_decryptedMessageActionAcceptKey.constructor,
+            TLRPC.TL_decryptedMessageActionCommitKey.constructor,
+            TLRPC.TL_decryptedMessageActionAbortKey.constructor,
+            TLRPC.TL_decryptedMessageActionNoop.constructor,
+            TLRPC.TL_decryptedMessageMediaExternalDocument.constructor,
+            TLRPC.TL_updateReadHistoryInbox.constructor,
+            TLRPC.TL_updateReadHistoryOutbox.constructor,
+            TLRPC.TL_contactLinkUnknown.constructor,
+            TLRPC.TL_contactLinkNone.constructor,
+            TLRPC.TL_contactLinkHasPhone.constructor,
+            TLRPC.TL_contactLinkContact.constructor,
+            TLRPC.TL_messages_affectedMessages.constructor,
+            TLRPC.TL_updateWebPage.constructor,
+            TLRPC.TL_webPagePending.constructor,
+            TLRPC.TL_webPageEmpty.constructor,
+            TLRPC.TL_webPage.constructor,
+            TLRPC.TL_messageMediaWebPage.constructor,
+            TLRPC.TL_authorization.constructor,
+            TLRPC.TL_account_authorizations.constructor,
+            TLRPC.TL_account_passwordSettings.constructor,
+            TLRPC.TL_account_passwordInputSettings.constructor,
+            TLRPC.TL_auth_passwordRecovery.constructor,
+            TLRPC.TL_messages_getWebPagePreview.constructor,
+            TLRPC.TL_messageMediaUnsupported_old.constructor,
+            TLRPC.TL_userSelf_old2.constructor,
+            TLRPC.TL_msg_container.constructor,
+            TLRPC.TL_fileEncryptedLocation.constructor,
+            TLRPC.TL_messageActionTTLChange.constructor,
+            TLRPC.TL_videoEncrypted.constructor,
+            TLRPC.TL_documentEncrypted.constructor,
+            TLRPC.TL_audioEncrypted.constructor,
+            TLRPC.TL_gzip_packed.constructor,
+            TLRPC.Vector.constructor,
+            TLRPC.TL_userProfilePhotoOld.constructor,
+            TLRPC.TL_messageActionUserUpdatedPhoto.constructor,
+            TLRPC.TL_messageActionUserJoined.constructor,
+            TLRPC.TL_messageActionLoginUnknownLocation.constructor,
+            TLRPC.TL_encryptedChat_old.constructor,
+            TLRPC.TL_encryptedChatRequested_old.constructor,
+            TLRPC.TL_decryptedMessageMediaVideo_old.constructor,
+            TLRPC.TL_decryptedMessageMediaAudio_old.constructor,
+            TLRPC.TL_audio_old.constructor,
+            TLRPC.TL_video_old.constructor,
+            TLRPC.TL_messageActionCreatedBroadcastList.constructor,
+            TLRPC.TL_messageForwarded_old.constructor,
+            TLRPC.TL_message_old.constructor,
+            TLRPC.TL_messageService_old.constructor,
+            TLRPC.TL_decryptedMessageService_old.constructor,
+            TLRPC.TL_decryptedMessage_old.constructor,
+            TLRPC.TL_message_secret.constructor,
+            TLRPC.TL_userSelf_old.constructor,
+            TLRPC.TL_userContact_old.constructor,
+            TLRPC.TL_userRequest_old.constructor,
+            TLRPC.TL_userForeign_old.constructor,
+            TLRPC.TL_userDeleted_old.constructor,
+            TLRPC.TL_messageEncryptedAction.constructor,
+            TLRPC.TL_decryptedMessageHolder.constructor,
+            TLRPC.TL_documentEncrypted_old.constructor,
+            TLRPC.TL_document_old.constructor,
+            TLRPC.TL_config_old.constructor,
+            TLRPC.TL_messageForwarded_old2.constructor,
+            TLRPC.TL_message_old2.constructor,
+            TLRPC.TL_documentAttributeSticker_old.constructor
+    };
+
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    private static final int[] keys = new int[1 << TABLE_BITS];
+    private static final short[] values = new short[1 << TABLE_BITS];
+
+    static {
+        for (int a = 0; a < CONSTRUCTORS.length; a++) {
+            int constructor = CONSTRUCTORS[a];
+            int slot = slot(constructor);
+            while (values[slot] != 0 && keys[slot] != constructor) {
+                slot = (slot + 1) & TABLE_MASK;
+            }
+            keys[slot] = constructor;
+            values[slot] = (short) (a + 1);
+        }
+    }
+
+    private TLConstructorTable() {
+
+    }
+
+    private static int slot(int constructor) {
+        return (constructor * 0x9E3779B9) >>> (32 - TABLE_BITS);
+    }
+
+    static int indexOf(int constructor) {
+        int slot = slot(constructor);
+        int value;
+        while ((value = values[slot]) != 0) {
+            if (keys[slot] == constructor) {
+                return value - 1;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return NOT_FOUND;
+    }
+
+    static TLObject create(int index) {
+        switch (index) {
+            case 0: return new TLRPC.TL_chatPhotoEmpty();
+            case 1: return new TLRPC.TL_chatPhoto();
+            case 2: return new TLRPC.TL_futuresalts();
+            case 3: return new TLRPC.TL_bad_msg_notification();
+            case 4: return new TLRPC.TL_bad_server_salt();
+            case 5: return new TLRPC.TL_error();
+            case 6: return new TLRPC.TL_messages_sentEncryptedMessage();
+            case 7: return new TLRPC.TL_messages_sentEncryptedFile();
+            case 8: return new TLRPC.TL_notifyAll();
+            case 9: return new TLRPC.TL_notifyChats();
+            case 10: return new TLRPC.TL_notifyUsers();
+            case 11: return new TLRPC.TL_notifyPeer();
+            case 12: return new TLRPC.TL_auth_checkedPhone();
+            case 13: return new TLRPC.TL_msgs_ack();
+            case 14: return new TLRPC.TL_messages_chatFull();
+            case 15: return new TLRPC.TL_documentAttributeAnimated();
+            case 16: return new TLRPC.TL_documentAttributeAudio();
+            case 17: return new TLRPC.TL_documentAttributeFilename();
+            case 18: return new TLRPC.TL_documentAttributeVideo();
+            case 19: return new TLRPC.TL_documentAttributeSticker();
+            case 20: return new TLRPC.TL_documentAttributeImageSize();
+            case 21: return new TLRPC.TL_rpc_result();
+            case 22: return new TLRPC.TL_contactStatus();
+            case 23: return new TLRPC.TL_auth_authorization();
+            case 24: return new TLRPC.TL_messages_messages();
+            case 25: return new TLRPC.TL_messages_messagesSlice();
+            case 26: return new TLRPC.TL_rpc_answer_unknown();
+            case 27: return new TLRPC.TL_rpc_answer_dropped();
+            case 28: return new TLRPC.TL_rpc_answer_dropped_running();
+            case 29: return new TLRPC.TL_contacts_link();
+            case 30: return new TLRPC.TL_peerUser();
+            case 31: return new TLRPC.TL_peerChat();
+            case 32: return new TLRPC.TL_encryptedFile();
+            case 33: return new TLRPC.TL_encryptedFileEmpty();
+            case 34: return new TLRPC.TL_destroy_session_ok();
+            case 35: return new TLRPC.TL_destroy_session_none();
+            case 36: return new TLRPC.TL_updates_differenceEmpty();
+            case 37: return new TLRPC.TL_updates_differenceSlice();
+            case 38: return new TLRPC.TL_updates_difference();
+            case 39: return new TLRPC.TL_geoPointEmpty();
+            case 40: return new TLRPC.TL_geoPoint();
+            case 41: return new TLRPC.TL_privacyKeyStatusTimestamp();
+            case 42: return new TLRPC.TL_account_privacyRules();
+            case 43: return new TLRPC.TL_help_appUpdate();
+            case 44: return new TLRPC.TL_help_noAppUpdate();
+            case 45: return new TLRPC.TL_messageEmpty();
+            case 46: return new TLRPC.TL_message();
+            case 47: return new TLRPC.TL_messageService();
+            case 48: return new TLRPC.TL_inputPhoneContact();
+            case 49: return new TLRPC.TL_sendMessageGeoLocationAction();
+            case 50: return new TLRPC.TL_sendMessageChooseContactAction();
+            case 51: return new TLRPC.TL_sendMessageTypingAction();
+            case 52: return new TLRPC.TL_sendMessageUploadDocumentAction();
+            case 53: return new TLRPC.TL_sendMessageRecordVideoAction();
+            case 54: return new TLRPC.TL_sendMessageUploadPhotoAction();
+            case 55: return new TLRPC.TL_sendMessageUploadVideoAction();
+            case 56: return new TLRPC.TL_sendMessageUploadAudioAction();
+            case 57: return new TLRPC.TL_sendMessageCancelAction();
+            case 58: return new TLRPC.TL_sendMessageRecordAudioAction();
+            case 59: return new TLRPC.TL_invokeAfterMsg();
+            case 60: return new TLRPC.TL_messageMediaVideo();
+            case 61: return new TLRPC.TL_messageMediaPhoto();
+            case 62: return new TLRPC.TL_messageMediaDocument();
+            case 63: return new TLRPC.TL_messageMediaGeo();
+            case 64: return new TLRPC.TL_messageMediaEmpty();
+            case 65: return new TLRPC.TL_messageMediaAudio();
+            case 66: return new TLRPC.TL_messageMediaContact();
+            case 67: return new TLRPC.TL_messageMediaUnsupported();
+            case 68: return new TLRPC.TL_auth_sentAppCode();
+            case 69: return new TLRPC.TL_auth_sentCode();
+            case 70: return new TLRPC.TL_peerNotifySettingsEmpty();
+            case 71: return new TLRPC.TL_peerNotifySettings();
+            case 72: return new TLRPC.TL_msg_resend_req();
+            case 73: return new TLRPC.TL_http_wait();
+            case 74: return new TLRPC.TL_contacts_blocked();
+            case 75: return new TLRPC.TL_contacts_blockedSlice();
+            case 76: return new TLRPC.TL_inputGeoPoint();
+            case 77: return new TLRPC.TL_inputGeoPointEmpty();
+            case 78: return new TLRPC.TL_help_inviteText();
+            case 79: return new TLRPC.TL_messages_dhConfigNotModified();
+            case 80: return new TLRPC.TL_messages_dhConfig();
+            case 81: return new TLRPC.TL_audioEmpty();
+            case 82: return new TLRPC.TL_audio();
+            case 83: return new TLRPC.TL_destroy_sessions_res();
+            case 84: return new TLRPC.TL_privacyValueAllowUsers();
+            case 85: return new TLRPC.TL_privacyValueDisallowAll();
+            case 86: return new TLRPC.TL_privacyValueAllowContacts();
+            case 87: return new TLRPC.TL_privacyValueDisallowContacts();
+            case 88: return new TLRPC.TL_privacyValueAllowAll();
+            case 89: return new TLRPC.TL_privacyValueDisallowUsers();
+            case 90: return new TLRPC.TL_contacts_contacts();
+            case 91: return new TLRPC.TL_contacts_contactsNotModified();
+            case 92: return new TLRPC.TL_inputPrivacyKeyStatusTimestamp();
+            case 93: return new TLRPC.TL_photos_photos();
+            case 94: return new TLRPC.TL_photos_photosSlice();
+            case 95: return new TLRPC.TL_chatFull();
+            case 96: return new TLRPC.TL_msgs_all_info();
+            case 97: return new TLRPC.TL_inputPeerNotifySettings();
+            case 98: return new TLRPC.TL_null();
+            case 99: return new TLRPC.TL_inputUserSelf();
+            case 100: return new TLRPC.TL_inputUserForeign();
+            case 101: return new TLRPC.TL_inputUserEmpty();
+            case 102: return new TLRPC.TL_inputUserContact();
+            case 103: return new TLRPC.TL_p_q_inner_data();
+            case 104: return new TLRPC.TL_msgs_state_req();
+            case 105: return new TLRPC.TL_boolTrue();
+            case 106: return new TLRPC.TL_boolFalse();
+            case 107: return new TLRPC.TL_auth_exportedAuthorization();
+            case 108: return new TLRPC.TL_inputNotifyChats();
+            case 109: return new TLRPC.TL_inputNotifyPeer();
+            case 110: return new TLRPC.TL_inputNotifyUsers();
+            case 111: return new TLRPC.TL_inputNotifyGeoChatPeer();
+            case 112: return new TLRPC.TL_inputNotifyAll();
+            case 113: return new TLRPC.TL_inputAudioFileLocation();
+            case 114: return new TLRPC.TL_inputEncryptedFileLocation();
+            case 115: return new TLRPC.TL_inputVideoFileLocation();
+            case 116: return new TLRPC.TL_inputDocumentFileLocation();
+            case 117: return new TLRPC.TL_inputFileLocation();
+            case 118: return new TLRPC.TL_photos_photo();
+            case 119: return new TLRPC.TL_userContact();
+            case 120: return new TLRPC.TL_userRequest();
+            case 121: return new TLRPC.TL_userForeign();
+            case 122: return new TLRPC.TL_userDeleted();
+            case 123: return new TLRPC.TL_userSelf();
+            case 124: return new TLRPC.TL_userEmpty();
+            case 125: return new TLRPC.TL_geoChatMessage();
+            case 126: return new TLRPC.TL_geoChatMessageService();
+            case 127: return new TLRPC.TL_geoChatMessageEmpty();
+            case 128: return new TLRPC.TL_pong();
+            case 129: return new TLRPC.TL_messageActionChatEditPhoto();
+            case 130: return new TLRPC.TL_messageActionChatDeleteUser();
+            case 131: return new TLRPC.TL_messageActionChatDeletePhoto();
+            case 132: return new TLRPC.TL_messageActionChatAddUser();
+            case 133: return new TLRPC.TL_messageActionChatCreate();
+            case 134: return new TLRPC.TL_messageActionEmpty();
+            case 135: return new TLRPC.TL_messageActionChatEditTitle();
+            case 136: return new TLRPC.TL_messageActionGeoChatCreate();
+            case 137: return new TLRPC.TL_messageActionGeoChatCheckin();
+            case 138: return new TLRPC.TL_dh_gen_retry();
+            case 139: return new TLRPC.TL_dh_gen_fail();
+            case 140: return new TLRPC.TL_dh_gen_ok();
+            case 141: return new TLRPC.TL_peerNotifyEventsEmpty();
+            case 142: return new TLRPC.TL_peerNotifyEventsAll();
+            case 143: return new TLRPC.TL_chatLocated();
+            case 144: return new TLRPC.TL_decryptedMessageService();
+            case 145: return new TLRPC.TL_decryptedMessage();
+            case 146: return new TLRPC.TL_inputPeerNotifyEventsAll();
+            case 147: return new TLRPC.TL_inputPeerNotifyEventsEmpty();
+            case 148: return new TLRPC.TL_client_DH_inner_data();
+            case 149: return new TLRPC.TL_video();
+            case 150: return new TLRPC.TL_videoEmpty();
+            case 151: return new TLRPC.TL_contactBlocked();
+            case 152: return new TLRPC.TL_inputDocumentEmpty();
+            case 153: return new TLRPC.TL_inputDocument();
+            case 154: return new TLRPC.TL_inputAppEvent();
+            case 155: return new TLRPC.TL_messages_affectedHistory();
+            case 156: return new TLRPC.TL_documentEmpty();
+            case 157: return new TLRPC.TL_document();
+            case 158: return new TLRPC.TL_inputPrivacyValueDisallowUsers();
+            case 159: return new TLRPC.TL_inputPrivacyValueDisallowAll();
+            case 160: return new TLRPC.TL_inputPrivacyValueDisallowContacts();
+            case 161: return new TLRPC.TL_inputPrivacyValueAllowAll();
+            case 162: return new TLRPC.TL_inputPrivacyValueAllowContacts();
+            case 163: return new TLRPC.TL_inputPrivacyValueAllowUsers();
+            case 164: return new TLRPC.TL_inputMediaContact();
+            case 165: return new TLRPC.TL_inputMediaUploadedThumbDocument();
+            case 166: return new TLRPC.TL_inputMediaAudio();
+            case 167: return new TLRPC.TL_inputMediaDocument();
+            case 168: return new TLRPC.TL_inputMediaVideo();
+            case 169: return new TLRPC.TL_inputMediaGeoPoint();
+            case 170: return new TLRPC.TL_inputMediaEmpty();
+            case 171: return new TLRPC.TL_inputMediaUploadedThumbVideo();
+            case 172: return new TLRPC.TL_inputMediaUploadedPhoto();
+            case 173: return new TLRPC.TL_inputMediaUploadedAudio();
+            case 174: return new TLRPC.TL_inputMediaUploadedVideo();
+            case 175: return new TLRPC.TL_inputMediaUploadedDocument();
+            case 176: return new TLRPC.TL_inputMediaPhoto();
+            case 177: return new TLRPC.TL_geochats_messagesSlice();
+            case 178: return new TLRPC.TL_geochats_messages();
+            case 179: return new TLRPC.TL_messages_sentMessage();
+            case 180: return new TLRPC.TL_messages_sentMessageLink();
+            case 181: return new TLRPC.TL_encryptedMessageService();
+            case 182: return new TLRPC.TL_encryptedMessage();
+            case 183: return new TLRPC.TL_contactSuggested();
+            case 184: return new TLRPC.TL_server_DH_params_fail();
+            case 185: return new TLRPC.TL_server_DH_params_ok();
+            case 186: return new TLRPC.TL_userStatusOffline();
+            case 187: return new TLRPC.TL_userStatusLastWeek();
+            case 188: return new TLRPC.TL_userStatusEmpty();
+            case 189: return new TLRPC.TL_userStatusLastMonth();
+            case 190: return new TLRPC.TL_userStatusOnline();
+            case 191: return new TLRPC.TL_userStatusRecently();
+            case 192: return new TLRPC.TL_msg_copy();
+            case 193: return new TLRPC.TL_contacts_importedContacts();
+            case 194: return new TLRPC.TL_disabledFeature();
+            case 195: return new TLRPC.TL_futureSalt();
+            case 196: return new TLRPC.TL_updateEncryptedMessagesRead();
+            case 197: return new TLRPC.TL_updateContactLink();
+            case 198: return new TLRPC.TL_updateReadMessages();
+            case 199: return new TLRPC.TL_updateChatParticipantDelete();
+            case 200: return new TLRPC.TL_updateServiceNotification();
+            case 201: return new TLRPC.TL_updateNotifySettings();
+            case 202: return new TLRPC.TL_updateUserTyping();
+            case 203: return new TLRPC.TL_updateChatUserTyping();
+            case 204: return new TLRPC.TL_updateUserName();
+            case 205: return new TLRPC.TL_updateNewEncryptedMessage();
+            case 206: return new TLRPC.TL_updateNewMessage();
+            case 207: return new TLRPC.TL_updateMessageID();
+            case 208: return new TLRPC.TL_updateDeleteMessages();
+            case 209: return new TLRPC.TL_updateEncryptedChatTyping();
+            case 210: return new TLRPC.TL_updateDcOptions();
+            case 211: return new TLRPC.TL_updateChatParticipants();
+            case 212: return new TLRPC.TL_updatePrivacy();
+            case 213: return new TLRPC.TL_updateEncryption();
+            case 214: return new TLRPC.TL_updateUserBlocked();
+            case 215: return new TLRPC.TL_updateActivation();
+            case 216: return new TLRPC.TL_updateNewAuthorization();
+            case 217: return new TLRPC.TL_updateNewGeoChatMessage();
+            case 218: return new TLRPC.TL_updateUserPhoto();
+            case 219: return new TLRPC.TL_updateContactRegistered();
+            case 220: return new TLRPC.TL_updateChatParticipantAdd();
+            case 221: return new TLRPC.TL_updateUserStatus();
+            case 222: return new TLRPC.TL_contacts_suggested();
+            case 223: return new TLRPC.TL_rpc_error();
+            case 224: return new TLRPC.TL_rpc_req_error();
+            case 225: return new TLRPC.TL_inputEncryptedFile();
+            case 226: return new TLRPC.TL_inputEncryptedFileBigUploaded();
+            case 227: return new TLRPC.TL_inputEncryptedFileEmpty();
+            case 228: return new TLRPC.TL_inputEncryptedFileUploaded();
+            case 229: return new TLRPC.TL_decryptedMessageActionFlushHistory();
+            case 230: return new TLRPC.TL_decryptedMessageActionResend();
+            case 231: return new TLRPC.TL_decryptedMessageActionNotifyLayer();
+            case 232: return new TLRPC.TL_decryptedMessageActionSetMessageTTL();
+            case 233: return new TLRPC.TL_decryptedMessageActionDeleteMessages();
+            case 234: return new TLRPC.TL_decryptedMessageActionTyping();
+            case 235: return new TLRPC.TL_decryptedMessageActionReadMessages();
+            case 236: return new TLRPC.TL_decryptedMessageActionScreenshotMessages();
+            case 237: return new TLRPC.TL_server_DH_inner_data();
+            case 238: return new TLRPC.TL_new_session_created();
+            case 239: return new TLRPC.TL_account_password();
+            case 240: return new TLRPC.TL_account_noPassword();
+            case 241: return new TLRPC.TL_userProfilePhotoEmpty();
+            case 242: return new TLRPC.TL_userProfilePhoto();
+            case 243: return new TLRPC.TL_photo();
+            case 244: return new TLRPC.TL_photoEmpty();
+            case 245: return new TLRPC.TL_encryptedChatWaiting();
+            case 246: return new TLRPC.TL_encryptedChatEmpty();
+            case 247: return new TLRPC.TL_encryptedChatDiscarded();
+            case 248: return new TLRPC.TL_encryptedChat();
+            case 249: return new TLRPC.TL_encryptedChatRequested();
+            case 250: return new TLRPC.TL_geochats_statedMessage();
+            case 251: return new TLRPC.TL_contact();
+            case 252: return new TLRPC.TL_config();
+            case 253: return new TLRPC.TL_inputAudio();
+            case 254: return new TLRPC.TL_inputAudioEmpty();
+            case 255: return new TLRPC.TL_help_support();
+            case 256: return new TLRPC.TL_messages_chats();
+            case 257: return new TLRPC.TL_contacts_found();
+            case 258: return new TLRPC.TL_chatParticipants();
+            case 259: return new TLRPC.TL_chatParticipantsForbidden();
+            case 260: return new TLRPC.TL_decryptedMessageMediaDocument();
+            case 261: return new TLRPC.TL_decryptedMessageMediaGeoPoint();
+            case 262: return new TLRPC.TL_decryptedMessageMediaAudio();
+            case 263: return new TLRPC.TL_decryptedMessageMediaVideo();
+            case 264: return new TLRPC.TL_decryptedMessageMediaContact();
+            case 265: return new TLRPC.TL_decryptedMessageMediaEmpty();
+            case 266: return new TLRPC.TL_decryptedMessageMediaPhoto();
+            case 267: return new TLRPC.TL_chatParticipant();
+            case 268: return new TLRPC.TL_chatForbidden();
+            case 269: return new TLRPC.TL_geoChat();
+            case 270: return new TLRPC.TL_chatEmpty();
+            case 271: return new TLRPC.TL_chat();
+            case 272: return new TLRPC.TL_storage_fileUnknown();
+            case 273: return new TLRPC.TL_storage_fileMp4();
+            case 274: return new TLRPC.TL_storage_fileWebp();
+            case 275: return new TLRPC.TL_storage_filePng();
+            case 276: return new TLRPC.TL_storage_fileGif();
+            case 277: return new TLRPC.TL_storage_filePdf();
+            case 278: return new TLRPC.TL_storage_fileMp3();
+            case 279: return new TLRPC.TL_storage_fileJpeg();
+            case 280: return new TLRPC.TL_storage_fileMov();
+            case 281: return new TLRPC.TL_storage_filePartial();
+            case 282: return new TLRPC.TL_inputMessagesFilterVideo();
+            case 283: return new TLRPC.TL_inputMessagesFilterEmpty();
+            case 284: return new TLRPC.TL_inputMessagesFilterPhotos();
+            case 285: return new TLRPC.TL_inputMessagesFilterPhotoVideo();
+            case 286: return new TLRPC.TL_inputMessagesFilterDocument();
+            case 287: return new TLRPC.TL_inputMessagesFilterAudio();
+            case 288: return new TLRPC.TL_msgs_state_info();
+            case 289: return new TLRPC.TL_upload_file();
+            case 290: return new TLRPC.TL_dialog();
+            case 291: return new TLRPC.TL_fileLocation();
+            case 292: return new TLRPC.TL_fileLocationUnavailable();
+            case 293: return new TLRPC.TL_messages_messageEmpty();
+            case 294: return new TLRPC.TL_messages_message();
+            case 295: return new TLRPC.TL_geochats_located();
+            case 296: return new TLRPC.TL_inputGeoChat();
+            case 297: return new TLRPC.TL_protoMessage();
+            case 298: return new TLRPC.TL_photoSize();
+            case 299: return new TLRPC.TL_photoSizeEmpty();
+            case 300: return new TLRPC.TL_photoCachedSize();
+            case 301: return new TLRPC.TL_contactFound();
+            case 302: return new TLRPC.TL_inputFileBig();
+            case 303: return new TLRPC.TL_inputFile();
+            case 304: return new TLRPC.TL_userFull();
+            case 305: return new TLRPC.TL_updates_state();
+            case 306: return new TLRPC.TL_resPQ();
+            case 307: return new TLRPC.TL_updateShortChatMessage();
+            case 308: return new TLRPC.TL_updates();
+            case 309: return new TLRPC.TL_updateShortMessage();
+            case 310: return new TLRPC.TL_updateShort();
+            case 311: return new TLRPC.TL_updatesCombined();
+            case 312: return new TLRPC.TL_updatesTooLong();
+            case 313: return new TLRPC.TL_wallPaper();
+            case 314: return new TLRPC.TL_wallPaperSolid();
+            case 315: return new TLRPC.TL_msg_new_detailed_info();
+            case 316: return new TLRPC.TL_msg_detailed_info();
+            case 317: return new TLRPC.TL_inputEncryptedChat();
+            case 318: return new TLRPC.TL_inputChatPhoto();
+            case 319: return new TLRPC.TL_inputChatPhotoEmpty();
+            case 320: return new TLRPC.TL_inputChatUploadedPhoto();
+            case 321: return new TLRPC.TL_inputVideoEmpty();
+            case 322: return new TLRPC.TL_inputVideo();
+            case 323: return new TLRPC.TL_nearestDc();
+            case 324: return new TLRPC.TL_inputPhotoEmpty();
+            case 325: return new TLRPC.TL_inputPhoto();
+            case 326: return new TLRPC.TL_importedContact();
+            case 327: return new TLRPC.TL_accountDaysTTL();
+            case 328: return new TLRPC.TL_stickerPack();
+            case 329: return new TLRPC.TL_messages_allStickers();
+            case 330: return new TLRPC.TL_messages_allStickersNotModified();
+            case 331: return new TLRPC.TL_inputPeerContact();
+            case 332: return new TLRPC.TL_inputPeerChat();
+            case 333: return new TLRPC.TL_inputPeerEmpty();
+            case 334: return new TLRPC.TL_inputPeerSelf();
+            case 335: return new TLRPC.TL_inputPeerForeign();
+            case 336: return new TLRPC.TL_dcOption();
+            case 337: return new TLRPC.TL_decryptedMessageLayer();
+            case 338: return new TLRPC.TL_inputPhotoCropAuto();
+            case 339: return new TLRPC.TL_inputPhotoCrop();
+            case 340: return new TLRPC.TL_messages_dialogs();
+            case 341: return new TLRPC.TL_messages_dialogsSlice();
+            case 342: return new TLRPC.TL_account_sentChangePhoneCode();
+            case 343: return new TLRPC.TL_updateUserPhone();
+            case 344: return new TLRPC.TL_decryptedMessageActionRequestKey();
+            case 345: return new TLRPC.TL_decryptedMessageActionAcceptKey();
+            case 346: return new TLRPC.TL_decryptedMessageActionCommitKey();
+            case 347: return new TLRPC.TL_decryptedMessageActionAbortKey();
+            case 348: return new TLRPC.TL_decryptedMessageActionNoop();
+            case 349: return new TLRPC.TL_decryptedMessageMediaExternalDocument();
+            case 350: return new TLRPC.TL_updateReadHistoryInbox();
+            case 351: return new TLRPC.TL_updateReadHistoryOutbox();
+            case 352: return new TLRPC.TL_contactLinkUnknown();
+            case 353: return new TLRPC.TL_contactLinkNone();
+            case 354: return new TLRPC.TL_contactLinkHasPhone();
+            case 355: return new TLRPC.TL_contactLinkContact();
+            case 356: return new TLRPC.TL_messages_affectedMessages();
+            case 357: return new TLRPC.TL_updateWebPage();
+            case 358: return new TLRPC.TL_webPagePending();
+            case 359: return new TLRPC.TL_webPageEmpty();
+            case 360: return new TLRPC.TL_webPage();
+            case 361: return new TLRPC.TL_messageMediaWebPage();
+            case 362: return new TLRPC.TL_authorization();
+            case 363: return new TLRPC.TL_account_authorizations();
+            case 364: return new TLRPC.TL_account_passwordSettings();
+            case 365: return new TLRPC.TL_account_passwordInputSettings();
+            case 366: return new TLRPC.TL_auth_passwordRecovery();
+            case 367: return new TLRPC.TL_messages_getWebPagePreview();
+            case 368: return new TLRPC.TL_messageMediaUnsupported_old();
+            case 369: return new TLRPC.TL_userSelf_old2();
+            case 370: return new TLRPC.TL_msg_container();
+            case 371: return new TLRPC.TL_fileEncryptedLocation();
+            case 372: return new TLRPC.TL_messageActionTTLChange();
+            case 373: return new TLRPC.TL_videoEncrypted();
+            case 374: return new TLRPC.TL_documentEncrypted();
+            case 375: return new TLRPC.TL_audioEncrypted();
+            case 376: return new TLRPC.TL_gzip_packed();
+            case 377: return new TLRPC.Vector();
+            case 378: return new TLRPC.TL_userProfilePhotoOld();
+            case 379: return new TLRPC.TL_messageActionUserUpdatedPhoto();
+            case 380: return new TLRPC.TL_messageActionUserJoined();
+            case 381: return new TLRPC.TL_messageActionLoginUnknownLocation();
+            case 382: return new TLRPC.TL_encryptedChat_old();
+            case 383: return new TLRPC.TL_encryptedChatRequested_old();
+            case 384: return new TLRPC.TL_decryptedMessageMediaVideo_old();
+            case 385: return new TLRPC.TL_decryptedMessageMediaAudio_old();
+            case 386: return new TLRPC.TL_audio_old();
+            case 387: return new TLRPC.TL_video_old();
+            case 388: return new TLRPC.TL_messageActionCreatedBroadcastList();
+            case 389: return new TLRPC.TL_messageForwarded_old();
+            case 390: return new TLRPC.TL_message_old();
+            case 391: return new TLRPC.TL_messageService_old();
+            case 392: return new TLRPC.TL_decryptedMessageService_old();
+            case 393: return new TLRPC.TL_decryptedMessage_old();
+            case 394: return new TLRPC.TL_message_secret();
+            case 395: return new TLRPC.TL_userSelf_old();
+            case 396: return new TLRPC.TL_userContact_old();
+            case 397: return new TLRPC.TL_userRequest_old();
+            case 398: return new TLRPC.TL_userForeign_old();
+            case 399: return new TLRPC.TL_userDeleted_old();
+            case 400: return new TLRPC.TL_messageEncryptedAction();
+            case 401: return new TLRPC.TL_decryptedMessageHolder();
+            case 402: return new TLRPC.TL_documentEncrypted_old();
+            case 403: return new TLRPC.TL_document_old();
+            case 404: return new TLRPC.TL_config_old();
+            case 405: return new TLRPC.TL_messageForwarded_old2();
+            case 406: return new TLRPC.TL_message_old2();
+            case 407: return new TLRPC.TL_documentAttributeSticker_old();
+            default: return null;
+        }
+    }
+}
@@ -44,15 +44,20 @@ public class TcpConnection extends ConnectionContext {
     private int datacenterId;
     private int failedConnectionCount;
     public TcpConnectionDelegate delegate;
-    private ByteBufferDesc restOfTheData;
+    private ByteBufferDesc pendingPacket;
+    private final byte[] partialHeader = new byte[4];
+    private int partialHeaderLength;
     private boolean hasSomeDataSinceLastConnect = false;
     private int willRetryConnectCount = 5;
     private boolean isNextPort = false;
     private final Object timerSync = new Object();
     private boolean wasConnected;
-    private int lastPacketLength;
+
+    public static final int FRAME_HEADER_SPACE = 5;
+    private static final int MAX_PACKET_LENGTH = 2 * 1024 * 1024;
 
     public int transportRequestClass;
+    public int connectionNum;
 
     private boolean firstPacket;
 
@@ -117,11 +122,7 @@ public class TcpConnection extends ConnectionContext {
 
                     FileLog.d("tmessages", String.format(TcpConnection.this + " Connecting (%s:%d)", hostAddress, hostPort));
                     firstPacket = true;
-                    if (restOfTheData != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                        restOfTheData = null;
-                    }
-                    lastPacketLength = 0;
+                    resetReadState();
                     wasConnected = false;
                     hasSomeDataSinceLastConnect = false;
                     if (client != null) {
@@ -250,11 +251,7 @@ public class TcpConnection extends ConnectionContext {
             });
         }
         firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
-        lastPacketLength = 0;
+        resetReadState();
         channelToken = 0;
         wasConnected = false;
     }
@@ -282,7 +279,16 @@ public class TcpConnection extends ConnectionContext {
         connect();
     }
 
-    public void sendData(final ByteBufferDesc buff, final boolean canReuse, final boolean reportAck) {
+    public void sendData(ByteBufferDesc buff, boolean canReuse, boolean reportAck) {
+        sendData(buff, 0, canReuse, reportAck);
+    }
+
+    /**
+     * Sends the packet stored in buff from offset to its limit. When there is room for the transport
+     * header in front of the packet (FRAME_HEADER_SPACE bytes are always enough), the header is
+     * written in place and the buffer is queued as is, otherwise the packet is copied.
+     */
+    public void sendData(final ByteBufferDesc buff, final int offset, final boolean canReuse, final boolean reportAck) {
         if (buff == null) {
             return;
         }
@@ -305,19 +311,28 @@ public class TcpConnection extends ConnectionContext {
                     return;
                 }
 
-                int bufferLen = buff.limit();
-                int packetLength = bufferLen / 4;
+                int dataLength = buff.limit() - offset;
+                int packetLength = dataLength / 4;
 
+                int headerLength;
                 if (packetLength < 0x7f) {
-                    bufferLen++;
+                    headerLength = 1;
                 } else {
-                    bufferLen += 4;
+                    headerLength = 4;
                 }
                 if (firstPacket) {
-                    bufferLen++;
+                    headerLength++;
                 }
 
-                ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(bufferLen);
+                ByteBufferDesc buffer;
+                if (canReuse && offset >= headerLength) {
+                    buffer = buff;
+                    buffer.position(offset - headerLength);
+                } else {
+                    buffer = BuffersStorage.getInstance().getFreeBuffer(dataLength + headerLength);
+                }
+                int headerPosition = buffer.position();
+
                 if (firstPacket) {
                     buffer.writeByte((byte)0xef);
                     firstPacket = false;
@@ -335,107 +350,101 @@ public class TcpConnection extends ConnectionContext {
                     buffer.writeInt32(packetLength);
                 }
 
-                buffer.writeRaw(buff);
-                if (canReuse) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(buff);
+                if (buffer != buff) {
+                    buff.limit(offset + dataLength);
+                    buff.position(offset);
+                    buffer.put(buff.buffer);
+                    if (canReuse) {
+                        BuffersStorage.getInstance().reuseFreeBuffer(buff);
+                    }
                 }
 
-                buffer.rewind();
+                buffer.position(headerPosition);
 
                 client.write(buffer);
             }
         });
     }
 
+    private void resetReadState() {
+        if (pendingPacket != null) {
+            BuffersStorage.getInstance().reuseFreeBuffer(pendingPacket);
+            pendingPacket = null;
+        }
+        partialHeaderLength = 0;
+    }
+
+    private void processPacket(final ByteBufferDesc packet) {
+        packet.rewind();
+        if (delegate != null) {
+            final TcpConnectionDelegate finalDelegate = delegate;
+            final int length = packet.limit();
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    finalDelegate.tcpConnectionReceivedData(TcpConnection.this, packet, length);
+                    BuffersStorage.getInstance().reuseFreeBuffer(packet);
+                }
+            });
+        } else {
+            BuffersStorage.getInstance().reuseFreeBuffer(packet);
+        }
+    }
+
     private void readData(ByteBuffer buffer) throws Exception {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
         buffer.rewind();
 
-        ByteBuffer parseLaterBuffer = null;
-        if (restOfTheData != null) {
-            if (lastPacketLength == 0) {
-                //FileLog.e("tmessages", this +  " write addition data to restOfTheData");
-                if (restOfTheData.capacity() - restOfTheData.position() >= buffer.limit()) {
-                    restOfTheData.limit(restOfTheData.position() + buffer.limit());
-                    restOfTheData.put(buffer);
-                    buffer = restOfTheData.buffer;
-                    //FileLog.e("tmessages", this +  " no need to recreate buffer");
-                } else {
-                    ByteBufferDesc newBuffer = BuffersStorage.getInstance().getFreeBuffer(restOfTheData.limit() + buffer.limit());
-                    restOfTheData.rewind();
-                    newBuffer.put(restOfTheData.buffer);
-                    newBuffer.put(buffer);
-                    buffer = newBuffer.buffer;
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = newBuffer;
-                    //FileLog.e("tmessages", this +  " NEED to recreate buffer");
-                }
+        if (!buffer.hasRemaining() && pendingPacket == null) {
+            return;
+        }
+
+        if (!hasSomeDataSinceLastConnect) {
+            Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+            datacenter.storeCurrentAddressAndPortNum();
+            isNextPort = false;
+            if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
+                client.setTimeout(60000 * 15);
             } else {
-                //FileLog.e("tmessages", this +  " write buffer to restOfTheData buffer of len = " + lastPacketLength);
-                int len = 0;
-                if (lastPacketLength - restOfTheData.position() <= buffer.limit()) {
-                    len = lastPacketLength - restOfTheData.position();
-                    //FileLog.e("tmessages", this +  " received buffer - OK!");
-                } else {
-                    len = buffer.limit();
-                    //FileLog.e("tmessages", this +  " received buffer less than need");
-                }
+                client.setTimeout(25000);
+            }
+        }
+        hasSomeDataSinceLastConnect = true;
+
+        if (pendingPacket != null) {
+            if (pendingPacket.hasRemaining()) {
                 int oldLimit = buffer.limit();
-                buffer.limit(len);
-                restOfTheData.put(buffer);
+                if (buffer.remaining() > pendingPacket.buffer.remaining()) {
+                    buffer.limit(buffer.position() + pendingPacket.buffer.remaining());
+                }
+                pendingPacket.put(buffer);
                 buffer.limit(oldLimit);
-                if (restOfTheData.position() != lastPacketLength) {
-                    //FileLog.e("tmessages", this +  " don't get much data to restOfTheData");
+                if (pendingPacket.hasRemaining()) {
                     return;
-                } else {
-                    //FileLog.e("tmessages", this +  " get much data to restOfTheData - OK!");
-                    if (buffer.hasRemaining()) {
-                        parseLaterBuffer = buffer;
-                        //FileLog.e("tmessages", this +  " something remain in the received buffer");
-                    } else {
-                        parseLaterBuffer = null;
-                    }
-                    buffer = restOfTheData.buffer;
                 }
             }
+            ByteBufferDesc packet = pendingPacket;
+            pendingPacket = null;
+            FileLog.d("tmessages", TcpConnection.this + " Received message len " + packet.limit() + " after reassembly");
+            processPacket(packet);
         }
 
-        buffer.rewind();
-
         while (buffer.hasRemaining()) {
-            if (!hasSomeDataSinceLastConnect) {
-                Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
-                datacenter.storeCurrentAddressAndPortNum();
-                isNextPort = false;
-                if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
-                    client.setTimeout(60000 * 15);
-                } else {
-                    client.setTimeout(25000);
+            byte fByte = partialHeaderLength != 0 ? partialHeader[0] : buffer.get(buffer.position());
+            int headerLength = (fByte & (1 << 7)) != 0 || fByte == 0x7f ? 4 : 1;
+            if (partialHeaderLength + buffer.remaining() < headerLength) {
+                while (buffer.hasRemaining()) {
+                    partialHeader[partialHeaderLength++] = buffer.get();
                 }
+                break;
             }
-            hasSomeDataSinceLastConnect = true;
-
-            int currentPacketLength;
-            buffer.mark();
-            byte fByte = buffer.get();
+            while (partialHeaderLength < headerLength) {
+                partialHeader[partialHeaderLength++] = buffer.get();
+            }
+            partialHeaderLength = 0;
 
             if ((fByte & (1 << 7)) != 0) {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    ByteBufferDesc reuseLater = restOfTheData;
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                    restOfTheData.put(buffer);
-                    restOfTheData.limit(restOfTheData.position());
-                    lastPacketLength = 0;
-                    //FileLog.e("tmessages", this +  " 1 - size less than 4 bytes - write to free buffer");
-                    if (reuseLater != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                        //FileLog.e("tmessages", this +  " 1 - reuse later buffer1");
-                    }
-                    break;
-                }
-                buffer.order(ByteOrder.BIG_ENDIAN);
-                final int ackId = buffer.getInt() & (~(1 << 31));
+                final int ackId = ((partialHeader[0] & 0x7f) << 24) | ((partialHeader[1] & 0xff) << 16) | ((partialHeader[2] & 0xff) << 8) | (partialHeader[3] & 0xff);
                 if (delegate != null) {
                     final TcpConnectionDelegate finalDelegate = delegate;
                     Utilities.stageQueue.postRunnable(new Runnable() {
@@ -445,108 +454,36 @@ public class TcpConnection extends ConnectionContext {
                         }
                     });
                 }
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
                 continue;
             }
 
+            int currentPacketLength;
             if (fByte != 0x7f) {
                 currentPacketLength = ((int)fByte) * 4;
             } else {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    //FileLog.e("tmessages", this +  " 2 - size less than 4 bytes - write to free buffer");
-                    if (restOfTheData == null || restOfTheData != null && restOfTheData.position() != 0) {
-                        ByteBufferDesc reuseLater = restOfTheData;
-                        restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                        restOfTheData.put(buffer);
-                        restOfTheData.limit(restOfTheData.position());
-                        lastPacketLength = 0;
-                        if (reuseLater != null) {
-                            BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                            //FileLog.e("tmessages", this +  " 2 - reuse later buffer1");
-                        }
-                    } else {
-                        restOfTheData.position(restOfTheData.limit());
-                    }
-                    break;
-                }
-                currentPacketLength = (buffer.getInt() >> 8) * 4;
+                currentPacketLength = ((partialHeader[1] & 0xff) | ((partialHeader[2] & 0xff) << 8) | ((partialHeader[3] & 0xff) << 16)) * 4;
             }
 
-            if (currentPacketLength % 4 != 0 || currentPacketLength > 2 * 1024 * 1024) {
+            if (currentPacketLength == 0 || currentPacketLength > MAX_PACKET_LENGTH) {
                 FileLog.e("tmessages", "Invalid packet length");
                 reconnect();
                 return;
             }
 
-            if (currentPacketLength < buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " but packet larger " + buffer.remaining());
-            } else if (currentPacketLength == buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " equal to packet size");
-            } else {
+            ByteBufferDesc packet = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
+            if (currentPacketLength > buffer.remaining()) {
                 FileLog.d("tmessages", TcpConnection.this + " Received packet size less(" + buffer.remaining() + ") then message size(" + currentPacketLength + ")");
-
-                ByteBufferDesc reuseLater = null;
-                int len = currentPacketLength + (fByte != 0x7f ? 1 : 4);
-                if (restOfTheData != null && restOfTheData.capacity() < len) {
-                    reuseLater = restOfTheData;
-                    restOfTheData = null;
-                    //FileLog.e("tmessages", this +  " not enough space for len, recreate buffer = " + len);
-                }
-                if (restOfTheData == null) {
-                    //FileLog.e("tmessages", this +  " write to restOfTheData, get buffer len = " + len);
-                    buffer.reset();
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(len);
-                    restOfTheData.put(buffer);
-                } else {
-                    restOfTheData.position(restOfTheData.limit());
-                    restOfTheData.limit(len);
-                }
-                lastPacketLength = len;
-                if (reuseLater != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                    //FileLog.e("tmessages", this +  " 3 - reuse later buffer1");
-                }
+                packet.put(buffer);
+                pendingPacket = packet;
+                client.setReadTarget(packet.buffer);
                 return;
             }
 
-            final int length = currentPacketLength;
-            final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
-            int old = buffer.limit();
+            int oldLimit = buffer.limit();
             buffer.limit(buffer.position() + currentPacketLength);
-            toProceed.put(buffer);
-            buffer.limit(old);
-            toProceed.rewind();
-
-            if (delegate != null) {
-                final TcpConnectionDelegate finalDelegate = delegate;
-                Utilities.stageQueue.postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        finalDelegate.tcpConnectionReceivedData(TcpConnection.this, toProceed, length);
-                        BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
-                    }
-                });
-            }
-
-            if (restOfTheData != null) {
-                if (lastPacketLength != 0 && restOfTheData.position() == lastPacketLength || lastPacketLength == 0 && !restOfTheData.hasRemaining()) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = null;
-                    //FileLog.e("tmessages", this +  " restOfTheData parsed null it");
-                } else {
-                    restOfTheData.compact();
-                    restOfTheData.limit(restOfTheData.position());
-                    restOfTheData.position(0);
-                    //FileLog.e("tmessages", this +  " restOfTheData NOT parsed, compact");
-                }
-            }
-
-            if (parseLaterBuffer != null) {
-                //FileLog.e("tmessages", this +  " there is parseLaterBuffer");
-                buffer = parseLaterBuffer;
-                parseLaterBuffer = null;
-            }
+            packet.put(buffer);
+            buffer.limit(oldLimit);
+            processPacket(packet);
         }
     }
 
@@ -564,12 +501,8 @@ public class TcpConnection extends ConnectionContext {
         }
         boolean switchToNextPort = wasConnected && !hasSomeDataSinceLastConnect && timedout;
         firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
+        resetReadState();
         channelToken = 0;
-        lastPacketLength = 0;
         wasConnected = false;
         if (connectionState != TcpConnectionState.TcpConnectionStageSuspended && connectionState != TcpConnectionState.TcpConnectionStageIdle) {
             connectionState = TcpConnectionState.TcpConnectionStageIdle;
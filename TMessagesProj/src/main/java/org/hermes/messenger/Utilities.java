@@ -30,7 +30,6 @@ import net.hockeyapp.android.UpdateManager;
 
 import org.hermes.android.AndroidUtilities;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -50,8 +49,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import javax.crypto.Cipher;
 
@@ -292,33 +292,56 @@ public class Utilities {
         return true;
     }
 
+    private static final ThreadLocal<MessageDigest> sha1Local = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            return null;
+        }
+    };
+
     public static byte[] computeSHA1(byte[] convertme, int offset, int len) {
+        MessageDigest md = sha1Local.get();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
             md.update(convertme, offset, len);
             return md.digest();
         } catch (Exception e) {
+            md.reset();
             FileLog.e("tmessages", e);
         }
         return null;
     }
 
     public static byte[] computeSHA1(ByteBuffer convertme, int offset, int len) {
+        byte[] result = new byte[20];
+        if (computeSHA1(convertme, offset, len, result)) {
+            return result;
+        }
+        return null;
+    }
+
+    public static boolean computeSHA1(ByteBuffer convertme, int offset, int len, byte[] result) {
         int oldp = convertme.position();
         int oldl = convertme.limit();
+        MessageDigest md = sha1Local.get();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
             convertme.position(offset);
             convertme.limit(len);
             md.update(convertme);
-            return md.digest();
+            md.digest(result, 0, 20);
+            return true;
         } catch (Exception e) {
+            md.reset();
             FileLog.e("tmessages", e);
         } finally {
             convertme.limit(oldl);
             convertme.position(oldp);
         }
-        return null;
+        return false;
     }
 
     public static byte[] computeSHA1(ByteBuffer convertme) {
@@ -366,87 +389,119 @@ public class Utilities {
             keyData.aesKey = null;
             return keyData;
         }
-
-        int x = incoming ? 8 : 0;
-
-        SerializedData data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, x, 32);
-        byte[] sha1_a = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
-
-        data = new SerializedData();
-        data.writeRaw(authKey, 32 + x, 16);
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 48 + x, 16);
-        byte[] sha1_b = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
-
-        data = new SerializedData();
-        data.writeRaw(authKey, 64 + x, 32);
-        data.writeRaw(messageKey);
-        byte[] sha1_c = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
-
-        data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 96 + x, 32);
-        byte[] sha1_d = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
-
-        data = new SerializedData();
-        data.writeRaw(sha1_a, 0, 8);
-        data.writeRaw(sha1_b, 8, 12);
-        data.writeRaw(sha1_c, 4, 12);
-        keyData.aesKey = data.toByteArray();
-        data.cleanup();
-
-        data = new SerializedData();
-        data.writeRaw(sha1_a, 8, 12);
-        data.writeRaw(sha1_b, 0, 8);
-        data.writeRaw(sha1_c, 16, 4);
-        data.writeRaw(sha1_d, 0, 8);
-        keyData.aesIv = data.toByteArray();
-        data.cleanup();
-
+        MessageEncryption.generateMessageKeyData(authKey, messageKey, 0, incoming, keyData);
         return keyData;
     }
 
-    public static TLObject decompress(byte[] data, TLObject parentObject) {
-        final int BUFFER_SIZE = 512;
-        ByteArrayInputStream is = new ByteArrayInputStream(data);
-        GZIPInputStream gis;
-        try {
-            gis = new GZIPInputStream(is, BUFFER_SIZE);
-            ByteArrayOutputStream bytesOutput = new ByteArrayOutputStream();
-            data = new byte[BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = gis.read(data)) != -1) {
-                bytesOutput.write(data, 0, bytesRead);
+    private static final ThreadLocal<Inflater> inflaterLocal = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static final ThreadLocal<byte[]> inflateBufferLocal = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16384];
+        }
+    };
+
+    private static int getGzipHeaderLength(byte[] data) {
+        if (data.length < 18 || (data[0] & 0xff) != 0x1f || (data[1] & 0xff) != 0x8b || data[2] != 8) {
+            return -1;
+        }
+        int flags = data[3] & 0xff;
+        int offset = 10;
+        if ((flags & 4) != 0) {
+            if (offset + 2 > data.length) {
+                return -1;
             }
-            try {
-                gis.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+            offset += 2 + ((data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8));
+        }
+        if ((flags & 8) != 0) {
+            while (offset < data.length && data[offset] != 0) {
+                offset++;
             }
-            try {
-                is.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+            offset++;
+        }
+        if ((flags & 16) != 0) {
+            while (offset < data.length && data[offset] != 0) {
+                offset++;
             }
-            SerializedData stream = new SerializedData(bytesOutput.toByteArray());
-            try {
-                bytesOutput.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+            offset++;
+        }
+        if ((flags & 2) != 0) {
+            offset += 2;
+        }
+        return offset + 8 <= data.length ? offset : -1;
+    }
+
+    private static int getIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    public static ByteBufferDesc inflate(byte[] data) {
+        int headerLength = getGzipHeaderLength(data);
+        if (headerLength < 0) {
+            FileLog.e("tmessages", "invalid gzip header");
+            return null;
+        }
+        int expectedCrc = getIntLE(data, data.length - 8);
+        int uncompressedSize = getIntLE(data, data.length - 4);
+        if (uncompressedSize <= 0) {
+            FileLog.e("tmessages", "invalid gzip size " + uncompressedSize);
+            return null;
+        }
+        ByteBufferDesc output = BuffersStorage.getInstance().getFreeBuffer(uncompressedSize);
+        if (output == null) {
+            return null;
+        }
+        Inflater inflater = inflaterLocal.get();
+        byte[] chunk = inflateBufferLocal.get();
+        CRC32 crc = new CRC32();
+        boolean success = false;
+        try {
+            inflater.setInput(data, headerLength, data.length - headerLength - 8);
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0) {
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (count > output.buffer.remaining()) {
+                    break;
+                }
+                crc.update(chunk, 0, count);
+                output.buffer.put(chunk, 0, count);
             }
-            TLObject object = TLClassStore.Instance().TLdeserialize(stream, stream.readInt32(), parentObject);
-            stream.cleanup();
-            return object;
-        } catch (IOException e) {
+            success = inflater.finished() && !output.buffer.hasRemaining() && (int) crc.getValue() == expectedCrc;
+        } catch (Exception e) {
             FileLog.e("tmessages", e);
+        } finally {
+            inflater.reset();
+        }
+        if (!success) {
+            FileLog.e("tmessages", "gzip inflate error");
+            BuffersStorage.getInstance().reuseFreeBuffer(output);
+            return null;
+        }
+        output.rewind();
+        return output;
+    }
+
+    public static TLObject decompress(byte[] data, TLObject parentObject) {
+        ByteBufferDesc stream = inflate(data);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return TLClassStore.Instance().TLdeserialize(stream, stream.readInt32(), parentObject);
+        } finally {
+            BuffersStorage.getInstance().reuseFreeBuffer(stream);
         }
-        return null;
     }
 
     public static byte[] compress(byte[] data) {
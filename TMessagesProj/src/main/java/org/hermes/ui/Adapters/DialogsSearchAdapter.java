@@ -20,6 +20,8 @@ import org.hermes.android.LocaleController;
 import org.hermes.android.MessageObject;
 import org.hermes.android.MessagesController;
 import org.hermes.android.MessagesStorage;
+import org.hermes.android.NotificationCenter;
+import org.hermes.android.query.MessagesSearchQuery;
 import org.hermes.messenger.ByteBufferDesc;
 import org.hermes.messenger.ConnectionsManager;
 import org.hermes.messenger.FileLog;
@@ -44,7 +46,7 @@ import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 
-public class DialogsSearchAdapter extends BaseSearchAdapter {
+public class DialogsSearchAdapter extends BaseSearchAdapter implements NotificationCenter.NotificationCenterDelegate {
 
     private Context mContext;
     private Timer searchTimer;
@@ -60,6 +62,9 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
     private boolean messagesSearchEndReached;
     private String lastMessagesSearchString;
     private int lastSearchId = 0;
+    private int classGuid;
+    private boolean messagesFromServer;
+    private int localSearchMaxId;
 
     private class DialogSearchResult {
         public TLObject object;
@@ -74,6 +79,32 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
     public DialogsSearchAdapter(Context context, int messagesSearch) {
         mContext = context;
         needMessagesSearch = messagesSearch;
+        classGuid = ConnectionsManager.getInstance().generateClassGuid();
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.messagesSearchDidLoaded);
+    }
+
+    public void destroy() {
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.messagesSearchDidLoaded);
+    }
+
+    @Override
+    public void didReceivedNotification(int id, Object... args) {
+        if (id == NotificationCenter.messagesSearchDidLoaded) {
+            if ((Integer) args[4] != classGuid || messagesFromServer || !args[0].equals(lastMessagesSearchString)) {
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            ArrayList<MessageObject> messages = (ArrayList<MessageObject>) args[2];
+            if (localSearchMaxId == 0) {
+                searchResultMessages.clear();
+            }
+            searchResultMessages.addAll(messages);
+            messagesSearchEndReached = (Boolean) args[3];
+            notifyDataSetChanged();
+            if (reqId == 0 && delegate != null) {
+                delegate.searchStateChanged(false);
+            }
+        }
     }
 
     public void setDelegate(MessagesActivitySearchAdapterDelegate delegate) {
@@ -96,11 +127,11 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
         if (needMessagesSearch == 0) {
             return;
         }
-        if (reqId != 0) {
-            ConnectionsManager.getInstance().cancelRpc(reqId, true);
-            reqId = 0;
-        }
         if (query == null || query.length() == 0) {
+            if (reqId != 0) {
+                ConnectionsManager.getInstance().cancelRpc(reqId, true);
+                reqId = 0;
+            }
             searchResultMessages.clear();
             lastReqId = 0;
             lastMessagesSearchString = null;
@@ -118,6 +149,24 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
             req.max_id = searchResultMessages.get(searchResultMessages.size() - 1).getId();
         }
         lastMessagesSearchString = query;
+        //local results show up at once and work offline, the server results replace them once they come
+        if (req.max_id == 0) {
+            messagesFromServer = false;
+        }
+        if (!messagesFromServer) {
+            localSearchMaxId = req.max_id;
+            MessagesSearchQuery.searchMessages(query, 0, req.max_id, req.limit, classGuid);
+            if (req.max_id != 0) {
+                if (delegate != null) {
+                    delegate.searchStateChanged(true);
+                }
+                return;
+            }
+        }
+        if (reqId != 0) {
+            ConnectionsManager.getInstance().cancelRpc(reqId, true);
+            reqId = 0;
+        }
         req.filter = new TLRPC.TL_inputMessagesFilterEmpty();
         final int currentReqId = ++lastReqId;
         if (delegate != null) {
@@ -138,6 +187,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                                 if (req.max_id == 0) {
                                     searchResultMessages.clear();
                                 }
+                                messagesFromServer = true;
                                 for (TLRPC.Message message : res.messages) {
                                     searchResultMessages.add(new MessageObject(message, null, false));
                                 }
@@ -159,7 +209,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
         if (needMessagesSearch == 2) {
             return;
         }
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        MessagesStorage.getInstance().readSnapshot(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -186,7 +236,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                     int resultCount = 0;
 
                     HashMap<Long, DialogSearchResult> dialogsResult = new HashMap<>();
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 200");
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 200");
                     while (cursor.next()) {
                         long id = cursor.longValue(0);
                         DialogSearchResult dialogSearchResult = new DialogSearchResult();
@@ -220,7 +270,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                     cursor.dispose();
 
                     if (!usersToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status, name FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
+                        cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status, name FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
                         while (cursor.next()) {
                             String name = cursor.stringValue(2);
                             String tName = LocaleController.getInstance().getTranslitString(name);
@@ -266,7 +316,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                     }
 
                     if (!chatsToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, name FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
+                        cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, name FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
                         while (cursor.next()) {
                             String name = cursor.stringValue(1);
                             String tName = LocaleController.getInstance().getTranslitString(name);
@@ -298,7 +348,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                     }
 
                     if (!encryptedToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT q.data, u.name, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", TextUtils.join(",", encryptedToLoad)));
+                        cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT q.data, u.name, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", TextUtils.join(",", encryptedToLoad)));
                         while (cursor.next()) {
                             String name = cursor.stringValue(1);
                             String tName = LocaleController.getInstance().getTranslitString(name);
@@ -391,7 +441,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapter {
                         resultArrayNames.add(dialogSearchResult.name);
                     }
 
-                    cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT u.data, u.status, u.name, u.uid FROM users as u INNER JOIN contacts as c ON u.uid = c.uid");
+                    cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized("SELECT u.data, u.status, u.name, u.uid FROM users as u INNER JOIN contacts as c ON u.uid = c.uid");
                     while (cursor.next()) {
                         int uid = cursor.intValue(3);
                         if (dialogsResult.containsKey((long) uid)) {
@@ -53,6 +53,7 @@ import android.widget.Toast;
 import org.hermes.android.AndroidUtilities;
 import org.hermes.PhoneFormat.PhoneFormat;
 import org.hermes.android.Emoji;
+import org.hermes.android.ImagePrefetcher;
 import org.hermes.android.LocaleController;
 import org.hermes.android.MediaController;
 import org.hermes.android.MessagesStorage;
@@ -122,6 +123,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     private FrameLayout progressView;
     private FrameLayout bottomOverlay;
     private ChatAdapter chatAdapter;
+    private ImagePrefetcher imagePrefetcher;
     private ChatActivityEnterView chatActivityEnterView;
     private ImageView timeItem;
     private View timeItem2;
@@ -458,6 +460,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (chatActivityEnterView != null) {
             chatActivityEnterView.onDestroy();
         }
+        if (imagePrefetcher != null) {
+            imagePrefetcher.cancelAll();
+        }
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.messagesDidLoaded);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.emojiDidLoaded);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.updateInterfaces);
@@ -1323,11 +1328,21 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 return false;
             }
         });
+        imagePrefetcher = new ImagePrefetcher(new ImagePrefetcher.ImagePrefetcherDelegate() {
+            @Override
+            public void getMessagesForPosition(int position, ArrayList<MessageObject> result) {
+                int index = messages.size() - position - (!endReached ? 0 : 1);
+                if (index >= 0 && index < messages.size()) {
+                    result.add(messages.get(index));
+                }
+            }
+        }, null, true);
         chatListView.setOnScrollListener(new AbsListView.OnScrollListener() {
             Rect scrollRect = new Rect();
 
             @Override
             public void onScrollStateChanged(AbsListView absListView, int i) {
+                imagePrefetcher.onScrollStateChanged(i == SCROLL_STATE_IDLE);
                 if (i == AbsListView.OnScrollListener.SCROLL_STATE_TOUCH_SCROLL || i == AbsListView.OnScrollListener.SCROLL_STATE_FLING && highlightMessageId != Integer.MAX_VALUE) {
                     highlightMessageId = Integer.MAX_VALUE;
                     updateVisibleRows();
@@ -1336,6 +1351,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
 
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                imagePrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
                 if (visibleItemCount > 0) {
                     if (firstVisibleItem <= 10) {
                         if (!endReached && !loading) {
@@ -3884,7 +3900,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                     SerializedData data = new SerializedData(bytes);
                     TLRPC.Message message = (TLRPC.Message) TLClassStore.Instance().TLdeserialize(data, data.readInt32());
                     if (message != null) {
-                        replyingMessageObject = new MessageObject(message, MessagesController.getInstance().getUsers(), false);
+                        replyingMessageObject = new MessageObject(message, null, false);
                         showReplyPanel(true, replyingMessageObject, null, null, false, false);
                     }
                 }
@@ -39,6 +39,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import org.hermes.android.AndroidUtilities;
+import org.hermes.android.ImagePrefetcher;
 import org.hermes.android.LocaleController;
 import org.hermes.android.MessagesController;
 import org.hermes.android.query.SharedMediaQuery;
@@ -80,6 +81,7 @@ import java.util.TimerTask;
 public class MediaActivity extends BaseFragment implements NotificationCenter.NotificationCenterDelegate, PhotoViewer.PhotoViewerProvider {
 
     private SharedPhotoVideoAdapter photoVideoAdapter;
+    private ImagePrefetcher imagePrefetcher;
     private SharedDocumentsAdapter documentsAdapter;
     private DocumentsSearchAdapter documentsSearchAdapter;
     private SectionsListView listView;
@@ -209,6 +211,9 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        if (imagePrefetcher != null) {
+            imagePrefetcher.cancelAll();
+        }
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.mediaDidLoaded);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didReceivedNewMessages);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.messagesDeleted);
@@ -467,9 +472,30 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
                 }
             }
         });
+        imagePrefetcher = new ImagePrefetcher(new ImagePrefetcher.ImagePrefetcherDelegate() {
+            @Override
+            public void getMessagesForPosition(int position, ArrayList<MessageObject> result) {
+                if (selectedMode != 0 || searching && searchWas || photoVideoAdapter == null) {
+                    return;
+                }
+                int section = photoVideoAdapter.getSectionForPosition(position);
+                int row = photoVideoAdapter.getPositionInSectionForPosition(position);
+                if (section < 0 || section >= sharedMediaData[0].sections.size() || row < 1) {
+                    return;
+                }
+                ArrayList<MessageObject> messageObjects = sharedMediaData[0].sectionArrays.get(sharedMediaData[0].sections.get(section));
+                for (int a = 0; a < columnsCount; a++) {
+                    int index = (row - 1) * columnsCount + a;
+                    if (index < messageObjects.size()) {
+                        result.add(messageObjects.get(index));
+                    }
+                }
+            }
+        }, "b", false);
         listView.setOnScrollListener(new AbsListView.OnScrollListener() {
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState) {
+                imagePrefetcher.onScrollStateChanged(scrollState == SCROLL_STATE_IDLE);
                 if (scrollState == SCROLL_STATE_TOUCH_SCROLL && searching && searchWas) {
                     AndroidUtilities.hideKeyboard(getParentActivity().getCurrentFocus());
                 }
@@ -478,6 +504,7 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
 
             @Override
             public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                imagePrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
                 if (searching && searchWas) {
                     return;
                 }
@@ -773,6 +800,9 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
     public int getSelectedCount() { return 0; }
 
     private void switchToCurrentSelectedMode() {
+        if (imagePrefetcher != null) {
+            imagePrefetcher.cancelAll();
+        }
         if (searching && searchWas) {
             if (listView != null) {
                 listView.setAdapter(documentsSearchAdapter);
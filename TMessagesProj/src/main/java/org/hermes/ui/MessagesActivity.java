@@ -152,6 +152,9 @@ public class MessagesActivity extends BaseFragment implements NotificationCenter
             NotificationCenter.getInstance().removeObserver(this, NotificationCenter.messageSendError);
             NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didSetPasscode);
         }
+        if (dialogsSearchAdapter != null) {
+            dialogsSearchAdapter.destroy();
+        }
         delegate = null;
     }
 
@@ -287,6 +290,9 @@ public class MessagesActivity extends BaseFragment implements NotificationCenter
         } else if (!onlySelect) {
             type = 1;
         }
+        if (dialogsSearchAdapter != null) {
+            dialogsSearchAdapter.destroy();
+        }
         dialogsSearchAdapter = new DialogsSearchAdapter(context, type);
         dialogsSearchAdapter.setDelegate(new DialogsSearchAdapter.MessagesActivitySearchAdapterDelegate() {
             @Override
@@ -0,0 +1,192 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares EmojiTable with the HashMap of boxed codes and the linear scan of the single emoji chars
+ * that Emoji used before, running the scanner loop of Emoji.replaceEmoji over dialog previews with
+ * a few emoji each. Creating the spans needs Android and is left out, so the figures are the lookup
+ * share of a replaceEmoji call. The sprite pages of Emoji need Android as well; the codes here
+ * cover the same ranges. It lives in org.hermes.android because the table is package private.
+ */
+public class EmojiTableBenchmark {
+
+    private static final int TEXTS = 2000;
+    private static final int ROUNDS = 10;
+
+    private static long blackhole;
+
+    private interface Lookup {
+        boolean hasCode(long code);
+        boolean isEmojiChar(char c);
+    }
+
+    public static void main(String[] args) {
+        long[][] pages = pages();
+        final EmojiTable table = new EmojiTable(pages);
+        final HashMap<Long, Object> rects = new HashMap<>();
+        for (long[] page : pages) {
+            for (long code : page) {
+                rects.put(code, page);
+            }
+        }
+        Lookup hashMap = new Lookup() {
+            @Override
+            public boolean hasCode(long code) {
+                return rects.get(code) != null;
+            }
+
+            @Override
+            public boolean isEmojiChar(char c) {
+                for (char cc : EmojiTable.EMOJI_CHARS) {
+                    if (cc == c) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+        Lookup sorted = new Lookup() {
+            @Override
+            public boolean hasCode(long code) {
+                return table.indexOf(code) != EmojiTable.NOT_FOUND;
+            }
+
+            @Override
+            public boolean isEmojiChar(char c) {
+                return table.isEmojiChar(c);
+            }
+        };
+
+        ArrayList<String> texts = texts(pages);
+        long chars = 0;
+        for (String text : texts) {
+            chars += text.length();
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < 10; r++) {
+                for (int a = 0; a < texts.size(); a++) {
+                    blackhole += scan(texts.get(a), hashMap);
+                }
+            }
+            long oldTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < 10; r++) {
+                for (int a = 0; a < texts.size(); a++) {
+                    blackhole += scan(texts.get(a), sorted);
+                }
+            }
+            long newTime = System.nanoTime() - start;
+
+            System.out.println(String.format(Locale.US, "round %d: %d codes, scan with HashMap=%.2fns table=%.2fns per char, %.0fns and %.0fns per preview",
+                    round, table.size(), (double) oldTime / (chars * 10), (double) newTime / (chars * 10), (double) oldTime / (texts.size() * 10), (double) newTime / (texts.size() * 10)));
+        }
+    }
+
+    /**
+     * The loop of Emoji.replaceEmoji, counting the emoji found instead of setting spans.
+     */
+    private static int scan(CharSequence cs, Lookup lookup) {
+        long buf = 0;
+        int emojiCount = 0;
+        int length = cs.length();
+        for (int i = 0; i < length; i++) {
+            char c = cs.charAt(i);
+            if (c == 0xD83C || c == 0xD83D || (buf != 0 && (buf & 0xFFFFFFFF00000000L) == 0 && (c >= 0xDDE6 && c <= 0xDDFA))) {
+                buf <<= 16;
+                buf |= c;
+            } else if (buf > 0 && (c & 0xF000) == 0xD000) {
+                buf <<= 16;
+                buf |= c;
+                if (lookup.hasCode(buf)) {
+                    emojiCount++;
+                }
+                buf = 0;
+            } else if (c == 0x20E3) {
+                if (i > 0) {
+                    char c2 = cs.charAt(i - 1);
+                    if ((c2 >= '0' && c2 <= '9') || c2 == '#') {
+                        buf = c2;
+                        buf <<= 16;
+                        buf |= c;
+                        if (lookup.hasCode(buf)) {
+                            emojiCount++;
+                        }
+                        buf = 0;
+                    }
+                }
+            } else if (lookup.isEmojiChar(c)) {
+                if (lookup.hasCode(c)) {
+                    emojiCount++;
+                }
+            }
+            if (emojiCount >= 50) {
+                break;
+            }
+        }
+        return emojiCount;
+    }
+
+    private static long[][] pages() {
+        long[] chars = new long[EmojiTable.EMOJI_CHARS.length + 11];
+        for (int a = 0; a < EmojiTable.EMOJI_CHARS.length; a++) {
+            chars[a] = EmojiTable.EMOJI_CHARS[a];
+        }
+        for (int a = 0; a < 11; a++) {
+            chars[EmojiTable.EMOJI_CHARS.length + a] = (a < 10 ? '0' + a : '#') << 16 | 0x20E3;
+        }
+        long[] nature = new long[256];
+        for (int a = 0; a < nature.length; a++) {
+            nature[a] = 0xD83CDF00L + a;
+        }
+        long[] people = new long[0x250];
+        for (int a = 0; a < people.length; a++) {
+            people[a] = 0xD83DDC00L + a;
+        }
+        long[] flags = new long[10];
+        for (int a = 0; a < flags.length; a++) {
+            flags[a] = (0xD83CDDE6L + a) << 32 | (0xD83CDDE6L + (a * 7) % 21);
+        }
+        return new long[][] {chars, nature, people, flags};
+    }
+
+    private static ArrayList<String> texts(long[][] pages) {
+        Random random = new Random(25);
+        String words = "hello see you tomorrow at the station ok thanks привет как дела sure ";
+        ArrayList<String> texts = new ArrayList<>();
+        for (int a = 0; a < TEXTS; a++) {
+            StringBuilder builder = new StringBuilder();
+            int length = 20 + random.nextInt(130);
+            while (builder.length() < length) {
+                if (random.nextInt(10) == 0) {
+                    long[] page = pages[random.nextInt(pages.length)];
+                    long code = page[random.nextInt(page.length)];
+                    for (int shift = 48; shift >= 0; shift -= 16) {
+                        char c = (char) (code >> shift);
+                        if (c != 0) {
+                            builder.append(c);
+                        }
+                    }
+                } else {
+                    int start = random.nextInt(words.length() - 8);
+                    builder.append(words, start, start + 1 + random.nextInt(8));
+                }
+            }
+            texts.add(builder.toString());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.benchmark;
+
+import org.hermes.messenger.ConcurrentIntObjectMap;
+import org.hermes.messenger.ConcurrentLongObjectMap;
+import org.hermes.messenger.IntHashSet;
+import org.hermes.messenger.IntLongMap;
+import org.hermes.messenger.IntObjectMap;
+import org.hermes.messenger.LongObjectMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the primitive keyed collections with the java.util collections they replaced: time per
+ * put, get and remove, and the heap a filled collection retains. Keys are user and dialog ids
+ * shaped like the ones the controllers store. Run with a fixed heap (-Xms = -Xmx) so the heap
+ * figures are stable.
+ */
+public class CollectionsBenchmark {
+
+    private static final int[] SIZES = {100, 10000, 100000};
+    private static final int ROUNDS = 5;
+
+    private static Object sink;
+    private static long blackhole;
+
+    private interface Subject {
+        Object fill(int[] keys);
+        long get(Object collection, int[] keys);
+        void remove(Object collection, int[] keys);
+    }
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            int[] keys = new int[size];
+            Random random = new Random(size);
+            for (int a = 0; a < size; a++) {
+                keys[a] = random.nextInt(Integer.MAX_VALUE);
+            }
+            System.out.println("size " + size);
+            run("HashMap<Integer, Object>", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    HashMap<Integer, Object> map = new HashMap<>();
+                    for (int key : keys) {
+                        map.put(key, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    HashMap<Integer, Object> map = (HashMap<Integer, Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    HashMap<Integer, Object> map = (HashMap<Integer, Object>) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("IntObjectMap", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    IntObjectMap<Object> map = new IntObjectMap<>();
+                    for (int key : keys) {
+                        map.put(key, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    IntObjectMap<Object> map = (IntObjectMap<Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    IntObjectMap<Object> map = (IntObjectMap<Object>) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("HashMap<Long, Object>", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    HashMap<Long, Object> map = new HashMap<>();
+                    for (int key : keys) {
+                        map.put((long) key << 32, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    HashMap<Long, Object> map = (HashMap<Long, Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get((long) key << 32) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    HashMap<Long, Object> map = (HashMap<Long, Object>) collection;
+                    for (int key : keys) {
+                        map.remove((long) key << 32);
+                    }
+                }
+            });
+            run("LongObjectMap", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    LongObjectMap<Object> map = new LongObjectMap<>();
+                    for (int key : keys) {
+                        map.put((long) key << 32, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    LongObjectMap<Object> map = (LongObjectMap<Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get((long) key << 32) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    LongObjectMap<Object> map = (LongObjectMap<Object>) collection;
+                    for (int key : keys) {
+                        map.remove((long) key << 32);
+                    }
+                }
+            });
+            run("HashSet<Integer>", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    HashSet<Integer> set = new HashSet<>();
+                    for (int key : keys) {
+                        set.add(key);
+                    }
+                    return set;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    HashSet<Integer> set = (HashSet<Integer>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (set.contains(key)) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    HashSet<Integer> set = (HashSet<Integer>) collection;
+                    for (int key : keys) {
+                        set.remove(key);
+                    }
+                }
+            });
+            run("IntHashSet", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    IntHashSet set = new IntHashSet();
+                    for (int key : keys) {
+                        set.add(key);
+                    }
+                    return set;
+                }
+
+                @Override
+                public long get(Object collection, int[] keys) {
+                    IntHashSet set = (IntHashSet) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (set.contains(key)) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                public void remove(Object collection, int[] keys) {
+                    IntHashSet set = (IntHashSet) collection;
+                    for (int key : keys) {
+                        set.remove(key);
+                    }
+                }
+            });
+            run("HashMap<Integer, Long>", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    HashMap<Integer, Long> map = new HashMap<>();
+                    for (int key : keys) {
+                        map.put(key, (long) key * 1000);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    HashMap<Integer, Long> map = (HashMap<Integer, Long>) collection;
+                    long sum = 0;
+                    for (int key : keys) {
+                        Long value = map.get(key);
+                        if (value != null) {
+                            sum += value;
+                        }
+                    }
+                    return sum;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    HashMap<Integer, Long> map = (HashMap<Integer, Long>) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("IntLongMap", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    IntLongMap map = new IntLongMap();
+                    for (int key : keys) {
+                        map.put(key, (long) key * 1000);
+                    }
+                    return map;
+                }
+
+                @Override
+                public long get(Object collection, int[] keys) {
+                    IntLongMap map = (IntLongMap) collection;
+                    long sum = 0;
+                    for (int key : keys) {
+                        sum += map.get(key, 0);
+                    }
+                    return sum;
+                }
+
+                @Override
+                public void remove(Object collection, int[] keys) {
+                    IntLongMap map = (IntLongMap) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("ConcurrentHashMap<Integer, Object>", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    ConcurrentHashMap<Integer, Object> map = new ConcurrentHashMap<>(16, 1.0f, 2);
+                    for (int key : keys) {
+                        map.put(key, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    ConcurrentHashMap<Integer, Object> map = (ConcurrentHashMap<Integer, Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    ConcurrentHashMap<Integer, Object> map = (ConcurrentHashMap<Integer, Object>) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("ConcurrentIntObjectMap", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    ConcurrentIntObjectMap<Object> map = new ConcurrentIntObjectMap<>(16);
+                    for (int key : keys) {
+                        map.put(key, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    ConcurrentIntObjectMap<Object> map = (ConcurrentIntObjectMap<Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get(key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    ConcurrentIntObjectMap<Object> map = (ConcurrentIntObjectMap<Object>) collection;
+                    for (int key : keys) {
+                        map.remove(key);
+                    }
+                }
+            });
+            run("ConcurrentLongObjectMap", keys, new Subject() {
+                @Override
+                public Object fill(int[] keys) {
+                    ConcurrentLongObjectMap<Object> map = new ConcurrentLongObjectMap<>(16);
+                    for (int key : keys) {
+                        map.put((long) key << 32, keys);
+                    }
+                    return map;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public long get(Object collection, int[] keys) {
+                    ConcurrentLongObjectMap<Object> map = (ConcurrentLongObjectMap<Object>) collection;
+                    long found = 0;
+                    for (int key : keys) {
+                        if (map.get((long) key << 32) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void remove(Object collection, int[] keys) {
+                    ConcurrentLongObjectMap<Object> map = (ConcurrentLongObjectMap<Object>) collection;
+                    for (int key : keys) {
+                        map.remove((long) key << 32);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void run(String name, int[] keys, Subject subject) {
+        int repeat = Math.max(1, 1000000 / keys.length);
+        long putTime = Long.MAX_VALUE;
+        long getTime = Long.MAX_VALUE;
+        long removeTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long put = 0;
+            long get = 0;
+            long remove = 0;
+            for (int r = 0; r < repeat; r++) {
+                long start = System.nanoTime();
+                Object collection = subject.fill(keys);
+                long filled = System.nanoTime();
+                blackhole += subject.get(collection, keys);
+                long read = System.nanoTime();
+                subject.remove(collection, keys);
+                long removed = System.nanoTime();
+                put += filled - start;
+                get += read - filled;
+                remove += removed - read;
+            }
+            putTime = Math.min(putTime, put / repeat);
+            getTime = Math.min(getTime, get / repeat);
+            removeTime = Math.min(removeTime, remove / repeat);
+        }
+
+        long heap = retainedHeap(subject, keys);
+        System.out.println(String.format(Locale.US, "  %-36s put=%6.1fns get=%6.1fns remove=%6.1fns heap=%8.1fKB (%.1f bytes/entry)",
+                name, (double) putTime / keys.length, (double) getTime / keys.length, (double) removeTime / keys.length,
+                heap / 1024.0, (double) heap / keys.length));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int a = 0; a < 4; a++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static long retainedHeap(Subject subject, int[] keys) {
+        int copies = Math.max(1, 200000 / keys.length);
+        Object[] collections = new Object[copies];
+        long before = usedHeap();
+        for (int a = 0; a < copies; a++) {
+            collections[a] = subject.fill(keys);
+        }
+        long after = usedHeap();
+        sink = collections;
+        sink = null;
+        return Math.max(0, (after - before) / copies);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.benchmark;
+
+import org.hermes.messenger.ByteBufferDesc;
+import org.hermes.messenger.ConnectionsManager;
+import org.hermes.messenger.LoopbackClient;
+import org.hermes.messenger.LoopbackServer;
+import org.hermes.messenger.RPCRequest;
+import org.hermes.messenger.TLObject;
+import org.hermes.messenger.TLRPC;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the network stack against LoopbackServer: handshake time, RPC round trips under injected
+ * latency, container batching of request bursts, file transfer throughput and recovery from
+ * dropped connections. AES-IGE runs in Java here, so absolute numbers are lower than with the
+ * native code of the app; compare runs against each other.
+ */
+public class NetworkBenchmark {
+
+    private static final long TIMEOUT = 60000;
+
+    private static LoopbackServer server;
+
+    public static void main(String[] args) throws Exception {
+        server = new LoopbackServer();
+        try {
+            benchmarkHandshake(5);
+            benchmarkLatency(0, 500);
+            benchmarkLatency(5, 200);
+            benchmarkLatency(20, 100);
+            benchmarkBatching(1000, 1);
+            benchmarkBatching(1000, 16);
+            benchmarkBatching(1000, ConnectionsManager.DEFAULT_MAX_CONTAINER_MESSAGES);
+            benchmarkBatching(1000, 1020);
+            benchmarkDownload(16, 1, 0);
+            benchmarkDownload(16, 4, 0);
+            benchmarkDownload(16, 1, 20);
+            benchmarkDownload(16, 4, 20);
+            benchmarkUpload(16, 4, 0);
+            benchmarkUpload(16, 4, 20);
+            benchmarkFaults(500, 10, 512);
+        } finally {
+            server.close();
+        }
+        System.exit(0);
+    }
+
+    private static LoopbackClient connect() throws InterruptedException {
+        LoopbackClient client = new LoopbackClient(server);
+        if (!client.connect(TIMEOUT)) {
+            throw new IllegalStateException("handshake timed out");
+        }
+        return client;
+    }
+
+    private static TLRPC.TL_upload_saveFilePart filePart(int length) {
+        TLRPC.TL_upload_saveFilePart request = new TLRPC.TL_upload_saveFilePart();
+        request.file_id = 1;
+        request.bytes = new ByteBufferDesc(new byte[length]);
+        return request;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * Sends count requests keeping at most window of them running and returns the number answered
+     * without an error.
+     */
+    private static int run(LoopbackClient client, int count, int window, RequestFactory factory) throws InterruptedException {
+        final Semaphore running = new Semaphore(window);
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger answered = new AtomicInteger();
+        for (int a = 0; a < count; a++) {
+            if (!running.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                break;
+            }
+            client.performRpc(factory.create(a), new RPCRequest.RPCRequestDelegate() {
+                @Override
+                public void run(TLObject response, TLRPC.TL_error error) {
+                    if (error == null) {
+                        answered.incrementAndGet();
+                    }
+                    running.release();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        return answered.get();
+    }
+
+    private interface RequestFactory {
+        TLObject create(int index);
+    }
+
+    private static void benchmarkHandshake(int count) throws InterruptedException {
+        long[] times = new long[count];
+        for (int a = 0; a < count; a++) {
+            long start = System.nanoTime();
+            LoopbackClient client = connect();
+            times[a] = (System.nanoTime() - start) / 1000000;
+            client.close();
+        }
+        Arrays.sort(times);
+        System.out.println(String.format(Locale.US, "handshake: %d runs, min=%dms median=%dms max=%dms",
+                count, times[0], percentile(times, 50), times[count - 1]));
+    }
+
+    private static void benchmarkLatency(int latency, int count) throws InterruptedException {
+        LoopbackClient client = connect();
+        server.setLatency(latency);
+        long[] pingTimes = new long[count];
+        long[] uploadTimes = new long[count];
+        for (int a = 0; a < count; a++) {
+            TLRPC.TL_ping ping = new TLRPC.TL_ping();
+            ping.ping_id = a;
+            long start = System.nanoTime();
+            client.sendAndWait(ping, TIMEOUT);
+            pingTimes[a] = (System.nanoTime() - start) / 1000;
+
+            start = System.nanoTime();
+            client.sendAndWait(filePart(1024), TIMEOUT);
+            uploadTimes[a] = (System.nanoTime() - start) / 1000;
+        }
+        server.resetFaults();
+        client.close();
+        Arrays.sort(pingTimes);
+        Arrays.sort(uploadTimes);
+        System.out.println(String.format(Locale.US, "rtt latency=%dms: ping p50=%.2fms p90=%.2fms p99=%.2fms, saveFilePart(1KB) p50=%.2fms p90=%.2fms p99=%.2fms",
+                latency, percentile(pingTimes, 50) / 1000.0, percentile(pingTimes, 90) / 1000.0, percentile(pingTimes, 99) / 1000.0,
+                percentile(uploadTimes, 50) / 1000.0, percentile(uploadTimes, 90) / 1000.0, percentile(uploadTimes, 99) / 1000.0));
+    }
+
+    private static void benchmarkBatching(int count, int maxMessages) throws InterruptedException {
+        LoopbackClient client = connect();
+        client.setBatchingPolicy(ConnectionsManager.DEFAULT_GENERIC_BATCH_DELAY, ConnectionsManager.DEFAULT_MAX_CONTAINER_BYTES, maxMessages);
+        long serverBytes = server.getReceivedBytes();
+        long start = System.nanoTime();
+        int answered = run(client, count, count, new RequestFactory() {
+            @Override
+            public TLObject create(int index) {
+                return filePart(16);
+            }
+        });
+        long time = (System.nanoTime() - start) / 1000000;
+        client.close();
+        long packets = client.getSentPackets();
+        System.out.println(String.format(Locale.US, "burst of %d, max %d messages/container: answered=%d packets=%d containers=%d messages/packet=%.1f bytes=%d time=%dms",
+                count, maxMessages, answered, packets, client.getSentContainers(), packets != 0 ? (double) client.getSentMessages() / packets : 0.0,
+                server.getReceivedBytes() - serverBytes, time));
+    }
+
+    private static void benchmarkDownload(int megabytes, int window, int latency) throws InterruptedException {
+        final int partSize = 128 * 1024;
+        int parts = megabytes * 1024 * 1024 / partSize;
+        LoopbackClient client = connect();
+        server.setLatency(latency);
+        long start = System.nanoTime();
+        int answered = run(client, parts, window, new RequestFactory() {
+            @Override
+            public TLObject create(int index) {
+                TLRPC.TL_upload_getFile request = new TLRPC.TL_upload_getFile();
+                request.location = new TLRPC.TL_inputFileLocation();
+                request.offset = index * partSize;
+                request.limit = partSize;
+                return request;
+            }
+        });
+        long time = Math.max(1, (System.nanoTime() - start) / 1000000);
+        server.resetFaults();
+        client.close();
+        System.out.println(String.format(Locale.US, "download %dMB in 128KB parts, %d in flight, latency=%dms: parts=%d/%d %.2fMB/s",
+                megabytes, window, latency, answered, parts, answered * (double) partSize / 1024 / 1024 * 1000 / time));
+    }
+
+    private static void benchmarkUpload(int megabytes, int window, int latency) throws InterruptedException {
+        final int partSize = 512 * 1024;
+        final int parts = megabytes * 1024 * 1024 / partSize;
+        final ByteBufferDesc bytes = new ByteBufferDesc(new byte[partSize]);
+        LoopbackClient client = connect();
+        server.setLatency(latency);
+        long start = System.nanoTime();
+        int answered = run(client, parts, window, new RequestFactory() {
+            @Override
+            public TLObject create(int index) {
+                TLRPC.TL_upload_saveBigFilePart request = new TLRPC.TL_upload_saveBigFilePart();
+                request.file_id = 2;
+                request.file_part = index;
+                request.file_total_parts = parts;
+                request.bytes = bytes;
+                return request;
+            }
+        });
+        long time = Math.max(1, (System.nanoTime() - start) / 1000000);
+        server.resetFaults();
+        client.close();
+        System.out.println(String.format(Locale.US, "upload %dMB in 512KB parts, %d in flight, latency=%dms: parts=%d/%d %.2fMB/s",
+                megabytes, window, latency, answered, parts, answered * (double) partSize / 1024 / 1024 * 1000 / time));
+    }
+
+    private static void benchmarkFaults(int count, int dropAfterPackets, int splitSize) throws InterruptedException {
+        LoopbackClient client = connect();
+        client.setBatchingPolicy(0, ConnectionsManager.DEFAULT_MAX_CONTAINER_BYTES, 1);
+        server.setDropAfterPackets(dropAfterPackets);
+        server.setSplitWrites(splitSize, 0);
+        long start = System.nanoTime();
+        int answered = run(client, count, 8, new RequestFactory() {
+            @Override
+            public TLObject create(int index) {
+                return filePart(1024);
+            }
+        });
+        long time = (System.nanoTime() - start) / 1000000;
+        server.resetFaults();
+        client.close();
+        System.out.println(String.format(Locale.US, "faults, drop every %d packets, %d byte writes: answered=%d/%d reconnects=%d resent=%d time=%dms",
+                dropAfterPackets, splitSize, answered, count, client.getReconnects(), client.getResentRequests(), time));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.benchmark;
+
+import org.hermes.SQLite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the IN lists MessagesStorage inlined into the sql text with the bound ones it uses now,
+ * over a stream of id lookups shaped like the ones of getMessages, getDialogs and the delete path.
+ * The native sqlite code is not built for the JVM, so compiling a statement cannot be timed here;
+ * instead the sql text of every query goes through an LRU of STATEMENT_CACHE_SIZE entries like
+ * SQLiteDatabase's cache, and the misses give the statements sqlite has to compile. The time per
+ * query covers building the sql text and the bind arguments.
+ */
+public class StatementCacheBenchmark {
+
+    private static final String[] QUERIES = {
+            "SELECT data, mid, date FROM messages WHERE mid IN(%s)",
+            "SELECT data, status FROM users WHERE uid IN(%s)",
+            "SELECT data FROM chats WHERE uid IN(%s)",
+            "SELECT mid FROM media_v2 WHERE mid IN(%s)"
+    };
+    private static final int LISTS = 4096;
+    private static final int ROUNDS = 5;
+
+    private static long blackhole;
+
+    private static class StatementLru extends LinkedHashMap<String, Boolean> {
+        int misses;
+
+        StatementLru() {
+            super(SQLiteDatabase.STATEMENT_CACHE_SIZE, 0.75f, true);
+        }
+
+        void use(String sql) {
+            if (get(sql) == null) {
+                misses++;
+                put(sql, true);
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SQLiteDatabase.STATEMENT_CACHE_SIZE;
+        }
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(11);
+        ArrayList<ArrayList<Integer>> lists = new ArrayList<>();
+        for (int a = 0; a < LISTS; a++) {
+            int count = random.nextInt(10) == 0 ? 1 + random.nextInt(200) : 1 + random.nextInt(20);
+            ArrayList<Integer> ids = new ArrayList<>();
+            for (int b = 0; b < count; b++) {
+                ids.add(random.nextInt(5000000));
+            }
+            lists.add(ids);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            StatementLru inlineCache = new StatementLru();
+            int inlineQueries = 0;
+            long start = System.nanoTime();
+            for (int a = 0; a < LISTS; a++) {
+                ArrayList<Integer> ids = lists.get(a);
+                StringBuilder builder = new StringBuilder();
+                for (int b = 0; b < ids.size(); b++) {
+                    if (b != 0) {
+                        builder.append(',');
+                    }
+                    builder.append(ids.get(b));
+                }
+                String sql = String.format(Locale.US, QUERIES[a % QUERIES.length], builder.toString());
+                inlineCache.use(sql);
+                blackhole += sql.length();
+                inlineQueries++;
+            }
+            long inline = System.nanoTime() - start;
+
+            StatementLru boundCache = new StatementLru();
+            int boundQueries = 0;
+            start = System.nanoTime();
+            for (int a = 0; a < LISTS; a++) {
+                ArrayList<Integer> ids = lists.get(a);
+                for (int b = 0; b < ids.size(); b += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                    Object[] bindArgs = SQLiteDatabase.inListArgs(ids, b);
+                    String sql = String.format(Locale.US, QUERIES[a % QUERIES.length], SQLiteDatabase.inListPlaceholders(bindArgs.length));
+                    boundCache.use(sql);
+                    blackhole += sql.length() + bindArgs.length;
+                    boundQueries++;
+                }
+            }
+            long bound = System.nanoTime() - start;
+
+            System.out.println(String.format(Locale.US, "round %d: inlined %d queries, %d compiled, %.0fns each; bound %d queries, %d compiled, %.0fns each",
+                    round, inlineQueries, inlineCache.misses, (double) inline / inlineQueries, boundQueries, boundCache.misses, (double) bound / boundQueries));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the app's ApplicationLoader, only the files directory SQLiteDatabase passes to
+ * sqlite as its temp directory. The native sqlite code is not built for the JVM, so databases are
+ * never opened here.
+ */
+public class ApplicationLoader {
+
+    public static class Context {
+        public File getFilesDir() {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+    }
+
+    public static volatile Context applicationContext = new Context();
+}
@@ -0,0 +1,16 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+/**
+ * JVM stand-in for the BuildConfig the Android build generates.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
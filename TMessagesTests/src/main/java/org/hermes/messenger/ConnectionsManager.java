@@ -0,0 +1,89 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.HashMap;
+
+/**
+ * JVM stand-in for the parts of the app's ConnectionsManager that TcpConnection, ConnectionContext
+ * and the TL classes call into. Requests are tracked by the RequestScheduler of the LoopbackClient
+ * that is using the stage queue.
+ */
+public class ConnectionsManager {
+    public static final int DEFAULT_DATACENTER_ID = Integer.MAX_VALUE;
+    public static final int DEFAULT_GENERIC_BATCH_DELAY = 10;
+    public static final int DEFAULT_MAX_CONTAINER_BYTES = 8 * 1024;
+    public static final int DEFAULT_MAX_CONTAINER_MESSAGES = 64;
+
+    protected int currentDatacenterId;
+    protected int movingToDatacenterId = DEFAULT_DATACENTER_ID;
+    volatile RequestScheduler requestScheduler = new RequestScheduler();
+
+    private final HashMap<Integer, Datacenter> datacenters = new HashMap<>();
+    private long lastOutgoingMessageId = 0;
+    private int timeDifference = 0;
+
+    private static volatile ConnectionsManager Instance = null;
+    public static ConnectionsManager getInstance() {
+        ConnectionsManager localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ConnectionsManager.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ConnectionsManager();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public static boolean isNetworkOnline() {
+        return true;
+    }
+
+    public synchronized void putDatacenter(Datacenter datacenter) {
+        datacenters.put(datacenter.datacenterId, datacenter);
+        currentDatacenterId = datacenter.datacenterId;
+    }
+
+    public synchronized Datacenter datacenterWithId(int datacenterId) {
+        if (datacenterId == DEFAULT_DATACENTER_ID) {
+            return datacenters.get(currentDatacenterId);
+        }
+        return datacenters.get(datacenterId);
+    }
+
+    void setTimeDifference(int diff) {
+        timeDifference = diff;
+    }
+
+    public int getCurrentTime() {
+        return (int)(System.currentTimeMillis() / 1000) + timeDifference;
+    }
+
+    synchronized long generateMessageId() {
+        long messageId = (long)((((double)System.currentTimeMillis() + ((double)timeDifference) * 1000) * 4294967296.0) / 1000.0);
+        if (messageId <= lastOutgoingMessageId) {
+            messageId = lastOutgoingMessageId + 1;
+        }
+        while (messageId % 4 != 0) {
+            messageId++;
+        }
+        lastOutgoingMessageId = messageId;
+        return messageId;
+    }
+
+    public TLObject getRequestWithMessageId(long msgId) {
+        RPCRequest request = requestScheduler.getRunningRequest(msgId);
+        if (request != null && request.runningMessageId == msgId) {
+            return request.rawRequest;
+        }
+        return null;
+    }
+}
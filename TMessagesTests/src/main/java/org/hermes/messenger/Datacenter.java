@@ -0,0 +1,75 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+
+/**
+ * JVM stand-in for the app's Datacenter: one address and port, the auth key and the server salts.
+ * Nothing is persisted.
+ */
+public class Datacenter {
+    public int datacenterId;
+    public byte[] authKey;
+    public long authKeyId;
+    public TcpConnection connection;
+
+    private String address;
+    private int port;
+    private final ArrayList<ServerSalt> authServerSaltSet = new ArrayList<>();
+
+    public Datacenter(int datacenterId, String address, int port) {
+        this.datacenterId = datacenterId;
+        this.address = address;
+        this.port = port;
+    }
+
+    public String getCurrentAddress() {
+        return address;
+    }
+
+    public int getCurrentPort() {
+        return port;
+    }
+
+    public void nextAddressOrPort() {
+
+    }
+
+    public void storeCurrentAddressAndPortNum() {
+
+    }
+
+    public void switchTo443Port() {
+
+    }
+
+    public void clearServerSalts() {
+        authServerSaltSet.clear();
+    }
+
+    public long selectServerSalt(int date) {
+        long result = 0;
+        for (ServerSalt salt : authServerSaltSet) {
+            if (salt.validSince <= date && salt.validUntil > date) {
+                result = salt.value;
+            }
+        }
+        return result;
+    }
+
+    public void addServerSalt(ServerSalt serverSalt) {
+        for (ServerSalt salt : authServerSaltSet) {
+            if (salt.value == serverSalt.value) {
+                return;
+            }
+        }
+        authServerSaltSet.add(serverSalt);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * JVM stand-in for the app's DispatchQueue: a daemon thread running posted runnables in the order
+ * of their due time, runnables due at the same time in the order they were posted.
+ */
+public class DispatchQueue extends Thread {
+
+    private static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long time;
+        final long sequence;
+
+        Task(Runnable runnable, long time, long sequence) {
+            this.runnable = runnable;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (time != another.time) {
+                return time < another.time ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long nextSequence;
+
+    public DispatchQueue(final String threadName) {
+        setName(threadName);
+        setDaemon(true);
+        start();
+    }
+
+    public void cancelRunnable(Runnable runnable) {
+        synchronized (tasks) {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == runnable) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void postRunnable(Runnable runnable) {
+        postRunnable(runnable, 0);
+    }
+
+    public void postRunnable(Runnable runnable, long delay) {
+        synchronized (tasks) {
+            tasks.add(new Task(runnable, System.nanoTime() / 1000000 + Math.max(delay, 0), nextSequence++));
+            tasks.notify();
+        }
+    }
+
+    public void cleanupQueue() {
+        synchronized (tasks) {
+            tasks.clear();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            Runnable runnable;
+            synchronized (tasks) {
+                Task task = tasks.peek();
+                long now = System.nanoTime() / 1000000;
+                try {
+                    if (task == null) {
+                        tasks.wait();
+                        continue;
+                    } else if (task.time > now) {
+                        tasks.wait(task.time - now);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                runnable = tasks.poll().runnable;
+            }
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
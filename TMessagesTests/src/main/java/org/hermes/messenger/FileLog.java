@@ -0,0 +1,52 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+/**
+ * JVM stand-in for the app's FileLog. Writes to the console instead of logcat and the log file,
+ * only when BuildVars.DEBUG_VERSION is set.
+ */
+public class FileLog {
+
+    public static void e(final String tag, final String message, final Throwable exception) {
+        if (!BuildVars.DEBUG_VERSION) {
+            return;
+        }
+        System.err.println("E/" + tag + ": " + message);
+        exception.printStackTrace();
+    }
+
+    public static void e(final String tag, final String message) {
+        if (!BuildVars.DEBUG_VERSION) {
+            return;
+        }
+        System.err.println("E/" + tag + ": " + message);
+    }
+
+    public static void e(final String tag, final Throwable e) {
+        if (!BuildVars.DEBUG_VERSION) {
+            return;
+        }
+        e.printStackTrace();
+    }
+
+    public static void d(final String tag, final String message) {
+        if (!BuildVars.DEBUG_VERSION) {
+            return;
+        }
+        System.out.println("D/" + tag + ": " + message);
+    }
+
+    public static void w(final String tag, final String message) {
+        if (!BuildVars.DEBUG_VERSION) {
+            return;
+        }
+        System.out.println("W/" + tag + ": " + message);
+    }
+}
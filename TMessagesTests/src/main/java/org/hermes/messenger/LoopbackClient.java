@@ -0,0 +1,444 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for LoopbackServer built from the app's network classes: HandshakeAction creates the auth
+ * key, TcpConnection carries the packets, MessageEncryption encrypts them and RequestScheduler
+ * tracks the running requests. Requests are batched into containers the way ConnectionsManager
+ * batches generic messages, and running requests are sent again with new message ids after a
+ * reconnect. All state lives on the stage queue; only one client should be in use at a time, as
+ * the TL classes look requests up through ConnectionsManager.getInstance().
+ */
+public class LoopbackClient implements TcpConnection.TcpConnectionDelegate, Action.ActionDelegate {
+
+    private static final AtomicInteger nextDatacenterId = new AtomicInteger(1);
+    private static final int ACK_DELAY = 50;
+    private static final int MAX_CONTAINER_MESSAGES = 1020;
+
+    private final Datacenter datacenter;
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+    private final MessageEncryption messageEncryption = new MessageEncryption();
+    private final ArrayList<RPCRequest> queuedRequests = new ArrayList<>();
+    private final CountDownLatch handshakeLatch = new CountDownLatch(1);
+    private long lastToken;
+    private long batchStartTime;
+    private long flushTime;
+
+    private volatile int maxBatchDelay = 0;
+    private volatile int maxContainerBytes = ConnectionsManager.DEFAULT_MAX_CONTAINER_BYTES;
+    private volatile int maxContainerMessages = ConnectionsManager.DEFAULT_MAX_CONTAINER_MESSAGES;
+
+    private final AtomicLong sentPackets = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong sentContainers = new AtomicLong();
+    private final AtomicLong resentRequests = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong receivedUpdates = new AtomicLong();
+    private final AtomicLong receivedQuickAcks = new AtomicLong();
+    private final AtomicLong receivedSessions = new AtomicLong();
+    private volatile boolean wasConnected;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushTime = 0;
+            flush();
+        }
+    };
+
+    public LoopbackClient(LoopbackServer server) {
+        ArrayList<HashMap<String, Object>> keys = new ArrayList<>();
+        keys.add(server.getPublicKey());
+        HandshakeAction.serverPublicKeys = keys;
+
+        datacenter = new Datacenter(nextDatacenterId.getAndIncrement(), "127.0.0.1", server.getPort());
+        datacenter.connection = new TcpConnection(datacenter.datacenterId);
+        datacenter.connection.transportRequestClass = RPCRequest.RPCRequestClassGeneric;
+        ConnectionsManager.getInstance().putDatacenter(datacenter);
+        ConnectionsManager.getInstance().requestScheduler = requestScheduler;
+    }
+
+    /**
+     * Runs the handshake and returns whether it finished within timeout ms.
+     */
+    public boolean connect(long timeout) throws InterruptedException {
+        final HandshakeAction action = new HandshakeAction(datacenter);
+        action.delegate = this;
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                action.execute(null);
+            }
+        });
+        return handshakeLatch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public byte[] getAuthKey() {
+        return datacenter.authKey;
+    }
+
+    public long getAuthKeyId() {
+        return datacenter.authKeyId;
+    }
+
+    /**
+     * Same limits as ConnectionsManager.setGenericBatchingPolicy: requests wait up to maxDelay ms for
+     * more requests, and a container takes at most maxBytes of messages and maxMessages messages.
+     */
+    public void setBatchingPolicy(int maxDelay, int maxBytes, int maxMessages) {
+        maxBatchDelay = Math.max(0, maxDelay);
+        maxContainerBytes = Math.max(1024, maxBytes);
+        maxContainerMessages = Math.max(1, Math.min(MAX_CONTAINER_MESSAGES, maxMessages));
+    }
+
+    public void performRpc(final TLObject request, final RPCRequest.RPCRequestDelegate completionBlock) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                RPCRequest rpcRequest = new RPCRequest();
+                rpcRequest.token = ++lastToken;
+                rpcRequest.flags = RPCRequest.RPCRequestClassGeneric;
+                rpcRequest.runningDatacenterId = datacenter.datacenterId;
+                rpcRequest.rawRequest = request;
+                rpcRequest.rpcRequest = request;
+                rpcRequest.serializedLength = request.getObjectSize();
+                rpcRequest.completionBlock = completionBlock;
+                if (queuedRequests.isEmpty()) {
+                    batchStartTime = System.currentTimeMillis();
+                }
+                queuedRequests.add(rpcRequest);
+                scheduleFlush();
+            }
+        });
+    }
+
+    /**
+     * Sends request and waits for the answer. Returns the response, which is kept out of the buffer
+     * pool, the TL_error for an rpc_error, or null on timeout.
+     */
+    public TLObject sendAndWait(TLObject request, long timeout) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TLObject[] result = new TLObject[1];
+        performRpc(request, new RPCRequest.RPCRequestDelegate() {
+            @Override
+            public void run(TLObject response, TLRPC.TL_error error) {
+                if (response != null) {
+                    response.disableFree = true;
+                }
+                result[0] = error != null ? error : response;
+                latch.countDown();
+            }
+        });
+        if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        return result[0];
+    }
+
+    public void close() {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (datacenter.connection != null) {
+                    datacenter.connection.delegate = null;
+                    datacenter.connection.suspendConnection(true);
+                }
+            }
+        });
+    }
+
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public long getSentContainers() {
+        return sentContainers.get();
+    }
+
+    public long getResentRequests() {
+        return resentRequests.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getReceivedUpdates() {
+        return receivedUpdates.get();
+    }
+
+    public long getReceivedQuickAcks() {
+        return receivedQuickAcks.get();
+    }
+
+    public long getReceivedSessions() {
+        return receivedSessions.get();
+    }
+
+    private void scheduleFlush() {
+        long time = System.currentTimeMillis();
+        if (queuedRequests.size() < maxContainerMessages) {
+            time = Math.max(time, batchStartTime + maxBatchDelay);
+        }
+        scheduleFlush(time);
+    }
+
+    private void scheduleFlush(long time) {
+        if (flushTime != 0) {
+            if (flushTime <= time) {
+                return;
+            }
+            Utilities.stageQueue.cancelRunnable(flushRunnable);
+        }
+        flushTime = time;
+        Utilities.stageQueue.postRunnable(flushRunnable, Math.max(0, time - System.currentTimeMillis()));
+    }
+
+    private void flush() {
+        TcpConnection connection = datacenter.connection;
+        if (datacenter.authKey == null || connection == null) {
+            return;
+        }
+        ArrayList<NetworkMessage> messages = new ArrayList<>();
+        for (RPCRequest request : queuedRequests) {
+            messages.add(wrapRequest(request, connection));
+            requestScheduler.addRunning(request, 0);
+        }
+        queuedRequests.clear();
+        NetworkMessage confirmation = connection.generateConfirmationRequest();
+        if (confirmation != null) {
+            messages.add(confirmation);
+        }
+        sendMessages(messages, connection);
+    }
+
+    private NetworkMessage wrapRequest(RPCRequest request, TcpConnection connection) {
+        NetworkMessage networkMessage = new NetworkMessage();
+        networkMessage.protoMessage = new TLRPC.TL_protoMessage();
+        networkMessage.protoMessage.msg_id = ConnectionsManager.getInstance().generateMessageId();
+        networkMessage.protoMessage.seqno = connection.generateMessageSeqNo(true);
+        networkMessage.protoMessage.bytes = request.serializedLength;
+        networkMessage.protoMessage.body = request.rpcRequest;
+        networkMessage.rawRequest = request.rawRequest;
+        networkMessage.requestId = request.token;
+        requestScheduler.setRunningMessageId(request, networkMessage.protoMessage.msg_id);
+        request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
+        request.transportChannelToken = connection.channelToken;
+        return networkMessage;
+    }
+
+    private void sendMessages(ArrayList<NetworkMessage> messages, TcpConnection connection) {
+        ArrayList<NetworkMessage> currentMessages = new ArrayList<>();
+        int currentSize = 0;
+        for (NetworkMessage networkMessage : messages) {
+            int messageSize = networkMessage.protoMessage.bytes;
+            if (!currentMessages.isEmpty() && (currentSize + messageSize > maxContainerBytes || currentMessages.size() >= maxContainerMessages)) {
+                sendPacket(currentMessages, connection);
+                currentSize = 0;
+                currentMessages.clear();
+            }
+            currentMessages.add(networkMessage);
+            currentSize += messageSize;
+        }
+        if (!currentMessages.isEmpty()) {
+            sendPacket(currentMessages, connection);
+        }
+    }
+
+    private void sendPacket(ArrayList<NetworkMessage> messages, TcpConnection connection) {
+        long messageId;
+        int messageSeqNo;
+        TLObject messageBody;
+        int messageLength;
+        if (messages.size() == 1) {
+            TLRPC.TL_protoMessage message = messages.get(0).protoMessage;
+            messageId = message.msg_id;
+            messageSeqNo = message.seqno;
+            messageBody = message.body;
+            messageLength = message.bytes;
+        } else {
+            TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
+            messageContainer.messages = new ArrayList<>(messages.size());
+            messageLength = 4 + 4;
+            for (NetworkMessage networkMessage : messages) {
+                messageContainer.messages.add(networkMessage.protoMessage);
+                messageLength += 8 + 4 + 4 + networkMessage.protoMessage.bytes;
+            }
+            messageId = ConnectionsManager.getInstance().generateMessageId();
+            messageSeqNo = connection.generateMessageSeqNo(false);
+            messageBody = messageContainer;
+        }
+
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(TcpConnection.FRAME_HEADER_SPACE + MessageEncryption.HEADER_LENGTH + 8 + 8 + 8 + 4 + 4 + messageLength + 15);
+        data.limit(data.capacity());
+        data.position(TcpConnection.FRAME_HEADER_SPACE + MessageEncryption.HEADER_LENGTH);
+        data.writeInt64(datacenter.selectServerSalt(ConnectionsManager.getInstance().getCurrentTime()));
+        data.writeInt64(connection.getSissionId());
+        data.writeInt64(messageId);
+        data.writeInt32(messageSeqNo);
+        data.writeInt32(messageLength);
+        messageBody.serializeToStream(data);
+
+        if (!messageEncryption.encryptMessage(data, TcpConnection.FRAME_HEADER_SPACE, datacenter.authKey, datacenter.authKeyId, false)) {
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            FileLog.e("tmessages", "***** Transport data is nil");
+            return;
+        }
+        sentPackets.incrementAndGet();
+        sentMessages.addAndGet(messages.size());
+        if (messages.size() > 1) {
+            sentContainers.incrementAndGet();
+        }
+        connection.sendData(data, TcpConnection.FRAME_HEADER_SPACE, true, true);
+    }
+
+    private void processMessage(TLObject message, long messageId, TcpConnection connection) {
+        if (message instanceof TLRPC.TL_msg_container) {
+            for (TLRPC.TL_protoMessage innerMessage : ((TLRPC.TL_msg_container) message).messages) {
+                if (connection.isMessageIdProcessed(innerMessage.msg_id)) {
+                    continue;
+                }
+                if ((innerMessage.seqno & 1) != 0) {
+                    connection.addMessageToConfirm(innerMessage.msg_id);
+                }
+                processMessage(innerMessage.body, innerMessage.msg_id, connection);
+                connection.addProcessedMessageId(innerMessage.msg_id);
+            }
+        } else if (message instanceof TLRPC.TL_rpc_result) {
+            TLRPC.TL_rpc_result resultContainer = (TLRPC.TL_rpc_result) message;
+            RPCRequest request = requestScheduler.getRunningRequest(resultContainer.req_msg_id);
+            if (request == null || request.runningMessageId != resultContainer.req_msg_id) {
+                return;
+            }
+            requestScheduler.removeRunning(request);
+            TLRPC.TL_error error = null;
+            TLObject response = resultContainer.result;
+            if (response instanceof TLRPC.TL_rpc_error) {
+                error = new TLRPC.TL_error();
+                error.code = ((TLRPC.TL_rpc_error) response).error_code;
+                error.text = ((TLRPC.TL_rpc_error) response).error_message;
+                response = null;
+            }
+            if (request.completionBlock != null) {
+                request.completionBlock.run(response, error);
+            }
+            resultContainer.freeResources();
+        } else if (message instanceof TLRPC.TL_pong) {
+            TLRPC.TL_pong pong = (TLRPC.TL_pong) message;
+            RPCRequest request = requestScheduler.getRunningRequest(pong.msg_id);
+            if (request == null || request.runningMessageId != pong.msg_id) {
+                return;
+            }
+            requestScheduler.removeRunning(request);
+            if (request.completionBlock != null) {
+                request.completionBlock.run(pong, null);
+            }
+        } else if (message instanceof TLRPC.Updates) {
+            receivedUpdates.incrementAndGet();
+        } else if (message instanceof TLRPC.TL_new_session_created) {
+            receivedSessions.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void ActionDidFinishExecution(Action action, HashMap<String, Object> params) {
+        ConnectionsManager.getInstance().setTimeDifference((Integer) params.get("timeDifference"));
+        datacenter.connection.delegate = this;
+        wasConnected = true;
+        handshakeLatch.countDown();
+        if (!queuedRequests.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void ActionDidFailExecution(Action action) {
+        FileLog.e("tmessages", "loopback handshake failed");
+    }
+
+    @Override
+    public void tcpConnectionClosed(TcpConnection connection) {
+
+    }
+
+    @Override
+    public void tcpConnectionConnected(TcpConnection connection) {
+        if (!wasConnected) {
+            return;
+        }
+        reconnects.incrementAndGet();
+        ArrayList<RPCRequest> resend = new ArrayList<>();
+        for (RPCRequest request : requestScheduler.runningRequests) {
+            if (request.transportChannelToken != connection.channelToken) {
+                resend.add(request);
+            }
+        }
+        if (resend.isEmpty()) {
+            return;
+        }
+        ArrayList<NetworkMessage> messages = new ArrayList<>();
+        for (RPCRequest request : resend) {
+            messages.add(wrapRequest(request, connection));
+        }
+        resentRequests.addAndGet(resend.size());
+        sendMessages(messages, connection);
+    }
+
+    @Override
+    public void tcpConnectionQuiackAckReceived(TcpConnection connection, int ack) {
+        receivedQuickAcks.incrementAndGet();
+    }
+
+    @Override
+    public void tcpConnectionReceivedData(TcpConnection connection, ByteBufferDesc data, int length) {
+        if (length == 4) {
+            FileLog.e("tmessages", "loopback: server error " + data.readInt32());
+            return;
+        }
+        long keyId = data.readInt64();
+        if (keyId != datacenter.authKeyId || !messageEncryption.decryptMessage(data, length, datacenter.authKey, true)) {
+            FileLog.e("tmessages", "***** Error: invalid message key");
+            return;
+        }
+        data.readInt64();
+        long sessionId = data.readInt64();
+        long messageId = data.readInt64();
+        int messageSeqNo = data.readInt32();
+        data.readInt32();
+        if (sessionId != connection.getSissionId() || connection.isMessageIdProcessed(messageId)) {
+            return;
+        }
+
+        TLObject message = TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+        if (message == null) {
+            FileLog.e("tmessages", "loopback: can't parse message " + messageId);
+            return;
+        }
+        if ((messageSeqNo & 1) != 0) {
+            connection.addMessageToConfirm(messageId);
+        }
+        processMessage(message, messageId, connection);
+        connection.addProcessedMessageId(messageId);
+        if (connection.hasMessagesToConfirm()) {
+            scheduleFlush(System.currentTimeMillis() + ACK_DELAY);
+        }
+    }
+}
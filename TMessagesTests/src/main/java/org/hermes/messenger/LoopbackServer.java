@@ -0,0 +1,771 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local MTProto server for tests and benchmarks. It speaks the abridged TCP transport, runs the
+ * auth key handshake with an RSA key generated at start and answers ping, ping_delay_disconnect,
+ * upload.getFile, upload.saveFilePart and upload.saveBigFilePart, also inside containers and
+ * wrapped in invokeWithLayer and initConnection. Any other method gets a METHOD_NOT_SUPPORTED
+ * rpc_error. Latency, split writes and disconnects can be injected while it runs.
+ */
+public class LoopbackServer {
+
+    public static final int ERROR_CODE_UNSUPPORTED = 400;
+    public static final String ERROR_UNSUPPORTED = "METHOD_NOT_SUPPORTED";
+
+    private static final int DH_G = 3;
+    private static final int ERROR_AUTH_KEY = -404;
+
+    private final ServerSocket serverSocket;
+    private final BigInteger rsaModulus;
+    private final BigInteger rsaPublicExponent;
+    private final BigInteger rsaPrivateExponent;
+    private final long rsaFingerprint;
+    private final BigInteger dhPrime;
+
+    private final ConcurrentHashMap<Long, byte[]> authKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService sendQueue;
+    private long lastMessageId;
+
+    private volatile int latency;
+    private volatile int splitSize;
+    private volatile int splitPause;
+    private volatile int dropAfterPackets;
+    private volatile boolean closed;
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong completedHandshakes = new AtomicLong();
+    private final AtomicLong receivedPackets = new AtomicLong();
+    private final AtomicLong receivedContainers = new AtomicLong();
+    private final AtomicLong receivedMessages = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong sentPackets = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong droppedConnections = new AtomicLong();
+
+    private static class Session {
+        final long sessionId;
+        final long authKeyId;
+        volatile Connection connection;
+        int seqNo;
+
+        Session(long sessionId, long authKeyId) {
+            this.sessionId = sessionId;
+            this.authKeyId = authKeyId;
+        }
+
+        synchronized int generateSeqNo(boolean contentRelated) {
+            int value = seqNo;
+            if (contentRelated) {
+                seqNo++;
+            }
+            return value * 2 + (contentRelated ? 1 : 0);
+        }
+    }
+
+    private static class Reply {
+        final ArrayList<TLObject> messages = new ArrayList<>();
+        final ArrayList<Long> acks = new ArrayList<>();
+    }
+
+    private static class FilePart extends TLRPC.TL_upload_file {
+        byte[] data;
+
+        @Override
+        public void serializeToStream(AbsSerializedData stream) {
+            stream.writeInt32(constructor);
+            type.serializeToStream(stream);
+            stream.writeInt32(mtime);
+            stream.writeByteArray(data);
+        }
+    }
+
+    public LoopbackServer() throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, Utilities.random);
+            java.security.KeyPair keyPair = generator.generateKeyPair();
+            RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+            rsaModulus = publicKey.getModulus();
+            rsaPublicExponent = publicKey.getPublicExponent();
+            rsaPrivateExponent = ((RSAPrivateKey) keyPair.getPrivate()).getPrivateExponent();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        SerializedData keyData = new SerializedData();
+        keyData.writeByteArray(toUnsignedBytes(rsaModulus, 256));
+        keyData.writeByteArray(toUnsignedBytes(rsaPublicExponent, 0));
+        byte[] keyHash = Utilities.computeSHA1(keyData.toByteArray());
+        keyData.cleanup();
+        rsaFingerprint = ByteBuffer.wrap(keyHash, 12, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        dhPrime = new BigInteger(1, Utilities.hexToBytes(Utilities.goodPrimes.get(0)));
+
+        sendQueue = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "loopback send");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        acceptedConnections.incrementAndGet();
+                        Connection connection = new Connection(socket);
+                        connections.add(connection);
+                        connection.start();
+                    } catch (IOException e) {
+                        if (!closed) {
+                            FileLog.e("tmessages", e);
+                        }
+                    }
+                }
+            }
+        }, "loopback accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the server key in the form HandshakeAction.serverPublicKeys holds.
+     */
+    public HashMap<String, Object> getPublicKey() {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("key", new BigInteger[] {rsaModulus, rsaPublicExponent});
+        map.put("fingerprint", rsaFingerprint);
+        return map;
+    }
+
+    public byte[] getAuthKey(long authKeyId) {
+        return authKeys.get(authKeyId);
+    }
+
+    /**
+     * Delays every packet the server sends by the given number of milliseconds.
+     */
+    public void setLatency(int millis) {
+        latency = millis;
+    }
+
+    /**
+     * Writes packets in chunks of chunkSize bytes with a flush and a pause of pauseMillis after each,
+     * so the client sees frames and frame headers split over several reads. 0 writes whole packets.
+     */
+    public void setSplitWrites(int chunkSize, int pauseMillis) {
+        splitSize = chunkSize;
+        splitPause = pauseMillis;
+    }
+
+    /**
+     * Closes a connection when its packetCount-th packet arrives, before the packet is processed.
+     * 0 turns it off.
+     */
+    public void setDropAfterPackets(int packetCount) {
+        dropAfterPackets = packetCount;
+    }
+
+    public void resetFaults() {
+        latency = 0;
+        splitSize = 0;
+        splitPause = 0;
+        dropAfterPackets = 0;
+    }
+
+    public void dropConnections() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends count updatesTooLong to every session, each in its own packet.
+     */
+    public void pushUpdates(int count) {
+        for (Session session : sessions.values()) {
+            Connection connection = session.connection;
+            if (connection == null) {
+                continue;
+            }
+            for (int a = 0; a < count; a++) {
+                Reply reply = new Reply();
+                reply.messages.add(new TLRPC.TL_updatesTooLong());
+                connection.sendReply(session, 0, reply);
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            FileLog.e("tmessages", e);
+        }
+        dropConnections();
+        sendQueue.shutdownNow();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public long getCompletedHandshakes() {
+        return completedHandshakes.get();
+    }
+
+    public long getReceivedPackets() {
+        return receivedPackets.get();
+    }
+
+    public long getReceivedContainers() {
+        return receivedContainers.get();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public long getDroppedConnections() {
+        return droppedConnections.get();
+    }
+
+    /**
+     * The byte upload.getFile returns at the given file offset.
+     */
+    public static byte fileByte(long offset) {
+        return (byte) (offset * 31 + (offset >> 8));
+    }
+
+    private synchronized long generateMessageId(boolean response) {
+        long messageId = (long) (System.currentTimeMillis() * 4294967296.0 / 1000.0);
+        if (messageId <= lastMessageId) {
+            messageId = lastMessageId + 1;
+        }
+        while (messageId % 4 != (response ? 1 : 3)) {
+            messageId++;
+        }
+        lastMessageId = messageId;
+        return messageId;
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            bytes = trimmed;
+        }
+        if (bytes.length < length) {
+            byte[] padded = new byte[length];
+            System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+            bytes = padded;
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static byte[] range(byte[] bytes, int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, offset, result, 0, length);
+        return result;
+    }
+
+    private class Connection extends Thread {
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private final MessageEncryption receiveEncryption = new MessageEncryption();
+        private final MessageEncryption sendEncryption = new MessageEncryption();
+        private int packetCount;
+
+        private byte[] nonce;
+        private byte[] serverNonce;
+        private byte[] newNonce;
+        private BigInteger dhSecret;
+        private byte[] tmpAesKey;
+        private byte[] tmpAesIv;
+
+        Connection(Socket socket) throws IOException {
+            super("loopback connection");
+            setDaemon(true);
+            this.socket = socket;
+            input = new BufferedInputStream(socket.getInputStream());
+            output = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (input.read() != 0xef) {
+                    return;
+                }
+                while (!closed) {
+                    int header = readByte();
+                    boolean quickAck = (header & 0x80) != 0;
+                    int length = header & 0x7f;
+                    if (length == 0x7f) {
+                        length = readByte() | (readByte() << 8) | (readByte() << 16);
+                    }
+                    byte[] packet = new byte[length * 4];
+                    int read = 0;
+                    while (read < packet.length) {
+                        int count = input.read(packet, read, packet.length - read);
+                        if (count < 0) {
+                            throw new EOFException();
+                        }
+                        read += count;
+                    }
+                    receivedPackets.incrementAndGet();
+                    receivedBytes.addAndGet(packet.length);
+                    packetCount++;
+                    if (dropAfterPackets > 0 && packetCount % dropAfterPackets == 0) {
+                        droppedConnections.incrementAndGet();
+                        break;
+                    }
+                    processPacket(packet, quickAck);
+                }
+            } catch (IOException e) {
+                FileLog.d("tmessages", "loopback connection closed " + e);
+            } finally {
+                connections.remove(this);
+                close();
+            }
+        }
+
+        private int readByte() throws IOException {
+            int value = input.read();
+            if (value < 0) {
+                throw new EOFException();
+            }
+            return value;
+        }
+
+        private void processPacket(byte[] packet, boolean quickAck) {
+            ByteBufferDesc data = new ByteBufferDesc(packet);
+            long authKeyId = data.readInt64();
+            if (authKeyId == 0) {
+                processHandshakeMessage(data);
+                return;
+            }
+
+            byte[] authKey = authKeys.get(authKeyId);
+            if (authKey == null || !receiveEncryption.decryptMessage(data, packet.length, authKey, false)) {
+                ByteBuffer error = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                error.putInt(ERROR_AUTH_KEY);
+                sendPacket(error.array());
+                return;
+            }
+            if (quickAck) {
+                ByteBuffer ack = ByteBuffer.allocate(4);
+                ack.putInt(receiveEncryption.getQuickAckId() | 0x80000000);
+                send(ack.array());
+            }
+
+            long salt = data.readInt64();
+            long sessionId = data.readInt64();
+            long messageId = data.readInt64();
+            int seqNo = data.readInt32();
+            int length = data.readInt32();
+
+            Reply reply = new Reply();
+            Session session = sessions.get(sessionId);
+            if (session == null) {
+                session = new Session(sessionId, authKeyId);
+                sessions.put(sessionId, session);
+                TLRPC.TL_new_session_created sessionCreated = new TLRPC.TL_new_session_created();
+                sessionCreated.first_msg_id = messageId;
+                sessionCreated.unique_id = Utilities.random.nextLong();
+                sessionCreated.server_salt = salt;
+                reply.messages.add(sessionCreated);
+            }
+            session.connection = this;
+
+            processMessage(data, messageId, seqNo, data.position() + length, reply);
+            if (!reply.messages.isEmpty()) {
+                sendReply(session, salt, reply);
+            }
+        }
+
+        private void processMessage(ByteBufferDesc data, long messageId, int seqNo, int end, Reply reply) {
+            if ((seqNo & 1) != 0) {
+                reply.acks.add(messageId);
+            }
+            int constructor = data.readInt32();
+            if (constructor == TLRPC.TL_msg_container.constructor) {
+                receivedContainers.incrementAndGet();
+                int count = data.readInt32();
+                for (int a = 0; a < count; a++) {
+                    long innerMessageId = data.readInt64();
+                    int innerSeqNo = data.readInt32();
+                    int innerLength = data.readInt32();
+                    int innerEnd = data.position() + innerLength;
+                    processMessage(data, innerMessageId, innerSeqNo, innerEnd, reply);
+                    data.position(innerEnd);
+                }
+            } else {
+                receivedMessages.incrementAndGet();
+                TLObject result = processRequest(data, constructor, messageId);
+                if (result != null) {
+                    reply.messages.add(result);
+                }
+            }
+            data.position(end);
+        }
+
+        private TLObject processRequest(ByteBufferDesc data, int constructor, long messageId) {
+            if (constructor == TLRPC.TL_msgs_ack.constructor) {
+                return null;
+            } else if (constructor == TLRPC.TL_ping.constructor || constructor == TLRPC.TL_ping_delay_disconnect.constructor) {
+                TLRPC.TL_pong pong = new TLRPC.TL_pong();
+                pong.msg_id = messageId;
+                pong.ping_id = data.readInt64();
+                return pong;
+            } else if (constructor == TLRPC.invokeWithLayer.constructor) {
+                data.readInt32();
+                return processRequest(data, data.readInt32(), messageId);
+            } else if (constructor == TLRPC.initConnection.constructor) {
+                data.readInt32();
+                for (int a = 0; a < 4; a++) {
+                    data.readString();
+                }
+                return processRequest(data, data.readInt32(), messageId);
+            }
+
+            TLObject result;
+            if (constructor == TLRPC.TL_upload_getFile.constructor) {
+                TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                int offset = data.readInt32();
+                int limit = data.readInt32();
+                FilePart file = new FilePart();
+                file.type = new TLRPC.TL_storage_filePartial();
+                file.mtime = (int) (System.currentTimeMillis() / 1000);
+                file.data = new byte[limit];
+                for (int a = 0; a < limit; a++) {
+                    file.data[a] = fileByte(offset + a);
+                }
+                result = file;
+            } else if (constructor == TLRPC.TL_upload_saveFilePart.constructor || constructor == TLRPC.TL_upload_saveBigFilePart.constructor) {
+                data.readInt64();
+                data.readInt32();
+                if (constructor == TLRPC.TL_upload_saveBigFilePart.constructor) {
+                    data.readInt32();
+                }
+                ByteBufferDesc bytes = data.readByteBuffer();
+                uploadedBytes.addAndGet(bytes.limit());
+                BuffersStorage.getInstance().reuseFreeBuffer(bytes);
+                result = new TLRPC.TL_boolTrue();
+            } else {
+                TLRPC.TL_rpc_error error = new TLRPC.TL_rpc_error();
+                error.error_code = ERROR_CODE_UNSUPPORTED;
+                error.error_message = ERROR_UNSUPPORTED;
+                result = error;
+            }
+            TLRPC.TL_rpc_result rpcResult = new TLRPC.TL_rpc_result();
+            rpcResult.req_msg_id = messageId;
+            rpcResult.result = result;
+            return rpcResult;
+        }
+
+        void sendReply(Session session, long salt, Reply reply) {
+            if (!reply.acks.isEmpty()) {
+                TLRPC.TL_msgs_ack ack = new TLRPC.TL_msgs_ack();
+                ack.msg_ids = reply.acks;
+                reply.messages.add(ack);
+            }
+
+            long messageId;
+            int seqNo;
+            TLObject body;
+            if (reply.messages.size() == 1) {
+                body = reply.messages.get(0);
+                messageId = generateMessageId(body instanceof TLRPC.TL_rpc_result);
+                seqNo = session.generateSeqNo(!(body instanceof TLRPC.TL_msgs_ack));
+            } else {
+                TLRPC.TL_msg_container container = new TLRPC.TL_msg_container();
+                container.messages = new ArrayList<>();
+                for (TLObject message : reply.messages) {
+                    TLRPC.TL_protoMessage protoMessage = new TLRPC.TL_protoMessage();
+                    protoMessage.msg_id = generateMessageId(message instanceof TLRPC.TL_rpc_result);
+                    protoMessage.seqno = session.generateSeqNo(!(message instanceof TLRPC.TL_msgs_ack));
+                    protoMessage.bytes = message.getObjectSize();
+                    protoMessage.body = message;
+                    container.messages.add(protoMessage);
+                }
+                body = container;
+                messageId = generateMessageId(false);
+                seqNo = session.generateSeqNo(false);
+            }
+
+            int bodyLength = body.getObjectSize();
+            ByteBufferDesc data = new ByteBufferDesc(MessageEncryption.HEADER_LENGTH + 32 + bodyLength + 16);
+            data.position(MessageEncryption.HEADER_LENGTH);
+            data.writeInt64(salt);
+            data.writeInt64(session.sessionId);
+            data.writeInt64(messageId);
+            data.writeInt32(seqNo);
+            data.writeInt32(bodyLength);
+            body.serializeToStream(data);
+
+            byte[] packet;
+            synchronized (sendEncryption) {
+                if (!sendEncryption.encryptMessage(data, 0, authKeys.get(session.authKeyId), session.authKeyId, true)) {
+                    return;
+                }
+                packet = new byte[data.limit()];
+                data.position(0);
+                data.buffer.get(packet);
+            }
+            sendPacket(packet);
+        }
+
+        private void processHandshakeMessage(ByteBufferDesc data) {
+            data.readInt64();
+            data.readInt32();
+            int constructor = data.readInt32();
+            if (constructor == TLRPC.TL_req_pq.constructor) {
+                TLRPC.TL_req_pq reqPq = new TLRPC.TL_req_pq();
+                reqPq.readParams(data);
+                nonce = reqPq.nonce;
+                serverNonce = new byte[16];
+                Utilities.random.nextBytes(serverNonce);
+
+                long p = BigInteger.probablePrime(31, Utilities.random).longValue();
+                long q = BigInteger.probablePrime(31, Utilities.random).longValue();
+                TLRPC.TL_resPQ resPq = new TLRPC.TL_resPQ();
+                resPq.nonce = nonce;
+                resPq.server_nonce = serverNonce;
+                resPq.pq = ByteBuffer.allocate(8).putLong(p * q).array();
+                resPq.server_public_key_fingerprints.add(rsaFingerprint);
+                sendPlainMessage(resPq);
+            } else if (constructor == TLRPC.TL_req_DH_params.constructor) {
+                TLRPC.TL_req_DH_params reqDh = new TLRPC.TL_req_DH_params();
+                reqDh.readParams(data);
+                byte[] decrypted = toUnsignedBytes(new BigInteger(1, reqDh.encrypted_data).modPow(rsaPrivateExponent, rsaModulus), 255);
+                ByteBufferDesc innerDataBuffer = new ByteBufferDesc(decrypted);
+                innerDataBuffer.position(20);
+                if (innerDataBuffer.readInt32() != TLRPC.TL_p_q_inner_data.constructor) {
+                    FileLog.e("tmessages", "loopback: bad p_q_inner_data");
+                    return;
+                }
+                TLRPC.TL_p_q_inner_data innerData = new TLRPC.TL_p_q_inner_data();
+                innerData.readParams(innerDataBuffer);
+                byte[] hash = Utilities.computeSHA1(decrypted, 20, innerDataBuffer.position() - 20);
+                if (!Utilities.arraysEquals(hash, 0, range(decrypted, 0, 20), 0) || !Utilities.arraysEquals(innerData.nonce, 0, nonce, 0)
+                        || !Utilities.arraysEquals(innerData.server_nonce, 0, serverNonce, 0)) {
+                    FileLog.e("tmessages", "loopback: bad req_DH_params");
+                    return;
+                }
+                newNonce = innerData.new_nonce;
+
+                byte[] newNonceServerNonceHash = Utilities.computeSHA1(concat(newNonce, serverNonce));
+                byte[] serverNonceNewNonceHash = Utilities.computeSHA1(concat(serverNonce, newNonce));
+                byte[] newNonceNewNonceHash = Utilities.computeSHA1(concat(newNonce, newNonce));
+                tmpAesKey = concat(newNonceServerNonceHash, range(serverNonceNewNonceHash, 0, 12));
+                tmpAesIv = concat(range(serverNonceNewNonceHash, 12, 8), newNonceNewNonceHash, range(newNonce, 0, 4));
+
+                byte[] secret = new byte[256];
+                Utilities.random.nextBytes(secret);
+                dhSecret = new BigInteger(1, secret);
+                TLRPC.TL_server_DH_inner_data dhInnerData = new TLRPC.TL_server_DH_inner_data();
+                dhInnerData.nonce = nonce;
+                dhInnerData.server_nonce = serverNonce;
+                dhInnerData.g = DH_G;
+                dhInnerData.dh_prime = toUnsignedBytes(dhPrime, 256);
+                dhInnerData.g_a = toUnsignedBytes(BigInteger.valueOf(DH_G).modPow(dhSecret, dhPrime), 256);
+                dhInnerData.server_time = (int) (System.currentTimeMillis() / 1000);
+
+                SerializedData inner = new SerializedData();
+                dhInnerData.serializeToStream(inner);
+                byte[] innerBytes = inner.toByteArray();
+                inner.cleanup();
+                int answerLength = 20 + innerBytes.length;
+                answerLength += (16 - answerLength % 16) % 16;
+                ByteBufferDesc answer = new ByteBufferDesc(answerLength);
+                answer.writeRaw(Utilities.computeSHA1(innerBytes));
+                answer.writeRaw(innerBytes);
+                while (answer.position() < answerLength) {
+                    answer.writeByte(Utilities.random.nextInt());
+                }
+                Utilities.aesIgeEncryption(answer.buffer, tmpAesKey, tmpAesIv, true, false, 0, answerLength);
+                TLRPC.TL_server_DH_params_ok paramsOk = new TLRPC.TL_server_DH_params_ok();
+                paramsOk.nonce = nonce;
+                paramsOk.server_nonce = serverNonce;
+                paramsOk.encrypted_answer = new byte[answerLength];
+                answer.position(0);
+                answer.buffer.get(paramsOk.encrypted_answer);
+                sendPlainMessage(paramsOk);
+            } else if (constructor == TLRPC.TL_set_client_DH_params.constructor) {
+                data.readData(16);
+                data.readData(16);
+                byte[] encrypted = data.readByteArray();
+                ByteBufferDesc answer = new ByteBufferDesc(encrypted);
+                Utilities.aesIgeEncryption(answer.buffer, tmpAesKey, tmpAesIv, false, false, 0, encrypted.length);
+                answer.position(20);
+                if (answer.readInt32() != TLRPC.TL_client_DH_inner_data.constructor) {
+                    FileLog.e("tmessages", "loopback: bad client_DH_inner_data");
+                    return;
+                }
+                TLRPC.TL_client_DH_inner_data clientInnerData = new TLRPC.TL_client_DH_inner_data();
+                clientInnerData.readParams(answer);
+
+                byte[] authKey = toUnsignedBytes(new BigInteger(1, clientInnerData.g_b).modPow(dhSecret, dhPrime), 256);
+                byte[] authKeyHash = Utilities.computeSHA1(authKey);
+                long authKeyId = ByteBuffer.wrap(authKeyHash, 12, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                authKeys.put(authKeyId, authKey);
+                completedHandshakes.incrementAndGet();
+
+                TLRPC.TL_dh_gen_ok genOk = new TLRPC.TL_dh_gen_ok();
+                genOk.nonce = nonce;
+                genOk.server_nonce = serverNonce;
+                byte[] newNonceHash = Utilities.computeSHA1(concat(newNonce, new byte[] {1}, range(authKeyHash, 0, 8)));
+                genOk.new_nonce_hash1 = range(newNonceHash, 4, 16);
+                sendPlainMessage(genOk);
+            }
+        }
+
+        private void sendPlainMessage(TLObject message) {
+            int length = message.getObjectSize();
+            ByteBufferDesc data = new ByteBufferDesc(8 + 8 + 4 + length);
+            data.writeInt64(0);
+            data.writeInt64(generateMessageId(true));
+            data.writeInt32(length);
+            message.serializeToStream(data);
+            byte[] packet = new byte[data.position()];
+            data.position(0);
+            data.buffer.get(packet);
+            sendPacket(packet);
+        }
+
+        private void sendPacket(byte[] packet) {
+            int length = packet.length / 4;
+            byte[] frame;
+            if (length < 0x7f) {
+                frame = new byte[1 + packet.length];
+                frame[0] = (byte) length;
+                System.arraycopy(packet, 0, frame, 1, packet.length);
+            } else {
+                frame = new byte[4 + packet.length];
+                frame[0] = 0x7f;
+                frame[1] = (byte) length;
+                frame[2] = (byte) (length >> 8);
+                frame[3] = (byte) (length >> 16);
+                System.arraycopy(packet, 0, frame, 4, packet.length);
+            }
+            sentPackets.incrementAndGet();
+            send(frame);
+        }
+
+        private void send(final byte[] bytes) {
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int chunk = splitSize;
+                        if (chunk <= 0) {
+                            output.write(bytes);
+                        } else {
+                            for (int offset = 0; offset < bytes.length; offset += chunk) {
+                                output.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+                                output.flush();
+                                if (splitPause > 0 && offset + chunk < bytes.length) {
+                                    Thread.sleep(splitPause);
+                                }
+                            }
+                        }
+                        output.flush();
+                        sentBytes.addAndGet(bytes.length);
+                    } catch (Exception e) {
+                        FileLog.d("tmessages", "loopback write failed " + e);
+                    }
+                }
+            };
+            try {
+                sendQueue.schedule(write, latency, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                FileLog.d("tmessages", "loopback server closed");
+            }
+        }
+    }
+}
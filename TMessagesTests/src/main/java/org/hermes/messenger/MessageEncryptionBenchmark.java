@@ -0,0 +1,195 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.Locale;
+
+/**
+ * Compares the messages per second createConnectionData reaches with MessageEncryption against the
+ * path it used before: serializing the body once to measure it and again into a buffer, copying
+ * the message into a padded buffer and that into the packet, and deriving the AES key through six
+ * temporary SerializedData instances. Both sides use the same AES, so the difference is the
+ * copying, the allocations and the key derivation. It lives in org.hermes.messenger because
+ * MessageEncryption is package private.
+ */
+public class MessageEncryptionBenchmark {
+
+    private static final int[] SIZES = {64, 1024, 16 * 1024};
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 500000000L;
+
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        byte[] authKey = new byte[256];
+        Utilities.random.nextBytes(authKey);
+        long authKeyId = 0x1122334455667788L;
+        MessageEncryption encryption = new MessageEncryption();
+
+        for (int size : SIZES) {
+            TLRPC.TL_upload_saveFilePart body = new TLRPC.TL_upload_saveFilePart();
+            body.file_id = 1;
+            body.file_part = 2;
+            body.bytes = new ByteBufferDesc(new byte[size]);
+            body.disableFree = true;
+            ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+            body.serializeToStream(sizeBuffer);
+            int messageLength = sizeBuffer.length();
+
+            double oldRate = 0;
+            double newRate = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                int count = 0;
+                long start = System.nanoTime();
+                long time;
+                do {
+                    for (int a = 0; a < 64; a++) {
+                        ByteBufferDesc data = oldConnectionData(body, authKey, authKeyId);
+                        blackhole += data.buffer.get(data.limit() - 1);
+                        BuffersStorage.getInstance().reuseFreeBuffer(data);
+                    }
+                    count += 64;
+                    time = System.nanoTime() - start;
+                } while (time < ROUND_NANOS);
+                oldRate = Math.max(oldRate, count * 1e9 / time);
+
+                count = 0;
+                start = System.nanoTime();
+                do {
+                    for (int a = 0; a < 64; a++) {
+                        ByteBufferDesc data = connectionData(encryption, body, messageLength, authKey, authKeyId);
+                        blackhole += data.buffer.get(data.limit() - 1) + encryption.getQuickAckId();
+                        BuffersStorage.getInstance().reuseFreeBuffer(data);
+                    }
+                    count += 64;
+                    time = System.nanoTime() - start;
+                } while (time < ROUND_NANOS);
+                newRate = Math.max(newRate, count * 1e9 / time);
+            }
+            System.out.println(String.format(Locale.US, "%6d byte messages: copying=%.0f msg/s, in place=%.0f msg/s (%.2fx)",
+                    size, oldRate, newRate, newRate / oldRate));
+        }
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Serializes the message once after the packet header and encrypts it in place, as
+     * createConnectionData does now with the length NetworkMessage already knows.
+     */
+    private static ByteBufferDesc connectionData(MessageEncryption encryption, TLObject body, int messageLength, byte[] authKey, long authKeyId) {
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(TcpConnection.FRAME_HEADER_SPACE + MessageEncryption.HEADER_LENGTH + 8 + 8 + 8 + 4 + 4 + messageLength + 15);
+        data.position(TcpConnection.FRAME_HEADER_SPACE + MessageEncryption.HEADER_LENGTH);
+        data.writeInt64(1);
+        data.writeInt64(2);
+        data.writeInt64(3);
+        data.writeInt32(4);
+        data.writeInt32(messageLength);
+        body.serializeToStream(data);
+        encryption.encryptMessage(data, TcpConnection.FRAME_HEADER_SPACE, authKey, authKeyId, false);
+        return data;
+    }
+
+    /**
+     * The body of createConnectionData before MessageEncryption.
+     */
+    private static ByteBufferDesc oldConnectionData(TLObject body, byte[] authKey, long authKeyId) {
+        ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
+        body.serializeToStream(sizeBuffer);
+
+        ByteBufferDesc innerOs = BuffersStorage.getInstance().getFreeBuffer(8 + 8 + 8 + 4 + 4 + sizeBuffer.length());
+        innerOs.writeInt64(1);
+        innerOs.writeInt64(2);
+        innerOs.writeInt64(3);
+        innerOs.writeInt32(4);
+        innerOs.writeInt32(sizeBuffer.length());
+        body.serializeToStream(innerOs);
+
+        byte[] messageKeyFull = Utilities.computeSHA1(innerOs.buffer, 0, innerOs.limit());
+        byte[] messageKey = new byte[16];
+        System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
+
+        SerializedData ackData = new SerializedData(messageKeyFull);
+        blackhole += ackData.readInt32() & 0x7fffffff;
+        ackData.cleanup();
+
+        MessageKeyData keyData = oldMessageKeyData(authKey, messageKey, false);
+
+        int zeroCount = 0;
+        if (innerOs.limit() % 16 != 0) {
+            zeroCount = 16 - innerOs.limit() % 16;
+        }
+
+        ByteBufferDesc dataForEncryption = BuffersStorage.getInstance().getFreeBuffer(innerOs.limit() + zeroCount);
+        dataForEncryption.writeRaw(innerOs);
+        BuffersStorage.getInstance().reuseFreeBuffer(innerOs);
+
+        if (zeroCount != 0) {
+            byte[] b = new byte[zeroCount];
+            Utilities.random.nextBytes(b);
+            dataForEncryption.writeRaw(b);
+        }
+
+        Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, false, 0, dataForEncryption.limit());
+
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(8 + messageKey.length + dataForEncryption.limit());
+        data.writeInt64(authKeyId);
+        data.writeRaw(messageKey);
+        data.writeRaw(dataForEncryption);
+        BuffersStorage.getInstance().reuseFreeBuffer(dataForEncryption);
+        return data;
+    }
+
+    private static MessageKeyData oldMessageKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
+        MessageKeyData keyData = new MessageKeyData();
+        int x = incoming ? 8 : 0;
+
+        SerializedData data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, x, 32);
+        byte[] sha1_a = Utilities.computeSHA1(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 32 + x, 16);
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 48 + x, 16);
+        byte[] sha1_b = Utilities.computeSHA1(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 64 + x, 32);
+        data.writeRaw(messageKey);
+        byte[] sha1_c = Utilities.computeSHA1(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 96 + x, 32);
+        byte[] sha1_d = Utilities.computeSHA1(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 0, 8);
+        data.writeRaw(sha1_b, 8, 12);
+        data.writeRaw(sha1_c, 4, 12);
+        keyData.aesKey = data.toByteArray();
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 8, 12);
+        data.writeRaw(sha1_b, 0, 8);
+        data.writeRaw(sha1_c, 16, 4);
+        data.writeRaw(sha1_d, 0, 8);
+        keyData.aesIv = data.toByteArray();
+        data.cleanup();
+        return keyData;
+    }
+}
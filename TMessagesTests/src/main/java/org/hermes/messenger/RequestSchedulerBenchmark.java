@@ -0,0 +1,120 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares RequestScheduler with the scans ConnectionsManager did before it: finding the running
+ * request a response belongs to by walking every running request, and checking every running
+ * request for a timeout on each pass. The scan does the datacenter lookup the old pass did for
+ * every request before its time check. Running requests get a check time 1 to 10 seconds ahead,
+ * passes run once per second. It lives in org.hermes.messenger because the scheduler is package
+ * private.
+ */
+public class RequestSchedulerBenchmark {
+
+    private static final int[] RUNNING = {10, 100, 1000, 10000};
+    private static final int ROUNDS = 5;
+    private static final int LOOKUPS = 200000;
+    private static final int PASSES = 600;
+
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        for (int count : RUNNING) {
+            Random random = new Random(count);
+            RequestScheduler scheduler = new RequestScheduler();
+            ArrayList<RPCRequest> running = new ArrayList<>();
+            int[] checkTimes = new int[count];
+            HashMap<Integer, Object> datacenters = new HashMap<>();
+            for (int a = 1; a <= 5; a++) {
+                datacenters.put(a, new Object());
+            }
+            int time = 1000;
+            scheduler.collectDueRequests(time, new ArrayList<RPCRequest>());
+            for (int a = 0; a < count; a++) {
+                RPCRequest request = new RPCRequest();
+                request.token = a + 1;
+                request.flags = RPCRequest.RPCRequestClassGeneric;
+                request.runningMessageId = (a + 1) * 4L;
+                request.runningDatacenterId = 1 + a % 5;
+                checkTimes[a] = time + 1 + random.nextInt(10);
+                scheduler.addRunning(request, checkTimes[a]);
+                running.add(request);
+            }
+            long[] messageIds = new long[4096];
+            for (int a = 0; a < messageIds.length; a++) {
+                messageIds[a] = (random.nextInt(count) + 1) * 4L;
+            }
+
+            long scanLookup = Long.MAX_VALUE;
+            long indexLookup = Long.MAX_VALUE;
+            long scanPass = Long.MAX_VALUE;
+            long wheelPass = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                int lookups = Math.max(1000, LOOKUPS / Math.max(1, count / 100));
+                long start = System.nanoTime();
+                for (int a = 0; a < lookups; a++) {
+                    long messageId = messageIds[a & 4095];
+                    for (int b = 0; b < running.size(); b++) {
+                        RPCRequest request = running.get(b);
+                        if (request.respondsToMessageId(messageId)) {
+                            blackhole += request.token;
+                            break;
+                        }
+                    }
+                }
+                scanLookup = Math.min(scanLookup, (System.nanoTime() - start) / lookups);
+
+                start = System.nanoTime();
+                for (int a = 0; a < LOOKUPS; a++) {
+                    blackhole += scheduler.getRunningRequest(messageIds[a & 4095]).token;
+                }
+                indexLookup = Math.min(indexLookup, (System.nanoTime() - start) / LOOKUPS);
+
+                int scanTime = time;
+                start = System.nanoTime();
+                for (int pass = 0; pass < PASSES; pass++) {
+                    scanTime++;
+                    for (int a = 0; a < running.size(); a++) {
+                        RPCRequest request = running.get(a);
+                        if (datacenters.get(request.runningDatacenterId) == null) {
+                            continue;
+                        }
+                        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && checkTimes[a] <= scanTime) {
+                            checkTimes[a] = scanTime + 1 + (a & 7);
+                            blackhole++;
+                        }
+                    }
+                }
+                scanPass = Math.min(scanPass, (System.nanoTime() - start) / PASSES);
+
+                ArrayList<RPCRequest> due = new ArrayList<>();
+                start = System.nanoTime();
+                for (int pass = 0; pass < PASSES; pass++) {
+                    time++;
+                    due.clear();
+                    scheduler.collectDueRequests(time, due);
+                    for (int a = 0; a < due.size(); a++) {
+                        RPCRequest request = due.get(a);
+                        scheduler.schedule(request, time + 1 + (int) (request.token & 7));
+                        blackhole++;
+                    }
+                }
+                wheelPass = Math.min(wheelPass, (System.nanoTime() - start) / PASSES);
+            }
+            System.out.println(String.format(Locale.US, "%5d running: response lookup scan=%dns index=%dns, timeout pass scan=%.1fus wheel=%.1fus",
+                    count, scanLookup, indexLookup, scanPass / 1000.0, wheelPass / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares TLConstructorTable with the HashMap of classes and Class.newInstance() that TLClassStore
+ * used before, for the lookup and creation alone and for deserializing a batch of small objects.
+ * It lives in org.hermes.messenger because the table is package private.
+ */
+public class TLDeserializationBenchmark {
+
+    private static final int ROUNDS = 10;
+    private static final int LOOKUPS = 2000000;
+
+    private static long blackhole;
+
+    private static class ReflectiveStore {
+        private final HashMap<Integer, Class> classStore = new HashMap<>();
+
+        ReflectiveStore() throws Exception {
+            TLObject object;
+            for (int a = 0; (object = TLConstructorTable.create(a)) != null; a++) {
+                classStore.put(object.getClass().getField("constructor").getInt(null), object.getClass());
+            }
+        }
+
+        TLObject create(int constructor) {
+            Class objClass = classStore.get(constructor);
+            if (objClass == null) {
+                return null;
+            }
+            try {
+                return (TLObject) objClass.newInstance();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        TLObject deserialize(AbsSerializedData stream, int constructor) {
+            TLObject response = create(constructor);
+            if (response != null) {
+                response.readParams(stream);
+            }
+            return response;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ReflectiveStore reflectiveStore = new ReflectiveStore();
+
+        ArrayList<Integer> known = new ArrayList<>();
+        TLObject object;
+        for (int a = 0; (object = TLConstructorTable.create(a)) != null; a++) {
+            known.add(object.getClass().getField("constructor").getInt(null));
+        }
+        int[] constructors = new int[4096];
+        Random random = new Random(1);
+        for (int a = 0; a < constructors.length; a++) {
+            constructors[a] = known.get(random.nextInt(known.size()));
+        }
+
+        byte[] batch = serializedBatch(1000);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int a = 0; a < LOOKUPS; a++) {
+                blackhole += reflectiveStore.create(constructors[a & 4095]).hashCode();
+            }
+            long reflective = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int a = 0; a < LOOKUPS; a++) {
+                blackhole += TLConstructorTable.create(TLConstructorTable.indexOf(constructors[a & 4095])).hashCode();
+            }
+            long table = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int count = 0;
+            for (int r = 0; r < 100; r++) {
+                ByteBufferDesc data = new ByteBufferDesc(batch);
+                while (data.hasRemaining()) {
+                    reflectiveStore.deserialize(data, data.readInt32());
+                    count++;
+                }
+            }
+            long reflectiveBatch = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < 100; r++) {
+                ByteBufferDesc data = new ByteBufferDesc(batch);
+                while (data.hasRemaining()) {
+                    TLClassStore.Instance().TLdeserialize(data, data.readInt32());
+                }
+            }
+            long tableBatch = System.nanoTime() - start;
+
+            System.out.println(String.format(Locale.US, "round %d: lookup+create reflection=%.1fns table=%.1fns, deserialize reflection=%.1fns table=%.1fns per object",
+                    round, (double) reflective / LOOKUPS, (double) table / LOOKUPS, (double) reflectiveBatch / count, (double) tableBatch / count));
+        }
+    }
+
+    private static byte[] serializedBatch(int count) {
+        SerializedData data = new SerializedData();
+        for (int a = 0; a < count; a++) {
+            switch (a % 4) {
+                case 0: {
+                    TLRPC.TL_pong pong = new TLRPC.TL_pong();
+                    pong.msg_id = a;
+                    pong.ping_id = a * 31L;
+                    pong.serializeToStream(data);
+                    break;
+                }
+                case 1: {
+                    TLRPC.TL_msgs_ack ack = new TLRPC.TL_msgs_ack();
+                    ack.msg_ids = new ArrayList<>();
+                    ack.msg_ids.add((long) a);
+                    ack.serializeToStream(data);
+                    break;
+                }
+                case 2: {
+                    TLRPC.TL_peerUser peer = new TLRPC.TL_peerUser();
+                    peer.user_id = a;
+                    peer.serializeToStream(data);
+                    break;
+                }
+                default: {
+                    TLRPC.TL_boolTrue value = new TLRPC.TL_boolTrue();
+                    value.serializeToStream(data);
+                    break;
+                }
+            }
+        }
+        byte[] bytes = data.toByteArray();
+        data.cleanup();
+        return bytes;
+    }
+}
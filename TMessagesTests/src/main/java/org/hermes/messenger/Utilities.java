@@ -0,0 +1,279 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JVM stand-in for the app's Utilities with the members the network classes use. AES-IGE and the
+ * pq factorization are native in the app and written in Java here; "RSA" means raw RSA on Android,
+ * so encryptWithRSA asks for NoPadding explicitly. Prime checks are not persisted.
+ */
+public class Utilities {
+    public static SecureRandom random = new SecureRandom();
+
+    public static ArrayList<String> goodPrimes = new ArrayList<>();
+
+    public static class TPFactorizedValue {
+        public long p, q;
+    }
+
+    public static volatile DispatchQueue stageQueue = new DispatchQueue("stageQueue");
+    public static volatile DispatchQueue globalQueue = new DispatchQueue("globalQueue");
+
+    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+    static {
+        goodPrimes.add("C71CAEB9C6B1C9048E6C522F70F13F73980D40238E3E21C14934D037563D930F48198A0AA7C14058229493D22530F4DBFA336F6E0AC925139543AED44CCE7C3720FD51F69458705AC68CD4FE6B6B13ABDC9746512969328454F18FAF8C595F642477FE96BB2A941D5BCD1D4AC8CC49880708FA9B378E3C4F3A9060BEE67CF9A4A4A695811051907E162753B56B0F6B410DBA74D8A84B2A14B3144E0EF1284754FD17ED950D5965B4B9DD46582DB1178D169C6BC465B0D6FF9CA3928FEF5B9AE4E418FC15E83EBEA0F87FA9FF5EED70050DED2849F47BF959D956850CE929851F0D8115F635B105EE2E4E15D04B2454BF6F4FADF034B10403119CD8E3B92FCC5B");
+    }
+
+    private static final ThreadLocal<Cipher> aesLocal = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/ECB/NoPadding");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    public static void aesIgeEncryption(ByteBuffer buffer, byte[] key, byte[] iv, boolean encrypt, boolean changeIv, int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length);
+        region.position(offset);
+        region.get(data);
+
+        byte[] cipherPrev = new byte[16];
+        byte[] plainPrev = new byte[16];
+        System.arraycopy(iv, 0, cipherPrev, 0, 16);
+        System.arraycopy(iv, 16, plainPrev, 0, 16);
+        byte[] block = new byte[16];
+        byte[] result = new byte[16];
+        try {
+            Cipher cipher = aesLocal.get();
+            cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+            byte[] xorBefore = encrypt ? cipherPrev : plainPrev;
+            byte[] xorAfter = encrypt ? plainPrev : cipherPrev;
+            for (int a = 0; a + 16 <= length; a += 16) {
+                for (int b = 0; b < 16; b++) {
+                    block[b] = (byte) (data[a + b] ^ xorBefore[b]);
+                }
+                cipher.doFinal(block, 0, 16, result, 0);
+                for (int b = 0; b < 16; b++) {
+                    result[b] ^= xorAfter[b];
+                }
+                if (encrypt) {
+                    System.arraycopy(data, a, plainPrev, 0, 16);
+                    System.arraycopy(result, 0, cipherPrev, 0, 16);
+                } else {
+                    System.arraycopy(data, a, cipherPrev, 0, 16);
+                    System.arraycopy(result, 0, plainPrev, 0, 16);
+                }
+                System.arraycopy(result, 0, data, a, 16);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        region.position(offset);
+        region.put(data);
+        if (changeIv) {
+            System.arraycopy(cipherPrev, 0, iv, 0, 16);
+            System.arraycopy(plainPrev, 0, iv, 16, 16);
+        }
+    }
+
+    public static String bytesToHex(byte[] bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        char[] hexChars = new char[bytes.length * 2];
+        int v;
+        for (int j = 0; j < bytes.length; j++) {
+            v = bytes[j] & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    public static byte[] hexToBytes(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        int len = hex.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4) + Character.digit(hex.charAt(i + 1), 16));
+        }
+        return data;
+    }
+
+    public static boolean isGoodPrime(byte[] prime, int g) {
+        if (!(g >= 2 && g <= 7)) {
+            return false;
+        }
+        if (prime.length != 256 || prime[0] >= 0) {
+            return false;
+        }
+
+        BigInteger dhBI = new BigInteger(1, prime);
+        int[][] residues = new int[][] {null, null, {8, 7}, {3, 2}, null, {5, 1, 4}, {24, 19, 23}, {7, 3, 5, 6}};
+        if (residues[g] != null) {
+            int res = dhBI.mod(BigInteger.valueOf(residues[g][0])).intValue();
+            boolean found = false;
+            for (int a = 1; a < residues[g].length; a++) {
+                if (residues[g][a] == res) {
+                    found = true;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+
+        String hex = bytesToHex(prime);
+        synchronized (goodPrimes) {
+            if (goodPrimes.contains(hex)) {
+                return true;
+            }
+        }
+        BigInteger dhBI2 = dhBI.subtract(BigInteger.valueOf(1)).divide(BigInteger.valueOf(2));
+        if (!dhBI.isProbablePrime(30) || !dhBI2.isProbablePrime(30)) {
+            return false;
+        }
+        synchronized (goodPrimes) {
+            goodPrimes.add(hex);
+        }
+        return true;
+    }
+
+    public static boolean isGoodGaAndGb(BigInteger g_a, BigInteger p) {
+        return !(g_a.compareTo(BigInteger.valueOf(1)) != 1 || g_a.compareTo(p.subtract(BigInteger.valueOf(1))) != -1);
+    }
+
+    public static TPFactorizedValue getFactorizedValue(long what) {
+        TPFactorizedValue result = new TPFactorizedValue();
+        BigInteger n = BigInteger.valueOf(what);
+        for (int c = 1; c < 64; c++) {
+            BigInteger x = BigInteger.valueOf(2);
+            BigInteger y = x;
+            BigInteger d = BigInteger.ONE;
+            BigInteger increment = BigInteger.valueOf(c);
+            while (d.equals(BigInteger.ONE)) {
+                x = x.multiply(x).add(increment).mod(n);
+                y = y.multiply(y).add(increment).mod(n);
+                y = y.multiply(y).add(increment).mod(n);
+                d = x.subtract(y).abs().gcd(n);
+            }
+            if (!d.equals(n)) {
+                long p1 = d.longValue();
+                long p2 = what / p1;
+                result.p = Math.min(p1, p2);
+                result.q = Math.max(p1, p2);
+                return result;
+            }
+        }
+        FileLog.e("tmessages", String.format("**** Factorization failed for %d", what));
+        return result;
+    }
+
+    public static boolean arraysEquals(byte[] arr1, int offset1, byte[] arr2, int offset2) {
+        if (arr1 == null || arr2 == null || arr1.length - offset1 != arr2.length - offset2 || arr1.length - offset1 < 0) {
+            return false;
+        }
+        for (int a = offset1; a < arr1.length; a++) {
+            if (arr1[a + offset1] != arr2[a + offset2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] computeSHA1(byte[] convertme, int offset, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(convertme, offset, len);
+            return md.digest();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        return null;
+    }
+
+    public static byte[] computeSHA1(ByteBuffer convertme, int offset, int len) {
+        byte[] result = new byte[20];
+        if (computeSHA1(convertme, offset, len, result)) {
+            return result;
+        }
+        return null;
+    }
+
+    public static boolean computeSHA1(ByteBuffer convertme, int offset, int len, byte[] result) {
+        int oldp = convertme.position();
+        int oldl = convertme.limit();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            convertme.position(offset);
+            convertme.limit(len);
+            md.update(convertme);
+            md.digest(result, 0, 20);
+            return true;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            convertme.limit(oldl);
+            convertme.position(oldp);
+        }
+        return false;
+    }
+
+    public static byte[] computeSHA1(ByteBuffer convertme) {
+        return computeSHA1(convertme, 0, convertme.limit());
+    }
+
+    public static byte[] computeSHA1(byte[] convertme) {
+        return computeSHA1(convertme, 0, convertme.length);
+    }
+
+    public static byte[] encryptWithRSA(BigInteger[] key, byte[] data) {
+        try {
+            KeyFactory fact = KeyFactory.getInstance("RSA");
+            RSAPublicKeySpec keySpec = new RSAPublicKeySpec(key[0], key[1]);
+            PublicKey publicKey = fact.generatePublic(keySpec);
+            final Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+            return cipher.doFinal(data);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        return null;
+    }
+
+    public static MessageKeyData generateMessageKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
+        MessageKeyData keyData = new MessageKeyData();
+        if (authKey == null || authKey.length == 0) {
+            return keyData;
+        }
+        MessageEncryption.generateMessageKeyData(authKey, messageKey, 0, incoming, keyData);
+        return keyData;
+    }
+}
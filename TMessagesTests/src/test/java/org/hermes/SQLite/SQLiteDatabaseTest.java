@@ -0,0 +1,81 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.SQLite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the IN list helpers of SQLiteDatabase. The statement cache itself needs the native sqlite
+ * code, which is not built for the JVM.
+ */
+public class SQLiteDatabaseTest {
+
+    @Test
+    public void roundsSizesUpToPowersOfTwo() {
+        assertEquals(1, SQLiteDatabase.inListSize(0));
+        assertEquals(1, SQLiteDatabase.inListSize(1));
+        assertEquals(2, SQLiteDatabase.inListSize(2));
+        assertEquals(4, SQLiteDatabase.inListSize(3));
+        assertEquals(32, SQLiteDatabase.inListSize(17));
+        assertEquals(SQLiteDatabase.MAX_IN_LIST_ARGS, SQLiteDatabase.inListSize(SQLiteDatabase.MAX_IN_LIST_ARGS));
+        assertEquals(SQLiteDatabase.MAX_IN_LIST_ARGS, SQLiteDatabase.inListSize(SQLiteDatabase.MAX_IN_LIST_ARGS + 1));
+    }
+
+    @Test
+    public void buildsPlaceholdersOnce() {
+        assertEquals("?", SQLiteDatabase.inListPlaceholders(1));
+        assertEquals("?,?,?,?", SQLiteDatabase.inListPlaceholders(4));
+        String placeholders = SQLiteDatabase.inListPlaceholders(SQLiteDatabase.MAX_IN_LIST_ARGS);
+        assertEquals(SQLiteDatabase.MAX_IN_LIST_ARGS * 2 - 1, placeholders.length());
+        assertSame(placeholders, SQLiteDatabase.inListPlaceholders(SQLiteDatabase.MAX_IN_LIST_ARGS));
+    }
+
+    /**
+     * Splits random lists into chunks the way MessagesStorage does and checks that the chunks bind
+     * exactly the values of the list, with only a handful of distinct statement shapes.
+     */
+    @Test
+    public void chunksCoverTheList() {
+        Random random = new Random(11);
+        HashSet<Integer> sizes = new HashSet<>();
+        for (int step = 0; step < 2000; step++) {
+            int count = 1 + random.nextInt(300);
+            ArrayList<Long> values = new ArrayList<>();
+            for (int a = 0; a < count; a++) {
+                values.add(random.nextLong());
+            }
+            HashSet<Object> bound = new HashSet<>();
+            for (int a = 0; a < values.size(); a += SQLiteDatabase.MAX_IN_LIST_ARGS) {
+                Object[] args = SQLiteDatabase.inListArgs(values, a);
+                int chunk = Math.min(values.size() - a, SQLiteDatabase.MAX_IN_LIST_ARGS);
+                assertEquals(SQLiteDatabase.inListSize(chunk), args.length);
+                assertEquals(1, Integer.bitCount(args.length));
+                for (int b = 0; b < args.length; b++) {
+                    assertSame(values.get(a + Math.min(b, chunk - 1)), args[b]);
+                }
+                String placeholders = SQLiteDatabase.inListPlaceholders(args.length);
+                assertEquals(args.length, placeholders.length() - placeholders.replace("?", "").length());
+                sizes.add(args.length);
+                for (Object arg : args) {
+                    bound.add(arg);
+                }
+            }
+            assertEquals(new HashSet<Object>(values), bound);
+        }
+        assertTrue(sizes.size() <= 7);
+    }
+}
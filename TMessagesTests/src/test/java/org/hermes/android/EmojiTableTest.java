@@ -0,0 +1,83 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.android;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiTableTest {
+
+    /**
+     * Builds tables from random pages that share some codes, like the recent and the category pages
+     * of Emoji, and checks every lookup against a HashSet of the codes.
+     */
+    @Test
+    public void indexesMatchHashSet() {
+        Random random = new Random(25);
+        for (int step = 0; step < 50; step++) {
+            long[][] pages = new long[1 + random.nextInt(5)][];
+            HashSet<Long> codes = new HashSet<>();
+            for (int a = 0; a < pages.length; a++) {
+                pages[a] = new long[random.nextInt(300)];
+                for (int b = 0; b < pages[a].length; b++) {
+                    long code = random.nextInt(4) == 0 && !codes.isEmpty() ? codes.iterator().next() : 0xD83C0000L + random.nextInt(0x20000);
+                    pages[a][b] = code;
+                    codes.add(code);
+                }
+            }
+            EmojiTable table = new EmojiTable(pages);
+            assertEquals(codes.size(), table.size());
+
+            HashMap<Integer, Long> codeForIndex = new HashMap<>();
+            for (long code : codes) {
+                int index = table.indexOf(code);
+                assertTrue(index >= 0 && index < table.size());
+                Long previous = codeForIndex.put(index, code);
+                assertTrue(previous == null || previous == code);
+            }
+            assertEquals(codes.size(), codeForIndex.size());
+
+            for (int a = 0; a < 10000; a++) {
+                long code = 0xD83C0000L + random.nextInt(0x20000);
+                if (!codes.contains(code)) {
+                    assertEquals(EmojiTable.NOT_FOUND, table.indexOf(code));
+                }
+            }
+            assertEquals(EmojiTable.NOT_FOUND, table.indexOf(Long.MIN_VALUE));
+            assertEquals(EmojiTable.NOT_FOUND, table.indexOf(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void emptyTableFindsNothing() {
+        EmojiTable table = new EmojiTable(new long[][] {{}, {}});
+        assertEquals(0, table.size());
+        assertEquals(EmojiTable.NOT_FOUND, table.indexOf(0x00000000D83DDE04L));
+    }
+
+    @Test
+    public void emojiCharsMatchLinearScan() {
+        EmojiTable table = new EmojiTable(new long[0][]);
+        HashSet<Character> chars = new HashSet<>();
+        for (char c : EmojiTable.EMOJI_CHARS) {
+            chars.add(c);
+        }
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            assertEquals(Integer.toHexString(c), chars.contains((char) c), table.isEmojiChar((char) c));
+        }
+        assertNotEquals(0, chars.size());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackTest {
+
+    private static final long TIMEOUT = 20000;
+
+    private static LoopbackServer server;
+    private LoopbackClient client;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new LoopbackServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void connect() throws Exception {
+        client = new LoopbackClient(server);
+        assertTrue("handshake timed out", client.connect(TIMEOUT));
+    }
+
+    @After
+    public void disconnect() {
+        server.resetFaults();
+        client.close();
+    }
+
+    static TLRPC.TL_upload_saveFilePart filePart(int part, int length) {
+        TLRPC.TL_upload_saveFilePart request = new TLRPC.TL_upload_saveFilePart();
+        request.file_id = 1;
+        request.file_part = part;
+        byte[] bytes = new byte[length];
+        Utilities.random.nextBytes(bytes);
+        request.bytes = new ByteBufferDesc(bytes);
+        return request;
+    }
+
+    static TLRPC.TL_upload_getFile getFile(int offset, int limit) {
+        TLRPC.TL_upload_getFile request = new TLRPC.TL_upload_getFile();
+        request.location = new TLRPC.TL_inputFileLocation();
+        request.offset = offset;
+        request.limit = limit;
+        return request;
+    }
+
+    private void assertFilePart(TLObject response, int offset, int limit) {
+        assertTrue(String.valueOf(response), response instanceof TLRPC.TL_upload_file);
+        ByteBufferDesc bytes = ((TLRPC.TL_upload_file) response).bytes;
+        assertEquals(limit, bytes.limit());
+        for (int a = 0; a < limit; a++) {
+            assertEquals(LoopbackServer.fileByte(offset + a), bytes.buffer.get(a));
+        }
+    }
+
+    private int sendAll(int count, TLObject request) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger answered = new AtomicInteger();
+        for (int a = 0; a < count; a++) {
+            client.performRpc(request, new RPCRequest.RPCRequestDelegate() {
+                @Override
+                public void run(TLObject response, TLRPC.TL_error error) {
+                    if (response instanceof TLRPC.TL_boolTrue) {
+                        answered.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        return answered.get();
+    }
+
+    @Test
+    public void handshakeAgreesOnAuthKey() {
+        assertNotNull(client.getAuthKey());
+        assertEquals(256, client.getAuthKey().length);
+        assertArrayEquals(client.getAuthKey(), server.getAuthKey(client.getAuthKeyId()));
+    }
+
+    @Test
+    public void answersPing() throws Exception {
+        TLRPC.TL_ping ping = new TLRPC.TL_ping();
+        ping.ping_id = 12345;
+        TLObject response = client.sendAndWait(ping, TIMEOUT);
+        assertTrue(String.valueOf(response), response instanceof TLRPC.TL_pong);
+        assertEquals(12345, ((TLRPC.TL_pong) response).ping_id);
+    }
+
+    @Test
+    public void answersUploadAndDownload() throws Exception {
+        assertTrue(client.sendAndWait(filePart(0, 1000), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+        assertFilePart(client.sendAndWait(getFile(4096, 32 * 1024), TIMEOUT), 4096, 32 * 1024);
+    }
+
+    @Test
+    public void answersUnknownMethodWithError() throws Exception {
+        TLObject response = client.sendAndWait(new TLRPC.TL_help_getConfig(), TIMEOUT);
+        assertTrue(String.valueOf(response), response instanceof TLRPC.TL_error);
+        assertEquals(LoopbackServer.ERROR_CODE_UNSUPPORTED, ((TLRPC.TL_error) response).code);
+        assertEquals(LoopbackServer.ERROR_UNSUPPORTED, ((TLRPC.TL_error) response).text);
+    }
+
+    @Test
+    public void batchesRequestsIntoContainers() throws Exception {
+        client.setBatchingPolicy(20, ConnectionsManager.DEFAULT_MAX_CONTAINER_BYTES, 16);
+        long containers = server.getReceivedContainers();
+        assertEquals(64, sendAll(64, filePart(0, 16)));
+        assertTrue(client.getSentContainers() >= 4);
+        assertTrue(client.getSentPackets() < 64);
+        assertTrue(server.getReceivedContainers() - containers >= 4);
+    }
+
+    @Test
+    public void splitsContainersByBytes() throws Exception {
+        client.setBatchingPolicy(20, 1024, 1020);
+        assertEquals(16, sendAll(16, filePart(0, 512)));
+        assertTrue("sent " + client.getSentPackets(), client.getSentPackets() >= 8);
+    }
+
+    @Test
+    public void reassemblesSplitWrites() throws Exception {
+        server.setSplitWrites(3, 0);
+        assertFilePart(client.sendAndWait(getFile(0, 2048), TIMEOUT), 0, 2048);
+        server.setSplitWrites(1, 1);
+        assertTrue(client.sendAndWait(filePart(0, 100), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+    }
+
+    @Test
+    public void waitsForLatency() throws Exception {
+        server.setLatency(100);
+        long time = System.currentTimeMillis();
+        assertTrue(client.sendAndWait(filePart(0, 100), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+        assertTrue(System.currentTimeMillis() - time >= 100);
+    }
+
+    @Test
+    public void resendsAfterDisconnect() throws Exception {
+        client.setBatchingPolicy(0, 1024, 1);
+        server.setDropAfterPackets(4);
+        assertEquals(20, sendAll(20, filePart(0, 64)));
+        assertTrue(client.getReconnects() > 0);
+        assertTrue(client.getResentRequests() > 0);
+    }
+
+    @Test
+    public void answersAfterServerDropsConnection() throws Exception {
+        assertTrue(client.sendAndWait(filePart(0, 64), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+        server.dropConnections();
+        assertTrue(client.sendAndWait(filePart(1, 64), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+    }
+
+    @Test
+    public void receivesPushedUpdates() throws Exception {
+        assertTrue(client.sendAndWait(filePart(0, 64), TIMEOUT) instanceof TLRPC.TL_boolTrue);
+        server.pushUpdates(5);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (client.getReceivedUpdates() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, client.getReceivedUpdates());
+    }
+}
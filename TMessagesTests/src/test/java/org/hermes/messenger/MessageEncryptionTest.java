@@ -0,0 +1,191 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageEncryptionTest {
+
+    private static final int OFFSET = TcpConnection.FRAME_HEADER_SPACE;
+    private static final long AUTH_KEY_ID = 0x1122334455667788L;
+
+    static byte[] authKey(long seed) {
+        byte[] authKey = new byte[256];
+        new Random(seed).nextBytes(authKey);
+        return authKey;
+    }
+
+    /**
+     * The key derivation ConnectionsManager used before MessageEncryption, six SerializedData
+     * concatenations per message.
+     */
+    static MessageKeyData referenceKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
+        int x = incoming ? 8 : 0;
+        SerializedData data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, x, 32);
+        byte[] sha1_a = Utilities.computeSHA1(data.toByteArray());
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 32 + x, 16);
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 48 + x, 16);
+        byte[] sha1_b = Utilities.computeSHA1(data.toByteArray());
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 64 + x, 32);
+        data.writeRaw(messageKey);
+        byte[] sha1_c = Utilities.computeSHA1(data.toByteArray());
+
+        data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 96 + x, 32);
+        byte[] sha1_d = Utilities.computeSHA1(data.toByteArray());
+
+        MessageKeyData keyData = new MessageKeyData();
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 0, 8);
+        data.writeRaw(sha1_b, 8, 12);
+        data.writeRaw(sha1_c, 4, 12);
+        keyData.aesKey = data.toByteArray();
+
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 8, 12);
+        data.writeRaw(sha1_b, 0, 8);
+        data.writeRaw(sha1_c, 16, 4);
+        data.writeRaw(sha1_d, 0, 8);
+        keyData.aesIv = data.toByteArray();
+        return keyData;
+    }
+
+    /**
+     * Writes a message with the given body after the packet header the way createConnectionData
+     * does and encrypts it.
+     */
+    static ByteBufferDesc encrypt(MessageEncryption encryption, byte[] authKey, byte[] body, boolean incoming) {
+        ByteBufferDesc data = new ByteBufferDesc(OFFSET + MessageEncryption.HEADER_LENGTH + 32 + body.length + 16);
+        data.position(OFFSET + MessageEncryption.HEADER_LENGTH);
+        data.writeInt64(7);
+        data.writeInt64(8);
+        data.writeInt64(9);
+        data.writeInt32(1);
+        data.writeInt32(body.length);
+        data.writeRaw(body);
+        assertTrue(encryption.encryptMessage(data, OFFSET, authKey, AUTH_KEY_ID, incoming));
+        return data;
+    }
+
+    static boolean decrypt(MessageEncryption encryption, ByteBufferDesc data, int length, byte[] authKey, boolean incoming) {
+        data.position(OFFSET);
+        assertEquals(AUTH_KEY_ID, data.readInt64());
+        return encryption.decryptMessage(data, length, authKey, incoming);
+    }
+
+    @Test
+    public void keyDerivationMatchesReference() {
+        Random random = new Random(7);
+        byte[] messageKey = new byte[20];
+        MessageKeyData keyData = new MessageKeyData();
+        for (int a = 0; a < 200; a++) {
+            byte[] authKey = authKey(a);
+            random.nextBytes(messageKey);
+            boolean incoming = (a & 1) != 0;
+            MessageEncryption.generateMessageKeyData(authKey, messageKey, 4, incoming, keyData);
+            MessageKeyData reference = referenceKeyData(authKey, Arrays.copyOfRange(messageKey, 4, 20), incoming);
+            assertArrayEquals(reference.aesKey, keyData.aesKey);
+            assertArrayEquals(reference.aesIv, keyData.aesIv);
+        }
+    }
+
+    @Test
+    public void roundTripsMessagesOfEverySize() {
+        byte[] authKey = authKey(1);
+        Random random = new Random(2);
+        MessageEncryption sender = new MessageEncryption();
+        MessageEncryption receiver = new MessageEncryption();
+        for (int size = 4; size <= 2048; size += 4 + random.nextInt(60)) {
+            byte[] body = new byte[size];
+            random.nextBytes(body);
+            boolean incoming = (size & 4) != 0;
+            ByteBufferDesc data = encrypt(sender, authKey, body, incoming);
+            int length = data.limit() - OFFSET;
+            assertEquals(0, (length - MessageEncryption.HEADER_LENGTH) % 16);
+
+            byte[] encrypted = new byte[size];
+            data.buffer.position(OFFSET + MessageEncryption.HEADER_LENGTH + 32);
+            data.buffer.get(encrypted);
+            assertFalse(Arrays.equals(body, encrypted));
+
+            assertTrue(decrypt(receiver, data, length, authKey, incoming));
+            assertEquals(OFFSET + MessageEncryption.HEADER_LENGTH, data.position());
+            assertEquals(7, data.readInt64());
+            assertEquals(8, data.readInt64());
+            assertEquals(9, data.readInt64());
+            assertEquals(1, data.readInt32());
+            assertEquals(size, data.readInt32());
+            byte[] decrypted = new byte[size];
+            data.readRaw(decrypted);
+            assertArrayEquals(body, decrypted);
+            assertEquals(sender.getQuickAckId(), receiver.getQuickAckId());
+        }
+    }
+
+    @Test
+    public void writesMessageKeyOfPlainMessage() {
+        byte[] authKey = authKey(3);
+        byte[] body = new byte[100];
+        new Random(4).nextBytes(body);
+        MessageEncryption encryption = new MessageEncryption();
+        ByteBufferDesc data = encrypt(encryption, authKey, body, false);
+
+        byte[] messageKey = new byte[16];
+        data.position(OFFSET + 8);
+        data.readRaw(messageKey);
+        int length = data.limit() - OFFSET;
+        assertTrue(decrypt(new MessageEncryption(), data, length, authKey, false));
+        int start = OFFSET + MessageEncryption.HEADER_LENGTH;
+        byte[] sha1 = Utilities.computeSHA1(data.buffer, start, start + 32 + body.length);
+        assertArrayEquals(Arrays.copyOfRange(sha1, 4, 20), messageKey);
+        int quickAck = ((sha1[0] & 0xff) | (sha1[1] & 0xff) << 8 | (sha1[2] & 0xff) << 16 | (sha1[3] & 0xff) << 24) & 0x7fffffff;
+        assertEquals(quickAck, encryption.getQuickAckId());
+    }
+
+    @Test
+    public void rejectsTamperedPackets() {
+        byte[] authKey = authKey(5);
+        byte[] body = new byte[256];
+        new Random(6).nextBytes(body);
+        MessageEncryption encryption = new MessageEncryption();
+        ByteBufferDesc data = encrypt(encryption, authKey, body, false);
+        int length = data.limit() - OFFSET;
+        byte[] packet = new byte[data.limit()];
+        data.buffer.position(0);
+        data.buffer.get(packet);
+
+        for (int a = OFFSET + 8; a < packet.length; a += 7) {
+            ByteBufferDesc tampered = new ByteBufferDesc(packet.clone());
+            tampered.buffer.put(a, (byte) (packet[a] ^ 0x10));
+            assertFalse("byte " + a, decrypt(encryption, tampered, length, authKey, false));
+        }
+        assertFalse(decrypt(encryption, new ByteBufferDesc(packet.clone()), length, authKey, true));
+        assertFalse(decrypt(encryption, new ByteBufferDesc(packet.clone()), length, authKey(6), false));
+        assertFalse(decrypt(encryption, new ByteBufferDesc(packet.clone()), length - 16, authKey, false));
+        assertFalse(decrypt(encryption, new ByteBufferDesc(packet.clone()), length - 1, authKey, false));
+        assertFalse(decrypt(encryption, new ByteBufferDesc(packet.clone()), MessageEncryption.HEADER_LENGTH + 16, authKey, false));
+        assertTrue(decrypt(encryption, new ByteBufferDesc(packet.clone()), length, authKey, false));
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs random operation sequences on the primitive keyed collections and on the java.util
+ * collection they replace, and checks that both always agree. Keys come from a small range, so
+ * most operations hit existing keys and removals exercise the backward shift of probe chains.
+ */
+public class PrimitiveCollectionsTest {
+
+    private static final int OPERATIONS = 200000;
+    private static final long SEED = 0x5eedL;
+
+    private static int nextKey(Random random, int range) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt();
+            case 1:
+                return random.nextInt(range) * 1024;
+            default:
+                return random.nextInt(range) - range / 2;
+        }
+    }
+
+    private static int[] sortedKeys(Iterable<Integer> keys) {
+        ArrayList<Integer> list = new ArrayList<>();
+        for (Integer key : keys) {
+            list.add(key);
+        }
+        int[] result = new int[list.size()];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = list.get(a);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int[] sorted(int[] keys) {
+        int[] result = keys.clone();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static void assertSameValues(Iterable<String> expected, ArrayList<String> actual) {
+        ArrayList<String> expectedList = new ArrayList<>();
+        for (String value : expected) {
+            expectedList.add(value);
+        }
+        ArrayList<String> actualList = new ArrayList<>(actual);
+        java.util.Collections.sort(expectedList);
+        java.util.Collections.sort(actualList);
+        assertEquals(expectedList, actualList);
+    }
+
+    @Test
+    public void intObjectMapMatchesHashMap() {
+        for (int range : new int[] {16, 1000, 100000}) {
+            Random random = new Random(SEED + range);
+            IntObjectMap<String> map = new IntObjectMap<>();
+            HashMap<Integer, String> expected = new HashMap<>();
+            for (int a = 0; a < OPERATIONS; a++) {
+                int key = nextKey(random, range);
+                int op = random.nextInt(100);
+                if (op < 45) {
+                    String value = "v" + a;
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                } else if (op < 70) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else if (op < 72) {
+                    assertEquals(expected.remove(key), map.put(key, null));
+                } else if (op < 99) {
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                } else if (random.nextInt(50) == 0) {
+                    expected.clear();
+                    map.clear();
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            assertEquals(expected.isEmpty(), map.isEmpty());
+            assertTrue(Arrays.equals(sortedKeys(expected.keySet()), sorted(map.keys())));
+            assertSameValues(expected.values(), map.values());
+            for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), map.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void longObjectMapMatchesHashMap() {
+        for (int range : new int[] {16, 1000, 100000}) {
+            Random random = new Random(SEED + range);
+            LongObjectMap<String> map = new LongObjectMap<>();
+            HashMap<Long, String> expected = new HashMap<>();
+            for (int a = 0; a < OPERATIONS; a++) {
+                long key = random.nextBoolean() ? ((long) nextKey(random, range) << 32) : nextKey(random, range);
+                int op = random.nextInt(100);
+                if (op < 45) {
+                    String value = "v" + a;
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                } else if (op < 72) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else if (op < 99) {
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                } else if (random.nextInt(50) == 0) {
+                    expected.clear();
+                    map.clear();
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            long[] keys = map.keys();
+            Arrays.sort(keys);
+            long[] expectedKeys = new long[expected.size()];
+            int index = 0;
+            for (Long key : expected.keySet()) {
+                expectedKeys[index++] = key;
+            }
+            Arrays.sort(expectedKeys);
+            assertTrue(Arrays.equals(expectedKeys, keys));
+            assertSameValues(expected.values(), map.values());
+        }
+    }
+
+    @Test
+    public void intHashSetMatchesHashSet() {
+        for (int range : new int[] {16, 1000, 100000}) {
+            Random random = new Random(SEED + range);
+            IntHashSet set = new IntHashSet();
+            HashSet<Integer> expected = new HashSet<>();
+            for (int a = 0; a < OPERATIONS; a++) {
+                int key = nextKey(random, range);
+                int op = random.nextInt(100);
+                if (op < 45) {
+                    assertEquals(expected.add(key), set.add(key));
+                } else if (op < 70) {
+                    assertEquals(expected.remove(key), set.remove(key));
+                } else if (op < 99) {
+                    assertEquals(expected.contains(key), set.contains(key));
+                } else if (random.nextInt(50) == 0) {
+                    expected.clear();
+                    set.clear();
+                }
+                assertEquals(expected.size(), set.size());
+            }
+            assertEquals(expected.isEmpty(), set.isEmpty());
+            assertTrue(Arrays.equals(sortedKeys(expected), sorted(set.toArray())));
+        }
+    }
+
+    @Test
+    public void intLongMapMatchesHashMap() {
+        for (int range : new int[] {16, 1000, 100000}) {
+            Random random = new Random(SEED + range);
+            IntLongMap map = new IntLongMap();
+            HashMap<Integer, Long> expected = new HashMap<>();
+            for (int a = 0; a < OPERATIONS; a++) {
+                int key = nextKey(random, range);
+                int op = random.nextInt(100);
+                if (op < 45) {
+                    long value = random.nextLong();
+                    expected.put(key, value);
+                    map.put(key, value);
+                } else if (op < 70) {
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                } else if (op < 99) {
+                    Long value = expected.get(key);
+                    assertEquals(value != null ? value : -1L, map.get(key, -1L));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                } else if (random.nextInt(50) == 0) {
+                    expected.clear();
+                    map.clear();
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            int[] keys = map.keys();
+            long[] values = map.values();
+            assertEquals(keys.length, values.length);
+            for (int a = 0; a < keys.length; a++) {
+                assertEquals(expected.get(keys[a]).longValue(), values[a]);
+            }
+            assertTrue(Arrays.equals(sortedKeys(expected.keySet()), sorted(keys)));
+        }
+    }
+
+    @Test
+    public void concurrentIntObjectMapMatchesHashMap() {
+        Random random = new Random(SEED);
+        ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>(16);
+        HashMap<Integer, String> expected = new HashMap<>();
+        for (int a = 0; a < OPERATIONS; a++) {
+            int key = nextKey(random, 1000);
+            int op = random.nextInt(100);
+            if (op < 35) {
+                String value = "v" + a;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            } else if (op < 50) {
+                String value = "v" + a;
+                String old = expected.get(key);
+                if (old == null) {
+                    expected.put(key, value);
+                }
+                assertEquals(old, map.putIfAbsent(key, value));
+            } else if (op < 65) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else if (op < 75) {
+                String value = expected.get(key);
+                boolean removed = value != null && random.nextBoolean();
+                if (removed) {
+                    expected.remove(key);
+                }
+                assertEquals(removed, map.remove(key, removed ? value : "other"));
+            } else if (op < 99) {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            } else if (random.nextInt(50) == 0) {
+                expected.clear();
+                map.clear();
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertTrue(Arrays.equals(sortedKeys(expected.keySet()), sorted(map.keys())));
+        assertSameValues(expected.values(), map.values());
+    }
+
+    @Test
+    public void concurrentLongObjectMapMatchesHashMap() {
+        Random random = new Random(SEED);
+        ConcurrentLongObjectMap<String> map = new ConcurrentLongObjectMap<>(16);
+        HashMap<Long, String> expected = new HashMap<>();
+        for (int a = 0; a < OPERATIONS; a++) {
+            long key = (long) nextKey(random, 1000) * 0x100000001L;
+            int op = random.nextInt(100);
+            if (op < 45) {
+                String value = "v" + a;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            } else if (op < 72) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else if (op < 99) {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            } else if (random.nextInt(50) == 0) {
+                expected.clear();
+                map.clear();
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected.isEmpty(), map.isEmpty());
+        assertSameValues(expected.values(), map.values());
+    }
+
+    @Test
+    public void concurrentMapsKeepEveryThreadsEntries() throws Exception {
+        final int threads = 8;
+        final int perThread = 20000;
+        final ConcurrentIntObjectMap<Integer> intMap = new ConcurrentIntObjectMap<>(16);
+        final ConcurrentLongObjectMap<Integer> longMap = new ConcurrentLongObjectMap<>(16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int a = 0; a < perThread; a++) {
+                            int key = a * threads + thread;
+                            intMap.put(key, key);
+                            longMap.put((long) key << 20, key);
+                            if (a % 3 == 0) {
+                                intMap.remove(key);
+                                longMap.remove((long) key << 20);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertNull(failure[0]);
+        int expectedSize = threads * (perThread - (perThread + 2) / 3);
+        assertEquals(expectedSize, intMap.size());
+        assertEquals(expectedSize, longMap.size());
+        for (int key = 0; key < threads * perThread; key++) {
+            boolean kept = (key / threads) % 3 != 0;
+            assertEquals(kept, intMap.containsKey(key));
+            assertEquals(kept, longMap.containsKey((long) key << 20));
+            if (kept) {
+                assertEquals(key, intMap.get(key).intValue());
+            }
+        }
+        assertFalse(intMap.isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSchedulerTest {
+
+    private static long nextToken = 1;
+
+    static RPCRequest request(int flags, int datacenterId, boolean requiresCompletion) {
+        RPCRequest request = new RPCRequest();
+        request.token = nextToken++;
+        request.flags = flags;
+        request.runningDatacenterId = datacenterId;
+        request.requiresCompletion = requiresCompletion;
+        return request;
+    }
+
+    @Test
+    public void queuesByTransportClassAndDatacenter() {
+        RequestScheduler scheduler = new RequestScheduler();
+        RPCRequest generic1 = request(RPCRequest.RPCRequestClassGeneric, 1, true);
+        RPCRequest generic2 = request(RPCRequest.RPCRequestClassGeneric, 2, false);
+        RPCRequest download = request(RPCRequest.RPCRequestClassDownloadMedia, 1, true);
+        RPCRequest upload = request(RPCRequest.RPCRequestClassUploadMedia, 1, true);
+        RPCRequest generic3 = request(RPCRequest.RPCRequestClassGeneric, 1, true);
+        for (RPCRequest request : new RPCRequest[] {generic1, generic2, download, upload, generic3}) {
+            scheduler.enqueue(request);
+        }
+
+        assertEquals(4, scheduler.queues.size());
+        assertEquals(3, scheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_GENERIC));
+        assertEquals(1, scheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_DOWNLOAD));
+        assertEquals(1, scheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_UPLOAD));
+        RequestScheduler.RequestQueue first = scheduler.queues.get(0);
+        assertEquals(RequestScheduler.TRANSPORT_CLASS_GENERIC, first.transportClass);
+        assertEquals(1, first.datacenterId);
+        assertSame(generic1, first.requests.getFirst());
+        assertSame(generic3, first.requests.getLast());
+        assertEquals(1, scheduler.queues.get(1).withoutCompletionCount);
+        assertSame(download, scheduler.getRequest(download.token));
+
+        scheduler.removeQueued(generic2);
+        scheduler.queues.get(1).requests.remove(generic2);
+        assertEquals(0, scheduler.queues.get(1).withoutCompletionCount);
+        assertEquals(2, scheduler.getQueuedCount(RequestScheduler.TRANSPORT_CLASS_GENERIC));
+        assertNull(scheduler.getRequest(generic2.token));
+    }
+
+    @Test
+    public void indexesRunningRequestsByMessageId() {
+        RequestScheduler scheduler = new RequestScheduler();
+        RPCRequest request = request(RPCRequest.RPCRequestClassDownloadMedia, 1, true);
+        request.runningMessageId = 100;
+        request.addRespondMessageId(90);
+        scheduler.addRunning(request, 0);
+
+        assertEquals(1, scheduler.getRunningCount(RequestScheduler.TRANSPORT_CLASS_DOWNLOAD));
+        assertSame(request, scheduler.getRequest(request.token));
+        assertSame(request, scheduler.getRunningRequest(100));
+        assertSame(request, scheduler.getRunningRequest(90));
+        assertNull(scheduler.getRunningRequest(101));
+
+        scheduler.setRunningMessageId(request, 200);
+        assertNull(scheduler.getRunningRequest(100));
+        assertSame(request, scheduler.getRunningRequest(200));
+        assertSame(request, scheduler.getRunningRequest(90));
+
+        scheduler.removeRunning(request);
+        assertEquals(0, scheduler.getRunningCount(RequestScheduler.TRANSPORT_CLASS_DOWNLOAD));
+        assertNull(scheduler.getRunningRequest(200));
+        assertNull(scheduler.getRunningRequest(90));
+        assertNull(scheduler.getRequest(request.token));
+        assertTrue(scheduler.runningRequests.isEmpty());
+
+        scheduler.removeRunning(request);
+        assertEquals(0, scheduler.getRunningCount(RequestScheduler.TRANSPORT_CLASS_DOWNLOAD));
+    }
+
+    @Test
+    public void collectsRequestsWhenTheirTimeComes() {
+        RequestScheduler scheduler = new RequestScheduler();
+        ArrayList<RPCRequest> due = new ArrayList<>();
+        assertFalse(scheduler.collectDueRequests(1000, due));
+
+        RPCRequest request = request(RPCRequest.RPCRequestClassGeneric, 1, true);
+        scheduler.addRunning(request, 1003);
+        assertTrue(scheduler.collectDueRequests(1002, due));
+        assertTrue(due.isEmpty());
+        assertTrue(scheduler.collectDueRequests(1003, due));
+        assertEquals(1, due.size());
+        due.clear();
+        assertTrue(scheduler.collectDueRequests(1010, due));
+        assertTrue(due.isEmpty());
+
+        scheduler.schedule(request, 1020);
+        scheduler.schedule(request, 1012);
+        assertTrue(scheduler.collectDueRequests(1030, due));
+        assertEquals(1, due.size());
+        due.clear();
+
+        scheduler.schedule(request, 1040);
+        scheduler.removeRunning(request);
+        assertTrue(scheduler.collectDueRequests(1050, due));
+        assertTrue(due.isEmpty());
+    }
+
+    @Test
+    public void fallsBackToFullPassOnClockJumps() {
+        RequestScheduler scheduler = new RequestScheduler();
+        ArrayList<RPCRequest> due = new ArrayList<>();
+        assertFalse(scheduler.collectDueRequests(1000, due));
+        RPCRequest request = request(RPCRequest.RPCRequestClassGeneric, 1, true);
+        scheduler.addRunning(request, 1005);
+        assertFalse(scheduler.collectDueRequests(999, due));
+        assertEquals(0, request.scheduledTime);
+        assertTrue(scheduler.collectDueRequests(1001, due));
+        assertFalse(scheduler.collectDueRequests(1001 + 64, due));
+        assertTrue(due.isEmpty());
+    }
+
+    /**
+     * Checks the wheel against a plain map of check times over random schedule, remove and tick
+     * sequences, with ticks shorter than the wheel.
+     */
+    @Test
+    public void wheelMatchesFullScan() {
+        Random random = new Random(6);
+        RequestScheduler scheduler = new RequestScheduler();
+        HashMap<RPCRequest, Integer> checkTimes = new HashMap<>();
+        ArrayList<RPCRequest> running = new ArrayList<>();
+        int time = 1000;
+        ArrayList<RPCRequest> due = new ArrayList<>();
+        assertFalse(scheduler.collectDueRequests(time, due));
+
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(10);
+            if (op < 4 || running.isEmpty()) {
+                RPCRequest request = request(RPCRequest.RPCRequestClassGeneric, 1, true);
+                int checkTime = time + random.nextInt(40);
+                scheduler.addRunning(request, checkTime);
+                running.add(request);
+                checkTimes.put(request, Math.max(checkTime, time + 1));
+            } else if (op < 6) {
+                RPCRequest request = running.get(random.nextInt(running.size()));
+                int checkTime = time + random.nextInt(40);
+                scheduler.schedule(request, checkTime);
+                checkTimes.put(request, Math.max(checkTime, time + 1));
+            } else if (op < 7) {
+                RPCRequest request = running.remove(random.nextInt(running.size()));
+                scheduler.removeRunning(request);
+                checkTimes.remove(request);
+            } else {
+                time += 1 + random.nextInt(5);
+                due.clear();
+                assertTrue(scheduler.collectDueRequests(time, due));
+                HashSet<RPCRequest> expected = new HashSet<>();
+                for (RPCRequest request : running) {
+                    Integer checkTime = checkTimes.get(request);
+                    if (checkTime != null && checkTime <= time) {
+                        expected.add(request);
+                        checkTimes.remove(request);
+                    }
+                }
+                assertEquals(expected, new HashSet<>(due));
+                assertEquals(expected.size(), due.size());
+            }
+        }
+    }
+}
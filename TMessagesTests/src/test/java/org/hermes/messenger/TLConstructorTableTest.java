@@ -0,0 +1,127 @@
+/*
+ * This is the source code of Hermes for Android v. 2.7.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.hermes.messenger;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TLConstructorTableTest {
+
+    static int constructorOf(Class<?> cls) throws Exception {
+        Field field = cls.getField("constructor");
+        return field.getInt(null);
+    }
+
+    /**
+     * Returns the classes the table creates in index order, the classes TLClassStore registered
+     * before the table replaced its HashMap.
+     */
+    static ArrayList<Class<?>> tableClasses() {
+        ArrayList<Class<?>> classes = new ArrayList<>();
+        TLObject object;
+        while ((object = TLConstructorTable.create(classes.size())) != null) {
+            classes.add(object.getClass());
+        }
+        return classes;
+    }
+
+    @Test
+    public void everyIndexResolvesToItsClass() throws Exception {
+        ArrayList<Class<?>> classes = tableClasses();
+        assertTrue(classes.size() > 400);
+        HashMap<Integer, Class<?>> lastClassForId = new HashMap<>();
+        for (Class<?> cls : classes) {
+            lastClassForId.put(constructorOf(cls), cls);
+        }
+        for (Class<?> cls : classes) {
+            int constructor = constructorOf(cls);
+            int index = TLConstructorTable.indexOf(constructor);
+            assertTrue(cls.getName(), index != TLConstructorTable.NOT_FOUND);
+            assertSame(cls.getName(), lastClassForId.get(constructor), TLConstructorTable.create(index).getClass());
+        }
+    }
+
+    @Test
+    public void wireTypesAreInTheTable() throws Exception {
+        ArrayList<Class<?>> classes = tableClasses();
+        for (Class<?> cls : TLRPC.class.getDeclaredClasses()) {
+            if (!TLObject.class.isAssignableFrom(cls) || Modifier.isAbstract(cls.getModifiers())) {
+                continue;
+            }
+            Field field;
+            try {
+                field = cls.getDeclaredField("constructor");
+            } catch (NoSuchFieldException e) {
+                continue;
+            }
+            int index = TLConstructorTable.indexOf(field.getInt(null));
+            if (index != TLConstructorTable.NOT_FOUND) {
+                assertEquals(cls.getName(), field.getInt(null), constructorOf(classes.get(index)));
+            }
+        }
+        assertTrue(TLConstructorTable.indexOf(TLRPC.TL_rpc_result.constructor) != TLConstructorTable.NOT_FOUND);
+        assertTrue(TLConstructorTable.indexOf(TLRPC.TL_msg_container.constructor) != TLConstructorTable.NOT_FOUND);
+        assertTrue(TLConstructorTable.indexOf(TLRPC.TL_upload_file.constructor) != TLConstructorTable.NOT_FOUND);
+    }
+
+    @Test
+    public void unknownIdsAreNotFound() throws Exception {
+        HashMap<Integer, Boolean> known = new HashMap<>();
+        for (Class<?> cls : tableClasses()) {
+            known.put(constructorOf(cls), true);
+        }
+        Random random = new Random(1);
+        for (int a = 0; a < 100000; a++) {
+            int constructor = random.nextInt();
+            if (!known.containsKey(constructor)) {
+                assertEquals(TLConstructorTable.NOT_FOUND, TLConstructorTable.indexOf(constructor));
+            }
+        }
+        assertEquals(TLConstructorTable.NOT_FOUND, TLConstructorTable.indexOf(0));
+        assertNull(TLConstructorTable.create(-1));
+        assertNull(TLConstructorTable.create(tableClasses().size()));
+    }
+
+    @Test
+    public void deserializesThroughTheTable() {
+        TLRPC.TL_msgs_ack ack = new TLRPC.TL_msgs_ack();
+        ack.msg_ids = new ArrayList<>();
+        ack.msg_ids.add(1L);
+        ack.msg_ids.add(Long.MAX_VALUE);
+        SerializedData data = new SerializedData();
+        ack.serializeToStream(data);
+        SerializedData input = new SerializedData(data.toByteArray());
+        TLObject result = TLClassStore.Instance().TLdeserialize(input, input.readInt32());
+        assertNotNull(result);
+        assertTrue(result instanceof TLRPC.TL_msgs_ack);
+        assertEquals(ack.msg_ids, ((TLRPC.TL_msgs_ack) result).msg_ids);
+
+        TLRPC.TL_pong pong = new TLRPC.TL_pong();
+        pong.msg_id = 42;
+        pong.ping_id = -7;
+        data = new SerializedData();
+        pong.serializeToStream(data);
+        input = new SerializedData(data.toByteArray());
+        result = TLClassStore.Instance().TLdeserialize(input, input.readInt32());
+        assertTrue(result instanceof TLRPC.TL_pong);
+        assertEquals(42, ((TLRPC.TL_pong) result).msg_id);
+        assertEquals(-7, ((TLRPC.TL_pong) result).ping_id);
+    }
+}